@@ -1,14 +1,16 @@
 package timely.balancer.netty.http;
 
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -24,7 +26,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicHeader;
 import org.slf4j.Logger;
@@ -34,6 +36,7 @@ import org.springframework.util.StreamUtils;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Multimap;
 
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -45,8 +48,10 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import timely.api.request.AuthenticatedRequest;
 import timely.api.request.HttpRequest;
+import timely.api.request.MetricBatchRequest;
 import timely.api.request.MetricRequest;
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.MetricBatchResponse;
 import timely.api.response.TimelyException;
 import timely.auth.TimelyAuthenticationToken;
 import timely.auth.util.HttpHeaderUtils;
@@ -55,7 +60,10 @@ import timely.balancer.MetricResolver;
 import timely.balancer.configuration.BalancerHttpProperties;
 import timely.balancer.connection.TimelyBalancedHost;
 import timely.balancer.connection.http.HttpClientPool;
+import timely.model.Metric;
+import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
+import timely.util.JsonUtil;
 
 public class HttpRelayHandler extends SimpleChannelInboundHandler<HttpRequest> implements TimelyHttpHandler {
 
@@ -95,6 +103,14 @@ public class HttpRelayHandler extends SimpleChannelInboundHandler<HttpRequest> i
                         }
                     }
                     k = metricResolver.getHostPortKey(metric);
+                } else if (msg instanceof MetricBatchRequest) {
+                    Map<TimelyBalancedHost,List<Metric>> metricsByHost = groupByHost(((MetricBatchRequest) msg).getMetrics());
+                    if (metricsByHost.size() > 1) {
+                        relayBatch(ctx, (MetricBatchRequest) msg, metricsByHost);
+                        return;
+                    }
+                    // relayed as received to the server that owns all of its metrics
+                    k = metricsByHost.isEmpty() ? metricResolver.getHostPortKeyIngest(null) : metricsByHost.keySet().iterator().next();
                 } else if (msg instanceof MetricRequest) {
                     metric = ((MetricRequest) msg).getMetric().getName();
                     k = metricResolver.getHostPortKeyIngest(metric);
@@ -103,34 +119,15 @@ public class HttpRelayHandler extends SimpleChannelInboundHandler<HttpRequest> i
                 }
                 client = httpClientPool.borrowObject(k);
 
-                Multimap<String,String> headers = HttpHeaderUtils.toMultimap(request.headers());
-                if (msg instanceof AuthenticatedRequest) {
-                    AuthenticatedRequest authenticatedRequest = (AuthenticatedRequest) msg;
-                    TimelyAuthenticationToken token = authenticatedRequest.getToken();
-                    if (token != null) {
-                        if (token.getClientCert() != null) {
-                            ProxiedEntityUtils.addProxyHeaders(headers, token.getClientCert());
-                        }
-                    }
-                }
-
-                List<Header> relayedHeaderList = new ArrayList<>();
-                for (Map.Entry<String,String> h : headers.entries()) {
-                    if (!h.getKey().equals(CONTENT_LENGTH.toString())) {
-                        relayedHeaderList.add(new BasicHeader(h.getKey(), h.getValue()));
-                    }
-                }
-                Header[] headerArray = new Header[relayedHeaderList.size()];
-                relayedHeaderList.toArray(headerArray);
+                Header[] headerArray = getRelayedHeaders(msg, CONTENT_LENGTH.toString());
                 relayURI = "https://" + k.getHost() + ":" + k.getHttpPort() + originalURI;
                 HttpRequestBase relayedRequest = null;
                 if (request.method().equals(HttpMethod.GET)) {
                     relayedRequest = new HttpGet(relayURI);
                 } else if (request.method().equals(HttpMethod.POST)) {
                     relayedRequest = new HttpPost(relayURI);
-                    String content = request.content().toString(StandardCharsets.UTF_8);
-                    StringEntity entity = new StringEntity(content);
-                    ((HttpPost) relayedRequest).setEntity(entity);
+                    // relayed as received, the body is described by the Content-Type header relayed with it
+                    ((HttpPost) relayedRequest).setEntity(new ByteArrayEntity(ByteBufUtil.getBytes(request.content())));
                 } else {
                     throw new IllegalArgumentException("Unsupported HTTP method: " + request.method());
                 }
@@ -183,6 +180,97 @@ public class HttpRelayHandler extends SimpleChannelInboundHandler<HttpRequest> i
         }
     }
 
+    /**
+     * Group the metrics of a batch by the server that ingests them, in the order each server is first seen
+     */
+    private Map<TimelyBalancedHost,List<Metric>> groupByHost(List<Metric> metrics) {
+        Map<TimelyBalancedHost,List<Metric>> metricsByHost = new LinkedHashMap<>();
+        for (Metric m : metrics) {
+            metricsByHost.computeIfAbsent(metricResolver.getHostPortKeyIngest(m.getName()), h -> new ArrayList<>()).add(m);
+        }
+        return metricsByHost;
+    }
+
+    /**
+     * Relay the metrics of a batch owned by several servers as a JSON array to each of them and respond with the sum of their counts. The status is OK only if
+     * every server accepted its metrics, the metrics of a server that could not be reached are counted as rejected.
+     */
+    private void relayBatch(ChannelHandlerContext ctx, MetricBatchRequest msg, Map<TimelyBalancedHost,List<Metric>> metricsByHost) throws Exception {
+        String originalURI = encodeURI(msg.getHttpRequest().uri());
+        // the body of each server is JSON whatever the type of the received body
+        Header[] headerArray = getRelayedHeaders(msg, CONTENT_LENGTH.toString(), CONTENT_TYPE.toString());
+        MetricBatchResponse counts = new MetricBatchResponse(0, msg.getRejected());
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        for (Map.Entry<TimelyBalancedHost,List<Metric>> e : metricsByHost.entrySet()) {
+            TimelyBalancedHost k = e.getKey();
+            List<Metric> metrics = e.getValue();
+            String relayURI = "https://" + k.getHost() + ":" + k.getHttpPort() + originalURI;
+            HttpPost relayedRequest = new HttpPost(relayURI);
+            relayedRequest.setHeaders(headerArray);
+            relayedRequest.setHeader(CONTENT_TYPE.toString(), Constants.JSON_TYPE);
+            relayedRequest.setEntity(new ByteArrayEntity(JsonUtil.getObjectMapper().writeValueAsBytes(metrics)));
+            CloseableHttpClient client = null;
+            CloseableHttpResponse relayedResponse = null;
+            try {
+                client = httpClientPool.borrowObject(k);
+                relayedResponse = executeHttpRequest(client, relayedRequest, balancerHttpProperties.getRequestTimeout());
+                int code = relayedResponse.getStatusLine().getStatusCode();
+                if (code == HttpResponseStatus.OK.code() || code == HttpResponseStatus.SERVICE_UNAVAILABLE.code()) {
+                    MetricBatchResponse relayedCounts = JsonUtil.getObjectMapper().readValue(relayedResponse.getEntity().getContent(),
+                                    MetricBatchResponse.class);
+                    counts.setAccepted(counts.getAccepted() + relayedCounts.getAccepted());
+                    counts.setRejected(counts.getRejected() + relayedCounts.getRejected());
+                } else {
+                    counts.setRejected(counts.getRejected() + metrics.size());
+                }
+                if (code != HttpResponseStatus.OK.code()) {
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                }
+            } catch (Exception ex) {
+                log.error(String.format("%s calling %s", ex.getMessage() == null ? "" : ex.getMessage(), relayURI), ex);
+                counts.setRejected(counts.getRejected() + metrics.size());
+                status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+            } finally {
+                if (relayedResponse != null) {
+                    relayedResponse.close();
+                }
+                if (client != null) {
+                    httpClientPool.returnObject(k, client);
+                }
+            }
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                        Unpooled.copiedBuffer(JsonUtil.getObjectMapper().writeValueAsBytes(counts)));
+        response.headers().set(CONTENT_TYPE, Constants.JSON_TYPE);
+        response.headers().set(CONTENT_LENGTH, response.content().readableBytes());
+        sendResponse(ctx, response);
+    }
+
+    /**
+     * @return the headers of the request to relay with it, with proxy headers for the client certificate
+     */
+    private Header[] getRelayedHeaders(HttpRequest msg, String... excluded) {
+        Multimap<String,String> headers = HttpHeaderUtils.toMultimap(msg.getHttpRequest().headers());
+        if (msg instanceof AuthenticatedRequest) {
+            AuthenticatedRequest authenticatedRequest = (AuthenticatedRequest) msg;
+            TimelyAuthenticationToken token = authenticatedRequest.getToken();
+            if (token != null) {
+                if (token.getClientCert() != null) {
+                    ProxiedEntityUtils.addProxyHeaders(headers, token.getClientCert());
+                }
+            }
+        }
+
+        List<Header> relayedHeaderList = new ArrayList<>();
+        for (Map.Entry<String,String> h : headers.entries()) {
+            if (Arrays.stream(excluded).noneMatch(h.getKey()::equalsIgnoreCase)) {
+                relayedHeaderList.add(new BasicHeader(h.getKey(), h.getValue()));
+            }
+        }
+        Header[] headerArray = new Header[relayedHeaderList.size()];
+        return relayedHeaderList.toArray(headerArray);
+    }
+
     static public class MyByteArrayOutputStream extends ByteArrayOutputStream {
 
         public MyByteArrayOutputStream() {}
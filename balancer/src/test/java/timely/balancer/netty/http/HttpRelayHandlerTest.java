@@ -0,0 +1,278 @@
+package timely.balancer.netty.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import timely.api.request.MetricRequest;
+import timely.api.response.MetricBatchResponse;
+import timely.balancer.configuration.BalancerHttpProperties;
+import timely.balancer.connection.TimelyBalancedHost;
+import timely.balancer.connection.http.HttpClientPool;
+import timely.balancer.test.TestRelayMetricResolver;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.netty.Constants;
+import timely.util.JsonUtil;
+
+public class HttpRelayHandlerTest {
+
+    private static final long TEST_TIME = (System.currentTimeMillis() / 1000) * 1000;
+
+    private final TimelyBalancedHost host1 = TimelyBalancedHost.of("127.0.0.1", 0, 54322, 0, 0, null);
+    private final TimelyBalancedHost host2 = TimelyBalancedHost.of("127.0.0.2", 0, 54322, 0, 0, null);
+    private TestRelayMetricResolver resolver;
+    private RecordingHttpClientPool pool;
+    private EmbeddedChannel channel;
+
+    /**
+     * A request relayed to a server
+     */
+    private static class Relayed {
+
+        private final TimelyBalancedHost host;
+        private final String uri;
+        private final String contentType;
+        private final byte[] body;
+
+        private Relayed(TimelyBalancedHost host, HttpRequest request) throws IOException {
+            this.host = host;
+            this.uri = request.getRequestLine().getUri();
+            this.contentType = request.getFirstHeader(HttpHeaderNames.CONTENT_TYPE.toString()).getValue();
+            this.body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+        }
+    }
+
+    /**
+     * Records the requests relayed to each server and answers them with a fixed response, or with the counts of a server that accepted every metric when the
+     * response body is null
+     */
+    private static class RecordingHttpClientPool extends HttpClientPool {
+
+        private final List<Relayed> relayed = Collections.synchronizedList(new ArrayList<>());
+        private final Map<TimelyBalancedHost,Integer> status = new ConcurrentHashMap<>();
+        private volatile String responseBody = "";
+
+        private RecordingHttpClientPool() {
+            super(new BalancerHttpProperties(), null, null);
+        }
+
+        @Override
+        public CloseableHttpClient borrowObject(TimelyBalancedHost host) {
+            return new CloseableHttpClient() {
+
+                @Override
+                protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+                    Relayed r = new Relayed(host, request);
+                    relayed.add(r);
+                    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status.getOrDefault(host, 200), "");
+                    String body = responseBody;
+                    if (body == null) {
+                        try {
+                            body = JsonUtil.getObjectMapper().writeValueAsString(new MetricBatchResponse(getRelayedMetrics(r).size(), 0));
+                        } catch (Exception e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    response.setEntity(new ByteArrayEntity(body.getBytes(UTF_8), ContentType.APPLICATION_JSON));
+                    return (CloseableHttpResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {CloseableHttpResponse.class},
+                                    (proxy, method, args) -> method.getName().equals("close") ? null : method.invoke(response, args));
+                }
+
+                @Override
+                public void close() {}
+
+                @Override
+                @SuppressWarnings("deprecation")
+                public HttpParams getParams() {
+                    return null;
+                }
+
+                @Override
+                @SuppressWarnings("deprecation")
+                public ClientConnectionManager getConnectionManager() {
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        public void returnObject(TimelyBalancedHost host, CloseableHttpClient client) {}
+    }
+
+    @Before
+    public void setup() throws Exception {
+        resolver = new TestRelayMetricResolver(host1);
+        pool = new RecordingHttpClientPool();
+        channel = new EmbeddedChannel(new HttpRelayHandler(new BalancerHttpProperties(), resolver, pool));
+    }
+
+    @After
+    public void cleanup() {
+        channel.finishAndReleaseAll();
+        pool.close();
+    }
+
+    private static byte[] createFlatBuffer(String... names) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1);
+        int[] metrics = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            int tag = timely.api.flatbuffer.Tag.createTag(builder, builder.createString("host"), builder.createString("r01n01"));
+            metrics[i] = timely.api.flatbuffer.Metric.createMetric(builder, builder.createString(names[i]), TEST_TIME, 1.0D,
+                            timely.api.flatbuffer.Metric.createTagsVector(builder, new int[] {tag}));
+        }
+        int vector = timely.api.flatbuffer.Metrics.createMetricsVector(builder, metrics);
+        timely.api.flatbuffer.Metrics.startMetrics(builder);
+        timely.api.flatbuffer.Metrics.addMetrics(builder, vector);
+        timely.api.flatbuffer.Metrics.finishMetricsBuffer(builder, timely.api.flatbuffer.Metrics.endMetrics(builder));
+        return builder.sizedByteArray();
+    }
+
+    /**
+     * @return the put request as decoded by the balancer's listener
+     */
+    private static MetricRequest createPut(byte[] body, String contentType) throws Exception {
+        FullHttpRequest httpRequest = new DefaultFullHttpRequest(io.netty.handler.codec.http.HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/put",
+                        Unpooled.wrappedBuffer(body));
+        httpRequest.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        httpRequest.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        MetricRequest request;
+        if (contentType.equals(Constants.FLATBUFFERS_TYPE)) {
+            request = (MetricRequest) new MetricRequest().parseBody(httpRequest.content());
+        } else {
+            request = (MetricRequest) new MetricRequest().parseBody(new String(body, UTF_8));
+        }
+        request.setHttpRequest(httpRequest);
+        return request;
+    }
+
+    private FullHttpResponse relay(MetricRequest request) {
+        channel.writeInbound(request);
+        FullHttpResponse response = channel.readOutbound();
+        Assert.assertNotNull(response);
+        return response;
+    }
+
+    @Test
+    public void testFlatBuffersBodyRelayed() throws Exception {
+        byte[] body = createFlatBuffer("sys.cpu.user", "sys.cpu.user");
+        pool.responseBody = "{\"accepted\":2,\"rejected\":0}";
+        FullHttpResponse response = relay(createPut(body, Constants.FLATBUFFERS_TYPE));
+        Assert.assertEquals(HttpResponseStatus.OK, response.status());
+        Assert.assertEquals(pool.responseBody, response.content().toString(UTF_8));
+
+        Assert.assertEquals(1, pool.relayed.size());
+        Relayed relayed = pool.relayed.get(0);
+        Assert.assertEquals(host1, relayed.host);
+        Assert.assertEquals("https://127.0.0.1:54322/api/put", relayed.uri);
+        Assert.assertEquals(Constants.FLATBUFFERS_TYPE, relayed.contentType);
+        Assert.assertArrayEquals(body, relayed.body);
+        response.release();
+    }
+
+    @Test
+    public void testJsonBodyRelayed() throws Exception {
+        byte[] body = ("{\"name\":\"sys.cpu.user\",\"timestamp\":" + TEST_TIME + ",\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}").getBytes(UTF_8);
+        FullHttpResponse response = relay(createPut(body, Constants.JSON_TYPE));
+        Assert.assertEquals(HttpResponseStatus.OK, response.status());
+        Assert.assertEquals(1, pool.relayed.size());
+        Assert.assertEquals(Constants.JSON_TYPE, pool.relayed.get(0).contentType);
+        Assert.assertArrayEquals(body, pool.relayed.get(0).body);
+        response.release();
+    }
+
+    private static List<Metric> getRelayedMetrics(Relayed relayed) throws Exception {
+        return ((MetricRequest) new MetricRequest().parseBody(new String(relayed.body, UTF_8))).getMetrics();
+    }
+
+    @Test
+    public void testMixedBatchRelayedToEachServer() throws Exception {
+        resolver.assign("sys.cpu.idle", host2);
+        String body = "[{\"name\":\"sys.cpu.user\",\"timestamp\":" + TEST_TIME + ",\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]},"
+                        + "{\"name\":\"sys.cpu.idle\",\"timestamp\":" + TEST_TIME + ",\"measure\":2.0,\"tags\":[{\"host\":\"r01n01\"}]}," + "{\"timestamp\":"
+                        + TEST_TIME + ",\"measure\":1.0}," + "{\"name\":\"sys.cpu.user\",\"timestamp\":" + (TEST_TIME + 1000)
+                        + ",\"measure\":3.0,\"tags\":[{\"host\":\"r01n01\"}]}]";
+        pool.responseBody = null;
+        FullHttpResponse response = relay(createPut(body.getBytes(UTF_8), Constants.JSON_TYPE));
+        Assert.assertEquals(HttpResponseStatus.OK, response.status());
+        MetricBatchResponse counts = JsonUtil.getObjectMapper().readValue(response.content().toString(UTF_8), MetricBatchResponse.class);
+        Assert.assertEquals(3, counts.getAccepted());
+        // the element without a name is rejected by the balancer
+        Assert.assertEquals(1, counts.getRejected());
+
+        Assert.assertEquals(2, pool.relayed.size());
+        Relayed relayed1 = pool.relayed.get(0);
+        Assert.assertEquals(host1, relayed1.host);
+        Assert.assertEquals(Constants.JSON_TYPE, relayed1.contentType);
+        List<Metric> metrics1 = getRelayedMetrics(relayed1);
+        Assert.assertEquals(2, metrics1.size());
+        Assert.assertEquals(new Metric("sys.cpu.user", TEST_TIME + 1000, 3.0, Collections.singletonList(new Tag("host", "r01n01"))), metrics1.get(1));
+        Relayed relayed2 = pool.relayed.get(1);
+        Assert.assertEquals(host2, relayed2.host);
+        Assert.assertEquals(Collections.singletonList(new Metric("sys.cpu.idle", TEST_TIME, 2.0, Collections.singletonList(new Tag("host", "r01n01")))),
+                        getRelayedMetrics(relayed2));
+        response.release();
+    }
+
+    @Test
+    public void testMixedFlatBuffersBatchRelayedAsJson() throws Exception {
+        resolver.assign("sys.cpu.idle", host2);
+        pool.responseBody = null;
+        FullHttpResponse response = relay(createPut(createFlatBuffer("sys.cpu.user", "sys.cpu.idle", "sys.cpu.idle"), Constants.FLATBUFFERS_TYPE));
+        Assert.assertEquals(HttpResponseStatus.OK, response.status());
+        Assert.assertEquals(2, pool.relayed.size());
+        Assert.assertEquals(Constants.JSON_TYPE, pool.relayed.get(0).contentType);
+        Assert.assertEquals(1, getRelayedMetrics(pool.relayed.get(0)).size());
+        Assert.assertEquals(Constants.JSON_TYPE, pool.relayed.get(1).contentType);
+        Assert.assertEquals(2, getRelayedMetrics(pool.relayed.get(1)).size());
+        response.release();
+    }
+
+    @Test
+    public void testMixedBatchRejectedByOneServer() throws Exception {
+        resolver.assign("sys.cpu.idle", host2);
+        pool.status.put(host2, 503);
+        pool.responseBody = "{\"accepted\":0,\"rejected\":2}";
+        FullHttpResponse response = relay(createPut(createFlatBuffer("sys.cpu.user", "sys.cpu.idle", "sys.cpu.idle"), Constants.FLATBUFFERS_TYPE));
+        Assert.assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, response.status());
+        MetricBatchResponse counts = JsonUtil.getObjectMapper().readValue(response.content().toString(UTF_8), MetricBatchResponse.class);
+        // the fixed response of host1 is counted as well
+        Assert.assertEquals(0, counts.getAccepted());
+        Assert.assertEquals(4, counts.getRejected());
+        response.release();
+    }
+}
@@ -0,0 +1,44 @@
+package timely.balancer.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import timely.balancer.configuration.BalancerServerProperties;
+import timely.balancer.connection.TimelyBalancedHost;
+import timely.balancer.connection.tcp.TcpClientPool;
+import timely.balancer.test.TestRelayMetricResolver;
+import timely.netty.tcp.TcpDecoder;
+
+public class TcpRelayHandlerTest {
+
+    @Test
+    public void testPutLineRelayed() throws Exception {
+        String put = "put sys.cpu.user 1535000000000 1.5 host=r01n01 rack=r01";
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(10000);
+            TimelyBalancedHost host = TimelyBalancedHost.of("127.0.0.1", server.getLocalPort(), 0, 0, 0, null);
+            TcpClientPool pool = new TcpClientPool(new BalancerServerProperties());
+            try {
+                EmbeddedChannel channel = new EmbeddedChannel(new TcpDecoder(), new TcpRelayHandler(new TestRelayMetricResolver(host), pool));
+                channel.writeInbound(Unpooled.copiedBuffer(put, UTF_8));
+                try (Socket relayed = server.accept(); BufferedReader reader = new BufferedReader(new InputStreamReader(relayed.getInputStream(), UTF_8))) {
+                    Assert.assertEquals(put, reader.readLine());
+                }
+                // nothing was written back to the client
+                Assert.assertNull(channel.readOutbound());
+            } finally {
+                pool.close();
+            }
+        }
+    }
+}
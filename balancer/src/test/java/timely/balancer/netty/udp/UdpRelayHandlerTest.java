@@ -0,0 +1,40 @@
+package timely.balancer.netty.udp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import timely.balancer.configuration.BalancerServerProperties;
+import timely.balancer.connection.TimelyBalancedHost;
+import timely.balancer.connection.udp.UdpClientPool;
+import timely.balancer.test.TestRelayMetricResolver;
+import timely.netty.udp.UdpDecoder;
+
+public class UdpRelayHandlerTest {
+
+    @Test
+    public void testPutLineRelayed() throws Exception {
+        String put = "put sys.cpu.user 1535000000000 1.5 host=r01n01 rack=r01";
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(10000);
+            TimelyBalancedHost host = TimelyBalancedHost.of("127.0.0.1", 0, 0, 0, server.getLocalPort(), null);
+            UdpClientPool pool = new UdpClientPool(new BalancerServerProperties());
+            try {
+                EmbeddedChannel channel = new EmbeddedChannel(new UdpDecoder(), new UdpRelayHandler(new TestRelayMetricResolver(host), pool));
+                channel.writeInbound(Unpooled.copiedBuffer(put, UTF_8));
+                DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+                server.receive(packet);
+                Assert.assertEquals(put + "\n", new String(packet.getData(), 0, packet.getLength(), UTF_8));
+            } finally {
+                pool.close();
+            }
+        }
+    }
+}
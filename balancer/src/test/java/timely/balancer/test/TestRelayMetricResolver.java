@@ -0,0 +1,51 @@
+package timely.balancer.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import timely.balancer.MetricResolver;
+import timely.balancer.configuration.BalancerProperties;
+import timely.balancer.connection.TimelyBalancedHost;
+import timely.common.configuration.CacheProperties;
+
+/**
+ * A MetricResolver with fixed assignments for testing the relay handlers without Zookeeper or an assignment file
+ */
+public class TestRelayMetricResolver extends MetricResolver {
+
+    private final Map<String,TimelyBalancedHost> assignments = new HashMap<>();
+    private final TimelyBalancedHost defaultHost;
+
+    public TestRelayMetricResolver(TimelyBalancedHost defaultHost) throws Exception {
+        super(null, balancerProperties(), new CacheProperties(), null);
+        this.defaultHost = defaultHost;
+    }
+
+    private static BalancerProperties balancerProperties() {
+        BalancerProperties balancerProperties = new BalancerProperties();
+        balancerProperties.setAssignmentFile("/tmp/balancer-assignments.csv");
+        return balancerProperties;
+    }
+
+    public void assign(String metric, TimelyBalancedHost host) {
+        assignments.put(metric, host);
+    }
+
+    @Override
+    protected FileSystem getFileSystem(Path path) {
+        return null;
+    }
+
+    @Override
+    public TimelyBalancedHost getHostPortKeyIngest(String metric) {
+        return assignments.getOrDefault(metric, defaultHost);
+    }
+
+    @Override
+    public TimelyBalancedHost getHostPortKey(String metric) {
+        return assignments.getOrDefault(metric, defaultHost);
+    }
+}
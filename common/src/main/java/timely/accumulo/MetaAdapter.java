@@ -1,6 +1,7 @@
 package timely.accumulo;
 
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.util.Pair;
 
 import timely.model.Meta;
 import timely.model.Metric;
@@ -10,6 +11,8 @@ import timely.model.Metric;
  */
 public class MetaAdapter {
 
+    private static final char SERIES_ID_SEPARATOR = '\0';
+
     public static Key createMetricKey(String metricName, Long timestamp) {
         return new Key(Meta.METRIC_PREFIX + metricName, "", "", timestamp);
     }
@@ -22,12 +25,30 @@ public class MetaAdapter {
         return new Key(Meta.VALUE_PREFIX + metricName, tagName, tagValue, timestamp);
     }
 
+    /**
+     * Create the posting from a tag of a metric to the id of its series, used by the series store layout
+     */
+    public static Key createSeriesKey(String metricName, String tagName, String tagValue, String seriesId, Long timestamp) {
+        return new Key(Meta.SERIES_PREFIX + metricName, tagName, tagValue + SERIES_ID_SEPARATOR + seriesId, timestamp);
+    }
+
+    /**
+     * @return the tag value and series id of a posting created by {@link #createSeriesKey(String, String, String, String, Long)}
+     */
+    public static Pair<String,String> decodeSeriesKey(Key key) {
+        String cq = key.getColumnQualifier().toString();
+        int separator = cq.lastIndexOf(SERIES_ID_SEPARATOR);
+        return new Pair<>(cq.substring(0, separator), cq.substring(separator + 1));
+    }
+
     public static Meta parse(Key key) {
         String row = key.getRow().toString();
         if (row.startsWith(Meta.METRIC_PREFIX)) {
             return Meta.parse(key, null, Meta.METRIC_PREFIX);
         } else if (row.startsWith(Meta.TAG_PREFIX)) {
             return Meta.parse(key, null, Meta.TAG_PREFIX);
+        } else if (row.startsWith(Meta.SERIES_PREFIX)) {
+            return Meta.parse(key, null, Meta.SERIES_PREFIX);
         } else if (row.startsWith(Meta.VALUE_PREFIX)) {
             return Meta.parse(key, null, Meta.VALUE_PREFIX);
         }
@@ -1,14 +1,13 @@
 package timely.accumulo;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
 import org.apache.accumulo.core.client.lexicoder.PairLexicoder;
@@ -21,7 +20,10 @@ import org.apache.accumulo.core.util.ComparablePair;
 import org.apache.accumulo.core.util.Pair;
 import org.apache.hadoop.io.Text;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
 
 import timely.model.Metric;
 import timely.model.Tag;
@@ -37,6 +39,11 @@ public class MetricAdapter {
 
     private static final PairLexicoder<Long,String> colQualCoder = new PairLexicoder<>(new LongLexicoder(), new StringLexicoder());
 
+    private static final LongLexicoder longCoder = new LongLexicoder();
+    private static final byte PAIR_SEPARATOR = 0x00;
+    private static final byte TAG_SEPARATOR = ',';
+    private static final Cache<String,ColumnVisibility> visibilityCache = Caffeine.newBuilder().maximumSize(10000).build();
+
     private static final TagParser tagParser = new TagParser();
     private static final TagListParser tagListParser = new TagListParser();
 
@@ -52,67 +59,125 @@ public class MetricAdapter {
         return timestamp - (timestamp % 3600000) + 3600000;
     }
 
-    private static List<Tag> escapeDelimiters(List<Tag> tags) {
-        List<Tag> newTags = new ArrayList<>();
-        for (Tag t : tags) {
-            // escape all commas and equals in the tag key and value since they
-            // are used as a delimiter
-            String k = t.getKey();
-            String v = t.getValue();
-            k = k.replaceAll("=", "\\=");
-            k = k.replaceAll(",", "\\,");
-            v = v.replaceAll("=", "\\=");
-            v = v.replaceAll(",", "\\,");
-            newTags.add(new Tag(k, v));
+    public static Mutation toMutation(Metric metric) {
+        final long timestamp = metric.getValue().getTimestamp();
+        final Mutation mutation = new Mutation(encodeRowKey(metric));
+        final byte[] value = encodeValue(metric.getValue().getMeasure());
+
+        Tag visibilityTag = null;
+        List<Tag> tags = new ArrayList<>(metric.getTags().size());
+        for (Tag t : metric.getTags()) {
+            if (t.getKey().equals(VISIBILITY_TAG)) {
+                if (visibilityTag == null || t.compareTo(visibilityTag) < 0) {
+                    visibilityTag = t;
+                }
+            } else {
+                tags.add(t);
+            }
         }
-        return newTags;
-    }
-
-    private static Map<String,String> escapeDelimiters(Map<String,String> tags) {
-        Map<String,String> newTags = new LinkedHashMap<>();
-        for (Map.Entry<String,String> t : tags.entrySet()) {
-            // escape all commas and equals in the tag key and value since they
-            // are used as a delimiter
-            String k = t.getKey();
-            String v = t.getValue();
-            k = k.replaceAll("=", "\\=");
-            k = k.replaceAll(",", "\\,");
-            v = v.replaceAll("=", "\\=");
-            v = v.replaceAll(",", "\\,");
-            newTags.put(k, v);
+        Collections.sort(tags);
+        final ColumnVisibility visibility = visibilityTag == null ? EMPTY_VISIBILITY : getVisibility(visibilityTag.getValue());
+
+        // encode each tag once, the column family of an entry is its own tag and the column qualifier is
+        // the timestamp followed by every other tag, so each cq is assembled from the escaped tag bytes
+        final int numTags = tags.size();
+        final byte[][] cfs = new byte[numTags][];
+        final byte[][] escaped = new byte[numTags][];
+        int escapedLength = 0;
+        for (int i = 0; i < numTags; i++) {
+            cfs[i] = tags.get(i).join().getBytes(UTF_8);
+            escaped[i] = escape(cfs[i]);
+            escapedLength += escaped[i].length;
         }
-        return newTags;
-    }
+        final byte[] cqPrefix = escape(longCoder.encode(timestamp));
 
-    public static Mutation toMutation(Metric metric) {
+        for (int i = 0; i < numTags; i++) {
+            // tags equal to this one are adjacent after sorting and are excluded from the cq along with it
+            int runStart = i;
+            while (runStart > 0 && isSameTag(tags.get(runStart - 1), tags.get(i))) {
+                runStart--;
+            }
+            int runEnd = i + 1;
+            while (runEnd < numTags && isSameTag(tags.get(runEnd), tags.get(i))) {
+                runEnd++;
+            }
+            int others = numTags - (runEnd - runStart);
+            int length = cqPrefix.length + 1 + (others > 0 ? others - 1 : 0) + escapedLength;
+            for (int j = runStart; j < runEnd; j++) {
+                length -= escaped[j].length;
+            }
+            byte[] cq = new byte[length];
+            System.arraycopy(cqPrefix, 0, cq, 0, cqPrefix.length);
+            int pos = cqPrefix.length;
+            cq[pos++] = PAIR_SEPARATOR;
+            boolean first = true;
+            for (int j = 0; j < numTags; j++) {
+                if (j >= runStart && j < runEnd) {
+                    continue;
+                }
+                if (!first) {
+                    cq[pos++] = TAG_SEPARATOR;
+                }
+                first = false;
+                System.arraycopy(escaped[j], 0, cq, pos, escaped[j].length);
+                pos += escaped[j].length;
+            }
+            mutation.put(cfs[i], cq, visibility, timestamp, value);
+        }
+        return mutation;
+    }
 
+    /**
+     * Create the mutation for the series layout, a single entry per sample whose column family is the series id and whose column qualifier is the timestamp
+     * followed by all of the tags of the metric other than visibility.
+     *
+     * @param metric
+     *            metric to store
+     * @param seriesId
+     *            series id of the metric from {@link #getSeriesId(Metric)}
+     */
+    public static Mutation toSeriesMutation(Metric metric, String seriesId) {
+        final long timestamp = metric.getValue().getTimestamp();
         final Mutation mutation = new Mutation(encodeRowKey(metric));
-        List<Tag> tags = metric.getTags();
-        tags = escapeDelimiters(tags);
-        Collections.sort(tags);
-
-        for (final Tag entry : tags) {
-            if (entry.getKey().equals(VISIBILITY_TAG))
-                continue;
+        final byte[] cq = encodeColQual(timestamp, getSeriesTags(metric));
+        mutation.put(seriesId.getBytes(UTF_8), cq, extractVisibility(metric.getTags()), timestamp, encodeValue(metric.getValue().getMeasure()));
+        return mutation;
+    }
 
-            final String cf = entry.join();
-            // @formatter:off
-            String cq = tags.stream().filter(inner -> !inner.equals(entry))
-                    .filter(inner -> !inner.getKey().equals(VISIBILITY_TAG))
-                    .map(Tag::join)
-                    .collect(Collectors.joining(","));
-            // @formatter:on
-            byte[] cqBytes = encodeColQual(metric.getValue().getTimestamp(), cq);
-            mutation.put(new Text(cf.getBytes(Charset.forName("UTF-8"))), new Text(cqBytes), extractVisibility(tags), metric.getValue().getTimestamp(),
-                            extractValue(metric));
+    /**
+     * @return the tags of the metric other than visibility, sorted and joined in the format of the column qualifier
+     */
+    public static String getSeriesTags(Metric metric) {
+        List<Tag> tags = new ArrayList<>(metric.getTags().size());
+        for (Tag t : metric.getTags()) {
+            if (!t.getKey().equals(VISIBILITY_TAG)) {
+                tags.add(t);
+            }
         }
-        return mutation;
+        Collections.sort(tags);
+        StringBuilder sb = new StringBuilder();
+        for (Tag t : tags) {
+            if (sb.length() > 0) {
+                sb.append((char) TAG_SEPARATOR);
+            }
+            sb.append(t.join());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The series id is a 64 bit fingerprint of the sorted tags, written as 16 hex characters. It never contains '=' so a series layout column family can not be
+     * mistaken for a tag.
+     *
+     * @return the stable id of the series that the metric belongs to
+     */
+    public static String getSeriesId(Metric metric) {
+        return Hashing.farmHashFingerprint64().hashString(getSeriesTags(metric), UTF_8).toString();
     }
 
     public static Key toKey(String metric, Map<String,String> tags, long timestamp) {
         byte[] row = encodeRowKey(metric, timestamp);
 
-        tags = escapeDelimiters(tags);
         StringBuilder colQualSb = new StringBuilder();
         String cf = null;
         for (Map.Entry<String,String> entry : tags.entrySet()) {
@@ -154,26 +219,37 @@ public class MetricAdapter {
         Optional<Tag> visTag = tags.stream()
                 .filter(t -> t.getKey().equals(VISIBILITY_TAG))
                 .findFirst();
-        return visTag.isPresent() ? new ColumnVisibility(visTag.get().getValue()) : EMPTY_VISIBILITY;
+        return visTag.isPresent() ? getVisibility(visTag.get().getValue()) : EMPTY_VISIBILITY;
         // @formatter:on
     }
 
     public static ColumnVisibility extractVisibility(Map<String,String> tags) {
         if (tags.containsKey(VISIBILITY_TAG)) {
-            return new ColumnVisibility(tags.get(VISIBILITY_TAG));
+            return getVisibility(tags.get(VISIBILITY_TAG));
         } else {
             return EMPTY_VISIBILITY;
         }
     }
 
+    /**
+     * @return the parsed visibility expression, shared between callers since the same few expressions are used by every metric
+     */
+    public static ColumnVisibility getVisibility(String expression) {
+        return visibilityCache.get(expression, ColumnVisibility::new);
+    }
+
     public static Metric parse(Key k, Value v, boolean includeVizTag) {
         ComparablePair<String,Long> row = rowCoder.decode(k.getRow().getBytes());
         // @formatter:off
         Metric.Builder builder = Metric.newBuilder()
                 .name(row.getFirst())
-                .value(k.getTimestamp(), ByteBuffer.wrap(v.get()).getDouble())
-                .tag(tagParser.parse(k.getColumnFamily().toString()));
+                .value(k.getTimestamp(), ByteBuffer.wrap(v.get()).getDouble());
         // @formatter:on
+        Text cf = k.getColumnFamily();
+        // in the series layout the column family is the series id and every tag is in the column qualifier
+        if (cf.find("=") >= 0) {
+            builder.tag(tagParser.parse(cf.toString()));
+        }
         ComparablePair<Long,String> cq = colQualCoder.decode(k.getColumnQualifier().getBytes());
         tagListParser.parse(cq.getSecond()).forEach(builder::tag);
         if (includeVizTag && k.getColumnVisibility().getLength() > 0) {
@@ -187,7 +263,8 @@ public class MetricAdapter {
     }
 
     public static byte[] encodeRowKey(String metricName, Long timestamp) {
-        return rowCoder.encode(new ComparablePair<>(metricName, timestamp));
+        // same encoding as rowCoder without creating the intermediate pair and arrays
+        return concat(escape(metricName.getBytes(UTF_8)), escape(longCoder.encode(timestamp)));
     }
 
     public static byte[] encodeRowKey(Metric metric) {
@@ -196,7 +273,8 @@ public class MetricAdapter {
     }
 
     public static byte[] encodeColQual(Long timestamp, String colQual) {
-        return colQualCoder.encode(new ComparablePair<>(timestamp, colQual));
+        // same encoding as colQualCoder
+        return concat(escape(longCoder.encode(timestamp)), escape(colQual.getBytes(UTF_8)));
     }
 
     public static Pair<Long,String> decodeColQual(byte[] colQual) {
@@ -207,6 +285,47 @@ public class MetricAdapter {
         return rowCoder.decode(k.getRow().getBytes());
     }
 
+    private static boolean isSameTag(Tag t1, Tag t2) {
+        return t1.getKey().equals(t2.getKey()) && t1.getValue().equals(t2.getValue());
+    }
+
+    /**
+     * Escape the bytes of one element of a lexicoded pair the same way {@link PairLexicoder} does, returning the input when there is nothing to escape
+     */
+    private static byte[] escape(byte[] bytes) {
+        int escapes = 0;
+        for (byte b : bytes) {
+            if (b == 0x00 || b == 0x01) {
+                escapes++;
+            }
+        }
+        if (escapes == 0) {
+            return bytes;
+        }
+        byte[] result = new byte[bytes.length + escapes];
+        int pos = 0;
+        for (byte b : bytes) {
+            if (b == 0x00) {
+                result[pos++] = 0x01;
+                result[pos++] = 0x01;
+            } else if (b == 0x01) {
+                result[pos++] = 0x01;
+                result[pos++] = 0x02;
+            } else {
+                result[pos++] = b;
+            }
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + 1 + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        result[first.length] = PAIR_SEPARATOR;
+        System.arraycopy(second, 0, result, first.length + 1, second.length);
+        return result;
+    }
+
     public static void main(String[] args) {
         long l = 1707859146644L;
         System.out.println(roundTimestampToLastHour(l));
@@ -1,7 +1,19 @@
 package timely.api.request;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import timely.api.response.TimelyException;
+import timely.netty.Constants;
+
 public interface HttpPostRequest extends HttpRequest {
 
     HttpPostRequest parseBody(String content) throws Exception;
 
+    /**
+     * Parse a {@value Constants#FLATBUFFERS_TYPE} request body
+     */
+    default HttpPostRequest parseBody(ByteBuf content) throws Exception {
+        throw new TimelyException(HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE.code(), "Unsupported content type", Constants.FLATBUFFERS_TYPE);
+    }
+
 }
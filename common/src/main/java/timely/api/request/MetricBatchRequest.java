@@ -0,0 +1,56 @@
+package timely.api.request;
+
+import java.util.List;
+
+import timely.model.Metric;
+
+/**
+ * A batch of metrics received in one frame or request body. The batch is passed through the pipeline as a single message and handed to the store as a unit.
+ */
+public class MetricBatchRequest extends MetricRequest {
+
+    private final int rejected;
+
+    public MetricBatchRequest(List<Metric> metrics) {
+        this(metrics, 0);
+    }
+
+    public MetricBatchRequest(List<Metric> metrics, int rejected) {
+        setMetrics(metrics);
+        this.rejected = rejected;
+    }
+
+    /**
+     * A batch has no single metric, handlers of put requests read {@link #getMetrics()}. Batches are only emitted by the server's listeners, the balancer
+     * decodes puts one metric at a time because it routes each of them by name.
+     *
+     * @throws UnsupportedOperationException
+     *             always
+     */
+    @Override
+    public Metric getMetric() {
+        throw new UnsupportedOperationException("MetricBatchRequest holds " + getMetrics().size() + " metrics, use getMetrics()");
+    }
+
+    /**
+     * @return the number of metrics in the request that could not be parsed
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricBatchRequest{size=" + getMetrics().size() + ", rejected=" + rejected + "}";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && rejected == ((MetricBatchRequest) o).rejected;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + rejected;
+    }
+}
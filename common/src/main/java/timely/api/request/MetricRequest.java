@@ -1,15 +1,23 @@
 package timely.api.request;
 
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.FullHttpRequest;
 import timely.api.annotation.Http;
 import timely.api.annotation.Tcp;
@@ -18,6 +26,7 @@ import timely.api.annotation.WebSocket;
 import timely.api.request.websocket.WebSocketRequest;
 import timely.model.Metric;
 import timely.model.parse.MetricParser;
+import timely.netty.tcp.MetricsBufferDecoder;
 import timely.util.JsonUtil;
 
 @Tcp(operation = "put")
@@ -34,6 +43,8 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
     @JsonUnwrapped
     private Metric metric;
 
+    private List<Metric> metrics;
+
     private String line;
 
     private static final MetricParser metricParser = new MetricParser();
@@ -44,6 +55,14 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
         this.metric = metric;
     }
 
+    /**
+     * A request for a put line that has already been parsed, the line is kept for the balancer to relay
+     */
+    public MetricRequest(Metric metric, String line) {
+        this.metric = metric;
+        this.line = line;
+    }
+
     public Metric getMetric() {
         return metric;
     }
@@ -52,10 +71,70 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
         this.metric = metric;
     }
 
+    /**
+     * @return the metrics to store for this request
+     */
+    @JsonIgnore
+    public List<Metric> getMetrics() {
+        return metrics != null ? metrics : Collections.singletonList(metric);
+    }
+
+    /**
+     * Set a batch of metrics to store, used by web socket put operations of the form {"operation":"put","metrics":[...]}
+     */
+    @JsonProperty("metrics")
+    public void setMetrics(List<Metric> metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses a single metric object or a JSON array of metrics. Arrays are read one element at a time from the parser and are returned as a
+     * {@link MetricBatchRequest}, elements that are not objects or have no name, timestamp or measure are skipped and counted as rejected.
+     */
     @Override
     public HttpPostRequest parseBody(String content) throws Exception {
-        metric = JsonUtil.getObjectMapper().readValue(content.getBytes(StandardCharsets.UTF_8), Metric.class);
-        return this;
+        try (JsonParser parser = JsonUtil.getObjectMapper().getFactory().createParser(content)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                List<Metric> batch = new ArrayList<>();
+                int rejected = 0;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new IllegalArgumentException("Unexpected end of the array of metrics");
+                    }
+                    if (token != JsonToken.START_OBJECT) {
+                        // skips the nested values of an array element
+                        parser.skipChildren();
+                        rejected++;
+                        continue;
+                    }
+                    Metric m = parser.readValueAs(Metric.class);
+                    if (isValid(m)) {
+                        batch.add(m);
+                    } else {
+                        rejected++;
+                    }
+                }
+                return new MetricBatchRequest(batch, rejected);
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a metric or an array of metrics");
+            }
+            metric = parser.readValueAs(Metric.class);
+            if (!isValid(metric)) {
+                throw new IllegalArgumentException("A metric requires a name, timestamp and measure");
+            }
+            return this;
+        }
+    }
+
+    private static boolean isValid(Metric m) {
+        return StringUtils.isNotBlank(m.getName()) && m.getValue().getTimestamp() != null && m.getValue().getMeasure() != null;
+    }
+
+    @Override
+    public HttpPostRequest parseBody(ByteBuf content) throws Exception {
+        return new MetricBatchRequest(MetricsBufferDecoder.decodeMetrics(content.nioBuffer()));
     }
 
     @Override
@@ -72,7 +151,7 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
 
     @Override
     public String toString() {
-        return metric.toString();
+        return metrics != null ? "MetricRequest{size=" + metrics.size() + "}" : metric.toString();
     }
 
     public String getLine() {
@@ -88,13 +167,17 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
 
         MetricRequest that = (MetricRequest) o;
 
+        if (metrics != null ? !metrics.equals(that.metrics) : that.metrics != null) {
+            return false;
+        }
         return metric != null ? metric.equals(that.metric) : that.metric == null;
 
     }
 
     @Override
     public int hashCode() {
-        return metric != null ? metric.hashCode() : 0;
+        int result = metric != null ? metric.hashCode() : 0;
+        return 31 * result + (metrics != null ? metrics.hashCode() : 0);
     }
 
     public void setHttpRequest(FullHttpRequest httpRequest) {
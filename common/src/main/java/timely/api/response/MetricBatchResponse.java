@@ -0,0 +1,33 @@
+package timely.api.response;
+
+/**
+ * Counts returned for a batch put
+ */
+public class MetricBatchResponse {
+
+    private int accepted;
+    private int rejected;
+
+    public MetricBatchResponse() {}
+
+    public MetricBatchResponse(int accepted, int rejected) {
+        this.accepted = accepted;
+        this.rejected = rejected;
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public void setAccepted(int accepted) {
+        this.accepted = accepted;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(int rejected) {
+        this.rejected = rejected;
+    }
+}
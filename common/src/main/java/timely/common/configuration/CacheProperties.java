@@ -17,6 +17,10 @@ public class CacheProperties {
     private long maxUniqueTagSets = 50000;
     private long flushInterval = 5000;
     private long staleCacheExpiration = 1800000;
+    private int shards = 16;
+    private long offHeapBudget = 1073741824L;
+    private String snapshotDirectory = null;
+    private long snapshotInterval = 3600000;
 
     public static final String DEFAULT_AGEOFF_KEY = "default";
 
@@ -71,4 +75,45 @@ public class CacheProperties {
     public void setStaleCacheExpiration(long staleCacheExpiration) {
         this.staleCacheExpiration = staleCacheExpiration;
     }
+
+    /**
+     * @return number of independently locked partitions of the cached metrics, a metric and all of its series are in one partition
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return maximum number of bytes of off heap memory for the compressed values of archived compressors, 0 keeps them on the heap
+     */
+    public long getOffHeapBudget() {
+        return offHeapBudget;
+    }
+
+    public void setOffHeapBudget(long offHeapBudget) {
+        this.offHeapBudget = offHeapBudget;
+    }
+
+    /**
+     * @return local directory of the snapshots that the cache is reloaded from after a restart, the cache is not snapshot when not set
+     */
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
 }
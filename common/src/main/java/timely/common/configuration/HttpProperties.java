@@ -22,6 +22,7 @@ public class HttpProperties {
     private String host;
     private String redirectPath = "/secure-me";
     private long strictTransportMaxAge = 604800;
+    private boolean streamQueryResponses = true;
     @Valid
     @NestedConfigurationProperty
     private CorsProperties corsProperties = new CorsProperties();
@@ -74,6 +75,17 @@ public class HttpProperties {
         this.strictTransportMaxAge = strictTransportMaxAge;
     }
 
+    /**
+     * Send the series of a query response as they are serialized, with chunked transfer encoding, instead of as one response with a content length
+     */
+    public boolean isStreamQueryResponses() {
+        return streamQueryResponses;
+    }
+
+    public void setStreamQueryResponses(boolean streamQueryResponses) {
+        this.streamQueryResponses = streamQueryResponses;
+    }
+
     public CorsProperties getCors() {
         return corsProperties;
     }
@@ -0,0 +1,81 @@
+package timely.common.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.context.config.annotation.RefreshScope;
+
+@RefreshScope
+@ConfigurationProperties(prefix = "timely.ingest")
+public class IngestProperties {
+
+    private boolean enabled = false;
+    private int queueSize = 100000;
+    private int highWatermark = 80000;
+    private int lowWatermark = 40000;
+    private int writerThreads = 4;
+    private int drainBatchSize = 1000;
+
+    /**
+     * When enabled, metrics received by the put handlers are placed on a bounded queue and written to the DataStore by a dedicated pool of writer threads
+     * instead of on the Netty event loop.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Maximum number of metrics on the queue, also the largest batch that can be accepted. A larger batch is rejected as a whole whatever the depth of the
+     * queue.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Queue depth at which channels that are adding metrics stop reading (autoRead=false)
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public void setHighWatermark(int highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Queue depth at which channels that were paused resume reading (autoRead=true)
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public void setLowWatermark(int lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Maximum number of metrics a writer thread removes from the queue at a time
+     */
+    public int getDrainBatchSize() {
+        return drainBatchSize;
+    }
+
+    public void setDrainBatchSize(int drainBatchSize) {
+        this.drainBatchSize = drainBatchSize;
+    }
+}
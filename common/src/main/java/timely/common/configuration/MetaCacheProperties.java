@@ -10,6 +10,8 @@ public class MetaCacheProperties {
     private long expirationMinutes = 1440;
     private int cacheRefreshMinutes = -1;
     private long maxTagValues = 100;
+    private boolean dedupEnabled = false;
+    private long dedupRefreshMinutes = 60;
 
     public long getExpirationMinutes() {
         return expirationMinutes;
@@ -34,4 +36,20 @@ public class MetaCacheProperties {
     public void setMaxTagValues(long maxTagValues) {
         this.maxTagValues = maxTagValues;
     }
+
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    public void setDedupEnabled(boolean dedupEnabled) {
+        this.dedupEnabled = dedupEnabled;
+    }
+
+    public long getDedupRefreshMinutes() {
+        return dedupRefreshMinutes;
+    }
+
+    public void setDedupRefreshMinutes(long dedupRefreshMinutes) {
+        this.dedupRefreshMinutes = dedupRefreshMinutes;
+    }
 }
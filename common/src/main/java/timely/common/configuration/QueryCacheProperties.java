@@ -0,0 +1,48 @@
+package timely.common.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.context.config.annotation.RefreshScope;
+
+@RefreshScope
+@ConfigurationProperties(prefix = "timely.query-cache")
+public class QueryCacheProperties {
+
+    private boolean enabled = false;
+    private long maxSizeBytes = 256L * 1024 * 1024;
+    private long latenessSeconds = 120;
+
+    /**
+     * When enabled, the completed downsample buckets of each subquery are cached so that a query that is repeated with a later time range, such as a dashboard
+     * refresh, only computes the buckets that were not complete the last time it ran.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Estimated size of the cached buckets above which the least recently used subqueries are evicted
+     */
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * How late a metric may arrive and still be included in a query result. A bucket is only cached once this much time has passed since its end, a metric that
+     * arrives later than this invalidates the cached subqueries for its metric name that include its timestamp.
+     */
+    public long getLatenessSeconds() {
+        return latenessSeconds;
+    }
+
+    public void setLatenessSeconds(long latenessSeconds) {
+        this.latenessSeconds = latenessSeconds;
+    }
+}
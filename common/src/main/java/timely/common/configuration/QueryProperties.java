@@ -0,0 +1,70 @@
+package timely.common.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.context.config.annotation.RefreshScope;
+
+@RefreshScope
+@ConfigurationProperties(prefix = "timely.query")
+public class QueryProperties {
+
+    private boolean enabled = false;
+    private int threads = 8;
+    private int maxQueued = 100;
+    private long timeoutSeconds = 300;
+    private int retryAfterSeconds = 1;
+
+    /**
+     * When enabled, the query, suggest and lookup handlers run their DataStore calls on a dedicated pool of query threads instead of on the Netty event loop.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Maximum number of queries that run concurrently
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Maximum number of queries waiting for a query thread, further queries are rejected with a 503
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Time from submission after which a query is cancelled and fails with a 504, 0 for no limit
+     */
+    public long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public void setTimeoutSeconds(long timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Value of the Retry-After header sent with a rejected query
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
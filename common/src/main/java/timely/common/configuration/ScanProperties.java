@@ -9,6 +9,9 @@ public class ScanProperties {
 
     private int threads = 4;
     private long maxDownsampleMemory = -1;
+    private int queryThreads = 16;
+    private int queryParallelism = 4;
+    private int maxRanges = 1000;
 
     public int getThreads() {
         return threads;
@@ -25,4 +28,38 @@ public class ScanProperties {
     public void setMaxDownsampleMemory(long maxDownsampleMemory) {
         this.maxDownsampleMemory = maxDownsampleMemory;
     }
+
+    /**
+     * Size of the thread pool shared by all queries to run the cache and Accumulo portions of their subqueries
+     */
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    /**
+     * Maximum number of cache and Accumulo portions of one query that run at the same time, 1 to run them sequentially on the calling thread
+     */
+    public int getQueryParallelism() {
+        return queryParallelism;
+    }
+
+    public void setQueryParallelism(int queryParallelism) {
+        this.queryParallelism = queryParallelism;
+    }
+
+    /**
+     * Maximum number of ranges of a subquery scan. The partially covered first and last hours of a subquery need a range for each matching column family, a
+     * subquery that would need more is scanned as one row range with a timestamp filter.
+     */
+    public int getMaxRanges() {
+        return maxRanges;
+    }
+
+    public void setMaxRanges(int maxRanges) {
+        this.maxRanges = maxRanges;
+    }
 }
@@ -19,6 +19,9 @@ public class ServerProperties {
     @NotNull
     private Integer udpBasePort;
     private Integer shutdownQuietPeriod = 5;
+    private int udpReceiveBufferSize = 0;
+    private int udpMaxDatagramPayloadSize = 0;
+    private int udpDatagramsPerRead = 16;
 
     private int getPortOffset() {
         return (timelyProperties.getInstance() - 1) * timelyProperties.getPortIncrement();
@@ -67,4 +70,39 @@ public class ServerProperties {
     public void setShutdownQuietPeriod(Integer quietPeriod) {
         this.shutdownQuietPeriod = quietPeriod;
     }
+
+    /**
+     * Size in bytes of the receive buffer (SO_RCVBUF) of each UDP socket, 0 to use the operating system default. Datagrams that arrive while the buffer is full
+     * are dropped by the kernel and counted in timely.udp.drops.
+     */
+    public int getUdpReceiveBufferSize() {
+        return udpReceiveBufferSize;
+    }
+
+    public void setUdpReceiveBufferSize(int udpReceiveBufferSize) {
+        this.udpReceiveBufferSize = udpReceiveBufferSize;
+    }
+
+    /**
+     * Largest datagram expected on the UDP port. When greater than 0 and the epoll transport is used, each read uses recvmmsg to receive up to
+     * udpDatagramsPerRead datagrams in one system call. Longer datagrams are truncated.
+     */
+    public int getUdpMaxDatagramPayloadSize() {
+        return udpMaxDatagramPayloadSize;
+    }
+
+    public void setUdpMaxDatagramPayloadSize(int udpMaxDatagramPayloadSize) {
+        this.udpMaxDatagramPayloadSize = udpMaxDatagramPayloadSize;
+    }
+
+    /**
+     * Number of datagrams received by one recvmmsg call when udpMaxDatagramPayloadSize is set
+     */
+    public int getUdpDatagramsPerRead() {
+        return udpDatagramsPerRead;
+    }
+
+    public void setUdpDatagramsPerRead(int udpDatagramsPerRead) {
+        this.udpDatagramsPerRead = udpDatagramsPerRead;
+    }
 }
@@ -0,0 +1,65 @@
+package timely.common.configuration;
+
+/**
+ * Storage options of the metrics table, bound under timely.store as a part of {@link TimelyProperties}
+ */
+public class StoreProperties {
+
+    public enum Layout {
+        /**
+         * one entry per sample for each tag, the column family is the tag and the column qualifier holds the timestamp and the remaining tags
+         */
+        TAG,
+        /**
+         * one entry per sample, the column family is the series id and the column qualifier holds the timestamp and all of the tags. Tags are mapped to series
+         * ids by postings in the meta table.
+         */
+        SERIES
+    }
+
+    private Layout layout = Layout.TAG;
+    private boolean blockCompression = false;
+    private long blockDelayMinutes = 60;
+    private int blockMaxPoints = 1000000;
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * When enabled, full major compactions of the metrics table pack the points of each series in a closed hour into one Gorilla compressed value
+     */
+    public boolean isBlockCompression() {
+        return blockCompression;
+    }
+
+    public void setBlockCompression(boolean blockCompression) {
+        this.blockCompression = blockCompression;
+    }
+
+    /**
+     * Minutes after the end of an hour before its points are packed, so that late points are not left outside of the block
+     */
+    public long getBlockDelayMinutes() {
+        return blockDelayMinutes;
+    }
+
+    public void setBlockDelayMinutes(long blockDelayMinutes) {
+        this.blockDelayMinutes = blockDelayMinutes;
+    }
+
+    /**
+     * Rows and column families with more points than this are left unpacked, bounding the memory used during compaction
+     */
+    public int getBlockMaxPoints() {
+        return blockMaxPoints;
+    }
+
+    public void setBlockMaxPoints(int blockMaxPoints) {
+        this.blockMaxPoints = blockMaxPoints;
+    }
+}
@@ -8,20 +8,27 @@ import org.springframework.context.annotation.Configuration;
 import timely.util.Exclusions;
 
 @Configuration
-@EnableConfigurationProperties({AccumuloProperties.class, CacheProperties.class, CorsProperties.class, HttpProperties.class, MetaCacheProperties.class,
-        RestClientProperties.class, ScanProperties.class, SecurityProperties.class, ServerProperties.class, SslClientProperties.class,
-        SslServerProperties.class, TimelyProperties.class, WebsocketProperties.class, WriteProperties.class, ZookeeperProperties.class})
+@EnableConfigurationProperties({AccumuloProperties.class, CacheProperties.class, CorsProperties.class, HttpProperties.class, IngestProperties.class,
+        MetaCacheProperties.class, QueryCacheProperties.class, QueryProperties.class, RestClientProperties.class, ScanProperties.class,
+        SecurityProperties.class, ServerProperties.class, SslClientProperties.class, SslServerProperties.class, TimelyProperties.class,
+        WebsocketProperties.class, WriteProperties.class, ZookeeperProperties.class})
 
 public class TimelyCommonConfiguration {
 
-    @Bean
+    @Bean(destroyMethod = "close")
     public Exclusions exclusions(TimelyProperties timelyProperties) {
         Exclusions exclusions = new Exclusions();
+        boolean hasFiles = false;
         if (StringUtils.isNotBlank(timelyProperties.getFilteredMetricsFile())) {
             exclusions.setFilteredMetricsFile(timelyProperties.getFilteredMetricsFile());
+            hasFiles = true;
         }
         if (StringUtils.isNotBlank(timelyProperties.getFilteredTagsFile())) {
             exclusions.setFilteredTagsFile(timelyProperties.getFilteredTagsFile());
+            hasFiles = true;
+        }
+        if (hasFiles) {
+            exclusions.scheduleReload(timelyProperties.getFilteredFilesRefreshSeconds());
         }
         return exclusions;
     }
@@ -4,9 +4,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.validation.Valid;
 import javax.validation.constraints.Min;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.NestedConfigurationProperty;
 import org.springframework.cloud.context.config.annotation.RefreshScope;
 import org.springframework.validation.annotation.Validated;
 
@@ -27,6 +29,10 @@ public class TimelyProperties {
     private int tagFilterCacheSize = 10000;
     private String filteredMetricsFile = null;
     private String filteredTagsFile = null;
+    private long filteredFilesRefreshSeconds = 60;
+    @Valid
+    @NestedConfigurationProperty
+    private StoreProperties store = new StoreProperties();
 
     public boolean isTest() {
         return test;
@@ -36,6 +42,14 @@ public class TimelyProperties {
         this.test = test;
     }
 
+    public StoreProperties getStore() {
+        return store;
+    }
+
+    public void setStore(StoreProperties store) {
+        this.store = store;
+    }
+
     public String getMetricsTable() {
         return metricsTable;
     }
@@ -118,4 +132,12 @@ public class TimelyProperties {
     public String getFilteredTagsFile() {
         return filteredTagsFile;
     }
+
+    public void setFilteredFilesRefreshSeconds(long filteredFilesRefreshSeconds) {
+        this.filteredFilesRefreshSeconds = filteredFilesRefreshSeconds;
+    }
+
+    public long getFilteredFilesRefreshSeconds() {
+        return filteredFilesRefreshSeconds;
+    }
 }
@@ -22,6 +22,7 @@ public class WebsocketProperties {
     private int flushIntervalSeconds = 30;
     private int scannerReadAhead = 1;
     private int subscriptionBatchSize = 1000;
+    private boolean streamQueryResponses = true;
 
     private int getPortOffset() {
         return (timelyProperties.getInstance() - 1) * timelyProperties.getPortIncrement();
@@ -94,4 +95,15 @@ public class WebsocketProperties {
     public void setSubscriptionBatchSize(int batchSize) {
         this.subscriptionBatchSize = batchSize;
     }
+
+    /**
+     * Send the series of a query response as they are serialized, as a text frame followed by continuation frames, instead of as one text frame
+     */
+    public boolean isStreamQueryResponses() {
+        return streamQueryResponses;
+    }
+
+    public void setStreamQueryResponses(boolean streamQueryResponses) {
+        this.streamQueryResponses = streamQueryResponses;
+    }
 }
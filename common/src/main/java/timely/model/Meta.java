@@ -15,6 +15,11 @@ public class Meta implements Comparable<Meta> {
     public static final String METRIC_PREFIX = "m:";
     public static final String TAG_PREFIX = "t:";
     public static final String VALUE_PREFIX = "v:";
+    /**
+     * Row prefix of the tag to series id postings written for the series store layout. It sorts after the other prefixes so that scans of the metric, tag and
+     * value rows never include postings.
+     */
+    public static final String SERIES_PREFIX = "x:";
 
     private String metric;
     private String tagKey;
@@ -73,6 +78,8 @@ public class Meta implements Comparable<Meta> {
             return Meta.TAG_PREFIX;
         } else if (row.startsWith(Meta.VALUE_PREFIX)) {
             return Meta.VALUE_PREFIX;
+        } else if (row.startsWith(Meta.SERIES_PREFIX)) {
+            return Meta.SERIES_PREFIX;
         }
         throw new IllegalStateException("Invalid key in meta " + key.toString());
     }
@@ -89,6 +96,8 @@ public class Meta implements Comparable<Meta> {
             return Meta.parse(key, value, Meta.TAG_PREFIX);
         } else if (row.startsWith(Meta.VALUE_PREFIX)) {
             return Meta.parse(key, value, Meta.VALUE_PREFIX);
+        } else if (row.startsWith(Meta.SERIES_PREFIX)) {
+            return Meta.parse(key, value, Meta.SERIES_PREFIX);
         }
         throw new IllegalStateException("Invalid key in meta " + key.toString());
     }
@@ -27,7 +27,10 @@ public class Value implements Comparator<Value>, Serializable {
 
     @JsonCreator
     public Value(@JsonProperty("timestamp") Long timestamp, @JsonProperty("measure") Double measure) {
-        this.setTimestamp(timestamp);
+        // timestamp is absent when a request only contains a batch of metrics
+        if (timestamp != null) {
+            this.setTimestamp(timestamp);
+        }
         this.setMeasure(measure);
     }
 
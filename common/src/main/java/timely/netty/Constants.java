@@ -6,6 +6,7 @@ public class Constants {
     public static final String TEXT_TYPE = "text/plain";
     public static final String HTML_TYPE = "text/html";
     public static final String JSON_TYPE = "application/json";
+    public static final String FLATBUFFERS_TYPE = "application/x-flatbuffers";
     public static final String LOG_RETURNING_RESPONSE = "Returning response {}";
     public static final String COOKIE_NAME = "TSESSIONID";
 }
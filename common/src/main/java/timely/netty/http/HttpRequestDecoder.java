@@ -97,12 +97,17 @@ public class HttpRequestDecoder extends MessageToMessageDecoder<FullHttpRequest>
                 request = get.parseQueryParameters(decoder);
             } else if (msg.method().equals(HttpMethod.POST)) {
                 HttpPostRequest post = AnnotationResolver.getClassForHttpPost(decoder.path());
-                String content = "";
                 ByteBuf body = msg.content();
-                if (null != body) {
-                    content = body.toString(StandardCharsets.UTF_8);
+                String contentType = msg.headers().get(HttpHeaderNames.CONTENT_TYPE);
+                if (null != body && null != contentType && contentType.startsWith(Constants.FLATBUFFERS_TYPE)) {
+                    request = post.parseBody(body);
+                } else {
+                    String content = "";
+                    if (null != body) {
+                        content = body.toString(StandardCharsets.UTF_8);
+                    }
+                    request = post.parseBody(content);
                 }
-                request = post.parseBody(content);
             } else {
                 TimelyException e = new TimelyException(HttpResponseStatus.METHOD_NOT_ALLOWED.code(), "unhandled method type", "");
                 e.addResponseHeader(HttpHeaderNames.ALLOW.toString(), HttpMethod.GET.name() + "," + HttpMethod.POST.name());
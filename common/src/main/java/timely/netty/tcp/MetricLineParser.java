@@ -0,0 +1,202 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Parses line protocol frames directly from a {@link ByteBuf} without copying the frame or splitting it into intermediate Strings. The only objects created for
+ * a put are the metric name, the tag keys and values, and the resulting {@link Metric}.
+ *
+ * put specification
+ *
+ * put &lt;metricName&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagK=tagV&gt; &lt;tagK=tagV&gt; ...
+ */
+public final class MetricLineParser {
+
+    private static final byte[] PUT_OPERATION = "put".getBytes(US_ASCII);
+
+    private static final byte EQUALS = '=';
+    private static final int MAX_FAST_LONG_DIGITS = 18;
+    private static final long MAX_FAST_DOUBLE_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+            1e20, 1e21, 1e22};
+
+    private MetricLineParser() {}
+
+    /**
+     * @return true if the readable bytes of the buffer contain a put operation
+     */
+    public static boolean isPut(ByteBuf buf) {
+        return isOperation(buf, PUT_OPERATION);
+    }
+
+    /**
+     * @return true if the first token in the readable bytes of the buffer is equal to operation
+     */
+    static boolean isOperation(ByteBuf buf, byte[] operation) {
+        int end = buf.writerIndex();
+        int start = skipWhitespace(buf, buf.readerIndex(), end);
+        int tokenEnd = tokenEnd(buf, start, end);
+        if (tokenEnd - start != operation.length) {
+            return false;
+        }
+        for (int i = 0; i < operation.length; i++) {
+            if (buf.getByte(start + i) != operation[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the first token in the readable bytes of the buffer, used when dispatching operations other than put
+     */
+    public static String getOperation(ByteBuf buf) {
+        int end = buf.writerIndex();
+        int start = skipWhitespace(buf, buf.readerIndex(), end);
+        return buf.toString(start, tokenEnd(buf, start, end) - start, UTF_8);
+    }
+
+    /**
+     * Parse a put line contained in the readable bytes of the buffer. The reader index of the buffer is not modified.
+     *
+     * @throws IllegalArgumentException
+     *             if the line is not a valid put
+     * @throws NumberFormatException
+     *             if the timestamp or value can not be parsed
+     */
+    public static Metric parsePut(ByteBuf buf) {
+        final int end = buf.writerIndex();
+        // index 0 is put
+        int start = skipWhitespace(buf, buf.readerIndex(), end);
+        int tokenEnd = tokenEnd(buf, start, end);
+
+        start = skipWhitespace(buf, tokenEnd, end);
+        tokenEnd = tokenEnd(buf, start, end);
+        if (start == tokenEnd) {
+            throw new IllegalArgumentException("Missing metric name");
+        }
+        String name = buf.toString(start, tokenEnd - start, UTF_8);
+
+        start = skipWhitespace(buf, tokenEnd, end);
+        tokenEnd = tokenEnd(buf, start, end);
+        if (start == tokenEnd) {
+            throw new IllegalArgumentException("Missing timestamp");
+        }
+        long timestamp = parseLong(buf, start, tokenEnd);
+
+        start = skipWhitespace(buf, tokenEnd, end);
+        tokenEnd = tokenEnd(buf, start, end);
+        if (start == tokenEnd) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        double measure = parseDouble(buf, start, tokenEnd);
+
+        List<Tag> tags = new ArrayList<>();
+        start = skipWhitespace(buf, tokenEnd, end);
+        while (start < end) {
+            tokenEnd = tokenEnd(buf, start, end);
+            int equals = buf.indexOf(start, tokenEnd, EQUALS);
+            if (equals < 0) {
+                throw new IllegalArgumentException("Invalid tag format: " + buf.toString(start, tokenEnd - start, UTF_8));
+            }
+            tags.add(new Tag(buf.toString(start, equals - start, UTF_8), buf.toString(equals + 1, tokenEnd - equals - 1, UTF_8)));
+            start = skipWhitespace(buf, tokenEnd, end);
+        }
+        return new Metric(name, timestamp, measure, tags);
+    }
+
+    /**
+     * Parse a base 10 long from the bytes in [start, end) of the buffer
+     */
+    static long parseLong(ByteBuf buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        byte first = buf.getByte(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        int digits = end - i;
+        if (digits == 0 || digits > MAX_FAST_LONG_DIGITS) {
+            // empty, or possible overflow, let the JDK handle it
+            return Long.parseLong(buf.toString(start, end - start, US_ASCII));
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + buf.toString(start, end - start, UTF_8) + "\"");
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse a double from the bytes in [start, end) of the buffer. Plain decimal values whose digits fit exactly in a double are computed in place, anything
+     * else (exponents, NaN, Infinity, long mantissas) is handed to {@link Double#parseDouble(String)} so the result is always correctly rounded.
+     */
+    static double parseDouble(ByteBuf buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        byte first = buf.getByte(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            byte b = buf.getByte(i);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                return Double.parseDouble(buf.toString(start, end - start, US_ASCII));
+            }
+            mantissa = mantissa * 10 + digit;
+            numDigits++;
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
+            if (mantissa >= MAX_FAST_DOUBLE_MANTISSA) {
+                return Double.parseDouble(buf.toString(start, end - start, US_ASCII));
+            }
+        }
+        if (numDigits == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(buf.toString(start, end - start, US_ASCII));
+        }
+        // both the mantissa and the power of ten are exact doubles, so a single division is correctly rounded
+        double result = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -result : result;
+    }
+
+    private static int skipWhitespace(ByteBuf buf, int index, int end) {
+        while (index < end && isWhitespace(buf.getByte(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int tokenEnd(ByteBuf buf, int index, int end) {
+        while (index < end && !isWhitespace(buf.getByte(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
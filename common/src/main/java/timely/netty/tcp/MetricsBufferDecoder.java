@@ -1,5 +1,7 @@
 package timely.netty.tcp;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -9,13 +11,40 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import timely.api.flatbuffer.Metrics;
+import timely.api.request.MetricBatchRequest;
 import timely.api.request.MetricRequest;
 import timely.model.Metric;
 import timely.model.Tag;
 
+/**
+ * Decodes FlatBuffers {@link Metrics} tables, passing any other input through unchanged. Two framings are accepted:
+ *
+ * <ul>
+ * <li>size prefixed buffers (finishSizePrefixedMetricsBuffer), a 4 byte little endian length followed by the table. Frames may arrive fragmented or several to
+ * a read and are decoded directly from the received buffer. The file identifier of the table, at offset 8, has to be present before the length is used.</li>
+ * <li>unframed buffers (finishMetricsBuffer), where all of the readable bytes are assumed to be one table.</li>
+ * </ul>
+ *
+ * In batch mode each table is emitted as a single {@link MetricBatchRequest}, otherwise one {@link MetricRequest} is emitted per metric.
+ */
 public class MetricsBufferDecoder extends ByteToMessageDecoder {
 
     private static final Logger log = LoggerFactory.getLogger(MetricsBufferDecoder.class);
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final String IDENTIFIER = "TMFB";
+    private static final int SIZE_PREFIX_LENGTH = 4;
+
+    private final boolean batch;
+    private final int maxFrameLength;
+
+    public MetricsBufferDecoder() {
+        this(false, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public MetricsBufferDecoder(boolean batch, int maxFrameLength) {
+        this.batch = batch;
+        this.maxFrameLength = maxFrameLength;
+    }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
@@ -25,38 +54,127 @@ public class MetricsBufferDecoder extends ByteToMessageDecoder {
         if (log.isTraceEnabled()) {
             log.trace("Received {} bytes", in.readableBytes());
         }
-        boolean isFlatBuffer;
-        try {
-            isFlatBuffer = Metrics.MetricsBufferHasIdentifier(in.slice().nioBuffer());
-        } catch (Exception e) {
-            log.warn("Error checking for identifier: " + e.getClass().getSimpleName());
-            isFlatBuffer = false;
-        }
-        if (!isFlatBuffer) {
+        int start = in.readerIndex();
+        if (hasIdentifier(in, start + 4)) {
+            decodeUnframed(in, out);
+        } else if (isSizePrefixed(in)) {
+            decodeSizePrefixed(in, out);
+        } else if (in.readableBytes() < SIZE_PREFIX_LENGTH + 8 && in.getByte(start + 3) == 0) {
+            // text input never contains a null byte, this may be the start of a size prefixed frame; wait for its identifier
+            return;
+        } else {
             if (log.isTraceEnabled()) {
                 log.trace("Input is not a Flatbuffer");
             }
             out.add(in.readBytes(in.readableBytes()));
+        }
+    }
+
+    private void decodeSizePrefixed(ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        int size = in.getIntLE(start);
+        if (size <= 0 || size > maxFrameLength) {
+            log.warn("Discarding {} bytes of invalid input, frame size: {}", in.readableBytes(), size);
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        if (in.readableBytes() < SIZE_PREFIX_LENGTH + size) {
+            // wait for the rest of the frame
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Input is a size prefixed Flatbuffer of {} bytes", size);
+        }
+        try {
+            emit(decodeMetrics(in.nioBuffer(start + SIZE_PREFIX_LENGTH, size)), out);
+        } catch (Exception e) {
+            log.warn("Error decoding byte[] with Google Flatbuffers: " + e.getMessage());
+        } finally {
+            in.skipBytes(SIZE_PREFIX_LENGTH + size);
+        }
+    }
+
+    private void decodeUnframed(ByteBuf in, List<Object> out) {
+        if (log.isTraceEnabled()) {
+            log.trace("Input is a Flatbuffer");
+        }
+        try {
+            emit(decodeMetrics(in.nioBuffer()), out);
+        } catch (Exception e) {
+            log.warn("Error decoding byte[] with Google Flatbuffers: " + e.getMessage());
+        } finally {
+            in.skipBytes(in.readableBytes());
+        }
+    }
+
+    private void emit(List<Metric> metrics, List<Object> out) {
+        if (batch) {
+            out.add(new MetricBatchRequest(metrics));
+            log.debug("Returning batch of {} metrics", metrics.size());
         } else {
-            if (log.isTraceEnabled()) {
-                log.trace("Input is a Flatbuffer");
+            for (Metric metric : metrics) {
+                MetricRequest m = new MetricRequest(metric);
+                log.debug("Returning {}", m);
+                out.add(m);
             }
-            ByteBuf copy = in.readBytes(in.readableBytes());
-            try {
-                Metrics metrics = Metrics.getRootAsMetrics(copy.nioBuffer());
-                int length = metrics.metricsLength();
-                for (int i = 0; i < length; i++) {
-                    MetricRequest m = new MetricRequest(parseFlatbuffer(metrics.metrics(i)));
-                    log.debug("Returning {}", m);
-                    out.add(m);
-                }
-            } catch (Exception e) {
-                log.warn("Error decoding byte[] with Google Flatbuffers: " + e.getMessage());
-                return;
-            } finally {
-                copy.release();
+        }
+    }
+
+    /**
+     * @return true if the readable bytes of the buffer start with an unframed or size prefixed {@link Metrics} table
+     */
+    public static boolean isMetricsBuffer(ByteBuf in) {
+        int start = in.readerIndex();
+        if (in.readableBytes() < 8) {
+            return false;
+        }
+        return hasIdentifier(in, start + 4) || isSizePrefixed(in);
+    }
+
+    /**
+     * A size prefixed table is recognized by the file identifier after the prefix, the prefix itself is only read once the identifier has been found.
+     *
+     * @return true if the readable bytes of the buffer start with a size prefixed {@link Metrics} table
+     */
+    public static boolean isSizePrefixed(ByteBuf in) {
+        return in.readableBytes() >= SIZE_PREFIX_LENGTH + 8 && !hasIdentifier(in, in.readerIndex() + 4)
+                        && hasIdentifier(in, in.readerIndex() + SIZE_PREFIX_LENGTH + 4);
+    }
+
+    private static boolean hasIdentifier(ByteBuf in, int index) {
+        for (int i = 0; i < IDENTIFIER.length(); i++) {
+            if (in.getByte(index + i) != IDENTIFIER.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a {@link Metrics} table that starts at the position of the buffer. The buffer is read in place and its position is not modified.
+     *
+     * @throws IllegalArgumentException
+     *             if the buffer does not contain a Metrics table
+     */
+    public static List<Metric> decodeMetrics(ByteBuffer buffer) {
+        if (buffer.remaining() < 8 || !Metrics.MetricsBufferHasIdentifier(buffer)) {
+            throw new IllegalArgumentException("Input is not a Flatbuffer");
+        }
+        Metrics metrics = Metrics.getRootAsMetrics(buffer);
+        int length = metrics.metricsLength();
+        List<Metric> results = new ArrayList<>(length);
+        timely.api.flatbuffer.Metric flatMetric = new timely.api.flatbuffer.Metric();
+        timely.api.flatbuffer.Tag flatTag = new timely.api.flatbuffer.Tag();
+        for (int i = 0; i < length; i++) {
+            metrics.metrics(flatMetric, i);
+            List<Tag> tags = new ArrayList<>(flatMetric.tagsLength());
+            for (int j = 0; j < flatMetric.tagsLength(); j++) {
+                flatMetric.tags(flatTag, j);
+                tags.add(new Tag(flatTag.key(), flatTag.value()));
             }
+            results.add(new Metric(flatMetric.name(), flatMetric.timestamp(), flatMetric.value(), tags));
         }
+        return results;
     }
 
     public Metric parseFlatbuffer(timely.api.flatbuffer.Metric flatMetric) {
@@ -0,0 +1,173 @@
+package timely.netty.udp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ByteProcessor;
+import io.netty.util.ReferenceCountUtil;
+import timely.api.annotation.AnnotationResolver;
+import timely.api.request.MetricBatchRequest;
+import timely.api.request.UdpRequest;
+import timely.model.Metric;
+import timely.netty.tcp.MetricLineParser;
+import timely.netty.tcp.MetricsBufferDecoder;
+
+/**
+ * Decodes the datagrams received by a UDP channel in place and emits the metrics of one read cycle as a single {@link MetricBatchRequest} when the read
+ * completes. With the epoll transport and a maximum datagram payload size set, a read cycle is one or more recvmmsg calls, each of which returns many
+ * datagrams.
+ *
+ * A datagram holds either FlatBuffers {@link timely.api.flatbuffer.Metrics} tables, unframed or size prefixed, or newline delimited text. Put lines are added
+ * to the batch, other operations are emitted individually as they are read.
+ */
+public class UdpBatchDecoder extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpBatchDecoder.class);
+    private static final int SIZE_PREFIX_LENGTH = 4;
+
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder readCycles = new LongAdder();
+    private List<Metric> batch = new ArrayList<>();
+    private int rejected = 0;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof DatagramPacket)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        datagramsReceived.increment();
+        try {
+            decode(ctx, ((DatagramPacket) msg).content());
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        readCycles.increment();
+        if (!batch.isEmpty()) {
+            MetricBatchRequest request = new MetricBatchRequest(batch, rejected);
+            log.debug("Returning {}", request);
+            batch = new ArrayList<>();
+            ctx.fireChannelRead(request);
+        }
+        rejected = 0;
+        ctx.fireChannelReadComplete();
+    }
+
+    void decode(ChannelHandlerContext ctx, ByteBuf in) {
+        if (!in.isReadable()) {
+            log.warn("Received no input");
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Received {} bytes", in.readableBytes());
+        }
+        if (MetricsBufferDecoder.isMetricsBuffer(in)) {
+            decodeMetricsBuffer(in);
+        } else {
+            decodeLines(ctx, in);
+        }
+    }
+
+    /**
+     * A table or frame that cannot be decoded is counted as one rejected metric, the number of metrics it held is not known.
+     */
+    private void decodeMetricsBuffer(ByteBuf in) {
+        try {
+            if (!MetricsBufferDecoder.isSizePrefixed(in)) {
+                batch.addAll(MetricsBufferDecoder.decodeMetrics(in.nioBuffer()));
+                return;
+            }
+            while (in.isReadable()) {
+                if (!MetricsBufferDecoder.isSizePrefixed(in)) {
+                    log.warn("Discarding {} bytes of invalid input, expected a size prefixed Flatbuffer", in.readableBytes());
+                    rejected++;
+                    return;
+                }
+                int size = in.getIntLE(in.readerIndex());
+                if (size <= 0 || size > in.readableBytes() - SIZE_PREFIX_LENGTH) {
+                    log.warn("Discarding {} bytes of invalid input, frame size: {}", in.readableBytes(), size);
+                    rejected++;
+                    return;
+                }
+                batch.addAll(MetricsBufferDecoder.decodeMetrics(in.nioBuffer(in.readerIndex() + SIZE_PREFIX_LENGTH, size)));
+                in.skipBytes(SIZE_PREFIX_LENGTH + size);
+            }
+        } catch (Exception e) {
+            log.warn("Error decoding byte[] with Google Flatbuffers: " + e.getMessage());
+            rejected++;
+        }
+    }
+
+    private void decodeLines(ChannelHandlerContext ctx, ByteBuf in) {
+        int end = in.writerIndex();
+        int start = in.readerIndex();
+        while (start < end) {
+            int newline = in.forEachByte(start, end - start, ByteProcessor.FIND_LF);
+            int lineEnd = newline < 0 ? end : newline;
+            int next = lineEnd + 1;
+            if (lineEnd > start && in.getByte(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > start) {
+                decodeLine(ctx, in.slice(start, lineEnd - start));
+            }
+            start = next;
+        }
+    }
+
+    private void decodeLine(ChannelHandlerContext ctx, ByteBuf line) {
+        try {
+            // put is handled directly from the buffer, everything else goes through the annotation resolver
+            if (MetricLineParser.isPut(line)) {
+                batch.add(MetricLineParser.parsePut(line));
+                return;
+            }
+            String operation = MetricLineParser.getOperation(line);
+            UdpRequest udp = null;
+            try {
+                udp = AnnotationResolver.getClassForUdpOperation(operation);
+            } catch (Exception e) {
+                log.error("Error getting class for operation: " + operation, e);
+            }
+            if (null == udp) {
+                log.error("Unknown udp operation: " + operation);
+                return;
+            }
+            String input = line.toString(UTF_8);
+            udp.parse(input);
+            log.trace("Converted {} to {}", input, udp);
+            ctx.fireChannelRead(udp);
+        } catch (Exception e) {
+            rejected++;
+            log.error("{} parsing line:[{}]", e.getMessage(), line.toString(UTF_8));
+        }
+    }
+
+    /**
+     * @return the number of datagrams received by the channel
+     */
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    /**
+     * @return the number of read cycles of the channel, datagrams received divided by read cycles is the average batch size
+     */
+    public long getReadCycles() {
+        return readCycles.sum();
+    }
+}
@@ -4,16 +4,16 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.util.List;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import timely.api.annotation.AnnotationResolver;
+import timely.api.request.MetricRequest;
 import timely.api.request.UdpRequest;
+import timely.netty.tcp.MetricLineParser;
 
 public class UdpDecoder extends ByteToMessageDecoder {
 
@@ -22,47 +22,42 @@ public class UdpDecoder extends ByteToMessageDecoder {
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
 
-        ByteBuf buf = in.readBytes(in.readableBytes());
-        String input = null;
         try {
-            if (buf == Unpooled.EMPTY_BUFFER) {
+            if (!in.isReadable()) {
+                log.warn("Received no input");
                 return;
             }
-            if (buf.hasArray()) {
-                input = new String(buf.array(), UTF_8);
-            } else {
-                input = buf.toString(UTF_8);
+            if (log.isTraceEnabled()) {
+                log.trace("Received input {}", in.toString(UTF_8));
             }
-            if (StringUtils.isEmpty(input)) {
-                log.warn("Received no input");
+
+            // put is handled directly from the buffer, everything else goes through the annotation resolver
+            if (MetricLineParser.isPut(in)) {
+                MetricRequest put = new MetricRequest(MetricLineParser.parsePut(in), in.toString(UTF_8));
+                out.add(put);
+                log.trace("Converted input to {}", put);
                 return;
             }
-            log.trace("Received input {}", input);
 
-            String[] parts = input.split(" ");
-            String operation = null;
-            if (parts.length == 0 && !StringUtils.isEmpty(input)) {
-                operation = input;
-            } else {
-                operation = parts[0];
-            }
-            UdpRequest tcp = null;
+            String operation = MetricLineParser.getOperation(in);
+            UdpRequest udp = null;
             try {
-                tcp = (UdpRequest) AnnotationResolver.getClassForUdpOperation(operation);
+                udp = AnnotationResolver.getClassForUdpOperation(operation);
             } catch (Exception e) {
                 log.error("Error getting class for operation: " + operation, e);
             }
-            if (null == tcp) {
-                log.error("Unknown udp operation: " + parts[0]);
+            if (null == udp) {
+                log.error("Unknown udp operation: " + operation);
                 return;
             }
-            tcp.parse(input);
-            out.add(tcp);
-            log.trace("Converted {} to {}", input, tcp);
+            String input = in.toString(UTF_8);
+            udp.parse(input);
+            out.add(udp);
+            log.trace("Converted {} to {}", input, udp);
         } catch (Exception e) {
-            log.error("{} parsing line:[{}]", e.getMessage(), input);
+            log.error("{} parsing line:[{}]", e.getMessage(), in.toString(UTF_8));
         } finally {
-            buf.release();
+            in.skipBytes(in.readableBytes());
         }
     }
 
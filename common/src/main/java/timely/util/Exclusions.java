@@ -14,21 +14,73 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import timely.model.Metric;
 import timely.model.Tag;
 import timely.model.parse.MetricParser;
 
+/**
+ * Filters metrics and tags using the filtered metrics and filtered tags files. The filtered metric regexes are compiled once when the file is read and the
+ * decision for each series is remembered, so regexes are only evaluated the first time a series is seen. When scheduled with {@link #scheduleReload(long)} the
+ * files are read again whenever they are modified.
+ */
 public class Exclusions {
 
     private static final Logger log = LoggerFactory.getLogger(Exclusions.class);
     private static final MetricParser metricParser = new MetricParser();
-    private List<String> filteredMetrics = new ArrayList<>();
-    private Map<String,Set<String>> filteredTags = new LinkedHashMap<>();
+    private static final int MAX_CACHED_DECISIONS = 50000;
+
+    /**
+     * Compiled regexes along with the decisions made with them, replaced as a unit when the file is reloaded
+     */
+    private static class MetricFilter {
+
+        private final List<Pattern> patterns;
+        private final Cache<String,Boolean> decisions = Caffeine.newBuilder().maximumSize(MAX_CACHED_DECISIONS).build();
+
+        private MetricFilter(List<String> regexes) {
+            patterns = new ArrayList<>(regexes.size());
+            for (String regex : regexes) {
+                try {
+                    patterns.add(Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    log.error(MessageFormat.format("Ignoring invalid filtered metric regex {0}", regex), e);
+                }
+            }
+        }
+
+        private boolean matches(String metricLine) {
+            return decisions.get(metricLine, line -> {
+                for (Pattern pattern : patterns) {
+                    if (pattern.matcher(line).matches()) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+    }
+
+    private volatile MetricFilter metricFilter = null;
+    private volatile Map<String,Set<String>> filteredTags = new LinkedHashMap<>();
+    private String filteredMetricsFile = null;
+    private String filteredTagsFile = null;
+    private long filteredMetricsModified = 0;
+    private long filteredTagsModified = 0;
+    private ScheduledExecutorService executorService = null;
 
     public interface LineHandler {
         void handleLine(String line);
@@ -80,34 +132,61 @@ public class Exclusions {
         return filteredTagsForMetrics;
     }
 
-    public void setFilteredMetricsFile(String filteredMetricsFile) {
-        this.filteredMetrics = getFilteredMetrics(filteredMetricsFile);
+    public synchronized void setFilteredMetricsFile(String filteredMetricsFile) {
+        this.filteredMetricsFile = filteredMetricsFile;
+        this.filteredMetricsModified = new File(filteredMetricsFile).lastModified();
+        List<String> regexes = getFilteredMetrics(filteredMetricsFile);
+        this.metricFilter = regexes.isEmpty() ? null : new MetricFilter(regexes);
     }
 
-    public void setFilteredTagsFile(String filteredTagsFile) {
+    public synchronized void setFilteredTagsFile(String filteredTagsFile) {
+        this.filteredTagsFile = filteredTagsFile;
+        this.filteredTagsModified = new File(filteredTagsFile).lastModified();
         this.filteredTags = getFilteredTags(filteredTagsFile);
     }
 
+    /**
+     * Read the filtered metrics and filtered tags files again if they have been modified since they were last read
+     */
+    public synchronized void reloadIfModified() {
+        if (filteredMetricsFile != null && new File(filteredMetricsFile).lastModified() != filteredMetricsModified) {
+            log.info("Reloading filtered metrics from {}", filteredMetricsFile);
+            setFilteredMetricsFile(filteredMetricsFile);
+        }
+        if (filteredTagsFile != null && new File(filteredTagsFile).lastModified() != filteredTagsModified) {
+            log.info("Reloading filtered tags from {}", filteredTagsFile);
+            setFilteredTagsFile(filteredTagsFile);
+        }
+    }
+
+    /**
+     * Check the filtered metrics and filtered tags files for changes every intervalSeconds
+     */
+    public synchronized void scheduleReload(long intervalSeconds) {
+        if (intervalSeconds > 0 && executorService == null) {
+            executorService = Executors
+                            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("exclusions-reload-%d").setDaemon(true).build());
+            executorService.scheduleWithFixedDelay(this::reloadIfModified, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void close() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+
     // format put metric timestamp value tag1=value1 tag2=value2 tag3=value3
     // where the tags are sorted
     public boolean filterMetric(String metricPutLine) {
-        String metricLine = buildMetricLine(metricPutLine);
-        for (String filteredRegex : filteredMetrics) {
-            if (metricLine.matches(filteredRegex)) {
-                return true;
-            }
-        }
-        return false;
+        MetricFilter filter = metricFilter;
+        return filter != null && filter.matches(buildMetricLine(metricPutLine));
     }
 
     public boolean filterMetric(Metric metric) {
-        String metricLine = buildMetricLine(metric);
-        for (String filteredRegex : filteredMetrics) {
-            if (metricLine.matches(filteredRegex)) {
-                return true;
-            }
-        }
-        return false;
+        MetricFilter filter = metricFilter;
+        return filter != null && filter.matches(buildMetricLine(metric));
     }
 
     protected String buildMetricLine(String metricPutLine) {
@@ -138,11 +217,12 @@ public class Exclusions {
     }
 
     public void filterExcludedTags(Metric metric) {
+        Map<String,Set<String>> filteredTags = this.filteredTags;
         if (!filteredTags.isEmpty()) {
             Set<String> tags = filteredTags.get(metric.getName());
             if (tags != null && !tags.isEmpty()) {
-                List<Tag> filteredTags = metric.getTags().stream().filter(t -> !tags.contains(t.getKey())).collect(Collectors.toList());
-                metric.setTags(filteredTags);
+                List<Tag> keptTags = metric.getTags().stream().filter(t -> !tags.contains(t.getKey())).collect(Collectors.toList());
+                metric.setTags(keptTags);
             }
         }
     }
@@ -0,0 +1,95 @@
+package timely.accumulo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
+import org.apache.accumulo.core.client.lexicoder.PairLexicoder;
+import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.util.ComparablePair;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Compares {@link MetricAdapter#toMutation(Metric)} with the previous implementation for series with 2 to 20 tags.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricAdapterBenchmark {
+
+    private static final PairLexicoder<String,Long> rowCoder = new PairLexicoder<>(new StringLexicoder(), new LongLexicoder());
+    private static final PairLexicoder<Long,String> colQualCoder = new PairLexicoder<>(new LongLexicoder(), new StringLexicoder());
+
+    @Param({"2", "5", "10", "20"})
+    private int numTags;
+
+    private Metric metric;
+
+    @Setup
+    public void setup() {
+        Metric.Builder builder = Metric.newBuilder().name("sys.cpu.user").value(1535000000000L, 42.125D);
+        for (int i = 0; i < numTags; i++) {
+            builder.tag("tag" + i, "value" + i);
+        }
+        metric = builder.tag(MetricAdapter.VISIBILITY_TAG, "PUBLIC").build();
+    }
+
+    @Benchmark
+    public Mutation toMutation() {
+        return MetricAdapter.toMutation(metric);
+    }
+
+    @Benchmark
+    public Mutation previousToMutation() {
+        long ts = metric.getValue().getTimestamp();
+        Mutation mutation = new Mutation(rowCoder.encode(new ComparablePair<>(metric.getName(), MetricAdapter.roundTimestampToLastHour(ts))));
+        List<Tag> tags = new ArrayList<>();
+        for (Tag t : metric.getTags()) {
+            tags.add(new Tag(t.getKey().replaceAll("=", "\\=").replaceAll(",", "\\,"), t.getValue().replaceAll("=", "\\=").replaceAll(",", "\\,")));
+        }
+        Collections.sort(tags);
+        for (final Tag entry : tags) {
+            if (entry.getKey().equals(MetricAdapter.VISIBILITY_TAG))
+                continue;
+            String cq = tags.stream().filter(inner -> !inner.equals(entry)).filter(inner -> !inner.getKey().equals(MetricAdapter.VISIBILITY_TAG)).map(Tag::join)
+                            .collect(Collectors.joining(","));
+            ColumnVisibility visibility = tags.stream().filter(t -> t.getKey().equals(MetricAdapter.VISIBILITY_TAG)).findFirst()
+                            .map(t -> new ColumnVisibility(t.getValue())).orElse(MetricAdapter.EMPTY_VISIBILITY);
+            mutation.put(new Text(entry.join().getBytes(StandardCharsets.UTF_8)), new Text(colQualCoder.encode(new ComparablePair<>(ts, cq))), visibility, ts,
+                            new Value(MetricAdapter.encodeValue(metric.getValue().getMeasure())));
+        }
+        return mutation;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MetricAdapterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
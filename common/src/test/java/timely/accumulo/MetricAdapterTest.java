@@ -1,8 +1,10 @@
 package timely.accumulo;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
 import org.apache.accumulo.core.client.lexicoder.PairLexicoder;
@@ -82,6 +84,37 @@ public class MetricAdapterTest {
         Assert.assertArrayEquals(value, up.getValue());
     }
 
+    @Test
+    public void testToMutationMatchesLexicoders() {
+        long ts = 1535000000000L;
+        List<Tag> tags = new ArrayList<>();
+        for (int i = 19; i >= 0; i--) {
+            tags.add(new Tag("tag" + i, "value" + i));
+        }
+        // bytes that the pair lexicoder has to escape and a duplicate tag
+        tags.add(new Tag("esc", "a\u0000b\u0001c"));
+        tags.add(new Tag("tag7", "value7"));
+        Metric m = Metric.newBuilder().name("sys.cpu\u0000user").value(ts, 2.0D).tags(tags).tag(MetricAdapter.VISIBILITY_TAG, "(a&b)|(c&d)").build();
+
+        Mutation mut = MetricAdapter.toMutation(m);
+
+        PairLexicoder<String,Long> rowCoder = new PairLexicoder<>(new StringLexicoder(), new LongLexicoder());
+        PairLexicoder<Long,String> colQualCoder = new PairLexicoder<>(new LongLexicoder(), new StringLexicoder());
+        Assert.assertArrayEquals(rowCoder.encode(new ComparablePair<>("sys.cpu\u0000user", MetricAdapter.roundTimestampToLastHour(ts))), mut.getRow());
+        List<Tag> sorted = m.getTags().stream().filter(t -> !t.getKey().equals(MetricAdapter.VISIBILITY_TAG)).sorted().collect(Collectors.toList());
+        Assert.assertEquals(sorted.size(), mut.getUpdates().size());
+        for (int i = 0; i < sorted.size(); i++) {
+            Tag tag = sorted.get(i);
+            String cq = sorted.stream().filter(t -> !t.equals(tag)).map(Tag::join).collect(Collectors.joining(","));
+            ColumnUpdate up = mut.getUpdates().get(i);
+            Assert.assertEquals(tag.join(), new String(up.getColumnFamily(), StandardCharsets.UTF_8));
+            Assert.assertArrayEquals(colQualCoder.encode(new ComparablePair<>(ts, cq)), up.getColumnQualifier());
+            Assert.assertEquals("(a&b)|(c&d)", new String(up.getColumnVisibility()));
+            Assert.assertEquals(ts, up.getTimestamp());
+        }
+        Assert.assertSame(MetricAdapter.getVisibility("(a&b)|(c&d)"), MetricAdapter.getVisibility("(a&b)|(c&d)"));
+    }
+
     @Test
     public void testParse() throws Exception {
         PairLexicoder<String,Long> rowCoder = new PairLexicoder<>(new StringLexicoder(), new LongLexicoder());
@@ -146,4 +179,43 @@ public class MetricAdapterTest {
         Assert.assertEquals(2.0D, m.getValue().getMeasure(), 0.0D);
     }
 
+    @Test
+    public void testToSeriesMutation() {
+        long ts = System.currentTimeMillis();
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("tag3", "value3"));
+        tags.add(new Tag("tag1", "value1"));
+        tags.add(new Tag("viz", "(a&b)|(c&d)"));
+        tags.add(new Tag("tag2", "value2"));
+        Metric m = Metric.newBuilder().name("sys.cpu.user").value(ts, 2.0D).tags(tags).build();
+        String seriesId = MetricAdapter.getSeriesId(m);
+        Assert.assertEquals(16, seriesId.length());
+        Assert.assertFalse(seriesId.contains("="));
+
+        // the series id does not depend on the order of the tags or the visibility
+        List<Tag> reordered = new ArrayList<>();
+        reordered.add(new Tag("tag2", "value2"));
+        reordered.add(new Tag("tag1", "value1"));
+        reordered.add(new Tag("tag3", "value3"));
+        Assert.assertEquals(seriesId, MetricAdapter.getSeriesId(Metric.newBuilder().name("sys.cpu.user").value(ts, 3.0D).tags(reordered).build()));
+
+        Mutation mut = MetricAdapter.toSeriesMutation(m, seriesId);
+        Assert.assertEquals(1, mut.getUpdates().size());
+        ColumnUpdate update = mut.getUpdates().get(0);
+        Assert.assertEquals(seriesId, new String(update.getColumnFamily(), StandardCharsets.UTF_8));
+        Assert.assertEquals("(a&b)|(c&d)", new String(update.getColumnVisibility(), StandardCharsets.UTF_8));
+        Assert.assertEquals(ts, update.getTimestamp());
+
+        Key k = new Key(mut.getRow(), update.getColumnFamily(), update.getColumnQualifier(), update.getColumnVisibility(), update.getTimestamp());
+        Metric parsed = MetricAdapter.parse(k, new Value(update.getValue()));
+        Assert.assertEquals("sys.cpu.user", parsed.getName());
+        List<Tag> expected = new ArrayList<>();
+        expected.add(new Tag("tag1", "value1"));
+        expected.add(new Tag("tag2", "value2"));
+        expected.add(new Tag("tag3", "value3"));
+        Assert.assertEquals(expected, parsed.getTags());
+        Assert.assertEquals(Long.valueOf(ts), parsed.getValue().getTimestamp());
+        Assert.assertEquals(2.0D, parsed.getValue().getMeasure(), 0.0D);
+    }
+
 }
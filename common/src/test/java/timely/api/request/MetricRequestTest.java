@@ -0,0 +1,95 @@
+package timely.api.request;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import timely.api.request.websocket.WebSocketRequest;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.util.JsonUtil;
+
+public class MetricRequestTest {
+
+    // @formatter:off
+    private static final Metric CPU = Metric.newBuilder()
+            .name("sys.cpu.user")
+            .value(1000L, 1.0D)
+            .tag(new Tag("host", "r01n01"))
+            .build();
+    private static final Metric IDLE = Metric.newBuilder()
+            .name("sys.cpu.idle")
+            .value(2000L, 3.0D)
+            .tag(new Tag("host", "r01n01"))
+            .tag(new Tag("rack", "r01"))
+            .build();
+    // @formatter:on
+
+    @Test
+    public void testParseSingleMetric() throws Exception {
+        String content = "{\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}";
+        HttpPostRequest request = new MetricRequest().parseBody(content);
+        Assert.assertEquals(MetricRequest.class, request.getClass());
+        Assert.assertEquals(CPU, ((MetricRequest) request).getMetric());
+        Assert.assertEquals(List.of(CPU), ((MetricRequest) request).getMetrics());
+    }
+
+    @Test
+    public void testParseArray() throws Exception {
+        // @formatter:off
+        String content = "[" +
+                "{\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}," +
+                "{\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}," +
+                "{\"name\":\"sys.cpu.idle\",\"timestamp\":2000,\"measure\":3.0,\"tags\":[{\"host\":\"r01n01\"},{\"rack\":\"r01\"}]}" +
+                "]";
+        // @formatter:on
+        HttpPostRequest request = new MetricRequest().parseBody(content);
+        Assert.assertEquals(MetricBatchRequest.class, request.getClass());
+        MetricBatchRequest batch = (MetricBatchRequest) request;
+        Assert.assertEquals(List.of(CPU, IDLE), batch.getMetrics());
+        Assert.assertEquals(1, batch.getRejected());
+    }
+
+    @Test
+    public void testParseArrayWithInvalidElement() throws Exception {
+        // @formatter:off
+        String content = "[" +
+                "{\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}," +
+                "5,\"sys.cpu.user\",[{\"name\":\"sys.cpu.user\"}],null," +
+                "{\"name\":\"sys.cpu.idle\",\"timestamp\":2000,\"measure\":3.0,\"tags\":[{\"host\":\"r01n01\"},{\"rack\":\"r01\"}]}" +
+                "]";
+        // @formatter:on
+        MetricBatchRequest batch = (MetricBatchRequest) new MetricRequest().parseBody(content);
+        Assert.assertEquals(List.of(CPU, IDLE), batch.getMetrics());
+        Assert.assertEquals(4, batch.getRejected());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testParseUnterminatedArray() throws Exception {
+        new MetricRequest().parseBody("[{\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0}, 5");
+    }
+
+    @Test
+    public void testWebSocketBatch() throws Exception {
+        // @formatter:off
+        String content = "{\"operation\":\"put\",\"metrics\":[" +
+                "{\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}," +
+                "{\"name\":\"sys.cpu.idle\",\"timestamp\":2000,\"measure\":3.0,\"tags\":[{\"host\":\"r01n01\"},{\"rack\":\"r01\"}]}" +
+                "]}";
+        // @formatter:on
+        WebSocketRequest request = JsonUtil.getObjectMapper().readValue(content, WebSocketRequest.class);
+        Assert.assertEquals(MetricRequest.class, request.getClass());
+        Assert.assertEquals(List.of(CPU, IDLE), ((MetricRequest) request).getMetrics());
+    }
+
+    @Test
+    public void testWebSocketSingle() throws Exception {
+        String content = "{\"operation\":\"put\",\"name\":\"sys.cpu.user\",\"timestamp\":1000,\"measure\":1.0,\"tags\":[{\"host\":\"r01n01\"}]}";
+        WebSocketRequest request = JsonUtil.getObjectMapper().readValue(content, WebSocketRequest.class);
+        Assert.assertEquals(List.of(CPU), ((MetricRequest) request).getMetrics());
+        Assert.assertFalse(JsonUtil.getObjectMapper().writeValueAsString(request).contains("metrics"));
+    }
+}
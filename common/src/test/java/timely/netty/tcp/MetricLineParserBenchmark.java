@@ -0,0 +1,82 @@
+package timely.netty.tcp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import timely.api.request.MetricRequest;
+import timely.model.Metric;
+
+/**
+ * Compares the String based put parsing done through {@link MetricRequest#parse(String)} with parsing directly from the frame using {@link MetricLineParser}.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricLineParserBenchmark {
+
+    private static final String LINE = "put sys.cpu.user 1535000000000 42.125 host=r01n01 rack=r01 instance=0 cpu=cpu7 viz=PUBLIC";
+
+    private ByteBuf frame;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = LINE.getBytes(StandardCharsets.UTF_8);
+        frame = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        frame.writeBytes(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public MetricRequest stringParser() {
+        // what TcpDecoder did previously: copy the frame, build a String, split it to find the operation, then split it again in MetricParser
+        ByteBuf copy = frame.copy();
+        try {
+            String input = copy.toString(StandardCharsets.UTF_8);
+            String operation = input.split(" ")[0];
+            MetricRequest request = new MetricRequest();
+            if (operation.equals("put")) {
+                request.parse(input);
+            }
+            return request;
+        } finally {
+            copy.release();
+        }
+    }
+
+    @Benchmark
+    public Metric byteBufParser() {
+        if (MetricLineParser.isPut(frame)) {
+            return MetricLineParser.parsePut(frame);
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MetricLineParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
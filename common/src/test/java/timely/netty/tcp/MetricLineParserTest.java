@@ -0,0 +1,96 @@
+package timely.netty.tcp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.model.parse.MetricParser;
+
+public class MetricLineParserTest {
+
+    private static ByteBuf buffer(String line) {
+        return Unpooled.wrappedBuffer(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testParseMatchesMetricParser() {
+        MetricParser parser = new MetricParser();
+        String[] lines = {"put sys.cpu.user 1535000000000 1.0 tag1=value1 tag2=value2", "put  sys.cpu.user   1535000000000  -42  tag1=value1  ",
+                "put mymetric 12341234 5.0 tag1=value1,value1 tag2=value2=value2", "put sys.cpu.user 1535000000000 0.000123456789 viz=a&b",
+                "put sys.cpu.user 1535000000000 1.5e10 host=r01n01", "put sys.cpu.user 1535000000000 NaN host=r01n01",
+                "put sys.cpu.user 1535000000000 12345678901234567890.5 host=r01n01", "put sys.cpu.user 1535000000000 .5 host=r01n01",
+                "put sys.cpu.user 1535000000000 -0 host=r01n01", "put sys.cpu.user 1535000000000 1.0 tag=été"};
+        for (String line : lines) {
+            Metric expected = parser.parse(line);
+            Metric actual = MetricLineParser.parsePut(buffer(line));
+            Assert.assertEquals(line, expected, actual);
+            Assert.assertEquals(line, expected.getTags(), actual.getTags());
+        }
+    }
+
+    @Test
+    public void testParseWithEscapedCharacters() {
+        Metric m = MetricLineParser.parsePut(buffer("put mymetric 12341234 5.0 tag1=value1,value1 tag2=value2=value2"));
+        Assert.assertEquals("mymetric", m.getName());
+        Assert.assertEquals(12341234, (long) m.getValue().getTimestamp());
+        Assert.assertEquals(5.0, m.getValue().getMeasure(), 0);
+        List<Tag> expected = new ArrayList<>();
+        expected.add(new Tag("tag1", "value1,value1"));
+        expected.add(new Tag("tag2", "value2=value2"));
+        Assert.assertEquals(expected, m.getTags());
+    }
+
+    @Test
+    public void testParseDoesNotMoveReaderIndex() {
+        ByteBuf buf = buffer("put sys.cpu.user 1535000000000 1.0 tag1=value1");
+        buf.readerIndex(0);
+        MetricLineParser.parsePut(buf);
+        Assert.assertEquals(0, buf.readerIndex());
+    }
+
+    @Test
+    public void testParseSlice() {
+        ByteBuf buf = buffer("junk put sys.cpu.user 1535000000000 2.5 tag1=value1 junk");
+        ByteBuf slice = buf.slice(5, buf.readableBytes() - 10);
+        Assert.assertTrue(MetricLineParser.isPut(slice));
+        Metric m = MetricLineParser.parsePut(slice);
+        Assert.assertEquals("sys.cpu.user", m.getName());
+        Assert.assertEquals(2.5, m.getValue().getMeasure(), 0);
+        Assert.assertEquals(1, m.getTags().size());
+    }
+
+    @Test
+    public void testOperation() {
+        Assert.assertTrue(MetricLineParser.isPut(buffer(" put sys.cpu.user 1 1")));
+        Assert.assertFalse(MetricLineParser.isPut(buffer("putt sys.cpu.user 1 1")));
+        Assert.assertFalse(MetricLineParser.isPut(buffer("pu")));
+        Assert.assertEquals("version", MetricLineParser.getOperation(buffer("version")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMalformedTag() {
+        MetricLineParser.parsePut(buffer("put mymetric 12341234 5.0 tag1 tag2=value2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingValue() {
+        MetricLineParser.parsePut(buffer("put mymetric 12341234"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseBadTimestamp() {
+        MetricLineParser.parsePut(buffer("put mymetric 1234x1234 5.0 tag1=value1"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseBadValue() {
+        MetricLineParser.parsePut(buffer("put mymetric 12341234 5.0.1 tag1=value1"));
+    }
+}
@@ -1,5 +1,6 @@
 package timely.netty.tcp;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,6 +14,8 @@ import com.google.flatbuffers.FlatBufferBuilder;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import timely.api.request.MetricBatchRequest;
 import timely.api.request.MetricRequest;
 import timely.model.Metric;
 import timely.model.Tag;
@@ -119,4 +122,94 @@ public class MetricsBufferDecoderTest {
         Assert.assertEquals(expected, results.get(1));
     }
 
+    private byte[] createSizePrefixedBuffer(String name, int numMetrics) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1);
+        int[] metric = new int[numMetrics];
+        for (int i = 0; i < numMetrics; i++) {
+            Map<String,String> t = new HashMap<>();
+            t.put("host", "r01n0" + i);
+            metric[i] = createMetric(builder, name, TEST_TIME + i, i, t);
+        }
+        int metricVector = timely.api.flatbuffer.Metrics.createMetricsVector(builder, metric);
+        timely.api.flatbuffer.Metrics.startMetrics(builder);
+        timely.api.flatbuffer.Metrics.addMetrics(builder, metricVector);
+        int metrics = timely.api.flatbuffer.Metrics.endMetrics(builder);
+        timely.api.flatbuffer.Metrics.finishSizePrefixedMetricsBuffer(builder, metrics);
+        return builder.sizedByteArray();
+    }
+
+    @Test
+    public void testSizePrefixedFragmentedBatch() throws Exception {
+        byte[] first = createSizePrefixedBuffer("sys.cpu.user", 3);
+        byte[] second = createSizePrefixedBuffer("sys.cpu.idle", 2);
+        byte[] all = new byte[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new MetricsBufferDecoder(true, MetricsBufferDecoder.DEFAULT_MAX_FRAME_LENGTH));
+        // split within the size prefix of the first frame and within the body of the second
+        int split1 = 2;
+        int split2 = first.length + 20;
+        Assert.assertFalse(channel.writeInbound(Unpooled.wrappedBuffer(all, 0, split1)));
+        Assert.assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(all, split1, split2 - split1)));
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertEquals(3, batch.getMetrics().size());
+        Assert.assertNull(channel.readInbound());
+        Assert.assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(all, split2, all.length - split2)));
+        batch = channel.readInbound();
+        Assert.assertEquals(2, batch.getMetrics().size());
+        // @formatter:off
+        Metric expected = Metric.newBuilder()
+                .name("sys.cpu.idle")
+                .value(TEST_TIME + 1, 1.0D)
+                .tag(new Tag("host", "r01n01"))
+                .build();
+        // @formatter:on
+        Assert.assertEquals(expected, batch.getMetrics().get(1));
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testSizePrefixedPerMetric() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new MetricsBufferDecoder());
+        Assert.assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(createSizePrefixedBuffer("sys.cpu.user", 2))));
+        MetricRequest first = channel.readInbound();
+        MetricRequest second = channel.readInbound();
+        Assert.assertEquals(TEST_TIME.longValue(), first.getMetric().getValue().getTimestamp().longValue());
+        Assert.assertEquals(TEST_TIME + 1, second.getMetric().getValue().getTimestamp().longValue());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testTextPassedThrough() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new MetricsBufferDecoder(true, MetricsBufferDecoder.DEFAULT_MAX_FRAME_LENGTH));
+        Assert.assertTrue(channel.writeInbound(Unpooled.copiedBuffer("put sys.cpu.user 1 1.0 host=a\n", StandardCharsets.UTF_8)));
+        ByteBuf text = channel.readInbound();
+        Assert.assertEquals("put sys.cpu.user 1 1.0 host=a\n", text.toString(StandardCharsets.UTF_8));
+        text.release();
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testNullByteWithoutIdentifierPassedThrough() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new MetricsBufferDecoder(true, MetricsBufferDecoder.DEFAULT_MAX_FRAME_LENGTH));
+        // the fourth byte is 0 as in a size prefix, but there is no identifier after it
+        byte[] input = new byte[] {'p', 'u', 't', 0, ' ', 's', 'y', 's', '.', 'c', 'p', 'u', '\n'};
+        Assert.assertFalse(channel.writeInbound(Unpooled.wrappedBuffer(input, 0, 10)));
+        Assert.assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(input, 10, input.length - 10)));
+        ByteBuf passed = channel.readInbound();
+        Assert.assertEquals(Unpooled.wrappedBuffer(input), passed);
+        passed.release();
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBatchHasNoSingleMetric() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new MetricsBufferDecoder(true, MetricsBufferDecoder.DEFAULT_MAX_FRAME_LENGTH));
+        Assert.assertTrue(channel.writeInbound(Unpooled.wrappedBuffer(createSizePrefixedBuffer("sys.cpu.user", 2))));
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertFalse(channel.finish());
+        Assert.assertEquals(2, batch.getMetrics().size());
+        batch.getMetric();
+    }
 }
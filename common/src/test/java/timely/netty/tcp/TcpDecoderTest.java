@@ -28,6 +28,8 @@ public class TcpDecoderTest {
         Assert.assertEquals(1, results.size());
         Assert.assertEquals(MetricRequest.class, results.get(0).getClass());
         Metric m = ((MetricRequest) results.get(0)).getMetric();
+        // the line is kept for the balancer to relay
+        Assert.assertEquals(put, ((MetricRequest) results.get(0)).getLine());
         // @formatter:off
         Metric expected = Metric.newBuilder()
                 .name("sys.cpu.user")
@@ -0,0 +1,134 @@
+package timely.netty.udp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import timely.api.request.MetricBatchRequest;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class UdpBatchDecoderTest {
+
+    private static final Long TEST_TIME = (System.currentTimeMillis() / 1000) * 1000;
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 54325);
+
+    private DatagramPacket packet(String data) {
+        return new DatagramPacket(Unpooled.copiedBuffer(data, UTF_8), ADDRESS);
+    }
+
+    private DatagramPacket packet(ByteBuf data) {
+        return new DatagramPacket(data, ADDRESS);
+    }
+
+    private Metric metric(String name, long timestamp, String tagk, String tagv) {
+        return Metric.newBuilder().name(name).value(timestamp, 1.0D).tag(new Tag(tagk, tagv)).build();
+    }
+
+    @Test
+    public void testOneBatchPerRead() throws Exception {
+        UdpBatchDecoder decoder = new UdpBatchDecoder();
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        DatagramPacket first = packet("put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1\r\nput sys.cpu.idle " + TEST_TIME + " 1.0 tag2=value2\n");
+        DatagramPacket second = packet("put sys.cpu.wait " + TEST_TIME + " 1.0 tag3=value3");
+        // the datagrams of one recvmmsg call
+        channel.pipeline().fireChannelRead(first);
+        channel.pipeline().fireChannelRead(second);
+        Assert.assertNull(channel.readInbound());
+        channel.pipeline().fireChannelReadComplete();
+
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.user", TEST_TIME, "tag1", "value1"), metric("sys.cpu.idle", TEST_TIME, "tag2", "value2"),
+                        metric("sys.cpu.wait", TEST_TIME, "tag3", "value3")), batch.getMetrics());
+        Assert.assertNull(channel.readInbound());
+        Assert.assertEquals(0, first.refCnt());
+        Assert.assertEquals(0, second.refCnt());
+        Assert.assertEquals(2, decoder.getDatagramsReceived());
+        Assert.assertEquals(1, decoder.getReadCycles());
+
+        channel.pipeline().fireChannelRead(packet("put sys.cpu.user " + (TEST_TIME + 1) + " 1.0 tag1=value1\n"));
+        channel.pipeline().fireChannelReadComplete();
+        batch = channel.readInbound();
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.user", TEST_TIME + 1, "tag1", "value1")), batch.getMetrics());
+    }
+
+    @Test
+    public void testInvalidLinesRejected() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpBatchDecoder());
+        channel.pipeline().fireChannelRead(packet("put sys.cpu.user " + TEST_TIME + "Z 1.0 tag1=value1\nput sys.cpu.idle " + TEST_TIME + " 1.0 tag2=value2\n"));
+        channel.pipeline().fireChannelReadComplete();
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.idle", TEST_TIME, "tag2", "value2")), batch.getMetrics());
+        Assert.assertEquals(1, batch.getRejected());
+
+        channel.pipeline().fireChannelRead(packet("put sys.cpu.user " + TEST_TIME + "Z 1.0 tag1=value1\n"));
+        channel.pipeline().fireChannelReadComplete();
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void testSizePrefixedBuffers() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpBatchDecoder());
+        ByteBuf data = Unpooled.buffer();
+        data.writeBytes(sizePrefixedBuffer("sys.cpu.user", TEST_TIME));
+        data.writeBytes(sizePrefixedBuffer("sys.cpu.idle", TEST_TIME + 1));
+        channel.pipeline().fireChannelRead(packet(data));
+        channel.pipeline().fireChannelRead(packet("put sys.cpu.wait " + TEST_TIME + " 1.0 tag1=value1\n"));
+        channel.pipeline().fireChannelReadComplete();
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.user", TEST_TIME, "tag1", "value1"), metric("sys.cpu.idle", TEST_TIME + 1, "tag1", "value1"),
+                        metric("sys.cpu.wait", TEST_TIME, "tag1", "value1")), batch.getMetrics());
+    }
+
+    @Test
+    public void testInvalidBuffersRejected() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpBatchDecoder());
+        // a frame followed by bytes that are not a frame
+        ByteBuf data = Unpooled.buffer();
+        data.writeBytes(sizePrefixedBuffer("sys.cpu.user", TEST_TIME));
+        data.writeBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        channel.pipeline().fireChannelRead(packet(data));
+        // a frame whose size is larger than the datagram
+        byte[] truncated = sizePrefixedBuffer("sys.cpu.idle", TEST_TIME);
+        channel.pipeline().fireChannelRead(packet(Unpooled.wrappedBuffer(truncated, 0, truncated.length - 4)));
+        // an unframed table that is cut off
+        byte[] unframed = sizePrefixedBuffer("sys.cpu.wait", TEST_TIME);
+        channel.pipeline().fireChannelRead(packet(Unpooled.wrappedBuffer(unframed, 4, 12)));
+        channel.pipeline().fireChannelReadComplete();
+        MetricBatchRequest batch = channel.readInbound();
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.user", TEST_TIME, "tag1", "value1")), batch.getMetrics());
+        Assert.assertEquals(3, batch.getRejected());
+    }
+
+    private byte[] sizePrefixedBuffer(String name, long timestamp) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1);
+        Map<String,String> tags = new HashMap<>();
+        tags.put("tag1", "value1");
+        int[] t = new int[tags.size()];
+        int i = 0;
+        for (Entry<String,String> e : tags.entrySet()) {
+            t[i++] = timely.api.flatbuffer.Tag.createTag(builder, builder.createString(e.getKey()), builder.createString(e.getValue()));
+        }
+        int[] metric = {timely.api.flatbuffer.Metric.createMetric(builder, builder.createString(name), timestamp, 1.0D,
+                        timely.api.flatbuffer.Metric.createTagsVector(builder, t))};
+        int metricVector = timely.api.flatbuffer.Metrics.createMetricsVector(builder, metric);
+        timely.api.flatbuffer.Metrics.startMetrics(builder);
+        timely.api.flatbuffer.Metrics.addMetrics(builder, metricVector);
+        int metrics = timely.api.flatbuffer.Metrics.endMetrics(builder);
+        timely.api.flatbuffer.Metrics.finishSizePrefixedMetricsBuffer(builder, metrics);
+        return builder.sizedByteArray();
+    }
+}
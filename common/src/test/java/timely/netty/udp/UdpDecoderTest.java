@@ -27,6 +27,8 @@ public class UdpDecoderTest {
         Assert.assertEquals(1, results.size());
         Assert.assertEquals(MetricRequest.class, results.get(0).getClass());
         Metric m = ((MetricRequest) results.get(0)).getMetric();
+        // the line is kept for the balancer to relay
+        Assert.assertEquals(put, ((MetricRequest) results.get(0)).getLine());
         Metric expected = Metric.newBuilder().name("sys.cpu.user").value(TEST_TIME, 1.0D).tag(new Tag("tag1", "value1")).tag(new Tag("tag2", "value2")).build();
         Assert.assertEquals(expected, m);
     }
@@ -1,6 +1,9 @@
 package timely.util;
 
+import java.io.File;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -8,6 +11,8 @@ import java.util.Set;
 import org.junit.Assert;
 import org.junit.Test;
 
+import timely.model.Metric;
+
 public class ExclusionTest {
 
     @Test
@@ -42,4 +47,24 @@ public class ExclusionTest {
         Assert.assertFalse(exclusions.filterMetric(metric2));
         Assert.assertEquals("put sys.interface.if_octets 1740090590221 71838.0 host=localhost", exclusions.filterExcludedTags(metric1));
     }
+
+    @Test
+    public void testReloadIfModified() throws Exception {
+        File metricsFile = File.createTempFile("filteredMetrics", ".txt");
+        metricsFile.deleteOnExit();
+        Files.write(metricsFile.toPath(), "sys.interface.if_octets".getBytes(StandardCharsets.UTF_8));
+        Exclusions exclusions = new Exclusions();
+        exclusions.setFilteredMetricsFile(metricsFile.getAbsolutePath());
+
+        Metric octets = Metric.newBuilder().name("sys.interface.if_octets").value(1L, 1.0D).tag("host", "localhost").build();
+        Metric errors = Metric.newBuilder().name("sys.interface.if_errors").value(1L, 1.0D).tag("host", "localhost").build();
+        Assert.assertTrue(exclusions.filterMetric(octets));
+        Assert.assertFalse(exclusions.filterMetric(errors));
+
+        Files.write(metricsFile.toPath(), "sys.interface.if_errors".getBytes(StandardCharsets.UTF_8));
+        metricsFile.setLastModified(metricsFile.lastModified() + 1000);
+        exclusions.reloadIfModified();
+        Assert.assertFalse(exclusions.filterMetric(octets));
+        Assert.assertTrue(exclusions.filterMetric(errors));
+    }
 }
@@ -22,6 +22,9 @@ import timely.server.sample.aggregators.Count;
 import timely.server.sample.aggregators.Dev;
 import timely.server.sample.aggregators.Max;
 import timely.server.sample.aggregators.Min;
+import timely.server.sample.aggregators.P50;
+import timely.server.sample.aggregators.P90;
+import timely.server.sample.aggregators.P99;
 import timely.server.sample.aggregators.Sum;
 
 @JsonSerialize(using = AggregatorsResponseSerializer.class)
@@ -56,6 +59,9 @@ public class AggregatorsResponse {
         RESPONSE.addAggregator(Min.class.getSimpleName().toLowerCase());
         RESPONSE.addAggregator(Sum.class.getSimpleName().toLowerCase());
         RESPONSE.addAggregator(Count.class.getSimpleName().toLowerCase());
+        RESPONSE.addAggregator(P50.class.getSimpleName().toLowerCase());
+        RESPONSE.addAggregator(P90.class.getSimpleName().toLowerCase());
+        RESPONSE.addAggregator(P99.class.getSimpleName().toLowerCase());
         RESPONSE.addAggregator(Aggregator.NONE);
     }
 
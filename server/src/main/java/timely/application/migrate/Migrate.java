@@ -0,0 +1,16 @@
+package timely.application.migrate;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.web.servlet.error.ErrorMvcAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+
+import timely.common.configuration.TimelyCommonConfiguration;
+
+@SpringBootApplication(scanBasePackageClasses = {TimelyCommonConfiguration.class, Migrate.class}, exclude = {ErrorMvcAutoConfiguration.class})
+public class Migrate {
+
+    public static void main(String[] args) {
+        new SpringApplicationBuilder(Migrate.class).main(Migrate.class).web(WebApplicationType.NONE).run(args);
+    }
+}
@@ -0,0 +1,48 @@
+package timely.application.migrate;
+
+import org.apache.accumulo.core.client.AccumuloClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import timely.common.configuration.TimelyProperties;
+import timely.server.configuration.SeriesMigrationProperties;
+import timely.server.store.migrate.SeriesLayoutMigration;
+
+@Component
+@EnableConfigurationProperties(SeriesMigrationProperties.class)
+public class MigrateRunner implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(MigrateRunner.class);
+
+    @Autowired
+    private ApplicationContext context;
+
+    @Autowired
+    private AccumuloClient accumuloClient;
+
+    @Autowired
+    private TimelyProperties timelyProperties;
+
+    @Autowired
+    private SeriesMigrationProperties seriesMigrationProperties;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+
+        try {
+            SeriesLayoutMigration migration = new SeriesLayoutMigration(accumuloClient, timelyProperties, seriesMigrationProperties);
+            long migrated = migration.run();
+            log.info("Migrated {} samples to the series layout", migrated);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        SpringApplication.exit(context);
+    }
+}
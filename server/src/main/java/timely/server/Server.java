@@ -43,6 +43,7 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollEventLoopGroup;
@@ -91,8 +92,7 @@ import timely.netty.http.auth.X509LoginRequestHandler;
 import timely.netty.tcp.MetricsBufferDecoder;
 import timely.netty.tcp.TcpDecoder;
 import timely.netty.tcp.TcpVersionHandler;
-import timely.netty.udp.UdpDecoder;
-import timely.netty.udp.UdpPacketToByteBuf;
+import timely.netty.udp.UdpBatchDecoder;
 import timely.netty.websocket.WebSocketFullRequestHandler;
 import timely.netty.websocket.WebSocketRequestDecoder;
 import timely.netty.websocket.subscription.WSTimelyExceptionHandler;
@@ -106,6 +106,7 @@ import timely.server.netty.http.timeseries.HttpQueryRequestHandler;
 import timely.server.netty.http.timeseries.HttpSearchLookupRequestHandler;
 import timely.server.netty.http.timeseries.HttpSuggestRequestHandler;
 import timely.server.netty.tcp.TcpPutHandler;
+import timely.server.netty.udp.UdpSocketStats;
 import timely.server.netty.websocket.WSMetricPutHandler;
 import timely.server.netty.websocket.WSVersionRequestHandler;
 import timely.server.netty.websocket.subscription.WSAddSubscriptionRequestHandler;
@@ -118,7 +119,10 @@ import timely.server.netty.websocket.timeseries.WSQueryRequestHandler;
 import timely.server.netty.websocket.timeseries.WSSearchLookupRequestHandler;
 import timely.server.netty.websocket.timeseries.WSSuggestRequestHandler;
 import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
+import timely.server.store.InternalMetrics;
 import timely.server.store.MetaCache;
+import timely.server.store.QueryScheduler;
 import timely.server.store.cache.DataStoreCache;
 
 public class Server {
@@ -143,7 +147,10 @@ public class Server {
     protected AuthenticationService authenticationService;
     private CuratorFramework curatorFramework;
     protected MetaCache metaCache;
+    protected InternalMetrics internalMetrics;
     protected DataStore dataStore;
+    protected IngestQueue ingestQueue;
+    protected QueryScheduler queryScheduler;
     protected DataStoreCache dataStoreCache;
     protected ApplicationContext applicationContext;
 
@@ -183,11 +190,11 @@ public class Server {
         return false;
     }
 
-    public Server(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, DataStoreCache dataStoreCache,
-                    @Qualifier("nettySslContext") SslContext sslContext, AuthenticationService authenticationService, CuratorFramework curatorFramework,
-                    MetaCache metaCache, TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties,
-                    HttpProperties httpProperties, CorsProperties corsProperties, WebsocketProperties websocketProperties,
-                    SslServerProperties sslServerProperties) {
+    public Server(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, IngestQueue ingestQueue,
+                    QueryScheduler queryScheduler, DataStoreCache dataStoreCache, @Qualifier("nettySslContext") SslContext sslContext,
+                    AuthenticationService authenticationService, CuratorFramework curatorFramework, MetaCache metaCache, InternalMetrics internalMetrics,
+                    TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties, HttpProperties httpProperties,
+                    CorsProperties corsProperties, WebsocketProperties websocketProperties, SslServerProperties sslServerProperties) {
 
         this.accumuloClient = accumuloClient;
         this.timelyProperties = timelyProperties;
@@ -199,8 +206,11 @@ public class Server {
         this.sslServerProperties = sslServerProperties;
         this.curatorFramework = curatorFramework;
         this.metaCache = metaCache;
+        this.internalMetrics = internalMetrics;
         this.applicationContext = applicationContext;
         this.dataStore = dataStore;
+        this.ingestQueue = ingestQueue;
+        this.queryScheduler = queryScheduler;
         this.dataStoreCache = dataStoreCache;
         this.sslContext = sslContext;
         this.authenticationService = authenticationService;
@@ -304,7 +314,22 @@ public class Server {
                 udpServer.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
                 udpServer.option(EpollChannelOption.SO_REUSEADDR, true);
                 udpServer.option(EpollChannelOption.SO_REUSEPORT, true);
-                udpChannelHandleList.add(bind(udpServer, udpIp, udpPort));
+                if (serverProperties.getUdpReceiveBufferSize() > 0) {
+                    udpServer.option(ChannelOption.SO_RCVBUF, serverProperties.getUdpReceiveBufferSize());
+                }
+                if (useEpoll && serverProperties.getUdpMaxDatagramPayloadSize() > 0) {
+                    // receive many datagrams into one buffer with each recvmmsg call
+                    int payloadSize = serverProperties.getUdpMaxDatagramPayloadSize();
+                    udpServer.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, payloadSize);
+                    udpServer.option(ChannelOption.RCVBUF_ALLOCATOR,
+                                    new FixedRecvByteBufAllocator(payloadSize * Math.max(1, serverProperties.getUdpDatagramsPerRead())));
+                }
+                Channel udpChannel = bind(udpServer, udpIp, udpPort);
+                UdpBatchDecoder decoder = udpChannel.pipeline().get(UdpBatchDecoder.class);
+                if (decoder != null) {
+                    internalMetrics.addUdpSocket(new UdpSocketStats(n, udpChannel, decoder));
+                }
+                udpChannelHandleList.add(udpChannel);
             }
             registerService(curatorFramework);
             log.info("TimelyServer started. Listening on {}:{} for TCP traffic, {}:{} for HTTP traffic, {}:{} for WebSocket traffic, and {}:{} for UDP traffic",
@@ -518,12 +543,12 @@ public class Server {
         ch.pipeline().addLast("login", new X509LoginRequestHandler(authenticationService, securityProperties, httpProperties));
         ch.pipeline().addLast("aggregators", new HttpAggregatorsRequestHandler());
         ch.pipeline().addLast("metrics", new HttpMetricsRequestHandler(metaCache, timelyProperties));
-        ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore));
-        ch.pipeline().addLast("search", new HttpSearchLookupRequestHandler(dataStore));
-        ch.pipeline().addLast("suggest", new HttpSuggestRequestHandler(dataStore));
+        ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore, queryScheduler, httpProperties));
+        ch.pipeline().addLast("search", new HttpSearchLookupRequestHandler(dataStore, queryScheduler));
+        ch.pipeline().addLast("suggest", new HttpSuggestRequestHandler(dataStore, queryScheduler));
         ch.pipeline().addLast("version", new HttpVersionRequestHandler());
         ch.pipeline().addLast("cache", new HttpCacheRequestHandler(dataStoreCache));
-        ch.pipeline().addLast("put", new HttpMetricPutHandler(dataStore));
+        ch.pipeline().addLast("put", new HttpMetricPutHandler(ingestQueue));
         ch.pipeline().addLast("error", new TimelyExceptionHandler().setIgnoreSslHandshakeErrors(sslServerProperties.isIgnoreSslHandshakeErrors()));
     }
 
@@ -539,11 +564,8 @@ public class Server {
 
     protected void setupUdpSocketChannel(DatagramChannel ch) {
         ch.pipeline().addLast("logger", new LoggingHandler());
-        ch.pipeline().addLast("packetDecoder", new UdpPacketToByteBuf());
-        ch.pipeline().addLast("buffer", new MetricsBufferDecoder());
-        ch.pipeline().addLast("frame", new DelimiterBasedFrameDecoder(65536, true, Delimiters.lineDelimiter()));
-        ch.pipeline().addLast("putDecoder", new UdpDecoder());
-        ch.pipeline().addLast("putHandler", new TcpPutHandler(dataStore));
+        ch.pipeline().addLast("putDecoder", new UdpBatchDecoder());
+        ch.pipeline().addLast("putHandler", new TcpPutHandler(ingestQueue));
     }
 
     protected ChannelHandler setupUdpChannelHandler() {
@@ -557,10 +579,10 @@ public class Server {
     }
 
     protected void setupTcpSocketChannel(SocketChannel ch) {
-        ch.pipeline().addLast("buffer", new MetricsBufferDecoder());
+        ch.pipeline().addLast("buffer", new MetricsBufferDecoder(true, MetricsBufferDecoder.DEFAULT_MAX_FRAME_LENGTH));
         ch.pipeline().addLast("frame", new DelimiterBasedFrameDecoder(65536, true, Delimiters.lineDelimiter()));
         ch.pipeline().addLast("putDecoder", new TcpDecoder());
-        ch.pipeline().addLast("putHandler", new TcpPutHandler(dataStore));
+        ch.pipeline().addLast("putHandler", new TcpPutHandler(ingestQueue));
         ch.pipeline().addLast("versionHandler", new TcpVersionHandler());
     }
 
@@ -582,14 +604,15 @@ public class Server {
         ch.pipeline().addLast("sessionExtractor", new WebSocketFullRequestHandler(authenticationService));
         ch.pipeline().addLast("idle-handler", new IdleStateHandler(websocketProperties.getTimeout(), 0, 0));
         ch.pipeline().addLast("ws-protocol", new WebSocketServerProtocolHandler(WS_PATH, null, true, 65536, false, true));
+        ch.pipeline().addLast("chunker", new ChunkedWriteHandler());
         ch.pipeline().addLast("wsDecoder", new WebSocketRequestDecoder(authenticationService, securityProperties));
         ch.pipeline().addLast("aggregators", new WSAggregatorsRequestHandler());
         ch.pipeline().addLast("metrics", new WSMetricsRequestHandler(metaCache, timelyProperties));
-        ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore));
-        ch.pipeline().addLast("lookup", new WSSearchLookupRequestHandler(dataStore));
-        ch.pipeline().addLast("suggest", new WSSuggestRequestHandler(dataStore));
+        ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore, queryScheduler, websocketProperties));
+        ch.pipeline().addLast("lookup", new WSSearchLookupRequestHandler(dataStore, queryScheduler));
+        ch.pipeline().addLast("suggest", new WSSuggestRequestHandler(dataStore, queryScheduler));
         ch.pipeline().addLast("version", new WSVersionRequestHandler());
-        ch.pipeline().addLast("put", new WSMetricPutHandler(dataStore));
+        ch.pipeline().addLast("put", new WSMetricPutHandler(ingestQueue));
         ch.pipeline().addLast("create", new WSCreateSubscriptionRequestHandler(dataStore, dataStoreCache, websocketProperties));
         ch.pipeline().addLast("add", new WSAddSubscriptionRequestHandler());
         ch.pipeline().addLast("remove", new WSRemoveSubscriptionRequestHandler());
@@ -1,6 +1,7 @@
 package timely.server;
 
 import timely.application.metrics.Metrics;
+import timely.application.migrate.Migrate;
 import timely.application.tablet.Tablet;
 import timely.application.testingest.TestIngest;
 import timely.application.testquery.TestQuery;
@@ -12,6 +13,9 @@ public class Timely {
             case "metrics":
                 Metrics.main(args);
                 break;
+            case "migrate":
+                Migrate.main(args);
+                break;
             case "tablet":
                 Tablet.main(args);
                 break;
@@ -0,0 +1,32 @@
+package timely.server.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "timely.migrate")
+public class SeriesMigrationProperties {
+
+    private boolean deleteTagEntries = false;
+    private int batchSize = 100000;
+
+    /**
+     * When true the tag layout entries are deleted from the metrics table after they are rewritten
+     */
+    public boolean isDeleteTagEntries() {
+        return deleteTagEntries;
+    }
+
+    public void setDeleteTagEntries(boolean deleteTagEntries) {
+        this.deleteTagEntries = deleteTagEntries;
+    }
+
+    /**
+     * Number of series and deleted entries after which the postings and deletes are written, bounding the memory used by the migration
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
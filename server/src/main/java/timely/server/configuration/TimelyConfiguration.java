@@ -15,7 +15,10 @@ import timely.common.configuration.AccumuloProperties;
 import timely.common.configuration.CacheProperties;
 import timely.common.configuration.CorsProperties;
 import timely.common.configuration.HttpProperties;
+import timely.common.configuration.IngestProperties;
 import timely.common.configuration.MetaCacheProperties;
+import timely.common.configuration.QueryCacheProperties;
+import timely.common.configuration.QueryProperties;
 import timely.common.configuration.SecurityProperties;
 import timely.common.configuration.ServerProperties;
 import timely.common.configuration.SslServerProperties;
@@ -24,8 +27,10 @@ import timely.common.configuration.WebsocketProperties;
 import timely.common.configuration.ZookeeperProperties;
 import timely.server.Server;
 import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
 import timely.server.store.InternalMetrics;
 import timely.server.store.MetaCache;
+import timely.server.store.QueryScheduler;
 import timely.server.store.cache.DataStoreCache;
 import timely.util.Exclusions;
 
@@ -45,14 +50,14 @@ public class TimelyConfiguration {
 
     @Bean(destroyMethod = "shutdown")
     @ConditionalOnMissingBean
-    public Server server(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, DataStoreCache dataStoreCache,
-                    @Qualifier("nettySslContext") SslContext sslContext, AuthenticationService authenticationService, CuratorFramework curatorFramework,
-                    MetaCache metaCache, TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties,
-                    HttpProperties httpProperties, CorsProperties corsProperties, WebsocketProperties websocketProperties,
-                    SslServerProperties sslServerProperties) {
-        Server server = new Server(applicationContext, accumuloClient, dataStore, dataStoreCache, sslContext, authenticationService, curatorFramework,
-                        metaCache, timelyProperties, securityProperties, serverProperties, httpProperties, corsProperties, websocketProperties,
-                        sslServerProperties);
+    public Server server(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, IngestQueue ingestQueue,
+                    QueryScheduler queryScheduler, DataStoreCache dataStoreCache, @Qualifier("nettySslContext") SslContext sslContext,
+                    AuthenticationService authenticationService, CuratorFramework curatorFramework, MetaCache metaCache, InternalMetrics internalMetrics,
+                    TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties, HttpProperties httpProperties,
+                    CorsProperties corsProperties, WebsocketProperties websocketProperties, SslServerProperties sslServerProperties) {
+        Server server = new Server(applicationContext, accumuloClient, dataStore, ingestQueue, queryScheduler, dataStoreCache, sslContext,
+                        authenticationService, curatorFramework, metaCache, internalMetrics, timelyProperties, securityProperties, serverProperties,
+                        httpProperties, corsProperties, websocketProperties, sslServerProperties);
         server.startLeaderLatch();
         server.start();
         return server;
@@ -63,13 +68,29 @@ public class TimelyConfiguration {
     public DataStore dataStore(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStoreCache dataStoreCache,
                     AuthenticationService authenticationService, InternalMetrics internalMetrics, MetaCache metaCache, TimelyProperties timelyProperties,
                     ZookeeperProperties zookeeperProperties, AccumuloProperties accumuloProperties, SecurityProperties securityProperties,
-                    CacheProperties cacheProperties, Exclusions exclusions) throws Exception {
+                    CacheProperties cacheProperties, QueryCacheProperties queryCacheProperties, IngestProperties ingestProperties, Exclusions exclusions)
+                    throws Exception {
         DataStore dataStore = new DataStore(applicationContext, accumuloClient, dataStoreCache, authenticationService, internalMetrics, metaCache,
-                        timelyProperties, zookeeperProperties, accumuloProperties, securityProperties, cacheProperties, exclusions);
+                        timelyProperties, zookeeperProperties, accumuloProperties, securityProperties, cacheProperties, queryCacheProperties, ingestProperties,
+                        exclusions);
         dataStore.start();
         return dataStore;
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public IngestQueue ingestQueue(DataStore dataStore, IngestProperties ingestProperties, InternalMetrics internalMetrics) {
+        IngestQueue ingestQueue = new IngestQueue(dataStore, ingestProperties, internalMetrics);
+        ingestQueue.start();
+        return ingestQueue;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public QueryScheduler queryScheduler(QueryProperties queryProperties, InternalMetrics internalMetrics) {
+        QueryScheduler queryScheduler = new QueryScheduler(queryProperties, internalMetrics);
+        queryScheduler.start();
+        return queryScheduler;
+    }
+
     @Bean(destroyMethod = "shutdown")
     @ConditionalOnMissingBean
     public DataStoreCache dataStoreCache(CuratorFramework curatorFramework, AuthenticationService authenticationService, InternalMetrics internalMetrics,
@@ -11,31 +11,53 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import timely.api.request.MetricBatchRequest;
 import timely.api.request.MetricRequest;
+import timely.api.response.MetricBatchResponse;
 import timely.api.response.TimelyException;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
-import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
+import timely.util.JsonUtil;
 
 public class HttpMetricPutHandler extends SimpleChannelInboundHandler<MetricRequest> implements TimelyHttpHandler {
 
     private static final Logger log = LoggerFactory.getLogger(HttpMetricPutHandler.class);
-    private final DataStore dataStore;
+    private final IngestQueue ingestQueue;
 
-    public HttpMetricPutHandler(DataStore dataStore) {
-        this.dataStore = dataStore;
+    public HttpMetricPutHandler(IngestQueue ingestQueue) {
+        this.ingestQueue = ingestQueue;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest m) throws Exception {
+        boolean accepted;
         try {
-            this.dataStore.store(m.getMetric());
+            accepted = this.ingestQueue.offer(m.getMetrics(), ctx.channel());
+        } catch (IllegalArgumentException e) {
+            // a batch larger than the ingest queue, the client has to split it
+            log.error(e.getMessage());
+            this.sendHttpError(ctx, new TimelyException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE.code(), e.getMessage(), "", e));
+            return;
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             this.sendHttpError(ctx, new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), e.getMessage(), "", e));
             return;
         }
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+        HttpResponseStatus status = accepted ? HttpResponseStatus.OK : HttpResponseStatus.SERVICE_UNAVAILABLE;
+        FullHttpResponse response;
+        if (m instanceof MetricBatchRequest) {
+            // report counts for the batch, including the metrics that could not be parsed
+            int invalid = ((MetricBatchRequest) m).getRejected();
+            int stored = accepted ? m.getMetrics().size() : 0;
+            MetricBatchResponse counts = new MetricBatchResponse(stored, m.getMetrics().size() - stored + invalid);
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(JsonUtil.getObjectMapper().writeValueAsBytes(counts)));
+        } else if (!accepted) {
+            this.sendHttpError(ctx, new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Ingest queue full", ""));
+            return;
+        } else {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        }
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, Constants.JSON_TYPE);
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         sendResponse(ctx, response);
@@ -1,46 +1,76 @@
 package timely.server.netty.http.timeseries;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import timely.api.request.timeseries.QueryRequest;
-import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryResponse;
+import timely.common.configuration.HttpProperties;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
 import timely.server.store.DataStore;
+import timely.server.store.QueryScheduler;
 import timely.util.JsonUtil;
 
 public class HttpQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequest> implements TimelyHttpHandler {
 
     private static final Logger log = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryScheduler queryScheduler;
+    private final HttpProperties httpProperties;
 
-    public HttpQueryRequestHandler(DataStore dataStore) {
+    public HttpQueryRequestHandler(DataStore dataStore, QueryScheduler queryScheduler, HttpProperties httpProperties) {
         this.dataStore = dataStore;
+        this.queryScheduler = queryScheduler;
+        this.httpProperties = httpProperties;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
-        byte[] buf;
-        try {
-            buf = JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.query(msg));
-        } catch (TimelyException e) {
-            if (e.getMessage().contains("No matching tags")) {
-                log.trace(e.getMessage());
-            } else {
-                log.error(e.getMessage(), e);
+        queryScheduler.submit(ctx.channel(), context -> dataStore.streamQuery(msg, context), (responses, e) -> {
+            if (e != null) {
+                if (e.getMessage().contains("No matching tags")) {
+                    log.trace(e.getMessage());
+                } else {
+                    log.error(e.getMessage(), e);
+                }
+                this.sendHttpError(ctx, e);
+                return;
             }
-            this.sendHttpError(ctx, e);
+            sendQueryResponse(ctx, responses);
+        });
+    }
+
+    private void sendQueryResponse(ChannelHandlerContext ctx, Iterator<QueryResponse> responses) throws Exception {
+        if (httpProperties.isStreamQueryResponses()) {
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, Constants.JSON_TYPE);
+            HttpUtil.setTransferEncodingChunked(response, true);
+            ctx.write(response);
+            // the status has been sent, close the connection so that the client sees an incomplete response if a series cannot be written
+            ctx.writeAndFlush(new HttpChunkedInput(new QueryResponseChunkedInput(responses))).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
             return;
         }
+        List<QueryResponse> result = new ArrayList<>();
+        responses.forEachRemaining(result::add);
+        byte[] buf = JsonUtil.getObjectMapper().writeValueAsBytes(result);
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.copiedBuffer(buf));
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, Constants.JSON_TYPE);
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
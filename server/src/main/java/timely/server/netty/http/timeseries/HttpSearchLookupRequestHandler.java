@@ -12,35 +12,37 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import timely.api.request.timeseries.SearchLookupRequest;
-import timely.api.response.TimelyException;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
 import timely.server.store.DataStore;
+import timely.server.store.QueryScheduler;
 import timely.util.JsonUtil;
 
 public class HttpSearchLookupRequestHandler extends SimpleChannelInboundHandler<SearchLookupRequest> implements TimelyHttpHandler {
 
     private static final Logger log = LoggerFactory.getLogger(HttpSearchLookupRequestHandler.class);
     private DataStore dataStore;
+    private final QueryScheduler queryScheduler;
 
-    public HttpSearchLookupRequestHandler(DataStore dataStore) {
+    public HttpSearchLookupRequestHandler(DataStore dataStore, QueryScheduler queryScheduler) {
         this.dataStore = dataStore;
+        this.queryScheduler = queryScheduler;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SearchLookupRequest msg) throws Exception {
-        byte[] buf;
-        try {
-            buf = JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.lookup(msg));
-        } catch (TimelyException e) {
-            log.error(e.getMessage(), e);
-            this.sendHttpError(ctx, e);
-            return;
-        }
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.copiedBuffer(buf));
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, Constants.JSON_TYPE);
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-        sendResponse(ctx, response);
+        queryScheduler.submit(ctx.channel(), context -> dataStore.lookup(msg, context), (result, e) -> {
+            if (e != null) {
+                log.error(e.getMessage(), e);
+                this.sendHttpError(ctx, e);
+                return;
+            }
+            byte[] buf = JsonUtil.getObjectMapper().writeValueAsBytes(result);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.copiedBuffer(buf));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, Constants.JSON_TYPE);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            sendResponse(ctx, response);
+        });
     }
 
 }
@@ -0,0 +1,107 @@
+package timely.server.netty.http.timeseries;
+
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import timely.api.response.timeseries.QueryResponse;
+import timely.util.JsonUtil;
+
+/**
+ * Serializes the series of a query into a JSON array, a chunk at a time. Each chunk holds whole series and is at least chunkSize bytes unless it is the last
+ * one. Written through a {@link ChunkedWriteHandler}, the next chunk is only serialized while the channel is writable.
+ */
+public class QueryResponseChunkedInput implements ChunkedInput<ByteBuf> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final ObjectMapper mapper = JsonUtil.getObjectMapper();
+    private final Iterator<QueryResponse> responses;
+    private final int chunkSize;
+    private boolean started = false;
+    private boolean ended = false;
+    private long progress = 0;
+
+    public QueryResponseChunkedInput(Iterator<QueryResponse> responses) {
+        this(responses, DEFAULT_CHUNK_SIZE);
+    }
+
+    public QueryResponseChunkedInput(Iterator<QueryResponse> responses, int chunkSize) {
+        this.responses = responses;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return ended;
+    }
+
+    @Override
+    public void close() {
+        ended = true;
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (ended) {
+            return null;
+        }
+        ByteBuf chunk = allocator.buffer(chunkSize);
+        boolean release = true;
+        try {
+            try (JsonGenerator generator = mapper.getFactory().createGenerator((OutputStream) new ByteBufOutputStream(chunk))) {
+                // series are root values of the generator, separated by the commas of the array
+                generator.setRootValueSeparator(null);
+                if (!started) {
+                    generator.writeRaw('[');
+                    started = true;
+                }
+                while (responses.hasNext()) {
+                    if (progress > 0) {
+                        generator.writeRaw(',');
+                    }
+                    mapper.writeValue(generator, responses.next());
+                    progress++;
+                    generator.flush();
+                    if (chunk.readableBytes() >= chunkSize) {
+                        break;
+                    }
+                }
+                if (!responses.hasNext()) {
+                    generator.writeRaw(']');
+                    ended = true;
+                }
+            }
+            release = false;
+            return chunk;
+        } finally {
+            if (release) {
+                chunk.release();
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
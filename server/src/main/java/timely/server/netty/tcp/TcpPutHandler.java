@@ -11,24 +11,27 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import timely.api.request.MetricRequest;
 import timely.netty.Constants;
-import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
 
 public class TcpPutHandler extends SimpleChannelInboundHandler<MetricRequest> {
 
     private static final Logger log = LoggerFactory.getLogger(TcpPutHandler.class);
     private static final String LOG_ERR_MSG = "Error storing put metric: {}";
     private static final String ERR_MSG = "Error storing put metric: ";
-    private DataStore store;
+    private static final String QUEUE_FULL_MSG = "Ingest queue full";
+    private IngestQueue ingestQueue;
 
-    public TcpPutHandler(DataStore store) {
-        this.store = store;
+    public TcpPutHandler(IngestQueue ingestQueue) {
+        this.ingestQueue = ingestQueue;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest msg) throws Exception {
         log.trace("Received {}", msg);
         try {
-            store.store(msg.getMetric());
+            if (!ingestQueue.offer(msg.getMetrics(), ctx.channel())) {
+                throw new IllegalStateException(QUEUE_FULL_MSG + ", rejected " + msg.getMetrics().size() + " metrics");
+            }
         } catch (Exception e) {
             log.error(LOG_ERR_MSG, msg, e);
             ChannelFuture cf = ctx.writeAndFlush(Unpooled.copiedBuffer((ERR_MSG + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8)));
@@ -0,0 +1,131 @@
+package timely.server.netty.udp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.netty.udp.UdpBatchDecoder;
+
+/**
+ * Receive statistics of one of the SO_REUSEPORT sockets bound to the UDP port. Datagram and read counts come from the {@link UdpBatchDecoder} of the channel.
+ * Datagrams dropped by the kernel because the socket receive buffer was full are read from the drops column of /proc/net/udp and /proc/net/udp6, which is the
+ * same per socket counter that SO_RXQ_OVFL reports, by the inode of the socket. Drops are only available for epoll channels on Linux.
+ */
+public class UdpSocketStats {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpSocketStats.class);
+
+    private static final String DATAGRAMS_RECEIVED_METRIC = "timely.udp.datagrams.received";
+    private static final String DATAGRAMS_PER_READ_METRIC = "timely.udp.datagrams.per.read";
+    private static final String DROPS_METRIC = "timely.udp.drops";
+    private static final String SOCKET_TAG = "socket";
+    private static final Path[] PROC_NET_UDP = {Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6")};
+    private static final String SOCKET_LINK_PREFIX = "socket:[";
+    // columns of /proc/net/udp
+    private static final int INODE_COLUMN = 9;
+    private static final int DROPS_COLUMN = 12;
+
+    private final String socket;
+    private final UdpBatchDecoder decoder;
+    private final long inode;
+    private long lastDatagrams = 0;
+    private long lastReads = 0;
+    private long lastDrops = 0;
+
+    public UdpSocketStats(int socket, Channel channel, UdpBatchDecoder decoder) {
+        this.socket = Integer.toString(socket);
+        this.decoder = decoder;
+        this.inode = getInode(channel);
+        this.lastDrops = getDrops();
+    }
+
+    private static long getInode(Channel channel) {
+        if (!(channel instanceof EpollDatagramChannel)) {
+            return -1;
+        }
+        int fd = ((EpollDatagramChannel) channel).fd().intValue();
+        try {
+            String link = Files.readSymbolicLink(Paths.get("/proc/self/fd/" + fd)).toString();
+            if (link.startsWith(SOCKET_LINK_PREFIX)) {
+                return Long.parseLong(link.substring(SOCKET_LINK_PREFIX.length(), link.length() - 1));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to find inode of udp socket fd {}, drops will not be reported: {}", fd, e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of datagrams dropped by the socket since it was created, or 0 if unknown
+     */
+    public long getDrops() {
+        if (inode < 0) {
+            return 0;
+        }
+        for (Path path : PROC_NET_UDP) {
+            if (Files.isReadable(path)) {
+                try (BufferedReader reader = Files.newBufferedReader(path)) {
+                    long drops = readDrops(reader, inode);
+                    if (drops >= 0) {
+                        return drops;
+                    }
+                } catch (IOException e) {
+                    log.debug("Error reading {}: {}", path, e.getMessage());
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Find the drops column of a socket in the contents of /proc/net/udp
+     *
+     * @return the number of drops or -1 if the socket was not found
+     */
+    static long readDrops(BufferedReader reader, long inode) throws IOException {
+        String inodeString = Long.toString(inode);
+        // skip the header
+        String line = reader.readLine();
+        while ((line = reader.readLine()) != null) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length > DROPS_COLUMN && columns[INODE_COLUMN].equals(inodeString)) {
+                return Long.parseLong(columns[DROPS_COLUMN]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return metrics for the datagrams received and dropped since the last call
+     */
+    public synchronized List<Metric> getMetricsAndReset(long ts, List<Tag> tags) {
+        List<Tag> socketTags = new ArrayList<>(tags);
+        socketTags.add(new Tag(SOCKET_TAG, socket));
+        long datagrams = decoder.getDatagramsReceived();
+        long reads = decoder.getReadCycles();
+        long drops = getDrops();
+        List<Metric> metrics = new ArrayList<>();
+        metrics.add(new Metric(DATAGRAMS_RECEIVED_METRIC, ts, datagrams - lastDatagrams, socketTags));
+        if (reads > lastReads) {
+            metrics.add(new Metric(DATAGRAMS_PER_READ_METRIC, ts, (double) (datagrams - lastDatagrams) / (reads - lastReads), socketTags));
+        }
+        if (inode >= 0) {
+            metrics.add(new Metric(DROPS_METRIC, ts, Math.max(0, drops - lastDrops), socketTags));
+        }
+        lastDatagrams = datagrams;
+        lastReads = reads;
+        lastDrops = drops;
+        return metrics;
+    }
+}
@@ -1,21 +1,39 @@
 package timely.server.netty.websocket;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import timely.api.request.MetricRequest;
-import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
 
 public class WSMetricPutHandler extends SimpleChannelInboundHandler<MetricRequest> {
 
-    private final DataStore dataStore;
+    private static final Logger log = LoggerFactory.getLogger(WSMetricPutHandler.class);
+    private final IngestQueue ingestQueue;
 
-    public WSMetricPutHandler(DataStore dataStore) {
-        this.dataStore = dataStore;
+    public WSMetricPutHandler(IngestQueue ingestQueue) {
+        this.ingestQueue = ingestQueue;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest m) throws Exception {
-        this.dataStore.store(m.getMetric());
+        boolean accepted;
+        try {
+            accepted = this.ingestQueue.offer(m.getMetrics(), ctx.channel());
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            // 1009 (message too big), the client has to split the metrics
+            ctx.writeAndFlush(new CloseWebSocketFrame(1009, e.getMessage()));
+            return;
+        }
+        if (!accepted) {
+            log.error("Ingest queue full, rejected {} metrics from: {}", m.getMetrics().size(), m);
+            // 1013 (try again later), the client has to resend the metrics
+            ctx.writeAndFlush(new CloseWebSocketFrame(1013, "Ingest queue full, rejected " + m.getMetrics().size() + " metrics"));
+        }
     }
 
 }
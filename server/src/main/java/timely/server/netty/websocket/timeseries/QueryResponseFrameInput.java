@@ -0,0 +1,61 @@
+package timely.server.netty.websocket.timeseries;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.stream.ChunkedInput;
+import timely.server.netty.http.timeseries.QueryResponseChunkedInput;
+
+/**
+ * Sends the chunks of a {@link QueryResponseChunkedInput} as the fragments of one text message, a text frame followed by continuation frames.
+ */
+public class QueryResponseFrameInput implements ChunkedInput<WebSocketFrame> {
+
+    private final QueryResponseChunkedInput input;
+    private boolean first = true;
+
+    public QueryResponseFrameInput(QueryResponseChunkedInput input) {
+        this.input = input;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return input.isEndOfInput();
+    }
+
+    @Override
+    public void close() throws Exception {
+        input.close();
+    }
+
+    @Deprecated
+    @Override
+    public WebSocketFrame readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public WebSocketFrame readChunk(ByteBufAllocator allocator) throws Exception {
+        ByteBuf chunk = input.readChunk(allocator);
+        if (chunk == null) {
+            return null;
+        }
+        boolean last = input.isEndOfInput();
+        WebSocketFrame frame = first ? new TextWebSocketFrame(last, 0, chunk) : new ContinuationWebSocketFrame(last, 0, chunk);
+        first = false;
+        return frame;
+    }
+
+    @Override
+    public long length() {
+        return input.length();
+    }
+
+    @Override
+    public long progress() {
+        return input.progress();
+    }
+}
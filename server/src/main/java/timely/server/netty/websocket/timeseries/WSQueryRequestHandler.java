@@ -1,40 +1,58 @@
 package timely.server.netty.websocket.timeseries;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import timely.api.request.timeseries.QueryRequest;
-import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryResponse;
+import timely.common.configuration.WebsocketProperties;
 import timely.server.netty.http.timeseries.HttpQueryRequestHandler;
+import timely.server.netty.http.timeseries.QueryResponseChunkedInput;
 import timely.server.store.DataStore;
+import timely.server.store.QueryScheduler;
 import timely.util.JsonUtil;
 
 public class WSQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequest> {
 
     private static final Logger log = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryScheduler queryScheduler;
+    private final WebsocketProperties websocketProperties;
 
-    public WSQueryRequestHandler(DataStore dataStore) {
+    public WSQueryRequestHandler(DataStore dataStore, QueryScheduler queryScheduler, WebsocketProperties websocketProperties) {
         this.dataStore = dataStore;
+        this.queryScheduler = queryScheduler;
+        this.websocketProperties = websocketProperties;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.query(msg));
-            ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            if (e.getMessage().contains("No matching tags")) {
-                log.trace(e.getMessage());
+        queryScheduler.submit(ctx.channel(), context -> dataStore.streamQuery(msg, context), (responses, e) -> {
+            if (e != null) {
+                if (e.getMessage().contains("No matching tags")) {
+                    log.trace(e.getMessage());
+                } else {
+                    log.error(e.getMessage(), e);
+                }
+                ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+            } else if (websocketProperties.isStreamQueryResponses()) {
+                QueryResponseChunkedInput input = new QueryResponseChunkedInput(responses);
+                // a partially sent message cannot be completed if a series cannot be written, close the connection
+                ctx.writeAndFlush(new QueryResponseFrameInput(input)).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
             } else {
-                log.error(e.getMessage(), e);
+                List<QueryResponse> result = new ArrayList<>();
+                responses.forEachRemaining(result::add);
+                ctx.writeAndFlush(new TextWebSocketFrame(JsonUtil.getObjectMapper().writeValueAsString(result)));
             }
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        });
     }
 
 }
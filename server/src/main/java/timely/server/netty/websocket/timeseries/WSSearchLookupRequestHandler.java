@@ -8,28 +8,32 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import timely.api.request.timeseries.SearchLookupRequest;
-import timely.api.response.TimelyException;
 import timely.server.store.DataStore;
+import timely.server.store.QueryScheduler;
 import timely.util.JsonUtil;
 
 public class WSSearchLookupRequestHandler extends SimpleChannelInboundHandler<SearchLookupRequest> {
 
     private static final Logger log = LoggerFactory.getLogger(WSSearchLookupRequestHandler.class);
     private DataStore dataStore;
+    private final QueryScheduler queryScheduler;
 
-    public WSSearchLookupRequestHandler(DataStore dataStore) {
+    public WSSearchLookupRequestHandler(DataStore dataStore, QueryScheduler queryScheduler) {
         this.dataStore = dataStore;
+        this.queryScheduler = queryScheduler;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SearchLookupRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.lookup(msg));
+        queryScheduler.submit(ctx.channel(), context -> dataStore.lookup(msg, context), (result, e) -> {
+            if (e != null) {
+                log.error(e.getMessage(), e);
+                ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+                return;
+            }
+            String response = JsonUtil.getObjectMapper().writeValueAsString(result);
             ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            log.error(e.getMessage(), e);
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        });
     }
 
 }
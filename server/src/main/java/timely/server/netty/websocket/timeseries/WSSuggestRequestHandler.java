@@ -8,29 +8,33 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import timely.api.request.timeseries.SuggestRequest;
-import timely.api.response.TimelyException;
 import timely.server.netty.http.timeseries.HttpSuggestRequestHandler;
 import timely.server.store.DataStore;
+import timely.server.store.QueryScheduler;
 import timely.util.JsonUtil;
 
 public class WSSuggestRequestHandler extends SimpleChannelInboundHandler<SuggestRequest> {
 
     private static final Logger log = LoggerFactory.getLogger(HttpSuggestRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryScheduler queryScheduler;
 
-    public WSSuggestRequestHandler(DataStore dataStore) {
+    public WSSuggestRequestHandler(DataStore dataStore, QueryScheduler queryScheduler) {
         this.dataStore = dataStore;
+        this.queryScheduler = queryScheduler;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SuggestRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.suggest(msg));
+        queryScheduler.submit(ctx.channel(), context -> dataStore.suggest(msg), (result, e) -> {
+            if (e != null) {
+                log.error(e.getMessage(), e);
+                ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+                return;
+            }
+            String response = JsonUtil.getObjectMapper().writeValueAsString(result);
             ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            log.error(e.getMessage(), e);
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        });
     }
 
 }
@@ -2,6 +2,8 @@ package timely.server.sample;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.*;
 
@@ -10,9 +12,14 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import com.google.common.base.Preconditions;
 
 import timely.api.request.timeseries.QueryRequest;
+import timely.model.ObjectSizeOf;
+import timely.server.sample.aggregators.Quantile;
 
-public class Aggregation implements Iterable<Sample>, Serializable {
+public class Aggregation implements Iterable<Sample>, Serializable, ObjectSizeOf {
 
+    /**
+     * The serialized form of a bucket, buckets are held in {@link Buckets} otherwise
+     */
     public static class AggregatedValue implements Serializable {
 
         private static final long serialVersionUID = 1L;
@@ -52,75 +59,170 @@ public class Aggregation implements Iterable<Sample>, Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // the serialized form is unchanged from when the buckets were a TreeMap<Long,AggregatedValue>, it does not include the sketches of a Quantile aggregator,
+    // which are only encoded by AggregationCodec
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("aggregatorClassname", String.class),
+            new ObjectStreamField("buckets", TreeMap.class)};
+
     protected transient Aggregator aggregator;
-    protected final String aggregatorClassname;
+    protected String aggregatorClassname;
 
-    protected final TreeMap<Long,AggregatedValue> buckets = new TreeMap<>();
+    protected transient Buckets buckets;
 
     public Aggregation(Aggregator agg) {
+        this(agg, new Buckets.Sparse(Buckets.Sparse.MIN_CAPACITY));
+    }
+
+    protected Aggregation(Aggregator agg, Buckets buckets) {
         Preconditions.checkNotNull(agg, "Aggregator object cannot be null");
         this.aggregator = agg;
         this.aggregatorClassname = agg.getClass().getName();
+        this.buckets = buckets;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        TreeMap<Long,AggregatedValue> serialized = new TreeMap<>();
+        for (Buckets.Cursor c = buckets.cursor(); c.next();) {
+            AggregatedValue val = new AggregatedValue();
+            val.setCount(c.count());
+            val.setValue(c.value());
+            serialized.put(c.timestamp(), val);
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("aggregatorClassname", aggregatorClassname);
+        fields.put("buckets", serialized);
+        out.writeFields();
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        aggregatorClassname = (String) fields.get("aggregatorClassname", null);
+        @SuppressWarnings("unchecked")
+        TreeMap<Long,AggregatedValue> serialized = (TreeMap<Long,AggregatedValue>) fields.get("buckets", null);
         try {
             aggregator = (Aggregator) getClass().getClassLoader().loadClass(aggregatorClassname).newInstance();
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
+        buckets = new Buckets.Sparse(Math.max(serialized.size(), Buckets.Sparse.MIN_CAPACITY));
+        for (Map.Entry<Long,AggregatedValue> e : serialized.entrySet()) {
+            buckets.put(e.getKey(), e.getValue().getCount(), e.getValue().getValue(), null);
+        }
+    }
+
+    /**
+     * @return the buckets, switched to sparse storage first if the current storage cannot hold a bucket for the timestamp
+     */
+    protected Buckets bucketsFor(long ts) {
+        if (!buckets.accepts(ts)) {
+            buckets = buckets.toSparse();
+        }
+        return buckets;
     }
 
     public void add(long ts, double value) {
-        AggregatedValue val = buckets.get(ts);
-        if (null == val) {
-            buckets.put(ts, val = new AggregatedValue());
+        bucketsFor(ts).add(ts, value, aggregator);
+    }
+
+    /**
+     * @return the timestamp of the bucket of a value
+     */
+    protected long bucketOf(long ts) {
+        return ts;
+    }
+
+    /**
+     * Add a block of values, the same as calling {@link #add(long, double)} for each of them. Each run of values with the same bucket is aggregated with one
+     * call to the aggregator. The arrays are not modified.
+     *
+     * @param timestamps
+     *            timestamps of the values
+     * @param values
+     *            values to add
+     * @param length
+     *            number of values in the arrays
+     */
+    public void addAll(long[] timestamps, double[] values, int length) {
+        int i = 0;
+        while (i < length) {
+            long ts = bucketOf(timestamps[i]);
+            int end = i + 1;
+            while (end < length && bucketOf(timestamps[end]) == ts) {
+                end++;
+            }
+            bucketsFor(ts).add(ts, values, i, end - i, aggregator);
+            i = end;
         }
-        val.setValue(aggregator.aggregate(val.getValue(), val.getCount(), value));
-        val.incrementCount();
     }
 
-    public void merge(Aggregation other) {
-        for (Map.Entry<Long,AggregatedValue> e : other.buckets.entrySet()) {
-            AggregatedValue thisVal = buckets.get(e.getKey());
-            if (null == thisVal) {
-                buckets.put(e.getKey(), e.getValue());
-            } else {
-                thisVal.setCount(thisVal.getCount() + e.getValue().getCount());
-                thisVal.setValue(aggregator.aggregate(thisVal.getValue(), thisVal.getCount(), e.getValue().getValue()));
+    /**
+     * Set a bucket to a previously aggregated value and count
+     */
+    void put(long ts, int count, double value, QuantileSketch sketch) {
+        bucketsFor(ts).put(ts, count, value, sketch);
+    }
+
+    /**
+     * @return a copy of the buckets from start, inclusive, to end, exclusive
+     */
+    public Aggregation range(long start, long end) {
+        Aggregation copy = new Aggregation(aggregator);
+        for (Buckets.Cursor c = buckets.cursor(); c.next();) {
+            if (c.timestamp() >= end) {
+                break;
+            }
+            if (c.timestamp() >= start) {
+                copy.put(c.timestamp(), c.count(), c.value(), c.sketch() == null ? null : c.sketch().copy());
             }
         }
+        return copy;
+    }
+
+    public void merge(Aggregation other) {
+        for (Buckets.Cursor c = other.buckets.cursor(); c.next();) {
+            bucketsFor(c.timestamp()).merge(c.timestamp(), c.count(), c.value(), c.sketch(), aggregator);
+        }
     }
 
     @Override
     public Iterator<Sample> iterator() {
         return new Iterator<Sample>() {
 
-            Iterator<Long> keys = buckets.keySet().iterator();
+            final Buckets.Cursor cursor = buckets.cursor();
+            boolean hasNext = cursor.next();
 
             @Override
             public boolean hasNext() {
-                return keys.hasNext();
+                return hasNext;
             }
 
             @Override
             public Sample next() {
-                long time = keys.next();
-                AggregatedValue val = buckets.get(time);
-                double value = aggregator.last(val.getValue(), val.getCount());
-                return new Sample(time, value);
+                if (!hasNext) {
+                    throw new NoSuchElementException();
+                }
+                Sample sample = new Sample(cursor.timestamp(), value(cursor));
+                hasNext = cursor.next();
+                return sample;
             }
         };
     }
 
+    private double value(Buckets.Cursor cursor) {
+        QuantileSketch sketch = cursor.sketch();
+        if (sketch != null && aggregator instanceof Quantile) {
+            return ((Quantile) aggregator).last(sketch);
+        }
+        return aggregator.last(cursor.value(), cursor.count());
+    }
+
     @Override
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this);
         tsb.append("aggregator", this.aggregatorClassname);
         tsb.append("values={");
-        for (Map.Entry<Long,AggregatedValue> e : this.buckets.entrySet()) {
-            tsb.append(e.getKey()).append("=").append(e.getValue()).append(", ");
+        for (Buckets.Cursor c = buckets.cursor(); c.next();) {
+            tsb.append(c.timestamp()).append("={count: ").append(c.count()).append(" value: ").append(c.value()).append("}, ");
         }
         tsb.append("}");
         return tsb.toString();
@@ -149,4 +251,9 @@ public class Aggregation implements Iterable<Sample>, Serializable {
     public int getNumBuckets() {
         return buckets.size();
     }
+
+    @Override
+    public long sizeInBytes() {
+        return Sizer.roundUp(Sizer.OBJECT_OVERHEAD + 3 * Sizer.REFERENCE) + buckets.sizeInBytes();
+    }
 }
@@ -0,0 +1,225 @@
+package timely.server.sample;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import timely.model.Tag;
+import timely.server.sample.aggregators.Quantile;
+
+/**
+ * Binary format of the Map&lt;Set&lt;Tag&gt;,Aggregation&gt; values returned by the DownsampleIterator and AggregationIterator.
+ *
+ * <pre>
+ * version                    byte
+ * dictionary size            vint, followed by each string as vint length and UTF-8 bytes
+ * number of entries          vint
+ * entry
+ *   number of tags           vint, followed by the dictionary index of each key and value
+ *   type                     byte, 0 for an Aggregation, 1 for a Downsample
+ *   aggregator               vint dictionary index of the aggregator class name
+ *   start, period            vlong, Downsample only
+ *   number of buckets        vint
+ *   bucket timestamps        vlong first timestamp, followed by the vlong difference to the previous timestamp
+ *   bucket counts            vint each
+ *   bucket values            8 byte double each
+ *   bucket sketches          {@link QuantileSketch} of each bucket, Quantile aggregators only
+ * </pre>
+ *
+ * Values written with Java serialization by an older iterator are still decoded.
+ */
+public class AggregationCodec {
+
+    private static final byte VERSION = 1;
+    private static final byte TYPE_AGGREGATION = 0;
+    private static final byte TYPE_DOWNSAMPLE = 1;
+    private static final byte JAVA_SERIALIZATION_MAGIC = (byte) 0xAC;
+
+    // aggregators are stateless, one instance of each class is shared by all decoded values
+    private static final Map<String,Aggregator> aggregators = new ConcurrentHashMap<>();
+
+    private AggregationCodec() {}
+
+    public static byte[] encode(Map<Set<Tag>,? extends Aggregation> aggregations) throws IOException {
+        Map<String,Integer> dictionary = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Map.Entry<Set<Tag>,? extends Aggregation> entry : aggregations.entrySet()) {
+            for (Tag tag : entry.getKey()) {
+                addString(tag.getKey(), dictionary, strings);
+                addString(tag.getValue(), dictionary, strings);
+            }
+            addString(entry.getValue().aggregatorClassname, dictionary, strings);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + aggregations.size() * 256);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(VERSION);
+        WritableUtils.writeVInt(out, strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(UTF_8);
+            WritableUtils.writeVInt(out, bytes.length);
+            out.write(bytes);
+        }
+        WritableUtils.writeVInt(out, aggregations.size());
+        for (Map.Entry<Set<Tag>,? extends Aggregation> entry : aggregations.entrySet()) {
+            WritableUtils.writeVInt(out, entry.getKey().size());
+            for (Tag tag : entry.getKey()) {
+                WritableUtils.writeVInt(out, dictionary.get(tag.getKey()));
+                WritableUtils.writeVInt(out, dictionary.get(tag.getValue()));
+            }
+            writeAggregation(out, entry.getValue(), dictionary);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static void addString(String s, Map<String,Integer> dictionary, List<String> strings) {
+        if (!dictionary.containsKey(s)) {
+            dictionary.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    private static void writeAggregation(DataOutputStream out, Aggregation aggregation, Map<String,Integer> dictionary) throws IOException {
+        if (aggregation instanceof Downsample) {
+            Downsample downsample = (Downsample) aggregation;
+            out.writeByte(TYPE_DOWNSAMPLE);
+            WritableUtils.writeVInt(out, dictionary.get(aggregation.aggregatorClassname));
+            WritableUtils.writeVLong(out, downsample.start);
+            WritableUtils.writeVLong(out, downsample.period);
+        } else {
+            out.writeByte(TYPE_AGGREGATION);
+            WritableUtils.writeVInt(out, dictionary.get(aggregation.aggregatorClassname));
+        }
+        int numBuckets = aggregation.buckets.size();
+        long[] timestamps = new long[numBuckets];
+        int[] counts = new int[numBuckets];
+        double[] values = new double[numBuckets];
+        int i = 0;
+        for (Buckets.Cursor c = aggregation.buckets.cursor(); c.next(); i++) {
+            timestamps[i] = c.timestamp();
+            counts[i] = c.count();
+            values[i] = c.value();
+        }
+        WritableUtils.writeVInt(out, numBuckets);
+        long previous = 0;
+        for (long timestamp : timestamps) {
+            // buckets are in ascending order, so every difference after the first is positive
+            WritableUtils.writeVLong(out, timestamp - previous);
+            previous = timestamp;
+        }
+        for (int count : counts) {
+            WritableUtils.writeVInt(out, count);
+        }
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+        if (aggregation.aggregator instanceof Quantile) {
+            QuantileSketch empty = new QuantileSketch();
+            for (Buckets.Cursor c = aggregation.buckets.cursor(); c.next();) {
+                (c.sketch() == null ? empty : c.sketch()).write(out);
+            }
+        }
+    }
+
+    public static Map<Set<Tag>,Aggregation> decode(byte[] encoded) throws IOException, ClassNotFoundException {
+        if (encoded.length > 0 && encoded[0] == JAVA_SERIALIZATION_MAGIC) {
+            return decodeSerialized(encoded);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown aggregation format version " + version);
+        }
+        int numStrings = WritableUtils.readVInt(in);
+        String[] strings = new String[numStrings];
+        for (int i = 0; i < numStrings; i++) {
+            byte[] bytes = new byte[WritableUtils.readVInt(in)];
+            in.readFully(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
+        int numEntries = WritableUtils.readVInt(in);
+        Map<Set<Tag>,Aggregation> aggregations = new HashMap<>((int) (numEntries / 0.75f) + 1);
+        for (int i = 0; i < numEntries; i++) {
+            int numTags = WritableUtils.readVInt(in);
+            Set<Tag> tags = new HashSet<>((int) (numTags / 0.75f) + 1);
+            for (int j = 0; j < numTags; j++) {
+                tags.add(new Tag(strings[WritableUtils.readVInt(in)], strings[WritableUtils.readVInt(in)]));
+            }
+            aggregations.put(tags, readAggregation(in, strings));
+        }
+        return aggregations;
+    }
+
+    private static Aggregation readAggregation(DataInputStream in, String[] strings) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        Aggregator aggregator = getAggregator(strings[WritableUtils.readVInt(in)]);
+        Aggregation aggregation;
+        if (type == TYPE_DOWNSAMPLE) {
+            long start = WritableUtils.readVLong(in);
+            long period = WritableUtils.readVLong(in);
+            aggregation = new Downsample(start, period, aggregator);
+        } else if (type == TYPE_AGGREGATION) {
+            aggregation = new Aggregation(aggregator);
+        } else {
+            throw new IOException("Unknown aggregation type " + type);
+        }
+        int numBuckets = WritableUtils.readVInt(in);
+        long[] timestamps = new long[numBuckets];
+        long previous = 0;
+        for (int i = 0; i < numBuckets; i++) {
+            timestamps[i] = previous + WritableUtils.readVLong(in);
+            previous = timestamps[i];
+        }
+        int[] counts = new int[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            counts[i] = WritableUtils.readVInt(in);
+        }
+        double[] values = new double[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            values[i] = in.readDouble();
+        }
+        boolean sketched = aggregator instanceof Quantile;
+        for (int i = 0; i < numBuckets; i++) {
+            aggregation.put(timestamps[i], counts[i], values[i], sketched ? QuantileSketch.read(in) : null);
+        }
+        return aggregation;
+    }
+
+    private static Aggregator getAggregator(String classname) throws ClassNotFoundException {
+        Aggregator aggregator = aggregators.get(classname);
+        if (aggregator == null) {
+            try {
+                aggregator = (Aggregator) AggregationCodec.class.getClassLoader().loadClass(classname).getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                throw e;
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new ClassNotFoundException("Unable to create aggregator " + classname, e);
+            }
+            aggregators.putIfAbsent(classname, aggregator);
+        }
+        return aggregator;
+    }
+
+    private static Map<Set<Tag>,Aggregation> decodeSerialized(byte[] encoded) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+            @SuppressWarnings("unchecked")
+            Map<Set<Tag>,Aggregation> unchecked = (Map<Set<Tag>,Aggregation>) ois.readObject();
+            return unchecked;
+        }
+    }
+}
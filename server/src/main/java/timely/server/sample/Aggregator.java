@@ -5,6 +5,9 @@ import timely.server.sample.aggregators.Count;
 import timely.server.sample.aggregators.Dev;
 import timely.server.sample.aggregators.Max;
 import timely.server.sample.aggregators.Min;
+import timely.server.sample.aggregators.P50;
+import timely.server.sample.aggregators.P90;
+import timely.server.sample.aggregators.P99;
 import timely.server.sample.aggregators.Sum;
 
 public interface Aggregator {
@@ -24,6 +27,29 @@ public interface Aggregator {
      */
     double aggregate(double current, int count, double update);
 
+    /**
+     * Incorporate a block of new values into current, the same as calling {@link #aggregate(double, int, double)} for each of them in order. Aggregators
+     * override this with a loop over the primitive array so that a bucket is updated with one call rather than one call per value.
+     *
+     * @param current
+     *            last returned value from aggregate, or zero
+     * @param count
+     *            the number of items aggregated previously into current
+     * @param updates
+     *            new values to incorporate
+     * @param offset
+     *            index of the first new value
+     * @param length
+     *            number of new values
+     * @return the combination of the updates and current
+     */
+    default double aggregate(double current, int count, double[] updates, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            current = aggregate(current, count + i, updates[offset + i]);
+        }
+        return current;
+    }
+
     /**
      * Compute the final value given the aggregated amount and the number of items in the aggregate.
      *
@@ -52,6 +78,12 @@ public interface Aggregator {
                 return Avg.class;
             case "count":
                 return Count.class;
+            case "p50":
+                return P50.class;
+            case "p90":
+                return P90.class;
+            case "p99":
+                return P99.class;
             default:
                 return null;
         }
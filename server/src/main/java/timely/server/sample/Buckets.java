@@ -0,0 +1,331 @@
+package timely.server.sample;
+
+import java.util.Arrays;
+
+import timely.model.ObjectSizeOf.Sizer;
+import timely.server.sample.aggregators.Quantile;
+
+/**
+ * Primitive storage for the buckets of an {@link Aggregation}. The aggregated value and count of each bucket are held in parallel arrays, a bucket with a count
+ * of 0 is empty. Subclasses map a bucket timestamp to its slot in the arrays, slots are in ascending timestamp order. The buckets of a {@link Quantile}
+ * aggregator also have a {@link QuantileSketch}, the array of sketches is only allocated for them.
+ */
+abstract class Buckets {
+
+    protected double[] values;
+    protected int[] counts;
+    protected QuantileSketch[] sketches = null;
+    protected int size = 0;
+
+    protected Buckets(int capacity) {
+        values = new double[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * @return true if a bucket for the timestamp can be stored
+     */
+    abstract boolean accepts(long timestamp);
+
+    /**
+     * @return the slot of the bucket for the timestamp, created empty if it does not exist
+     */
+    protected abstract int slot(long timestamp);
+
+    /**
+     * @return the timestamp of the bucket in the slot
+     */
+    protected abstract long timestamp(int slot);
+
+    /**
+     * @return one past the highest slot that may be occupied
+     */
+    protected abstract int limit();
+
+    int size() {
+        return size;
+    }
+
+    void add(long timestamp, double value, Aggregator aggregator) {
+        int slot = occupy(timestamp);
+        values[slot] = aggregator.aggregate(values[slot], counts[slot], value);
+        counts[slot]++;
+        if (aggregator instanceof Quantile) {
+            sketch(slot).add(value);
+        }
+    }
+
+    /**
+     * Add a block of values to the bucket for the timestamp with one call to the aggregator
+     */
+    void add(long timestamp, double[] updates, int offset, int length, Aggregator aggregator) {
+        int slot = occupy(timestamp);
+        values[slot] = aggregator.aggregate(values[slot], counts[slot], updates, offset, length);
+        counts[slot] += length;
+        if (aggregator instanceof Quantile) {
+            QuantileSketch sketch = sketch(slot);
+            for (int i = offset; i < offset + length; i++) {
+                sketch.add(updates[i]);
+            }
+        }
+    }
+
+    void merge(long timestamp, int count, double value, QuantileSketch sketch, Aggregator aggregator) {
+        int slot = slot(timestamp);
+        if (counts[slot] == 0) {
+            size++;
+            counts[slot] = count;
+            values[slot] = value;
+        } else {
+            counts[slot] += count;
+            values[slot] = aggregator.aggregate(values[slot], counts[slot], value);
+        }
+        if (sketch != null) {
+            // merged into a sketch of this bucket, the other sketch may still be in use
+            sketch(slot).merge(sketch);
+        }
+    }
+
+    void put(long timestamp, int count, double value, QuantileSketch sketch) {
+        int slot = occupy(timestamp);
+        counts[slot] = count;
+        values[slot] = value;
+        if (sketch != null) {
+            ensureSketches();
+            sketches[slot] = sketch;
+        }
+    }
+
+    /**
+     * @return the sketch of the bucket in the slot, created empty if it does not exist
+     */
+    private QuantileSketch sketch(int slot) {
+        ensureSketches();
+        if (sketches[slot] == null) {
+            sketches[slot] = new QuantileSketch();
+        }
+        return sketches[slot];
+    }
+
+    protected void ensureSketches() {
+        if (sketches == null) {
+            sketches = new QuantileSketch[values.length];
+        } else if (sketches.length < values.length) {
+            sketches = Arrays.copyOf(sketches, values.length);
+        }
+    }
+
+    private int occupy(long timestamp) {
+        int slot = slot(timestamp);
+        if (counts[slot] == 0) {
+            size++;
+        }
+        return slot;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0, limit(), 0);
+        Arrays.fill(values, 0, limit(), 0.0D);
+        if (sketches != null) {
+            Arrays.fill(sketches, 0, Math.min(limit(), sketches.length), null);
+        }
+        size = 0;
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    Buckets toSparse() {
+        Sparse sparse = new Sparse(Math.max(size, Sparse.MIN_CAPACITY));
+        for (Cursor c = cursor(); c.next();) {
+            sparse.put(c.timestamp(), c.count(), c.value(), c.sketch());
+        }
+        return sparse;
+    }
+
+    long sizeInBytes() {
+        long size = Sizer.roundUp(Sizer.OBJECT_OVERHEAD + 3 * Sizer.REFERENCE + 4) + arraySize(values.length, 8) + arraySize(counts.length, 4);
+        if (sketches != null) {
+            size += arraySize(sketches.length, Sizer.REFERENCE);
+            for (QuantileSketch sketch : sketches) {
+                if (sketch != null) {
+                    size += sketch.sizeInBytes();
+                }
+            }
+        }
+        return size;
+    }
+
+    protected static long arraySize(int length, int elementSize) {
+        return Sizer.roundUp(Sizer.ARRAY_OVERHEAD + (long) length * elementSize);
+    }
+
+    /**
+     * Visits the occupied buckets in ascending timestamp order
+     */
+    class Cursor {
+
+        private int slot = -1;
+
+        boolean next() {
+            int limit = limit();
+            do {
+                slot++;
+            } while (slot < limit && counts[slot] == 0);
+            return slot < limit;
+        }
+
+        long timestamp() {
+            return Buckets.this.timestamp(slot);
+        }
+
+        int count() {
+            return counts[slot];
+        }
+
+        double value() {
+            return values[slot];
+        }
+
+        /**
+         * @return the sketch of the bucket, null if the buckets do not have sketches
+         */
+        QuantileSketch sketch() {
+            return sketches == null || slot >= sketches.length ? null : sketches[slot];
+        }
+    }
+
+    /**
+     * Buckets at fixed intervals from a start time, the slot of a bucket is computed from its timestamp. Only accepts a bucket while the arrays stay at most
+     * {@link #MAX_EMPTY_RATIO} times larger than the number of occupied buckets, after which the owner switches to {@link Sparse}.
+     */
+    static class Dense extends Buckets {
+
+        static final int MIN_CAPACITY = 64;
+        static final int MAX_EMPTY_RATIO = 8;
+
+        private final long start;
+        private final long period;
+        private int limit = 0;
+
+        Dense(long start, long period, int capacity) {
+            super(capacity);
+            this.start = start;
+            this.period = period;
+        }
+
+        @Override
+        boolean accepts(long timestamp) {
+            if (timestamp < start || (timestamp - start) % period != 0) {
+                return false;
+            }
+            long index = (timestamp - start) / period;
+            return index < values.length || index < maxCapacity();
+        }
+
+        private long maxCapacity() {
+            return Math.max(MIN_CAPACITY, (size + 1L) * MAX_EMPTY_RATIO);
+        }
+
+        @Override
+        protected int slot(long timestamp) {
+            int index = (int) ((timestamp - start) / period);
+            if (index >= values.length) {
+                int capacity = (int) Math.max(index + 1L, Math.min(values.length * 2L, maxCapacity()));
+                values = Arrays.copyOf(values, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            if (index >= limit) {
+                limit = index + 1;
+            }
+            return index;
+        }
+
+        @Override
+        protected long timestamp(int slot) {
+            return start + slot * period;
+        }
+
+        @Override
+        protected int limit() {
+            return limit;
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            limit = 0;
+        }
+    }
+
+    /**
+     * Buckets at arbitrary timestamps, kept in a sorted array of timestamps. Appending a later bucket is constant time, a bucket before the last one is found
+     * with a binary search.
+     */
+    static class Sparse extends Buckets {
+
+        static final int MIN_CAPACITY = 16;
+
+        private long[] timestamps;
+
+        Sparse(int capacity) {
+            super(capacity);
+            timestamps = new long[capacity];
+        }
+
+        @Override
+        boolean accepts(long timestamp) {
+            return true;
+        }
+
+        @Override
+        protected int slot(long timestamp) {
+            if (size > 0 && timestamps[size - 1] == timestamp) {
+                return size - 1;
+            }
+            int slot = size;
+            if (size > 0 && timestamps[size - 1] > timestamp) {
+                slot = Arrays.binarySearch(timestamps, 0, size, timestamp);
+                if (slot >= 0) {
+                    return slot;
+                }
+                slot = -(slot + 1);
+            }
+            if (size == timestamps.length) {
+                int capacity = Math.max(MIN_CAPACITY, size * 2);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            if (sketches != null) {
+                ensureSketches();
+                System.arraycopy(sketches, slot, sketches, slot + 1, size - slot);
+                sketches[slot] = null;
+            }
+            // open an empty slot, the caller increments size when it occupies it
+            System.arraycopy(timestamps, slot, timestamps, slot + 1, size - slot);
+            System.arraycopy(values, slot, values, slot + 1, size - slot);
+            System.arraycopy(counts, slot, counts, slot + 1, size - slot);
+            timestamps[slot] = timestamp;
+            values[slot] = 0.0D;
+            counts[slot] = 0;
+            return slot;
+        }
+
+        @Override
+        protected long timestamp(int slot) {
+            return timestamps[slot];
+        }
+
+        @Override
+        protected int limit() {
+            return size;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return super.sizeInBytes() + Sizer.REFERENCE + arraySize(timestamps.length, 8);
+        }
+    }
+}
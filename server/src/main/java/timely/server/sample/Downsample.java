@@ -20,26 +20,61 @@ public class Downsample extends Aggregation implements Iterable<Sample>, Seriali
     protected final long period;
 
     public Downsample(long start, long end, long period, Aggregator agg) {
-        super(agg);
+        super(agg, new Buckets.Dense(start, Math.max(period, 1), initialCapacity(start, end, period)));
         Preconditions.checkArgument(start < end, "Start must be < end");
         Preconditions.checkArgument(period >= 1, "period cannot be < 1");
         this.start = start;
         this.period = period;
     }
 
+    /**
+     * Used by {@link AggregationCodec} for a decoded Downsample, whose end is not part of the encoded value
+     */
+    Downsample(long start, long period, Aggregator agg) {
+        super(agg, new Buckets.Dense(start, period, Buckets.Dense.MIN_CAPACITY));
+        this.start = start;
+        this.period = period;
+    }
+
+    private static int initialCapacity(long start, long end, long period) {
+        if (end <= start || period < 1) {
+            return 0;
+        }
+        // buckets between start and end, the arrays grow past the end if needed
+        return (int) Math.min((end - start + period - 1) / period, Buckets.Dense.MIN_CAPACITY);
+    }
+
     @Override
     public void add(long ts, double value) {
         if (ts < start) {
             throw new IllegalArgumentException("timestamp is out of range");
         }
-        // find the start time of the bucket
-        long sampleStart = ts - ((ts - start) % period);
-        AggregatedValue val = buckets.get(sampleStart);
-        if (null == val) {
-            buckets.put(sampleStart, val = new AggregatedValue());
+        long sampleStart = bucketOf(ts);
+        bucketsFor(sampleStart).add(sampleStart, value, aggregator);
+    }
+
+    /**
+     * @return the start time of the period of a value
+     */
+    @Override
+    protected long bucketOf(long ts) {
+        return ts - ((ts - start) % period);
+    }
+
+    /**
+     * Add a block of values into the periods that they fall in, the arrays are not modified
+     *
+     * @throws IllegalArgumentException
+     *             if a timestamp is before the start, in which case none of the values are added
+     */
+    @Override
+    public void addAll(long[] timestamps, double[] values, int length) {
+        for (int i = 0; i < length; i++) {
+            if (timestamps[i] < start) {
+                throw new IllegalArgumentException("timestamp is out of range");
+            }
         }
-        val.setValue(aggregator.aggregate(val.getValue(), val.getCount(), value));
-        val.incrementCount();
+        super.addAll(timestamps, values, length);
     }
 
     @Override
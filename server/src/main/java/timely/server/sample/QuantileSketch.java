@@ -0,0 +1,249 @@
+package timely.server.sample;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import timely.model.ObjectSizeOf;
+
+/**
+ * A mergeable sketch of the distribution of the values in a bucket, from which quantiles are estimated with a relative error of at most
+ * {@link #RELATIVE_ACCURACY}. Values are counted in logarithmically sized bins, as in DDSketch, so two sketches are merged by adding the counts of their bins
+ * and the result is the same as if all of the values had been added to one sketch.
+ *
+ * Each sign keeps at most {@link #MAX_BINS} bins. When values span more bins than that, the bins of the smallest magnitudes are combined, which only affects
+ * the accuracy of the lowest quantiles of extremely wide distributions.
+ */
+public class QuantileSketch implements ObjectSizeOf {
+
+    public static final double RELATIVE_ACCURACY = 0.01;
+    static final int MAX_BINS = 2048;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    // values of a smaller magnitude are counted as zero
+    private static final double MIN_INDEXABLE = Double.MIN_NORMAL * GAMMA;
+
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount = 0;
+    private long count = 0;
+
+    public void add(double value) {
+        if (value >= MIN_INDEXABLE) {
+            positive.add(index(value), 1);
+        } else if (value <= -MIN_INDEXABLE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+    }
+
+    public void merge(QuantileSketch other) {
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    public QuantileSketch copy() {
+        QuantileSketch copy = new QuantileSketch();
+        copy.merge(this);
+        return copy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1
+     * @return the estimated value at the quantile, NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (quantile * (count - 1));
+        long seen = 0;
+        // most negative first, so the negative bins are visited from the highest index down
+        for (int i = negative.max; i >= negative.min; i--) {
+            seen += negative.get(i);
+            if (seen > rank) {
+                return -value(i);
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0.0D;
+        }
+        for (int i = positive.min; i <= positive.max; i++) {
+            seen += positive.get(i);
+            if (seen > rank) {
+                return value(i);
+            }
+        }
+        return value(positive.max);
+    }
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     * @return the value within the relative accuracy of every value in the bin, bin i holds the values in (GAMMA^(i-1), GAMMA^i]
+     */
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, zeroCount);
+        positive.write(out);
+        negative.write(out);
+    }
+
+    public static QuantileSketch read(DataInput in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.zeroCount = WritableUtils.readVLong(in);
+        sketch.count = sketch.zeroCount + sketch.positive.read(in) + sketch.negative.read(in);
+        return sketch;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return Sizer.roundUp(Sizer.OBJECT_OVERHEAD + 2 * Sizer.REFERENCE + 16) + positive.sizeInBytes() + negative.sizeInBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "{count: " + count + " p50: " + getQuantile(0.5) + " p99: " + getQuantile(0.99) + "}";
+    }
+
+    /**
+     * Counts of the bins from min to max, held in an array that starts at offset and grows as needed
+     */
+    private static class Bins {
+
+        private static final long[] EMPTY = new long[0];
+        private static final int MIN_LENGTH = 32;
+
+        private long[] counts = EMPTY;
+        private int offset = 0;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        private boolean isEmpty() {
+            return min > max;
+        }
+
+        private long get(int index) {
+            return counts[index - offset];
+        }
+
+        private void add(int index, long n) {
+            // reserve may replace the array, so it must run before the array is read
+            int bin = reserve(index);
+            counts[bin - offset] += n;
+        }
+
+        private void merge(Bins other) {
+            if (other.isEmpty()) {
+                return;
+            }
+            reserve(other.min);
+            reserve(other.max);
+            for (int i = other.min; i <= other.max; i++) {
+                long n = other.get(i);
+                if (n > 0) {
+                    add(i, n);
+                }
+            }
+        }
+
+        /**
+         * Extend the bins to include the index, combining the lowest bins if more than MAX_BINS would be needed
+         *
+         * @return the index of the bin that counts the index
+         */
+        private int reserve(int index) {
+            if (isEmpty()) {
+                if (counts.length == 0) {
+                    counts = new long[MIN_LENGTH];
+                }
+                offset = index - counts.length / 2;
+                min = max = index;
+                return index;
+            }
+            int newMin = Math.min(min, index);
+            int newMax = Math.max(max, index);
+            if ((long) newMax - newMin + 1 > MAX_BINS) {
+                newMin = newMax - MAX_BINS + 1;
+            }
+            if (newMin > min || newMin < offset || newMax >= offset + counts.length) {
+                int span = newMax - newMin + 1;
+                int length = counts.length;
+                while (length < span) {
+                    length *= 2;
+                }
+                long[] resized = new long[Math.max(length, MIN_LENGTH)];
+                int newOffset = newMin - (resized.length - span) / 2;
+                for (int i = min; i <= max; i++) {
+                    resized[Math.max(i, newMin) - newOffset] += counts[i - offset];
+                }
+                counts = resized;
+                offset = newOffset;
+            }
+            min = newMin;
+            max = newMax;
+            return Math.max(index, min);
+        }
+
+        private void write(DataOutput out) throws IOException {
+            if (isEmpty()) {
+                WritableUtils.writeVInt(out, 0);
+                return;
+            }
+            WritableUtils.writeVInt(out, max - min + 1);
+            WritableUtils.writeVInt(out, min);
+            for (int i = min; i <= max; i++) {
+                WritableUtils.writeVLong(out, get(i));
+            }
+        }
+
+        /**
+         * @return the total of the counts read
+         */
+        private long read(DataInput in) throws IOException {
+            int numBins = WritableUtils.readVInt(in);
+            if (numBins == 0) {
+                return 0;
+            }
+            int first = WritableUtils.readVInt(in);
+            counts = new long[Math.max(numBins, MIN_LENGTH)];
+            offset = first;
+            min = first;
+            max = first + numBins - 1;
+            long total = 0;
+            for (int i = 0; i < numBins; i++) {
+                counts[i] = WritableUtils.readVLong(in);
+                total += counts[i];
+            }
+            return total;
+        }
+
+        private long sizeInBytes() {
+            return Sizer.roundUp(Sizer.OBJECT_OVERHEAD + Sizer.REFERENCE + 12) + Sizer.roundUp(Sizer.ARRAY_OVERHEAD + 8L * counts.length);
+        }
+
+        @Override
+        public String toString() {
+            return isEmpty() ? "[]" : min + ":" + Arrays.toString(Arrays.copyOfRange(counts, min - offset, max - offset + 1));
+        }
+    }
+}
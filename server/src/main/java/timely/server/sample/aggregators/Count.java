@@ -9,6 +9,11 @@ public class Count implements Aggregator {
         return 0.;
     }
 
+    @Override
+    public double aggregate(double current, int count, double[] updates, int offset, int length) {
+        return 0.;
+    }
+
     @Override
     public double last(double current, int count) {
         return count;
@@ -9,6 +9,14 @@ public class Dev implements Aggregator {
         return current + (update * update);
     }
 
+    @Override
+    public double aggregate(double current, int count, double[] updates, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            current += updates[i] * updates[i];
+        }
+        return current;
+    }
+
     @Override
     public double last(double current, int count) {
         if (count == 1) {
@@ -12,6 +12,18 @@ public class Max implements Aggregator {
         return Math.max(current, update);
     }
 
+    @Override
+    public double aggregate(double current, int count, double[] updates, int offset, int length) {
+        if (length == 0) {
+            return current;
+        }
+        double result = count == 0 ? updates[offset] : current;
+        for (int i = offset; i < offset + length; i++) {
+            result = Math.max(result, updates[i]);
+        }
+        return result;
+    }
+
     @Override
     public double last(double current, int count) {
         return current;
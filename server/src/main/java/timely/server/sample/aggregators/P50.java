@@ -0,0 +1,8 @@
+package timely.server.sample.aggregators;
+
+public class P50 extends Quantile {
+
+    public P50() {
+        super(0.50);
+    }
+}
@@ -0,0 +1,8 @@
+package timely.server.sample.aggregators;
+
+public class P90 extends Quantile {
+
+    public P90() {
+        super(0.90);
+    }
+}
@@ -0,0 +1,8 @@
+package timely.server.sample.aggregators;
+
+public class P99 extends Quantile {
+
+    public P99() {
+        super(0.99);
+    }
+}
@@ -0,0 +1,41 @@
+package timely.server.sample.aggregators;
+
+import timely.server.sample.Aggregator;
+import timely.server.sample.QuantileSketch;
+
+/**
+ * Base class of the quantile aggregators. The values of each bucket are added to a {@link QuantileSketch}, which is kept and merged alongside the aggregated
+ * value, and the value of the bucket is the quantile of its sketch. A quantile can not be computed from the aggregated value and count alone, so
+ * {@link #last(double, int)} is only used for a bucket without a sketch and returns NaN.
+ */
+public abstract class Quantile implements Aggregator {
+
+    private final double quantile;
+
+    protected Quantile(double quantile) {
+        this.quantile = quantile;
+    }
+
+    public double getQuantile() {
+        return quantile;
+    }
+
+    public double last(QuantileSketch sketch) {
+        return sketch.getQuantile(quantile);
+    }
+
+    @Override
+    public double aggregate(double current, int count, double update) {
+        return current;
+    }
+
+    @Override
+    public double aggregate(double current, int count, double[] updates, int offset, int length) {
+        return current;
+    }
+
+    @Override
+    public double last(double current, int count) {
+        return Double.NaN;
+    }
+}
@@ -9,6 +9,14 @@ public class Sum implements Aggregator {
         return current + update;
     }
 
+    @Override
+    public double aggregate(double current, int count, double[] updates, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            current += updates[i];
+        }
+        return current;
+    }
+
     @Override
     public double last(double current, int count) {
         return current;
@@ -1,13 +1,18 @@
 package timely.server.sample.iterators;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
@@ -16,13 +21,15 @@ import org.apache.accumulo.core.iterators.WrappingIterator;
 import timely.model.Tag;
 import timely.model.parse.TagListParser;
 import timely.server.sample.Aggregation;
+import timely.server.sample.AggregationCodec;
 import timely.server.sample.Aggregator;
 import timely.server.sample.Downsample;
 import timely.server.sample.Sample;
 
 /**
  * This iterator will aggregate across series as output from the DownsampleIterator. The same set of aggregator functions are supported as in the
- * DownsampleIterator.
+ * DownsampleIterator. When group by tags are set, the series are aggregated into one Aggregation for each combination of the values of the group by tags, so
+ * that only the groups are returned to the client.
  */
 public class AggregationIterator extends WrappingIterator {
 
@@ -32,29 +39,76 @@ public class AggregationIterator extends WrappingIterator {
     // of Downsample)
     private static final String TAGS = "aggregation.tags";
     private static final String AGGCLASS = "aggregation.aggclass";
+    private static final String GROUPBY = "aggregation.groupby";
 
-    private Aggregation aggregation;
+    private Class<? extends Aggregator> aggClass;
     private Set<Tag> tags;
+    private Set<String> groupBy = Collections.emptySet();
+    private final Map<Set<Tag>,Aggregation> aggregations = new HashMap<>();
+    // group of each series seen by this iterator
+    private final Map<Set<Tag>,Set<Tag>> groups = new HashMap<>();
     private Key last;
 
     @Override
     public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
         super.init(source, options, env);
         String aggClassname = options.get(AGGCLASS);
-        Class<? extends Aggregator> aggClass = null;
         try {
             @SuppressWarnings("unchecked")
             Class<? extends Aggregator> uncheckedAggClass = (Class<? extends Aggregator>) this.getClass().getClassLoader().loadClass(aggClassname);
             aggClass = uncheckedAggClass;
             tags = new HashSet<>(new TagListParser().parse(options.get(TAGS)));
-            aggregation = new Aggregation(aggClass.newInstance());
+            // fail on init rather than on the first value if the aggregator can not be created
+            newAggregation();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
+        }
+        String groupByOption = options.get(GROUPBY);
+        if (groupByOption != null && !groupByOption.isEmpty()) {
+            groupBy = new HashSet<>(Arrays.asList(groupByOption.split(",")));
+        }
+    }
+
+    private Aggregation newAggregation() {
+        try {
+            return new Aggregation(aggClass.newInstance());
         } catch (InstantiationException | IllegalAccessException e) {
             throw new RuntimeException("Error creating aggregator class: " + aggClass, e);
         }
     }
 
+    /**
+     * @return the requested tags, with the value of each group by tag replaced by the value of the series
+     */
+    private Set<Tag> group(Set<Tag> series) {
+        if (groupBy.isEmpty()) {
+            return tags;
+        }
+        return groups.computeIfAbsent(series, s -> {
+            Set<Tag> group = new HashSet<>();
+            for (Tag tag : tags) {
+                if (!groupBy.contains(tag.getKey())) {
+                    group.add(tag);
+                }
+            }
+            for (Tag tag : s) {
+                if (groupBy.contains(tag.getKey())) {
+                    group.add(tag);
+                }
+            }
+            return group;
+        });
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        // the series and aggregations of the previous range are not returned again
+        groups.clear();
+        aggregations.clear();
+        last = null;
+        super.seek(range, columnFamilies, inclusive);
+    }
+
     @Override
     public boolean hasTop() {
         // for each set of downsamples (one per subquery)
@@ -73,6 +127,7 @@ public class AggregationIterator extends WrappingIterator {
 
             // add the downsampled values to the aggregation
             for (Map.Entry<Set<Tag>,Downsample> entry : samples.entrySet()) {
+                Aggregation aggregation = aggregations.computeIfAbsent(group(entry.getKey()), g -> newAggregation());
                 for (Sample sample : entry.getValue()) {
                     aggregation.add(sample.getTimestamp(), sample.getValue());
                 }
@@ -95,16 +150,15 @@ public class AggregationIterator extends WrappingIterator {
     @Override
     public Value getTopValue() {
         // return a value which is consistent with Map<Set<Tag>, Downsample>
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            Map<Set<Tag>,Aggregation> aggregationMap = new HashMap<>();
-            aggregationMap.put(tags, aggregation);
-            out.writeObject(aggregationMap);
-            out.flush();
-            return new Value(bos.toByteArray());
+        try {
+            if (aggregations.isEmpty()) {
+                return new Value(AggregationCodec.encode(Collections.singletonMap(tags, newAggregation())));
+            }
+            return new Value(AggregationCodec.encode(aggregations));
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            aggregation.clear();
+            aggregations.clear();
         }
     }
 
@@ -118,11 +172,17 @@ public class AggregationIterator extends WrappingIterator {
         is.addOption(AGGCLASS, classname);
     }
 
+    /**
+     * Set the options of an iterator that returns one aggregation for each combination of the values of the group by tags
+     */
+    public static void setAggregationOptions(IteratorSetting is, Map<String,String> tags, Collection<String> groupBy, String classname) {
+        setAggregationOptions(is, tags, classname);
+        if (!groupBy.isEmpty()) {
+            is.addOption(GROUPBY, String.join(",", groupBy));
+        }
+    }
+
     public static Map<Set<Tag>,Aggregation> decodeValue(Value value) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(value.get());
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        @SuppressWarnings("unchecked")
-        Map<Set<Tag>,Aggregation> unchecked = (Map<Set<Tag>,Aggregation>) ois.readObject();
-        return unchecked;
+        return AggregationCodec.decode(value.get());
     }
 }
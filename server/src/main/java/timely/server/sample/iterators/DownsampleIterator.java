@@ -2,11 +2,7 @@ package timely.server.sample.iterators;
 
 import static org.apache.accumulo.core.conf.ConfigurationTypeHelper.getTimeInMillis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -25,7 +21,9 @@ import timely.accumulo.MetricAdapter;
 import timely.api.request.timeseries.QueryRequest;
 import timely.api.response.TimelyException;
 import timely.model.Metric;
+import timely.model.ObjectSizeOf;
 import timely.model.Tag;
+import timely.server.sample.AggregationCodec;
 import timely.server.sample.Aggregator;
 import timely.server.sample.Downsample;
 import timely.server.sample.DownsampleFactory;
@@ -41,16 +39,26 @@ public class DownsampleIterator extends WrappingIterator {
     private static final String AGGCLASS = "downsample.aggclass";
 
     private static final long DEFAULT_DOWNSAMPLE_MS = 1;
+    // HashMap.Node and its slot in the table
+    private static final long MAP_ENTRY_SIZE = ObjectSizeOf.Sizer.roundUp(ObjectSizeOf.Sizer.OBJECT_OVERHEAD + 4 + 3 * ObjectSizeOf.Sizer.REFERENCE)
+                    + ObjectSizeOf.Sizer.REFERENCE;
     private static final String DEFAULT_DOWNSAMPLE_AGGREGATOR = Avg.class.getSimpleName().toLowerCase();
+    // values of a series buffered before they are added to its Downsample
+    static final int BATCH_SIZE = 64;
+    private static final long BATCH_SIZE_BYTES = ObjectSizeOf.Sizer.roundUp(ObjectSizeOf.Sizer.OBJECT_OVERHEAD + 3 * ObjectSizeOf.Sizer.REFERENCE + 4)
+                    + 2 * ObjectSizeOf.Sizer.roundUp(ObjectSizeOf.Sizer.ARRAY_OVERHEAD + 8L * BATCH_SIZE);
 
     private DownsampleFactory factory;
     private final Map<Set<Tag>,Downsample> value = new HashMap<>();
+    private final Map<Set<Tag>,Batch> batches = new HashMap<>();
     private long start;
     private long end;
     private long period;
     private Key last;
 
     private DownsampleMemoryEstimator memoryEstimator = null;
+    // exact size of the values accumulated since the last call to getTopValue
+    private long memoryUsed = 0;
 
     @Override
     public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
@@ -87,22 +95,28 @@ public class DownsampleIterator extends WrappingIterator {
                 try {
                     Metric metric = MetricAdapter.parse(topKey, topValue);
                     long timestamp = metric.getValue().getTimestamp();
-                    if (memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, value)) {
+                    if (memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, memoryUsed)) {
                         log.trace("returning current values - memory usage > " + memoryEstimator.maxDownsampleMemory + " for metric=" + metric);
                         break;
                     }
                     last = topKey;
 
+                    if (timestamp < start) {
+                        throw new IllegalArgumentException("timestamp is out of range");
+                    }
                     Set<Tag> tags = new HashSet<>(metric.getTags());
-                    Downsample sample = value.get(tags);
-                    if (sample == null) {
+                    Batch batch = batches.get(tags);
+                    if (batch == null) {
+                        Downsample sample;
                         try {
                             value.put(tags, sample = factory.create());
                         } catch (TimelyException e) {
                             throw new RuntimeException(e);
                         }
+                        batches.put(tags, batch = new Batch(sample));
+                        memoryUsed += ObjectSizeOf.Sizer.getObjectSize(tags) + 2 * MAP_ENTRY_SIZE + sample.sizeInBytes() + BATCH_SIZE_BYTES;
                     }
-                    sample.add(metric.getValue().getTimestamp(), metric.getValue().getMeasure());
+                    batch.add(timestamp, metric.getValue().getMeasure());
                 } catch (Exception e) {
                     log.error("Error: {} parsing metric at key: {}", e.getMessage(), topKey.toString());
                 }
@@ -123,13 +137,17 @@ public class DownsampleIterator extends WrappingIterator {
 
     @Override
     public Value getTopValue() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(value);
-            out.flush();
+        try {
+            for (Batch batch : batches.values()) {
+                batch.flush();
+            }
+            byte[] encoded = AggregationCodec.encode(value);
             // empty for next batch of downsamples
             value.clear();
+            batches.clear();
             memoryEstimator.reset();
-            return new Value(bos.toByteArray());
+            memoryUsed = 0;
+            return new Value(encoded);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -137,8 +155,41 @@ public class DownsampleIterator extends WrappingIterator {
 
     @Override
     public void next() throws IOException {
-        if (!super.hasTop()) {
-            last = null;
+        // hasTop continues from the source, which is still positioned at the first value not returned when memory usage ended the last batch early
+        last = null;
+    }
+
+    /**
+     * Buffers the values of a series in primitive arrays and adds them to its Downsample a block at a time, so that each bucket is updated with one call to the
+     * aggregator for a run of values rather than one call per value
+     */
+    private class Batch {
+
+        private final Downsample sample;
+        private final long[] timestamps = new long[BATCH_SIZE];
+        private final double[] values = new double[BATCH_SIZE];
+        private int size = 0;
+
+        private Batch(Downsample sample) {
+            this.sample = sample;
+        }
+
+        private void add(long timestamp, double measure) {
+            timestamps[size] = timestamp;
+            values[size] = measure;
+            if (++size == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (size == 0) {
+                return;
+            }
+            long sampleSize = sample.sizeInBytes();
+            sample.addAll(timestamps, values, size);
+            memoryUsed += sample.sizeInBytes() - sampleSize;
+            size = 0;
         }
     }
 
@@ -151,10 +202,8 @@ public class DownsampleIterator extends WrappingIterator {
     }
 
     public static Map<Set<Tag>,Downsample> decodeValue(Value value) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(value.get());
-        ObjectInputStream ois = new ObjectInputStream(bis);
         @SuppressWarnings("unchecked")
-        Map<Set<Tag>,Downsample> unchecked = (Map<Set<Tag>,Downsample>) ois.readObject();
+        Map<Set<Tag>,Downsample> unchecked = (Map<Set<Tag>,Downsample>) (Map<Set<Tag>,?>) AggregationCodec.decode(value.get());
         return unchecked;
     }
 
@@ -1,9 +1,5 @@
 package timely.server.sample.iterators;
 
-import java.util.LinkedList;
-
-import timely.model.ObjectSizeOf;
-
 public class DownsampleMemoryEstimator {
 
     private boolean newBucket = false;
@@ -16,19 +12,11 @@ public class DownsampleMemoryEstimator {
     long maxDownsampleMemory = 0; // max aggregation memory (bytes) before
                                   // current batch is returned (after bucket is
                                   // complete)
-    LinkedList<Long> percentageChecks = new LinkedList<>();
 
     public void reset() {
         newBucket = false;
         bucketsCompleted = 0;
         bytesPerBucket = 0;
-        percentageChecks.clear();
-        percentageChecks.add(1l);
-        percentageChecks.add(5l);
-        percentageChecks.add(25l);
-        percentageChecks.add(50l);
-        percentageChecks.add(75l);
-        percentageChecks.add(95l);
     }
 
     public DownsampleMemoryEstimator(long maxDownsampleMemory, long start, long period) {
@@ -55,32 +43,21 @@ public class DownsampleMemoryEstimator {
         return highVolumeBuckets;
     }
 
-    public boolean shouldReturnBasedOnMemoryUsage(long timestamp, Object value) {
-
+    /**
+     * Returns true, once a bucket is complete, when the values accumulated since the last reset have reached the max downsample memory
+     *
+     * @param memoryUsed
+     *            the size in bytes of the values accumulated since the last reset
+     */
+    public boolean shouldReturnBasedOnMemoryUsage(long timestamp, long memoryUsed) {
         boolean shouldReturn = false;
         if (maxDownsampleMemory >= 0) {
             sample(timestamp);
             if (isNewBucket()) {
                 bucketsCompleted++;
-                double memoryUsedPercentage = getMemoryUsedPercentage();
-                if (memoryUsedPercentage >= 100) {
-                    shouldReturn = true;
-                } else {
-                    boolean checkMemoryNow = false;
-                    Long check = percentageChecks.peek();
-                    if (check != null && memoryUsedPercentage >= check) {
-                        checkMemoryNow = true;
-                        percentageChecks.removeFirst();
-                    }
-                    // recalculate bytesPerBucket
-                    if (bytesPerBucket < 100 || bucketsCompleted == 10 || highVolumeBuckets || checkMemoryNow) {
-                        long memoryUsed = ObjectSizeOf.Sizer.getObjectSize(value);
-                        bytesPerBucket = memoryUsed / bucketsCompleted;
-                    }
-                    // bucket average greater than 10% of max
-                    highVolumeBuckets = (bytesPerBucket / (double) maxDownsampleMemory) >= 0.1;
-                    shouldReturn = false;
-                }
+                bytesPerBucket = memoryUsed / bucketsCompleted;
+                highVolumeBuckets = (bytesPerBucket / (double) maxDownsampleMemory) >= 0.1;
+                shouldReturn = memoryUsed >= maxDownsampleMemory;
             }
         }
         return shouldReturn;
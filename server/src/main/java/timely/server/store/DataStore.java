@@ -5,7 +5,6 @@ import static org.apache.accumulo.core.conf.ConfigurationTypeHelper.getTimeInMil
 import static timely.accumulo.MetricAdapter.VISIBILITY_TAG;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -18,14 +17,22 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -53,6 +60,7 @@ import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.iterators.user.TimestampFilter;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.accumulo.core.security.VisibilityEvaluator;
@@ -65,8 +73,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.context.ApplicationContext;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.internal.SystemPropertyUtil;
+import timely.accumulo.MetaAdapter;
 import timely.accumulo.MetricAdapter;
 import timely.api.request.AuthenticatedRequest;
 import timely.api.request.timeseries.QueryRequest;
@@ -82,7 +93,10 @@ import timely.api.response.timeseries.SuggestResponse;
 import timely.common.component.AuthenticationService;
 import timely.common.configuration.AccumuloProperties;
 import timely.common.configuration.CacheProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
 import timely.common.configuration.SecurityProperties;
+import timely.common.configuration.StoreProperties;
 import timely.common.configuration.TimelyProperties;
 import timely.common.configuration.ZookeeperProperties;
 import timely.model.Meta;
@@ -95,6 +109,8 @@ import timely.server.sample.Sample;
 import timely.server.sample.iterators.AggregationIterator;
 import timely.server.sample.iterators.DownsampleIterator;
 import timely.server.sample.iterators.RateIterator;
+import timely.server.store.QueryRangePlanner.QueryRanges;
+import timely.server.store.cache.CacheSnapshots;
 import timely.server.store.cache.DataStoreCache;
 import timely.server.util.MetaKeySet;
 import timely.util.Exclusions;
@@ -135,8 +151,11 @@ public class DataStore {
     private final String metaTable;
     private final int scannerThreads;
     private final long maxDownsampleMemory;
+    private final int queryParallelism;
+    private final int maxScanRanges;
     private final BatchWriterConfig bwConfig;
     private final String defaultVisibility;
+    private final StoreProperties.Layout storeLayout;
     private ApplicationContext applicationContext;
     private Map<String,String> ageOffSettings;
     private long defaultAgeOffMilliSec;
@@ -154,15 +173,20 @@ public class DataStore {
     protected SecurityProperties securityProperties;
     protected CacheProperties cacheProperties;
     protected ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+    protected final ExecutorService queryExecutor;
+    protected final QueryResultCache queryResultCache;
 
     public DataStore(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStoreCache dataStoreCache,
                     AuthenticationService authenticationService, InternalMetrics internalMetrics, MetaCache metaCache, TimelyProperties timelyProperties,
                     ZookeeperProperties zookeeperProperties, AccumuloProperties accumuloProperties, SecurityProperties securityProperties,
-                    CacheProperties cacheProperties, Exclusions exclusions) {
+                    CacheProperties cacheProperties, QueryCacheProperties queryCacheProperties, IngestProperties ingestProperties, Exclusions exclusions) {
 
+        // each thread that stores metrics has its own BatchWriters, the ingest writer threads or else the Netty event loop threads
         int numWriteThreads;
         if (timelyProperties.isTest()) {
             numWriteThreads = 1;
+        } else if (ingestProperties.isEnabled()) {
+            numWriteThreads = Math.max(1, ingestProperties.getWriterThreads());
         } else {
             numWriteThreads = Math.max(1, SystemPropertyUtil.getInt("io.netty.eventLoopThreads", Runtime.getRuntime().availableProcessors() * 2));
         }
@@ -186,9 +210,17 @@ public class DataStore {
         bwConfig.setMaxWriteThreads(accumuloProperties.getWrite().getThreads());
         scannerThreads = accumuloProperties.getScan().getThreads();
         maxDownsampleMemory = accumuloProperties.getScan().getMaxDownsampleMemory();
+        queryParallelism = accumuloProperties.getScan().getQueryParallelism();
+        maxScanRanges = accumuloProperties.getScan().getMaxRanges();
+        int queryThreads = Math.max(1, accumuloProperties.getScan().getQueryThreads());
+        // when the queue is full the task runs on the thread of the query, which slows down the queries submitting the most work
+        queryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queryThreads * 16),
+                        new ThreadFactoryBuilder().setNameFormat("query-%d").setDaemon(true).build(), new ThreadPoolExecutor.CallerRunsPolicy());
+        queryResultCache = new QueryResultCache(queryCacheProperties, internalMetrics);
         defaultVisibility = timelyProperties.getDefaultVisibility();
         metricsTable = timelyProperties.getMetricsTable();
         metaTable = timelyProperties.getMetaTable();
+        storeLayout = timelyProperties.getStore().getLayout();
     }
 
     public void start() throws Exception {
@@ -265,6 +297,7 @@ public class DataStore {
     }
 
     public void shutdown() {
+        queryExecutor.shutdownNow();
         executorService.shutdown();
         try {
             executorService.awaitTermination(5, TimeUnit.SECONDS);
@@ -302,6 +335,13 @@ public class DataStore {
             log.error("Apply ageoff for " + metricsTable + " failed");
         }
 
+        // replace the block compaction iterator so that current settings are used, or remove it if disabled
+        if (iteratorOperation(this::applyBlockCompactionIterator, accumuloClient, metricsTable, 5)) {
+            log.info("Apply block compaction for " + metricsTable + " completed");
+        } else {
+            log.error("Apply block compaction for " + metricsTable + " failed");
+        }
+
         // remove iterator and related settings (ageoffs) to ensure current values used
         if (iteratorOperation(this::removeAgeOffIterators, accumuloClient, metaTable, 5)) {
             log.info("Remove ageoff for " + metaTable + " completed");
@@ -318,6 +358,7 @@ public class DataStore {
     }
 
     private static final EnumSet<IteratorScope> AGEOFF_SCOPES = EnumSet.allOf(IteratorScope.class);
+    private static final String BLOCK_COMPACTION_ITERATOR = "gorillablocks";
 
     public interface RetryableIteratorOperation {
 
@@ -362,6 +403,20 @@ public class DataStore {
         accumuloClient.tableOperations().attachIterator(tableName, ageOffIteratorSettings, AGEOFF_SCOPES);
     }
 
+    private void applyBlockCompactionIterator(AccumuloClient accumuloClient, String tableName) throws Exception {
+        Map<String,EnumSet<IteratorScope>> iters = accumuloClient.tableOperations().listIterators(tableName);
+        if (iters.containsKey(BLOCK_COMPACTION_ITERATOR)) {
+            accumuloClient.tableOperations().removeIterator(tableName, BLOCK_COMPACTION_ITERATOR, EnumSet.of(IteratorScope.majc));
+        }
+        StoreProperties storeProperties = timelyProperties.getStore();
+        if (storeProperties.isBlockCompression()) {
+            IteratorSetting setting = new IteratorSetting(110, BLOCK_COMPACTION_ITERATOR, GorillaBlockCompactionIterator.class);
+            setting.addOption(GorillaBlockCompactionIterator.BLOCK_DELAY, Long.toString(TimeUnit.MINUTES.toMillis(storeProperties.getBlockDelayMinutes())));
+            setting.addOption(GorillaBlockCompactionIterator.MAX_POINTS, Integer.toString(storeProperties.getBlockMaxPoints()));
+            accumuloClient.tableOperations().attachIterator(tableName, setting, EnumSet.of(IteratorScope.majc));
+        }
+    }
+
     private void applyMetaAgeOffIterator(AccumuloClient accumuloClient, String tableName) throws Exception {
         IteratorSetting ageOffIteratorSettings = new IteratorSetting(100, "ageoffmeta", MetaAgeOffIterator.class, this.ageOffSettings);
         accumuloClient.tableOperations().attachIterator(tableName, ageOffIteratorSettings, AGEOFF_SCOPES);
@@ -410,6 +465,10 @@ public class DataStore {
             dataStoreCache.store(metric);
         }
 
+        if (queryResultCache.isEnabled()) {
+            queryResultCache.invalidate(metric.getName(), metric.getValue().getTimestamp());
+        }
+
         internalMetrics.incrementMetricsReceived(1);
 
         List<Meta> toCache = metric.getTags().stream().filter(tag -> !tag.getKey().equals(VISIBILITY_TAG))
@@ -427,10 +486,25 @@ public class DataStore {
                     }
                 }
             });
+            long timestamp = metric.getValue().getTimestamp();
+            String seriesId = storeLayout == StoreProperties.Layout.SERIES ? MetricAdapter.getSeriesId(metric) : null;
+            List<Meta> toWrite = toCache;
+            if (metaCache.getMetaCacheProperties().isDedupEnabled()) {
+                toWrite = toCache.stream().filter(m -> metaCache.shouldWrite(m, timestamp)).collect(Collectors.toList());
+                // each skipped entry accounts for its tag and value keys, the metric key is only skipped with all of them
+                int skipped = toCache.size() - toWrite.size();
+                internalMetrics.incrementMetaKeysSkipped(2L * skipped + (toWrite.isEmpty() ? 1 : 0));
+            }
             MetaKeySet mks = new MetaKeySet();
-            toCache.forEach(m -> mks.addAll(m.toKeys()));
-            internalMetrics.incrementMetaKeysInserted(mks.size());
-            muts.addAll(mks.toMutations(metric.getValue().getTimestamp()));
+            toWrite.forEach(m -> mks.addAll(m.toKeys()));
+            boolean writeSeries = seriesId != null && metaCache.shouldWriteSeries(metric.getName(), seriesId, timestamp);
+            if (writeSeries) {
+                toCache.forEach(m -> mks.add(MetaAdapter.createSeriesKey(m.getMetric(), m.getTagKey(), m.getTagValue(), seriesId, timestamp)));
+            }
+            if (!mks.isEmpty()) {
+                internalMetrics.incrementMetaKeysInserted(mks.size());
+                muts.addAll(mks.toMutations(timestamp));
+            }
 
             dataStoreResetLock.readLock().lock();
             try {
@@ -460,7 +534,18 @@ public class DataStore {
                 }
 
                 try {
-                    metaWriter.get().addMutations(muts);
+                    if (!muts.isEmpty()) {
+                        metaWriter.get().addMutations(muts);
+                    }
+                    // only recorded once the writer has accepted the keys, so that they are written again if it has not
+                    if (metaCache.getMetaCacheProperties().isDedupEnabled()) {
+                        metaCache.written(toWrite, timestamp);
+                    } else {
+                        metaCache.addAll(toCache);
+                    }
+                    if (writeSeries) {
+                        metaCache.seriesWritten(metric.getName(), seriesId, timestamp);
+                    }
                 } catch (MutationsRejectedException e) {
                     log.error("Unable to write to meta table", e);
                     try {
@@ -480,10 +565,14 @@ public class DataStore {
                         SpringApplication.exit(applicationContext, () -> 0);
                     }
                 }
-                metaCache.addAll(toCache);
                 try {
-                    metricsWriter.get().addMutation(MetricAdapter.toMutation(metric));
-                    internalMetrics.incrementMetricKeysInserted(metric.getTags().size());
+                    if (seriesId != null) {
+                        metricsWriter.get().addMutation(MetricAdapter.toSeriesMutation(metric, seriesId));
+                        internalMetrics.incrementMetricKeysInserted(1);
+                    } else {
+                        metricsWriter.get().addMutation(MetricAdapter.toMutation(metric));
+                        internalMetrics.incrementMetricKeysInserted(metric.getTags().size());
+                    }
                 } catch (MutationsRejectedException e) {
                     log.error("Unable to write to metrics table", e);
                     try {
@@ -580,6 +669,13 @@ public class DataStore {
     }
 
     public SearchLookupResponse lookup(SearchLookupRequest msg) throws TimelyException {
+        return lookup(msg, new QueryContext());
+    }
+
+    /**
+     * Run a lookup whose scanner is closed if the context is cancelled
+     */
+    public SearchLookupResponse lookup(SearchLookupRequest msg, QueryContext context) throws TimelyException {
         long startMillis = System.currentTimeMillis();
         SearchLookupResponse result = new SearchLookupResponse();
         result.setType("LOOKUP");
@@ -594,6 +690,7 @@ public class DataStore {
         tags.forEach((k, v) -> tagPatterns.put(k, Pattern.compile(v)));
         try {
             try (Scanner scanner = accumuloClient.createScanner(metaTable, Authorizations.EMPTY)) {
+                context.register(scanner);
                 List<Result> resultField = new ArrayList<>();
                 Key start = new Key(Meta.VALUE_PREFIX + msg.getQuery());
                 Key end = start.followingKey(PartialKey.ROW);
@@ -602,6 +699,7 @@ public class DataStore {
                 tags.keySet().forEach(k -> scanner.fetchColumnFamily(new Text(k)));
                 int total = 0;
                 for (Entry<Key,Value> entry : scanner) {
+                    context.checkCancelled();
                     Meta metaEntry = Meta.parse(entry.getKey(), entry.getValue());
                     if (matches(metaEntry.getTagKey(), metaEntry.getTagValue(), tagPatterns)) {
                         if (resultField.size() < msg.getLimit()) {
@@ -615,7 +713,10 @@ public class DataStore {
                 result.setResults(resultField);
                 result.setTotalResults(total);
                 result.setTime((int) (System.currentTimeMillis() - startMillis));
+                context.unregister(scanner);
             }
+        } catch (TimelyException ex) {
+            throw ex;
         } catch (Exception ex) {
             log.error("Error during lookup: " + ex.getMessage(), ex);
             throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during lookup: " + ex.getMessage(), ex.getMessage(), ex);
@@ -634,157 +735,394 @@ public class DataStore {
 
     public List<QueryResponse> query(QueryRequest msg) throws TimelyException {
         List<QueryResponse> result = new ArrayList<>();
+        streamQuery(msg).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Run a query and return its series one at a time. The cache and Accumulo portions of the subqueries are complete when this returns, the response of each
+     * series is created as the iterator reaches it and the aggregations of a subquery are released once all of its series have been returned.
+     */
+    public Iterator<QueryResponse> streamQuery(QueryRequest msg) throws TimelyException {
+        return streamQuery(msg, new QueryContext());
+    }
+
+    /**
+     * Run a query whose Accumulo scans are closed if the context is cancelled, see {@link #streamQuery(QueryRequest)}
+     */
+    public Iterator<QueryResponse> streamQuery(QueryRequest msg, QueryContext context) throws TimelyException {
         log.debug("Query for [{}] [{}]", msg.getUserName(), msg);
         long requestedStartTs = msg.getStart();
         long requestedEndTs = msg.getEnd();
-        StringBuilder metricList = new StringBuilder();
 
         try {
-            long numResults = 0;
             long now = System.currentTimeMillis();
+            List<SubQueryPlan> plans = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
             for (SubQuery query : msg.getQueries()) {
-                Map<Set<Tag>,List<Aggregation>> allSeries = new HashMap<>();
-                String metric = query.getMetric();
-                if (metricList.length() > 0) {
-                    metricList.append(",");
+                SubQueryPlan plan = new SubQueryPlan(query, requestedStartTs);
+                try {
+                    plan.tagPatterns = QueryFilters.getTagPatterns(query);
+                } catch (IllegalArgumentException e) {
+                    throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "Invalid query filter: " + e.getMessage(), e.getMessage(), e);
+                }
+                plans.add(plan);
+                if (queryResultCache.isEnabled()) {
+                    plan.cacheLookup = queryResultCache.lookup(query, getSessionAuthorizations(msg), requestedStartTs,
+                                    DownsampleIterator.getDownsamplePeriod(query));
+                    // only the buckets after the cached ones are computed
+                    plan.start = plan.cacheLookup.getComputeStart();
                 }
-                metricList.append(metric);
-                Map<Set<Tag>,List<Aggregation>> cachedMetrics = new HashMap<>();
-                long oldestTimestampFromCache = Long.MAX_VALUE;
-
                 if (dataStoreCache != null && cacheProperties.isEnabled()) {
-                    long oldestCacheTimestamp = dataStoreCache.getOldestTimestamp(query.getMetric());
-                    if (requestedEndTs >= oldestCacheTimestamp) {
-                        cachedMetrics = dataStoreCache.subquery(msg, query);
-
-                        int z = 0;
-                        for (Collection<Aggregation> c : cachedMetrics.values()) {
-                            z += c.size();
-                        }
-                        long totalRequestedTime = requestedEndTs - requestedStartTs;
-                        long percentServedFromCache;
-                        if (!cachedMetrics.isEmpty() && oldestCacheTimestamp != Long.MAX_VALUE) {
-                            if (requestedStartTs >= oldestCacheTimestamp) {
-                                percentServedFromCache = 100;
-                            } else {
-                                long timeAnsweredFromCache = requestedEndTs - oldestCacheTimestamp;
-                                percentServedFromCache = Math.round((double) timeAnsweredFromCache / (double) totalRequestedTime * 100);
-                            }
-                            if (percentServedFromCache > 100) {
-                                percentServedFromCache = 100;
+                    plan.oldestCacheTimestamp = dataStoreCache.getOldestTimestamp(query.getMetric());
+                    plan.oldestTimestampFromCache = Math.max(plan.oldestCacheTimestamp,
+                                    System.currentTimeMillis() - dataStoreCache.getAgeOffForMetric(query.getMetric()) + 1);
+                    if (requestedEndTs >= plan.oldestCacheTimestamp) {
+                        tasks.add(() -> {
+                            plan.cached = cacheSubQuery(msg, plan);
+                            return null;
+                        });
+                        // a cache restored from a snapshot is missing the values of its coverage gaps, which are scanned from Accumulo instead
+                        long cacheStart = Math.max(plan.oldestTimestampFromCache, getStartOfFirstPeriod(plan));
+                        for (CacheSnapshots.Gap gap : dataStoreCache.getCoverageGaps()) {
+                            long gapStart = Math.max(gap.getStart(), cacheStart);
+                            long gapEnd = Math.min(gap.getEnd(), requestedEndTs);
+                            if (gapStart <= gapEnd) {
+                                tasks.add(() -> {
+                                    Map<Set<Tag>,List<Aggregation>> scanned = scanSubQuery(msg, plan, gapStart, gapEnd, context);
+                                    synchronized (plan.gapsScanned) {
+                                        plan.gapsScanned.add(scanned);
+                                    }
+                                    return null;
+                                });
                             }
-                            log.debug("Cache query for [{}] time:{} duration (min):{} metrics:{} results:{} percentFromCache:{}", msg.getUserName(),
-                                            (System.currentTimeMillis() - now), ((requestedEndTs - requestedStartTs) / (1000 * 60)), metricList, z,
-                                            percentServedFromCache);
-                            allSeries.putAll(cachedMetrics);
                         }
                     }
-                    oldestTimestampFromCache = Math.max(oldestCacheTimestamp,
-                                    System.currentTimeMillis() - dataStoreCache.getAgeOffForMetric(query.getMetric()) + 1);
                 }
+                // the cache does not cover the start of the query, scan Accumulo at the same time as the cache
+                if (plan.start < plan.oldestTimestampFromCache) {
+                    tasks.add(scanTask(msg, plan, context));
+                }
+            }
+            runQueryTasks(tasks);
+
+            // if the cache covers the whole query but had no results, scan Accumulo for the same period
+            tasks.clear();
+            for (SubQueryPlan plan : plans) {
+                if (plan.scanned == null && plan.cached.isEmpty()) {
+                    tasks.add(scanTask(msg, plan, context));
+                }
+            }
+            runQueryTasks(tasks);
+            return new QueryResponseIterator(msg, plans, now);
+        } catch (ClassNotFoundException | IOException | TableNotFoundException ex) {
+            log.error("Error during query: " + ex.getMessage(), ex);
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: " + ex.getMessage(), ex.getMessage(), ex);
+        }
+    }
 
-                if (cachedMetrics.isEmpty() || requestedStartTs < oldestTimestampFromCache) {
-                    // we have already searched from oldestTimestampFromCache to
-                    // requestedEndTs
-                    long endScanTs = (oldestTimestampFromCache == Long.MAX_VALUE) ? requestedEndTs : oldestTimestampFromCache - 1;
+    /**
+     * Creates the response of each series of a query as it is reached, in subquery order
+     */
+    private class QueryResponseIterator implements Iterator<QueryResponse> {
+
+        private final QueryRequest msg;
+        private final Iterator<SubQueryPlan> plans;
+        private final long start;
+        private final long tsDivisor;
+        private SubQuery query = null;
+        private Iterator<Entry<Set<Tag>,List<Aggregation>>> series = Collections.emptyIterator();
+        private long numSeries = 0;
+        private long numResults = 0;
+        private boolean done = false;
+
+        private QueryResponseIterator(QueryRequest msg, List<SubQueryPlan> plans, long start) {
+            this.msg = msg;
+            this.plans = plans.iterator();
+            this.start = start;
+            this.tsDivisor = msg.isMsResolution() ? 1 : 1000;
+        }
 
-                    // Reset the start timestamp for the query to the
-                    // beginning of the downsample period based on the epoch
-                    long downsample = DownsampleIterator.getDownsamplePeriod(query);
-                    log.trace("Downsample period {}", downsample);
-                    long startOfFirstPeriod = requestedStartTs - (requestedStartTs % downsample);
+        @Override
+        public boolean hasNext() {
+            while (!series.hasNext() && plans.hasNext()) {
+                SubQueryPlan plan = plans.next();
+                Map<Set<Tag>,List<Aggregation>> allSeries = new HashMap<>(plan.cached);
+                if (plan.scanned != null) {
+                    plan.gapsScanned.add(plan.scanned);
+                }
+                for (Map<Set<Tag>,List<Aggregation>> scanned : plan.gapsScanned) {
+                    for (Entry<Set<Tag>,List<Aggregation>> e : scanned.entrySet()) {
+                        allSeries.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+                    }
+                }
+                if (plan.cacheLookup != null) {
+                    allSeries = queryResultCache.complete(plan.cacheLookup, msg.getEnd(), allSeries);
+                }
+                log.trace("allSeries: {}", allSeries);
+                plan.cached = Collections.emptyMap();
+                plan.scanned = null;
+                plan.gapsScanned.clear();
+                query = plan.query;
+                series = allSeries.entrySet().iterator();
+            }
+            if (!series.hasNext() && !done) {
+                done = true;
+                String metricList = msg.getQueries().stream().map(SubQuery::getMetric).collect(Collectors.joining(","));
+                log.debug("Query for [{}] time:{} duration:{} metrics:{} results:{}", msg.getUserName(), (System.currentTimeMillis() - start),
+                                ((msg.getEnd() - msg.getStart()) / (1000 * 60)), metricList, numResults);
+                internalMetrics.addQueryResponse(numSeries, (System.currentTimeMillis() - start));
+            }
+            return series.hasNext();
+        }
 
-                    log.debug("startOfFirstPeriod:{} endScanTs:{}", startOfFirstPeriod, endScanTs);
+        @Override
+        public QueryResponse next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<Set<Tag>,List<Aggregation>> entry = series.next();
+            // release the aggregations of the series once it has been converted
+            series.remove();
+            numSeries++;
+            numResults += entry.getValue().size();
+            return convertToQueryResponse(query, entry.getKey(), entry.getValue(), tsDivisor);
+        }
+    }
 
-                    if (endScanTs > startOfFirstPeriod) {
-                        BatchScanner scanner = null;
-                        try {
-                            Collection<Authorizations> authorizations = getSessionAuthorizations(msg);
-                            scanner = ScannerHelper.createBatchScanner(accumuloClient, metricsTable, authorizations, scannerThreads);
-                            List<String> tagOrder = prioritizeTags(query.getMetric(), query.getTags());
-                            Map<String,String> orderedTags = orderTags(tagOrder, query.getTags());
-                            Set<Tag> colFamValues = getColumnFamilies(metric, orderedTags);
-                            List<Range> ranges = getQueryRanges(metric, startOfFirstPeriod, endScanTs, colFamValues);
-                            scanner.setRanges(ranges);
-                            setQueryColumns(scanner, orderedTags, colFamValues);
-
-                            if (query.isRate()) {
-                                log.trace("Adding rate iterator");
-                                IteratorSetting rate = new IteratorSetting(499, RateIterator.class);
-                                // if there is no rate interval set, then use the downsample value
-                                // so that the result is the change per downsample period
-                                RateOption rateOptions = query.getRateOptions();
-                                if (StringUtils.isBlank(rateOptions.getInterval())) {
-                                    rateOptions.setInterval(downsample + "ms");
-                                }
-                                RateIterator.setRateOptions(rate, query.getRateOptions());
-                                scanner.addScanIterator(rate);
-                            }
+    /**
+     * The cache and Accumulo portions of a subquery and their results
+     */
+    static class SubQueryPlan {
+
+        final SubQuery query;
+        // requested tags and filters of the subquery as tag value patterns
+        private Map<String,String> tagPatterns;
+        // start of the portion of the subquery that is not in the query result cache
+        private long start;
+        private QueryResultCache.Lookup cacheLookup = null;
+        private long oldestCacheTimestamp = Long.MAX_VALUE;
+        private long oldestTimestampFromCache = Long.MAX_VALUE;
+        private Map<Set<Tag>,List<Aggregation>> cached = Collections.emptyMap();
+        private Map<Set<Tag>,List<Aggregation>> scanned = null;
+        // results of the scans of the coverage gaps of the cache
+        private final List<Map<Set<Tag>,List<Aggregation>>> gapsScanned = new ArrayList<>();
+
+        private SubQueryPlan(SubQuery query, long start) {
+            this.query = query;
+            this.start = start;
+        }
+    }
 
-                            Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(query);
-                            if (daggClass == null) {
-                                // we should always have a downsample iterator
-                                // in the stack.
-                                throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: programming error",
-                                                "daggClass == null");
-                            } else {
-                                log.trace("Downsample Aggregator type {}", daggClass.getSimpleName());
-                                IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
-                                DownsampleIterator.setDownsampleOptions(is, startOfFirstPeriod, endScanTs, downsample, maxDownsampleMemory,
-                                                daggClass.getName());
-                                scanner.addScanIterator(is);
-                            }
+    private Callable<Void> scanTask(QueryRequest msg, SubQueryPlan plan, QueryContext context) {
+        return () -> {
+            // we have already searched from oldestTimestampFromCache to requestedEndTs
+            long endScanTs = (plan.oldestTimestampFromCache == Long.MAX_VALUE) ? msg.getEnd() : plan.oldestTimestampFromCache - 1;
+            plan.scanned = scanSubQuery(msg, plan, getStartOfFirstPeriod(plan), endScanTs, context);
+            return null;
+        };
+    }
 
-                            Class<? extends Aggregator> aggClass = getAggregator(query);
-                            // the aggregation iterator is optional
-                            if (aggClass != null) {
-                                log.trace("Aggregator type {}", aggClass.getSimpleName());
-                                IteratorSetting is = new IteratorSetting(501, AggregationIterator.class);
-                                AggregationIterator.setAggregationOptions(is, query.getTags(), aggClass.getName());
-                                scanner.addScanIterator(is);
-                            }
+    /**
+     * @return the start of the query reset to the beginning of its downsample period based on the epoch
+     */
+    private static long getStartOfFirstPeriod(SubQueryPlan plan) {
+        long downsample = DownsampleIterator.getDownsamplePeriod(plan.query);
+        return plan.start - (plan.start % downsample);
+    }
 
-                            // tag -> array of results by period starting at start
-                            for (Entry<Key,Value> encoded : scanner) {
-                                // we can decode the value as a Map<Set<Tag>, Aggregation> even if an AggregationIterator
-                                // is not used because Downsample is a subclass of Aggregation
-                                Map<Set<Tag>,Aggregation> samples = AggregationIterator.decodeValue(encoded.getValue());
-                                for (Entry<Set<Tag>,Aggregation> entry : samples.entrySet()) {
-                                    Set<Tag> key = new HashSet<>();
-                                    for (Tag tag : entry.getKey()) {
-                                        if (query.getTags().keySet().contains(tag.getKey())) {
-                                            key.add(tag);
-                                        }
-                                    }
-                                    List<Aggregation> aggregations = allSeries.getOrDefault(key, new ArrayList<>());
-                                    aggregations.add(entry.getValue());
-                                    allSeries.put(key, aggregations);
-                                }
-                            }
-                            log.trace("allSeries: {}", allSeries);
-                        } finally {
-                            if (scanner != null) {
-                                scanner.close();
+    /**
+     * Run the tasks of a query on the query executor, at most queryParallelism at a time, and wait for all of them to complete
+     */
+    private void runQueryTasks(List<Callable<Void>> tasks) throws TimelyException, ClassNotFoundException, IOException, TableNotFoundException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (queryParallelism <= 1 || tasks.size() == 1) {
+            for (Callable<Void> task : tasks) {
+                callQueryTask(task);
+            }
+            return;
+        }
+        Semaphore running = new Semaphore(queryParallelism);
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<Void> task : tasks) {
+                running.acquire();
+                futures.add(queryExecutor.submit(() -> {
+                    try {
+                        return task.call();
+                    } finally {
+                        running.release();
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Query interrupted", e.getMessage(), e);
+        } catch (ExecutionException e) {
+            rethrowQueryException(e.getCause());
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+    private void callQueryTask(Callable<Void> task) throws TimelyException, ClassNotFoundException, IOException, TableNotFoundException {
+        try {
+            task.call();
+        } catch (Exception e) {
+            rethrowQueryException(e);
+        }
+    }
+
+    private void rethrowQueryException(Throwable t) throws TimelyException, ClassNotFoundException, IOException, TableNotFoundException {
+        if (t instanceof TimelyException) {
+            throw (TimelyException) t;
+        } else if (t instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) t;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof TableNotFoundException) {
+            throw (TableNotFoundException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: " + t.getMessage(), t.getMessage(), t);
+    }
+
+    Map<Set<Tag>,List<Aggregation>> cacheSubQuery(QueryRequest msg, SubQueryPlan plan) throws TimelyException {
+        long now = System.currentTimeMillis();
+        long requestedStartTs = msg.getStart();
+        long requestedEndTs = msg.getEnd();
+        Map<Set<Tag>,List<Aggregation>> cachedMetrics = dataStoreCache.subquery(msg, plan.query);
+
+        int z = 0;
+        for (Collection<Aggregation> c : cachedMetrics.values()) {
+            z += c.size();
+        }
+        long totalRequestedTime = requestedEndTs - requestedStartTs;
+        long percentServedFromCache;
+        if (!cachedMetrics.isEmpty()) {
+            if (requestedStartTs >= plan.oldestCacheTimestamp) {
+                percentServedFromCache = 100;
+            } else {
+                long timeAnsweredFromCache = requestedEndTs - plan.oldestCacheTimestamp;
+                percentServedFromCache = Math.round((double) timeAnsweredFromCache / (double) totalRequestedTime * 100);
+            }
+            if (percentServedFromCache > 100) {
+                percentServedFromCache = 100;
+            }
+            log.debug("Cache query for [{}] time:{} duration (min):{} metric:{} results:{} percentFromCache:{}", msg.getUserName(),
+                            (System.currentTimeMillis() - now), ((requestedEndTs - requestedStartTs) / (1000 * 60)), plan.query.getMetric(), z,
+                            percentServedFromCache);
+        }
+        return cachedMetrics;
+    }
+
+    /**
+     * Scan Accumulo for the points of a subquery from startScanTs to endScanTs, inclusive, into the downsample periods that they fall in
+     */
+    Map<Set<Tag>,List<Aggregation>> scanSubQuery(QueryRequest msg, SubQueryPlan plan, long startScanTs, long endScanTs, QueryContext context)
+                    throws TimelyException, ClassNotFoundException, IOException, TableNotFoundException {
+        Map<Set<Tag>,List<Aggregation>> allSeries = new HashMap<>();
+        SubQuery query = plan.query;
+        String metric = query.getMetric();
+
+        // Reset the start timestamp for the downsample periods to the
+        // beginning of the downsample period based on the epoch
+        long downsample = DownsampleIterator.getDownsamplePeriod(query);
+        log.trace("Downsample period {}", downsample);
+        long startOfFirstPeriod = startScanTs - (startScanTs % downsample);
+
+        log.debug("startOfFirstPeriod:{} startScanTs:{} endScanTs:{}", startOfFirstPeriod, startScanTs, endScanTs);
+
+        if (endScanTs >= startScanTs) {
+            BatchScanner scanner = null;
+            try {
+                Collection<Authorizations> authorizations = getSessionAuthorizations(msg);
+                scanner = ScannerHelper.createBatchScanner(accumuloClient, metricsTable, authorizations, scannerThreads);
+                context.register(scanner);
+                // filters are applied with the requested tags by the column families and the TagFilter
+                List<String> tagOrder = prioritizeTags(query.getMetric(), plan.tagPatterns);
+                Map<String,String> orderedTags = orderTags(tagOrder, plan.tagPatterns);
+                Set<String> colFamValues = getQueryColumnFamilies(metric, orderedTags);
+                long planStart = System.nanoTime();
+                QueryRanges ranges = QueryRangePlanner.plan(metric, startScanTs, endScanTs, colFamValues, maxScanRanges);
+                log.debug("Planned {} ranges for metric:{} columnFamilies:{} timestampFiltered:{} in {}us", ranges.getRanges().size(), metric,
+                                colFamValues.size(), ranges.isTimestampFiltered(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - planStart));
+                scanner.setRanges(ranges.getRanges());
+                setQueryColumns(scanner, orderedTags, colFamValues);
+                addBlockIterator(scanner);
+                if (ranges.isTimestampFiltered()) {
+                    IteratorSetting timestampFilter = new IteratorSetting(250, "timestamp filter", TimestampFilter.class);
+                    TimestampFilter.setRange(timestampFilter, startScanTs, true, endScanTs, true);
+                    scanner.addScanIterator(timestampFilter);
+                }
+
+                if (query.isRate()) {
+                    log.trace("Adding rate iterator");
+                    IteratorSetting rate = new IteratorSetting(499, RateIterator.class);
+                    // if there is no rate interval set, then use the downsample value
+                    // so that the result is the change per downsample period
+                    RateOption rateOptions = query.getRateOptions();
+                    if (StringUtils.isBlank(rateOptions.getInterval())) {
+                        rateOptions.setInterval(downsample + "ms");
+                    }
+                    RateIterator.setRateOptions(rate, query.getRateOptions());
+                    scanner.addScanIterator(rate);
+                }
+
+                Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(query);
+                if (daggClass == null) {
+                    // we should always have a downsample iterator
+                    // in the stack.
+                    throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: programming error", "daggClass == null");
+                } else {
+                    log.trace("Downsample Aggregator type {}", daggClass.getSimpleName());
+                    IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
+                    DownsampleIterator.setDownsampleOptions(is, startOfFirstPeriod, endScanTs, downsample, maxDownsampleMemory, daggClass.getName());
+                    scanner.addScanIterator(is);
+                }
+
+                Class<? extends Aggregator> aggClass = getAggregator(query);
+                // the aggregation iterator is optional
+                if (aggClass != null) {
+                    log.trace("Aggregator type {}", aggClass.getSimpleName());
+                    IteratorSetting is = new IteratorSetting(501, AggregationIterator.class);
+                    AggregationIterator.setAggregationOptions(is, query.getTags(), QueryFilters.getGroupByTags(query), aggClass.getName());
+                    scanner.addScanIterator(is);
+                }
+
+                // tag -> array of results by period starting at start
+                Set<String> resultTags = QueryFilters.getResultTags(query);
+                for (Entry<Key,Value> encoded : scanner) {
+                    context.checkCancelled();
+                    // we can decode the value as a Map<Set<Tag>, Aggregation> even if an AggregationIterator
+                    // is not used because Downsample is a subclass of Aggregation
+                    Map<Set<Tag>,Aggregation> samples = AggregationIterator.decodeValue(encoded.getValue());
+                    for (Entry<Set<Tag>,Aggregation> entry : samples.entrySet()) {
+                        Set<Tag> key = new HashSet<>();
+                        for (Tag tag : entry.getKey()) {
+                            if (resultTags.contains(tag.getKey())) {
+                                key.add(tag);
                             }
                         }
+                        List<Aggregation> aggregations = allSeries.getOrDefault(key, new ArrayList<>());
+                        aggregations.add(entry.getValue());
+                        allSeries.put(key, aggregations);
                     }
                 }
-
-                // TODO groupby here?
-                long tsDivisor = msg.isMsResolution() ? 1 : 1000;
-                for (Entry<Set<Tag>,List<Aggregation>> entry : allSeries.entrySet()) {
-                    numResults += entry.getValue().size();
-                    result.add(convertToQueryResponse(query, entry.getKey(), entry.getValue(), tsDivisor));
+            } finally {
+                if (scanner != null) {
+                    context.unregister(scanner);
+                    scanner.close();
                 }
             }
-            log.debug("Query for [{}] time:{} duration:{} metrics:{} results:{}", msg.getUserName(), (System.currentTimeMillis() - now),
-                            ((requestedEndTs - requestedStartTs) / (1000 * 60)), metricList, numResults);
-            internalMetrics.addQueryResponse(result.size(), (System.currentTimeMillis() - now));
-            return result;
-        } catch (ClassNotFoundException | IOException | TableNotFoundException ex) {
-            log.error("Error during query: " + ex.getMessage(), ex);
-            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: " + ex.getMessage(), ex.getMessage(), ex);
         }
+        return allSeries;
     }
 
     private Map<String,String> orderTags(List<String> tagOrder, Map<String,String> tags) {
@@ -861,6 +1199,51 @@ public class DataStore {
         return !REGEX_TEST.matcher(value).matches();
     }
 
+    /**
+     * Find the metrics table column families to fetch for a query, the tags matching the first requested tag for the tag layout or the ids of the series
+     * matching it for the series layout.
+     *
+     * @param metric
+     *            metric name
+     * @param requestedTags
+     *            requested tags ordered by priority
+     */
+    public Set<String> getQueryColumnFamilies(String metric, Map<String,String> requestedTags) throws TableNotFoundException {
+        if (storeLayout == StoreProperties.Layout.SERIES) {
+            return getSeriesIds(metric, requestedTags);
+        }
+        return getColumnFamilies(metric, requestedTags).stream().map(Tag::join).collect(Collectors.toSet());
+    }
+
+    public Set<String> getSeriesIds(String metric, Map<String,String> requestedTags) throws TableNotFoundException {
+        Map<String,String> tags = (requestedTags == null) ? new LinkedHashMap<>() : requestedTags;
+        Set<String> result = new HashSet<>();
+        try (Scanner meta = accumuloClient.createScanner(metaTable, Authorizations.EMPTY)) {
+            meta.setRange(Range.exact(Meta.SERIES_PREFIX + metric));
+            // postings for the first tag select the series, the remaining tags are checked by the TagFilter
+            Matcher matcher = null;
+            String value = null;
+            if (!tags.isEmpty()) {
+                Entry<String,String> first = tags.entrySet().iterator().next();
+                meta.fetchColumnFamily(new Text(first.getKey()));
+                if (isTagValueRegex(first.getValue())) {
+                    matcher = Pattern.compile(first.getValue()).matcher("");
+                } else {
+                    value = first.getValue();
+                }
+            }
+            for (Entry<Key,Value> entry : meta) {
+                Pair<String,String> posting = MetaAdapter.decodeSeriesKey(entry.getKey());
+                if ((matcher == null && value == null) || (matcher != null && matcher.reset(posting.getFirst()).matches())
+                                || posting.getFirst().equals(value)) {
+                    result.add(posting.getSecond());
+                }
+            }
+        }
+        log.trace("Found {} series for metric {} and tags {}", result.size(), metric, tags);
+        return result;
+    }
+
     public Set<Tag> getColumnFamilies(String metric, Map<String,String> requestedTags) throws TableNotFoundException {
 
         Scanner meta = null;
@@ -933,20 +1316,21 @@ public class DataStore {
         }
     }
 
-    private void setQueryColumns(ScannerBase scanner, Map<String,String> tags, Set<Tag> colFamValues) throws TimelyException {
+    private void setQueryColumns(ScannerBase scanner, Map<String,String> tags, Set<String> colFamValues) throws TimelyException {
 
         if (colFamValues.size() == 0) {
             throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "No matching tags",
                             "No tags were found " + " that matched the submitted tags. Please fix and retry");
         }
-        log.trace("Found matching tags: {}", colFamValues);
-        for (Tag tag : colFamValues) {
-            Text colf = new Text(tag.getKey() + "=" + tag.getValue());
+        log.trace("Found matching column families: {}", colFamValues);
+        for (String cf : colFamValues) {
+            Text colf = new Text(cf);
             scanner.fetchColumnFamily(colf);
             log.trace("Fetching metric table column family: {}", colf);
         }
-        // remove the first tag
-        Map<String,String> otherTags = tags.entrySet().stream().skip(1).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        // remove the first tag, the series layout checks every tag since a series id is a fingerprint of the tags and may collide
+        long skip = storeLayout == StoreProperties.Layout.SERIES ? 0 : 1;
+        Map<String,String> otherTags = tags.entrySet().stream().skip(skip).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
         if (!otherTags.isEmpty()) {
             int tagFilterCacheSize = timelyProperties.getTagFilterCacheSize();
             log.debug("Adding TagFilter with tags {} and tagFilterCacheSize {}", otherTags, tagFilterCacheSize);
@@ -954,6 +1338,11 @@ public class DataStore {
         }
     }
 
+    private void addBlockIterator(ScannerBase scanner) {
+        // always added, blocks written while block compression was enabled remain after it is disabled
+        scanner.addScanIterator(new IteratorSetting(200, "gorilla blocks", GorillaBlockIterator.class));
+    }
+
     private void addTagFilter(ScannerBase scanner, Map<String,String> tags, int cacheSize) {
         // skip the first tag, join the rest on = then on ,
         String tagListString = TagFilter.serializeTags(tags);
@@ -994,48 +1383,11 @@ public class DataStore {
         return result;
     }
 
-    public List<Range> getQueryRanges(String metric, long start, long end, Set<Tag> colFamValues) {
-        List<Range> ranges = new ArrayList<>();
-        long beginRangeRounded = MetricAdapter.roundTimestampToLastHour(start);
-        if (colFamValues.isEmpty()) {
-            final byte[] start_row = MetricAdapter.encodeRowKey(metric, beginRangeRounded);
-            Key startKey = new Key(new Text(start_row));
-            log.trace("Start key for metric {} and time {} is {}", metric, beginRangeRounded, startKey.toStringNoTime());
-            final byte[] end_row = MetricAdapter.encodeRowKey(metric, beginRangeRounded);
-            Key endKey = new Key(new Text(end_row));
-            log.trace("End key for metric {} and time {} is {}", metric, MetricAdapter.roundTimestampToNextHour(end), endKey.toStringNoTime());
-            Range range = new Range(startKey, true, endKey, false);
-            log.trace("Set query range to {}", range);
-            ranges.add(range);
-        } else {
-            try {
-                long lastBeginRangeRounded = MetricAdapter.roundTimestampToLastHour(end);
-                while (beginRangeRounded <= lastBeginRangeRounded) {
-                    // use end timestamp of begin + 1 hour and one msec
-                    // except the last range where we use end + 1 msec
-                    long endRangeTimestamp = (beginRangeRounded == lastBeginRangeRounded) ? end + 1 : beginRangeRounded + (1000 * 60 * 60) + 1;
-                    long beginRangeTimestamp = (beginRangeRounded == MetricAdapter.roundTimestampToLastHour(start)) ? start : beginRangeRounded;
-                    for (Tag t : colFamValues) {
-                        final byte[] start_row = MetricAdapter.encodeRowKey(metric, beginRangeRounded);
-                        Key startKey = new Key(new Text(start_row), new Text(t.join().getBytes(StandardCharsets.UTF_8)),
-                                        new Text(MetricAdapter.encodeColQual(beginRangeTimestamp, "")), new Text(new byte[0]), beginRangeTimestamp);
-                        log.trace("Start key for metric {} and time {} is {}", metric, beginRangeTimestamp, startKey.toStringNoTime());
-                        final byte[] end_row = MetricAdapter.encodeRowKey(metric, beginRangeRounded);
-                        Key endKey = new Key(new Text(end_row), new Text(t.join().getBytes(StandardCharsets.UTF_8)),
-                                        new Text(MetricAdapter.encodeColQual(endRangeTimestamp, "")), new Text(new byte[0]), endRangeTimestamp);
-                        log.trace("End key for metric {} and time {} is {}", metric, beginRangeTimestamp, endKey.toStringNoTime());
-                        Range range = new Range(startKey, true, endKey, false);
-                        log.trace("Set query range to {}", range);
-                        ranges.add(range);
-                    }
-                    beginRangeRounded += (1000 * 60 * 60); // add an hour
-                }
-            } catch (Exception e) {
-                log.error("Error creating query ranges", e);
-            }
-        }
-
-        return ranges;
+    /**
+     * @return the ranges of a scan from start to end, inclusive, that fetches the column families, see {@link QueryRangePlanner}
+     */
+    public List<Range> getQueryRanges(String metric, long start, long end, Set<String> colFamValues) {
+        return QueryRangePlanner.plan(metric, start, end, colFamValues, Integer.MAX_VALUE).getRanges();
     }
 
     private Class<? extends Aggregator> getAggregator(SubQuery query) {
@@ -1069,8 +1421,9 @@ public class DataStore {
             }
             List<String> tagOrder = prioritizeTags(metric, tags);
             Map<String,String> orderedTags = orderTags(tagOrder, tags);
-            Set<Tag> colFamValues = getColumnFamilies(metric, orderedTags);
+            Set<String> colFamValues = getQueryColumnFamilies(metric, orderedTags);
             setQueryColumns(s, orderedTags, colFamValues);
+            addBlockIterator(s);
             s.setBatchSize(scannerBatchSize);
             s.setReadaheadThreshold(scannerReadAhead);
             return s;
@@ -0,0 +1,105 @@
+package timely.server.store;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import org.apache.accumulo.core.data.Value;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
+import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+import fi.iki.yak.ts.compression.gorilla.Pair;
+
+/**
+ * The Gorilla compressed points of one series within a closed hour, stored as a single metrics table value by {@link GorillaBlockCompactionIterator}. The value
+ * is a version byte, the number of points and the compressor output. A point value is always {@link Double#BYTES} long and a block value is always longer, so
+ * the two can be told apart by length.
+ */
+public class GorillaBlock {
+
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 1 + Integer.BYTES;
+
+    private final GorillaDecompressor decompressor;
+    private final int size;
+    private int read = 0;
+    private long timestamp;
+    private double value;
+
+    public GorillaBlock(byte[] block) {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown block version " + version);
+        }
+        size = buffer.getInt();
+        LongBuffer longs = buffer.asLongBuffer();
+        long[] compressed = new long[longs.remaining()];
+        longs.get(compressed);
+        decompressor = new GorillaDecompressor(new LongArrayInput(compressed));
+    }
+
+    public static boolean isBlock(Value value) {
+        return value.getSize() > HEADER_LENGTH && value.getSize() != Double.BYTES;
+    }
+
+    /**
+     * Compress points into a block value.
+     *
+     * @param blockTimestamp
+     *            timestamp of the block header, must not be after the first point
+     * @param timestamps
+     *            point timestamps in ascending order
+     * @param values
+     *            point values
+     * @param length
+     *            number of points to use from the arrays
+     */
+    public static byte[] encode(long blockTimestamp, long[] timestamps, double[] values, int length) {
+        LongArrayOutput output = new LongArrayOutput(Math.max(16, length / 4));
+        GorillaCompressor compressor = new GorillaCompressor(blockTimestamp, output);
+        for (int i = 0; i < length; i++) {
+            compressor.addValue(timestamps[i], values[i]);
+        }
+        compressor.close();
+        long[] compressed = output.getLongArray();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + compressed.length * Long.BYTES);
+        buffer.put(VERSION);
+        buffer.putInt(length);
+        buffer.asLongBuffer().put(compressed);
+        return buffer.array();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Advance to the next point of the block
+     *
+     * @return false if there are no more points
+     */
+    public boolean next() {
+        if (read >= size) {
+            return false;
+        }
+        Pair pair = decompressor.readPair();
+        if (pair == null) {
+            read = size;
+            return false;
+        }
+        read++;
+        timestamp = pair.getTimestamp();
+        value = pair.getDoubleValue();
+        return true;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,275 @@
+package timely.server.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.iterators.OptionDescriber;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.accumulo.MetricAdapter;
+
+/**
+ * Major compaction iterator that packs the points of each series within a closed hour row of the metrics table into one {@link GorillaBlock}. The key of a
+ * block has the row, column family and visibility of its points, a column qualifier of the hour start minus one millisecond followed by the tags, so that it
+ * never collides with a point and sorts before all of them, and the timestamp of the newest point so that it is aged off with the series.
+ *
+ * Blocks are only written during full major compactions, when every file of the tablet is read and any earlier block of a series is merged with the points
+ * written after it. A row and column family with more than the maximum number of points is passed through unchanged.
+ */
+public class GorillaBlockCompactionIterator implements SortedKeyValueIterator<Key,Value>, OptionDescriber {
+
+    private static final Logger log = LoggerFactory.getLogger(GorillaBlockCompactionIterator.class);
+    public static final String BLOCK_DELAY = "block.delay";
+    public static final String MAX_POINTS = "block.maxPoints";
+    private static final long ONE_HOUR = 3600000;
+    private static final long DEFAULT_BLOCK_DELAY = ONE_HOUR;
+    private static final int DEFAULT_MAX_POINTS = 1000000;
+
+    private SortedKeyValueIterator<Key,Value> source;
+    private boolean pack = false;
+    private long blockDelay = DEFAULT_BLOCK_DELAY;
+    private int maxPoints = DEFAULT_MAX_POINTS;
+    private long currentTime;
+    private Range range;
+    private Collection<ByteSequence> columnFamilies;
+    private boolean inclusive;
+
+    private final ArrayDeque<Map.Entry<Key,Value>> packed = new ArrayDeque<>();
+    private Key passThrough = null;
+    private final Text lastRow = new Text();
+    private boolean lastRowClosed = false;
+
+    @Override
+    public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+        this.source = source;
+        if (options.containsKey(BLOCK_DELAY)) {
+            blockDelay = Long.parseLong(options.get(BLOCK_DELAY));
+        }
+        if (options.containsKey(MAX_POINTS)) {
+            maxPoints = Integer.parseInt(options.get(MAX_POINTS));
+        }
+        pack = env.getIteratorScope() == IteratorScope.majc && env.isFullMajorCompaction();
+        currentTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean hasTop() {
+        return !packed.isEmpty() || source.hasTop();
+    }
+
+    @Override
+    public Key getTopKey() {
+        return packed.isEmpty() ? source.getTopKey() : packed.peek().getKey();
+    }
+
+    @Override
+    public Value getTopValue() {
+        return packed.isEmpty() ? source.getTopValue() : packed.peek().getValue();
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (!packed.isEmpty()) {
+            packed.poll();
+        } else {
+            source.next();
+        }
+        findTop();
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        this.range = range;
+        this.columnFamilies = columnFamilies;
+        this.inclusive = inclusive;
+        packed.clear();
+        passThrough = null;
+        source.seek(range, columnFamilies, inclusive);
+        findTop();
+    }
+
+    private void findTop() throws IOException {
+        if (!pack || !packed.isEmpty() || !source.hasTop()) {
+            return;
+        }
+        Key top = source.getTopKey();
+        if (passThrough != null && passThrough.equals(top, PartialKey.ROW_COLFAM)) {
+            return;
+        }
+        passThrough = null;
+        if (isClosedHour(top.getRow())) {
+            packColumnFamily();
+        }
+    }
+
+    private boolean isClosedHour(Text row) {
+        if (!row.equals(lastRow)) {
+            lastRow.set(row);
+            long hour = MetricAdapter.decodeRowKey(new Key(row)).getSecond();
+            lastRowClosed = hour + ONE_HOUR + blockDelay <= currentTime;
+        }
+        return lastRowClosed;
+    }
+
+    /**
+     * Read the points of the row and column family at the top of the source and replace them with one block per series
+     */
+    private void packColumnFamily() throws IOException {
+        Key first = new Key(source.getTopKey());
+        Map<String,Points> series = new HashMap<>();
+        int numPoints = 0;
+        while (source.hasTop() && source.getTopKey().equals(first, PartialKey.ROW_COLFAM)) {
+            Key k = source.getTopKey();
+            Value v = source.getTopValue();
+            if (k.isDeleted() || numPoints > maxPoints) {
+                passThrough(first);
+                return;
+            }
+            String tags = MetricAdapter.decodeColQual(k.getColumnQualifierData().toArray()).getSecond();
+            byte[] visibility = k.getColumnVisibilityData().toArray();
+            Points points = series.computeIfAbsent(tags + '\0' + new String(visibility, UTF_8), s -> new Points(tags, visibility));
+            if (GorillaBlock.isBlock(v)) {
+                GorillaBlock block = new GorillaBlock(v.get());
+                while (block.next()) {
+                    points.add(block.getTimestamp(), block.getValue());
+                }
+                numPoints += block.size();
+            } else {
+                points.add(k.getTimestamp(), MetricAdapter.decodeValue(v.get()));
+                numPoints++;
+            }
+            source.next();
+        }
+        byte[] row = first.getRowData().toArray();
+        long blockTimestamp = MetricAdapter.decodeRowKey(first).getSecond() - 1;
+        TreeMap<Key,Value> blocks = new TreeMap<>();
+        byte[] cf = first.getColumnFamilyData().toArray();
+        for (Points points : series.values()) {
+            points.sort();
+            byte[] cq = MetricAdapter.encodeColQual(blockTimestamp, points.tags);
+            Key blockKey = new Key(row, cf, cq, points.visibility, points.timestamps[points.size - 1]);
+            blocks.put(blockKey, new Value(GorillaBlock.encode(blockTimestamp, points.timestamps, points.values, points.size)));
+        }
+        packed.addAll(blocks.entrySet());
+        log.trace("Packed {} points of {} series into blocks", numPoints, blocks.size());
+    }
+
+    /**
+     * Seek back to the start of the row and column family and return its entries unchanged
+     */
+    private void passThrough(Key rowColumnFamily) throws IOException {
+        log.debug("Not packing row and column family starting at {}", rowColumnFamily);
+        passThrough = rowColumnFamily;
+        Key start = new Key(rowColumnFamily.getRow(), rowColumnFamily.getColumnFamily());
+        if (range.beforeStartKey(start)) {
+            start = range.getStartKey();
+        }
+        source.seek(new Range(start, true, range.getEndKey(), range.isEndKeyInclusive()), columnFamilies, inclusive);
+    }
+
+    private static class Points {
+
+        private final String tags;
+        private final byte[] visibility;
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size = 0;
+        private boolean sorted = true;
+
+        private Points(String tags, byte[] visibility) {
+            this.tags = tags;
+            this.visibility = visibility;
+        }
+
+        private void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size > 0 && timestamp <= timestamps[size - 1]) {
+                sorted = false;
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Sort the points by timestamp, keeping the last point added for a timestamp since a point written after a block replaces the point in the block
+         */
+        private void sort() {
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            // stable, so points with the same timestamp stay in the order they were added
+            Arrays.sort(order, (i1, i2) -> Long.compare(timestamps[i1], timestamps[i2]));
+            long[] sortedTimestamps = new long[size];
+            double[] sortedValues = new double[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int index = order[i];
+                if (n > 0 && sortedTimestamps[n - 1] == timestamps[index]) {
+                    n--;
+                }
+                sortedTimestamps[n] = timestamps[index];
+                sortedValues[n] = values[index];
+                n++;
+            }
+            timestamps = sortedTimestamps;
+            values = sortedValues;
+            size = n;
+            sorted = true;
+        }
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+        GorillaBlockCompactionIterator copy = new GorillaBlockCompactionIterator();
+        copy.source = source.deepCopy(env);
+        copy.pack = pack;
+        copy.blockDelay = blockDelay;
+        copy.maxPoints = maxPoints;
+        copy.currentTime = currentTime;
+        return copy;
+    }
+
+    @Override
+    public IteratorOptions describeOptions() {
+        Map<String,String> options = new HashMap<>();
+        options.put(BLOCK_DELAY, "milliseconds after the end of an hour before its points are packed, default " + DEFAULT_BLOCK_DELAY);
+        options.put(MAX_POINTS, "rows and column families with more points are not packed, default " + DEFAULT_MAX_POINTS);
+        return new IteratorOptions("gorilla-blocks", "Packs the points of each series in a closed hour into a Gorilla compressed block", options, null);
+    }
+
+    @Override
+    public boolean validateOptions(Map<String,String> options) {
+        if (options.containsKey(BLOCK_DELAY)) {
+            Long.parseLong(options.get(BLOCK_DELAY));
+        }
+        if (options.containsKey(MAX_POINTS)) {
+            Integer.parseInt(options.get(MAX_POINTS));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package timely.server.store;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import timely.accumulo.MetricAdapter;
+
+/**
+ * Scan time iterator that expands the {@link GorillaBlock} values written by {@link GorillaBlockCompactionIterator} into one key and value per point, in the
+ * same form as an uncompacted point, so that the iterators above it and the clients of the metrics table do not need to know about blocks. Other entries are
+ * passed through unchanged.
+ *
+ * A block sorts before the points of its hour, so a seek that starts within a column family is moved back to the start of the column family and points before
+ * the requested range are dropped. The points of a block overlap those of the other blocks and the uncompacted points of its column family, so the blocks that
+ * have been read are merged with the entries of the source by key. An entry of the source with the same key as a point of a block is newer and is returned in
+ * its place.
+ */
+public class GorillaBlockIterator implements SortedKeyValueIterator<Key,Value> {
+
+    private SortedKeyValueIterator<Key,Value> source;
+    private Range range;
+    // blocks with points left to return, by the key of their next point and then in the order they were read
+    private final PriorityQueue<BlockPoints> blocks = new PriorityQueue<>(Comparator.comparing((BlockPoints b) -> b.topKey).thenComparingLong(b -> b.sequence));
+    private long numBlocks = 0;
+    private Key topKey = null;
+    private Value topValue = null;
+    private boolean topFromSource = false;
+
+    @Override
+    public void init(SortedKeyValueIterator<Key,Value> source, Map<String,String> options, IteratorEnvironment env) throws IOException {
+        this.source = source;
+    }
+
+    @Override
+    public boolean hasTop() {
+        return topKey != null;
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (topFromSource) {
+            source.next();
+        } else if (topKey != null) {
+            BlockPoints top = blocks.poll();
+            if (top.next()) {
+                blocks.add(top);
+            }
+        }
+        findTop();
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        this.range = range;
+        this.blocks.clear();
+        Range seekRange = range;
+        Key start = range.getStartKey();
+        if (start != null && start.getColumnFamilyData().length() > 0) {
+            seekRange = new Range(new Key(start.getRow(), start.getColumnFamily()), true, range.getEndKey(), range.isEndKeyInclusive());
+        }
+        source.seek(seekRange, columnFamilies, inclusive);
+        findTop();
+    }
+
+    private void findTop() throws IOException {
+        topKey = null;
+        topValue = null;
+        topFromSource = false;
+        while (source.hasTop()) {
+            Key k = source.getTopKey();
+            BlockPoints first = blocks.peek();
+            if (first != null && k.compareTo(first.topKey) > 0) {
+                // a block sorts before its points, so no block that is still to be read has a point before this one
+                break;
+            }
+            Value v = source.getTopValue();
+            if (GorillaBlock.isBlock(v)) {
+                BlockPoints b = new BlockPoints(k, v, numBlocks++);
+                source.next();
+                if (b.next()) {
+                    blocks.add(b);
+                }
+                continue;
+            }
+            if (range.beforeStartKey(k)) {
+                // read because the seek was moved back to the start of the column family
+                source.next();
+                continue;
+            }
+            // a point written after its hour was packed replaces the point of the block with the same key
+            while (first != null && k.compareTo(first.topKey) == 0) {
+                blocks.poll();
+                if (first.next()) {
+                    blocks.add(first);
+                }
+                first = blocks.peek();
+            }
+            topKey = k;
+            topValue = v;
+            topFromSource = true;
+            return;
+        }
+        BlockPoints first = blocks.peek();
+        if (first != null) {
+            topKey = first.topKey;
+            topValue = first.topValue;
+        }
+    }
+
+    @Override
+    public Key getTopKey() {
+        return topKey;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return topValue;
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env) {
+        GorillaBlockIterator copy = new GorillaBlockIterator();
+        copy.source = source.deepCopy(env);
+        return copy;
+    }
+
+    /**
+     * The points of a block within the range, as keys and values
+     */
+    private class BlockPoints {
+
+        private final GorillaBlock block;
+        private final byte[] row;
+        private final byte[] columnFamily;
+        private final byte[] columnVisibility;
+        private final String tags;
+        private final long sequence;
+        private Key topKey;
+        private Value topValue;
+
+        private BlockPoints(Key k, Value v, long sequence) {
+            this.block = new GorillaBlock(v.get());
+            this.row = k.getRowData().toArray();
+            this.columnFamily = k.getColumnFamilyData().toArray();
+            this.columnVisibility = k.getColumnVisibilityData().toArray();
+            this.tags = MetricAdapter.decodeColQual(k.getColumnQualifierData().toArray()).getSecond();
+            this.sequence = sequence;
+        }
+
+        /**
+         * Move to the next point of the block within the range
+         *
+         * @return false if the block has no more points within the range
+         */
+        private boolean next() {
+            while (block.next()) {
+                long timestamp = block.getTimestamp();
+                Key k = new Key(row, columnFamily, MetricAdapter.encodeColQual(timestamp, tags), columnVisibility, timestamp);
+                if (range.beforeStartKey(k)) {
+                    continue;
+                }
+                if (range.afterEndKey(k)) {
+                    // the remaining points of the block are later still
+                    return false;
+                }
+                topKey = k;
+                topValue = new Value(MetricAdapter.encodeValue(block.getValue()));
+                return true;
+            }
+            return false;
+        }
+    }
+}
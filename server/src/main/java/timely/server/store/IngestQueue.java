@@ -0,0 +1,206 @@
+package timely.server.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.channel.Channel;
+import timely.common.configuration.IngestProperties;
+import timely.model.Metric;
+
+/**
+ * Ingest stage between the put handlers and the {@link DataStore}. Handlers add metrics to a bounded queue from the Netty event loop and a pool of writer
+ * threads, each of which owns its own BatchWriters in the DataStore, removes them and stores them. When the queue reaches the high watermark the channel that
+ * added the metric stops reading until the writers have drained the queue below the low watermark. A batch of metrics is accepted or rejected as a whole, the
+ * free slots of the queue are reserved for the batch before any metric of it is added.
+ *
+ * If ingest is not enabled, metrics are stored directly on the calling thread.
+ */
+public class IngestQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestQueue.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final DataStore dataStore;
+    private final IngestProperties ingestProperties;
+    private final InternalMetrics internalMetrics;
+    private final BlockingQueue<Metric> queue;
+    // free slots of the queue, acquired before metrics are added and released when the writers remove them
+    private final Semaphore capacity;
+    private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+    private final AtomicLong pausedSince = new AtomicLong(0);
+    private ExecutorService writers;
+    private volatile boolean running = false;
+
+    public IngestQueue(DataStore dataStore, IngestProperties ingestProperties, InternalMetrics internalMetrics) {
+        this.dataStore = dataStore;
+        this.ingestProperties = ingestProperties;
+        this.internalMetrics = internalMetrics;
+        this.queue = ingestProperties.isEnabled() ? new ArrayBlockingQueue<>(ingestProperties.getQueueSize()) : null;
+        this.capacity = new Semaphore(ingestProperties.getQueueSize());
+    }
+
+    public void start() {
+        if (!ingestProperties.isEnabled()) {
+            log.info("Ingest queue disabled, metrics will be stored on the Netty event loop");
+            return;
+        }
+        int numWriters = Math.max(1, ingestProperties.getWriterThreads());
+        log.info("Starting ingest queue with size:{} highWatermark:{} lowWatermark:{} writerThreads:{}", ingestProperties.getQueueSize(),
+                        ingestProperties.getHighWatermark(), ingestProperties.getLowWatermark(), numWriters);
+        running = true;
+        writers = Executors.newFixedThreadPool(numWriters, new ThreadFactoryBuilder().setNameFormat("ingest-writer-%d").setDaemon(true).build());
+        for (int i = 0; i < numWriters; i++) {
+            writers.submit(this::drain);
+        }
+    }
+
+    public void shutdown() {
+        if (writers == null) {
+            return;
+        }
+        running = false;
+        writers.shutdown();
+        try {
+            writers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+
+        } finally {
+            if (!writers.isTerminated()) {
+                writers.shutdownNow();
+            }
+        }
+        resumeChannels();
+    }
+
+    /**
+     * Add a metric to the ingest queue.
+     *
+     * @param metric
+     *            metric to store
+     * @param channel
+     *            channel that received the metric, paused if the queue is above the high watermark
+     * @return false if the queue is full and the metric was rejected
+     */
+    public boolean offer(Metric metric, Channel channel) {
+        if (queue == null) {
+            dataStore.store(metric);
+            return true;
+        }
+        if (!capacity.tryAcquire()) {
+            internalMetrics.incrementIngestRejected(1);
+            pause(channel);
+            return false;
+        }
+        queue.offer(metric);
+        if (queue.size() >= ingestProperties.getHighWatermark()) {
+            pause(channel);
+        }
+        return true;
+    }
+
+    /**
+     * Add a batch of metrics to the ingest queue. Either all of the metrics are added or, if the queue does not have room for all of them, none are.
+     *
+     * @param metrics
+     *            metrics to store
+     * @param channel
+     *            channel that received the metrics, paused if the queue is above the high watermark
+     * @return false if the queue is full and the batch was rejected
+     * @throws IllegalArgumentException
+     *             if the batch is larger than the queue, it could never be added and is rejected without pausing the channel
+     */
+    public boolean offer(List<Metric> metrics, Channel channel) {
+        if (queue == null) {
+            metrics.forEach(dataStore::store);
+            return true;
+        }
+        if (metrics.size() > ingestProperties.getQueueSize()) {
+            internalMetrics.incrementIngestRejected(metrics.size());
+            throw new IllegalArgumentException(
+                            "Batch of " + metrics.size() + " metrics is larger than the ingest queue size of " + ingestProperties.getQueueSize());
+        }
+        if (!capacity.tryAcquire(metrics.size())) {
+            internalMetrics.incrementIngestRejected(metrics.size());
+            pause(channel);
+            return false;
+        }
+        // the reserved slots are free, so none of these can fail
+        metrics.forEach(queue::offer);
+        if (queue.size() >= ingestProperties.getHighWatermark()) {
+            pause(channel);
+        }
+        return true;
+    }
+
+    public int getDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    private void pause(Channel channel) {
+        if (channel != null && channel.config().isAutoRead()) {
+            log.debug("Ingest queue depth {} above high watermark, pausing reads on {}", queue.size(), channel);
+            channel.config().setAutoRead(false);
+            pausedChannels.add(channel);
+            pausedSince.compareAndSet(0, System.nanoTime());
+        }
+    }
+
+    private void resumeChannels() {
+        long since = pausedSince.getAndSet(0);
+        if (since != 0) {
+            internalMetrics.addIngestPausedTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+        }
+        for (Channel channel : pausedChannels) {
+            pausedChannels.remove(channel);
+            if (channel.isActive()) {
+                log.debug("Ingest queue depth {} below low watermark, resuming reads on {}", queue.size(), channel);
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    private void drain() {
+        List<Metric> batch = new ArrayList<>(ingestProperties.getDrainBatchSize());
+        while (running || !queue.isEmpty()) {
+            try {
+                Metric first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, ingestProperties.getDrainBatchSize() - 1);
+                    capacity.release(batch.size());
+                    for (Metric m : batch) {
+                        try {
+                            dataStore.store(m);
+                        } catch (Exception e) {
+                            log.error("Error storing metric: " + m, e);
+                        }
+                    }
+                    internalMetrics.incrementIngestDrained(batch.size());
+                    batch.clear();
+                }
+                internalMetrics.setIngestQueueDepth(queue.size());
+                // checked on every pass, not only when transitioning, so that a channel paused concurrently with a resume is not left behind
+                if (!pausedChannels.isEmpty() && queue.size() <= ingestProperties.getLowWatermark()) {
+                    resumeChannels();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
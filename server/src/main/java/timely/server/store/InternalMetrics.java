@@ -4,6 +4,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +15,7 @@ import com.google.common.util.concurrent.AtomicDouble;
 import timely.common.configuration.TimelyProperties;
 import timely.model.Metric;
 import timely.model.Tag;
+import timely.server.netty.udp.UdpSocketStats;
 
 public class InternalMetrics {
 
@@ -20,6 +23,7 @@ public class InternalMetrics {
 
     private static final String METRICS_RECEIVED_METRIC = "timely.metrics.received";
     private static final String META_KEYS_METRIC = "timely.keys.meta.inserted";
+    private static final String META_KEYS_SKIPPED_METRIC = "timely.keys.meta.skipped";
     private static final String METRIC_KEYS_METRIC = "timely.keys.metric.inserted";
     private static final String QUERIES_COMPLETED = "timely.query.num.completed";
     private static final String QUERY_RETURN_TIME = "timely.query.return.time";
@@ -28,12 +32,32 @@ public class InternalMetrics {
     private static final String CACHE_METRIC_RECEIVED = "timely.cache.metric.received";
     private static final String CACHE_METRIC_TOTAL = "timely.cache.metric.total";
     private static final String CACHE_METRIC_OLDEST = "timely.cache.metric.oldest.age";
+    private static final String CACHE_LOCK_HOLD_TIME = "timely.cache.lock.hold.time";
+    private static final String CACHE_LOCK_HOLD_TIME_MAX = "timely.cache.lock.hold.time.max";
+    private static final String CACHE_OFF_HEAP_USED = "timely.cache.offheap.used";
+    private static final String CACHE_OFF_HEAP_BLOCKS = "timely.cache.offheap.blocks";
+    private static final String INGEST_QUEUE_DEPTH = "timely.ingest.queue.depth";
+    private static final String INGEST_DRAINED = "timely.ingest.queue.drained";
+    private static final String INGEST_REJECTED = "timely.ingest.queue.rejected";
+    private static final String INGEST_PAUSED_TIME = "timely.ingest.autoread.off.time";
+    private static final String QUERY_QUEUE_DEPTH = "timely.query.queue.depth";
+    private static final String QUERY_QUEUE_WAIT_TIME = "timely.query.queue.wait.time";
+    private static final String QUERY_RUN_TIME = "timely.query.run.time";
+    private static final String QUERIES_REJECTED = "timely.query.num.rejected";
+    private static final String QUERIES_TIMED_OUT = "timely.query.num.timed.out";
+    private static final String QUERIES_CANCELLED = "timely.query.num.cancelled";
+    private static final String QUERY_CACHE_HITS = "timely.query.cache.hits";
+    private static final String QUERY_CACHE_MISSES = "timely.query.cache.misses";
+    private static final String QUERY_CACHE_EVICTIONS = "timely.query.cache.evictions";
+    private static final String QUERY_CACHE_INVALIDATIONS = "timely.query.cache.invalidations";
+    private static final String QUERY_CACHE_SIZE = "timely.query.cache.size";
 
     private static final String HOSTNAME_TAG = "host";
 
     private String hostName = "localhost";
     private AtomicDouble numMetricsReceived = new AtomicDouble(0);
     private AtomicDouble numMetaKeysInserted = new AtomicDouble(0);
+    private AtomicDouble numMetaKeysSkipped = new AtomicDouble(0);
     private AtomicDouble numMetricKeysInserted = new AtomicDouble(0);
     private AtomicDouble numQueriesCompleted = new AtomicDouble(0);
     private AtomicDouble numMetricsReturned = new AtomicDouble(0);
@@ -41,8 +65,31 @@ public class InternalMetrics {
     private AtomicDouble numCachedMetricsReceived = new AtomicDouble(0);
     private AtomicDouble numCachedMetricsTotal = new AtomicDouble(0);
     private AtomicDouble ageOfOldestCachedMetric = new AtomicDouble(0);
+    private AtomicDouble numCacheLocksHeld = new AtomicDouble(0);
+    private AtomicDouble cacheLockHoldTime = new AtomicDouble(0);
+    private AtomicLong maxCacheLockHoldTime = new AtomicLong(0);
+    private AtomicDouble cacheOffHeapUsed = new AtomicDouble(0);
+    private AtomicDouble numCacheOffHeapBlocks = new AtomicDouble(0);
+    private AtomicDouble ingestQueueDepth = new AtomicDouble(0);
+    private AtomicDouble numIngestDrained = new AtomicDouble(0);
+    private AtomicDouble numIngestRejected = new AtomicDouble(0);
+    private AtomicDouble ingestPausedTime = new AtomicDouble(0);
+    private AtomicDouble queryQueueDepth = new AtomicDouble(0);
+    private AtomicDouble numQueriesStarted = new AtomicDouble(0);
+    private AtomicDouble queryQueueWaitTime = new AtomicDouble(0);
+    private AtomicDouble numQueriesRun = new AtomicDouble(0);
+    private AtomicDouble queryRunTime = new AtomicDouble(0);
+    private AtomicDouble numQueriesRejected = new AtomicDouble(0);
+    private AtomicDouble numQueriesTimedOut = new AtomicDouble(0);
+    private AtomicDouble numQueriesCancelled = new AtomicDouble(0);
+    private AtomicDouble numQueryCacheHits = new AtomicDouble(0);
+    private AtomicDouble numQueryCacheMisses = new AtomicDouble(0);
+    private AtomicDouble numQueryCacheEvictions = new AtomicDouble(0);
+    private AtomicDouble numQueryCacheInvalidations = new AtomicDouble(0);
+    private AtomicDouble queryCacheSize = new AtomicDouble(0);
 
     private List<Tag> tags = new ArrayList<>();
+    private List<UdpSocketStats> udpSockets = new CopyOnWriteArrayList<>();
 
     public InternalMetrics(TimelyProperties timelyProperties) {
         try {
@@ -62,6 +109,10 @@ public class InternalMetrics {
         numMetaKeysInserted.addAndGet(num);
     }
 
+    public void incrementMetaKeysSkipped(long num) {
+        numMetaKeysSkipped.addAndGet(num);
+    }
+
     public void incrementMetricKeysInserted(long num) {
         numMetricKeysInserted.addAndGet(num);
     }
@@ -84,6 +135,86 @@ public class InternalMetrics {
         ageOfOldestCachedMetric.set(ageInMs);
     }
 
+    /**
+     * Record how long a lock of the cache was held by a write or by the cache maintenance
+     */
+    public void addCacheLockHoldTime(long elapsedNanos) {
+        numCacheLocksHeld.addAndGet(1);
+        cacheLockHoldTime.addAndGet(elapsedNanos);
+        maxCacheLockHoldTime.accumulateAndGet(elapsedNanos, Math::max);
+    }
+
+    public void setCacheOffHeapUsage(long usedBytes, long numBlocks) {
+        cacheOffHeapUsed.set(usedBytes);
+        numCacheOffHeapBlocks.set(numBlocks);
+    }
+
+    public void setIngestQueueDepth(long depth) {
+        ingestQueueDepth.set(depth);
+    }
+
+    public void incrementIngestDrained(long num) {
+        numIngestDrained.addAndGet(num);
+    }
+
+    public void incrementIngestRejected(long num) {
+        numIngestRejected.addAndGet(num);
+    }
+
+    public void addIngestPausedTime(long elapsedMs) {
+        ingestPausedTime.addAndGet(elapsedMs);
+    }
+
+    public void setQueryQueueDepth(long depth) {
+        queryQueueDepth.set(depth);
+    }
+
+    public void addQueryQueueWaitTime(long elapsedMs) {
+        numQueriesStarted.addAndGet(1);
+        queryQueueWaitTime.addAndGet(elapsedMs);
+    }
+
+    public void addQueryRunTime(long elapsedMs) {
+        numQueriesRun.addAndGet(1);
+        queryRunTime.addAndGet(elapsedMs);
+    }
+
+    public void incrementQueriesRejected() {
+        numQueriesRejected.addAndGet(1);
+    }
+
+    public void incrementQueriesTimedOut() {
+        numQueriesTimedOut.addAndGet(1);
+    }
+
+    public void incrementQueriesCancelled() {
+        numQueriesCancelled.addAndGet(1);
+    }
+
+    public void incrementQueryCacheHits() {
+        numQueryCacheHits.addAndGet(1);
+    }
+
+    public void incrementQueryCacheMisses() {
+        numQueryCacheMisses.addAndGet(1);
+    }
+
+    public void incrementQueryCacheEvictions(long num) {
+        numQueryCacheEvictions.addAndGet(num);
+    }
+
+    public void incrementQueryCacheInvalidations(long num) {
+        numQueryCacheInvalidations.addAndGet(num);
+    }
+
+    public void setQueryCacheSize(long sizeInBytes) {
+        queryCacheSize.set(sizeInBytes);
+    }
+
+    public void addUdpSocket(UdpSocketStats stats) {
+        udpSockets.add(stats);
+    }
+
     public List<Metric> getMetricsAndReset() {
         List<Metric> metrics = new ArrayList<Metric>();
         long ts = System.currentTimeMillis();
@@ -93,10 +224,39 @@ public class InternalMetrics {
         numCachedMetricsReceived.set(0);
         metrics.add(new Metric(CACHE_METRIC_TOTAL, ts, numCachedMetricsTotal.get(), tags));
         metrics.add(new Metric(CACHE_METRIC_OLDEST, ts, ageOfOldestCachedMetric.get(), tags));
+        // average and maximum lock hold time in milliseconds since the last report
+        metrics.add(new Metric(CACHE_LOCK_HOLD_TIME, ts, average(cacheLockHoldTime.getAndSet(0), numCacheLocksHeld.getAndSet(0)) / 1000000, tags));
+        metrics.add(new Metric(CACHE_LOCK_HOLD_TIME_MAX, ts, maxCacheLockHoldTime.getAndSet(0) / 1000000.0D, tags));
+        metrics.add(new Metric(CACHE_OFF_HEAP_USED, ts, cacheOffHeapUsed.get(), tags));
+        metrics.add(new Metric(CACHE_OFF_HEAP_BLOCKS, ts, numCacheOffHeapBlocks.get(), tags));
         metrics.add(new Metric(META_KEYS_METRIC, ts, numMetaKeysInserted.get(), tags));
         numMetaKeysInserted.set(0);
+        metrics.add(new Metric(META_KEYS_SKIPPED_METRIC, ts, numMetaKeysSkipped.get(), tags));
+        numMetaKeysSkipped.set(0);
         metrics.add(new Metric(METRIC_KEYS_METRIC, ts, numMetricKeysInserted.get(), tags));
         numMetricKeysInserted.set(0);
+        metrics.add(new Metric(INGEST_QUEUE_DEPTH, ts, ingestQueueDepth.get(), tags));
+        metrics.add(new Metric(INGEST_DRAINED, ts, numIngestDrained.get(), tags));
+        numIngestDrained.set(0);
+        metrics.add(new Metric(INGEST_REJECTED, ts, numIngestRejected.get(), tags));
+        numIngestRejected.set(0);
+        metrics.add(new Metric(INGEST_PAUSED_TIME, ts, ingestPausedTime.get(), tags));
+        ingestPausedTime.set(0);
+        metrics.add(new Metric(QUERY_QUEUE_DEPTH, ts, queryQueueDepth.get(), tags));
+        // average wait and run time per query since the last report
+        metrics.add(new Metric(QUERY_QUEUE_WAIT_TIME, ts, average(queryQueueWaitTime.getAndSet(0), numQueriesStarted.getAndSet(0)), tags));
+        metrics.add(new Metric(QUERY_RUN_TIME, ts, average(queryRunTime.getAndSet(0), numQueriesRun.getAndSet(0)), tags));
+        metrics.add(new Metric(QUERIES_REJECTED, ts, numQueriesRejected.getAndSet(0), tags));
+        metrics.add(new Metric(QUERIES_TIMED_OUT, ts, numQueriesTimedOut.getAndSet(0), tags));
+        metrics.add(new Metric(QUERIES_CANCELLED, ts, numQueriesCancelled.getAndSet(0), tags));
+        metrics.add(new Metric(QUERY_CACHE_HITS, ts, numQueryCacheHits.getAndSet(0), tags));
+        metrics.add(new Metric(QUERY_CACHE_MISSES, ts, numQueryCacheMisses.getAndSet(0), tags));
+        metrics.add(new Metric(QUERY_CACHE_EVICTIONS, ts, numQueryCacheEvictions.getAndSet(0), tags));
+        metrics.add(new Metric(QUERY_CACHE_INVALIDATIONS, ts, numQueryCacheInvalidations.getAndSet(0), tags));
+        metrics.add(new Metric(QUERY_CACHE_SIZE, ts, queryCacheSize.get(), tags));
+        for (UdpSocketStats udpSocket : udpSockets) {
+            metrics.addAll(udpSocket.getMetricsAndReset(ts, tags));
+        }
 
         metrics.add(new Metric(QUERIES_COMPLETED, ts, numQueriesCompleted.get(), tags));
         metrics.add(new Metric(METRICS_RETURNED, ts, numMetricsReturned.get(), tags));
@@ -119,4 +279,8 @@ public class InternalMetrics {
         return metrics;
     }
 
+    private static double average(double total, double count) {
+        return count > 0 ? total / count : 0;
+    }
+
 }
@@ -31,8 +31,10 @@ import timely.model.Meta;
 public final class MetaCache implements Iterable<Meta> {
 
     private static final Logger log = LoggerFactory.getLogger(MetaCache.class);
-    private static final Object DUMMY = new Object();
-    private final Cache<Meta,Object> cache;
+    // values are the timestamp of the last meta key written for the entry
+    private final Cache<Meta,Long> cache;
+    // values are the timestamp of the last series postings written for the metric and series id
+    private final Cache<String,Long> seriesCache;
     private final AccumuloClient accumuloClient;
     private final TimelyProperties timelyProperties;
     private final MetaCacheProperties metaCacheProperties;
@@ -43,6 +45,7 @@ public final class MetaCache implements Iterable<Meta> {
         this.timelyProperties = timelyProperties;
         this.metaCacheProperties = metaCacheProperties;
         cache = Caffeine.newBuilder().initialCapacity(1000).build();
+        seriesCache = Caffeine.newBuilder().initialCapacity(1000).expireAfterAccess(metaCacheProperties.getExpirationMinutes(), TimeUnit.MINUTES).build();
         long cacheRefreshMinutes = metaCacheProperties.getCacheRefreshMinutes();
         if (cacheRefreshMinutes > 0) {
             executorService.scheduleAtFixedRate(() -> refreshCache(metaCacheProperties.getExpirationMinutes()), 1, cacheRefreshMinutes, TimeUnit.MINUTES);
@@ -54,7 +57,7 @@ public final class MetaCache implements Iterable<Meta> {
         String metaTable = timelyProperties.getMetaTable();
         Map<String,Map<String,Long>> metricMap = new HashMap<>();
         try (Scanner scanner = accumuloClient.createScanner(metaTable)) {
-            Map<Meta,Object> newCache = new HashMap<>();
+            Map<Meta,Long> newCache = new HashMap<>();
             log.debug("Begin scanning " + metaTable);
             Key metricPrefixBeginKey = new Key(Meta.METRIC_PREFIX);
             int firstChar = Meta.METRIC_PREFIX.charAt(0);
@@ -84,7 +87,7 @@ public final class MetaCache implements Iterable<Meta> {
                     if (entry.getKey().getTimestamp() > oldestTimestamp) {
                         tagMap.put(tagKey, ++numTagValues);
                         if (numTagValues <= metaCacheProperties.getMaxTagValues()) {
-                            newCache.put(meta, DUMMY);
+                            newCache.put(meta, entry.getKey().getTimestamp());
                         } else {
                             // found maxTagValues on this refresh
                             maxedOutValues = true;
@@ -103,7 +106,7 @@ public final class MetaCache implements Iterable<Meta> {
     }
 
     public void add(Meta meta) {
-        cache.put(meta, DUMMY);
+        cache.put(meta, System.currentTimeMillis());
     }
 
     public boolean contains(Meta meta) {
@@ -111,13 +114,76 @@ public final class MetaCache implements Iterable<Meta> {
     }
 
     public void addAll(Collection<Meta> c) {
-        c.forEach(m -> cache.put(m, DUMMY));
+        long now = System.currentTimeMillis();
+        c.forEach(m -> cache.put(m, now));
+    }
+
+    /**
+     * Used when meta dedup is enabled to decide whether the meta keys for an entry need to be written. An entry that has been written with a timestamp within
+     * the dedup refresh window of this one is skipped, so that the key timestamps in the meta table keep moving forward for the age-off iterator. The entry is
+     * not recorded here, that is done by {@link #written(Collection, long)} once the BatchWriter has accepted the keys.
+     *
+     * @param meta
+     *            meta entry
+     * @param timestamp
+     *            timestamp that the meta keys would be written with
+     * @return true if the meta keys should be written
+     */
+    public boolean shouldWrite(Meta meta, long timestamp) {
+        long refreshMillis = TimeUnit.MINUTES.toMillis(metaCacheProperties.getDedupRefreshMinutes());
+        Long lastWritten = cache.getIfPresent(meta);
+        return lastWritten == null || timestamp - lastWritten >= refreshMillis;
+    }
+
+    /**
+     * Record meta entries whose keys have been accepted by the BatchWriter
+     *
+     * @param metas
+     *            meta entries
+     * @param timestamp
+     *            timestamp that the meta keys were written with
+     */
+    public void written(Collection<Meta> metas, long timestamp) {
+        metas.forEach(m -> cache.asMap().merge(m, timestamp, Math::max));
+    }
+
+    /**
+     * Used by the series store layout to decide whether the postings for a series need to be written, with the same refresh window as
+     * {@link #shouldWrite(Meta, long)}. Postings are always deduplicated since every sample of the series would otherwise rewrite one posting per tag.
+     *
+     * @param metric
+     *            metric name
+     * @param seriesId
+     *            id of the series
+     * @param timestamp
+     *            timestamp that the postings would be written with
+     * @return true if the postings should be written
+     */
+    public boolean shouldWriteSeries(String metric, String seriesId, long timestamp) {
+        long refreshMillis = TimeUnit.MINUTES.toMillis(metaCacheProperties.getDedupRefreshMinutes());
+        Long lastWritten = seriesCache.getIfPresent(metric + '\0' + seriesId);
+        return lastWritten == null || timestamp - lastWritten >= refreshMillis;
+    }
+
+    /**
+     * Record the postings of a series that have been accepted by the BatchWriter
+     *
+     * @param metric
+     *            metric name
+     * @param seriesId
+     *            id of the series
+     * @param timestamp
+     *            timestamp that the postings were written with
+     */
+    public void seriesWritten(String metric, String seriesId, long timestamp) {
+        seriesCache.asMap().merge(metric + '\0' + seriesId, timestamp, Math::max);
     }
 
     public void clear() {
         synchronized (cache) {
             cache.invalidateAll();
         }
+        seriesCache.invalidateAll();
     }
 
     @Override
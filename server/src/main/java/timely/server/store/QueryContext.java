@@ -0,0 +1,93 @@
+package timely.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import timely.api.response.TimelyException;
+
+/**
+ * Cancellation state of a single query. The scanners that a query opens are registered with its context so that they can be closed from another thread when the
+ * query times out or its client disconnects, which stops the scan on the tablet servers instead of letting it run to completion.
+ */
+public class QueryContext {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryContext.class);
+
+    private final Set<AutoCloseable> resources = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile boolean cancelled = false;
+
+    /**
+     * Register a resource to be closed if the query is cancelled. If the query has already been cancelled the resource is closed immediately.
+     *
+     * @throws TimelyException
+     *             if the query has been cancelled
+     */
+    public void register(AutoCloseable resource) throws TimelyException {
+        synchronized (resources) {
+            if (!cancelled) {
+                resources.add(resource);
+                return;
+            }
+        }
+        closeQuietly(resource);
+        throw cancelledException();
+    }
+
+    /**
+     * Remove a resource that the query has closed itself
+     */
+    public void unregister(AutoCloseable resource) {
+        synchronized (resources) {
+            resources.remove(resource);
+        }
+    }
+
+    /**
+     * Cancel the query and close its registered resources
+     */
+    public void cancel() {
+        List<AutoCloseable> registered;
+        synchronized (resources) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            registered = new ArrayList<>(resources);
+            resources.clear();
+        }
+        registered.forEach(QueryContext::closeQuietly);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws TimelyException
+     *             if the query has been cancelled
+     */
+    public void checkCancelled() throws TimelyException {
+        if (cancelled) {
+            throw cancelledException();
+        }
+    }
+
+    private static TimelyException cancelledException() {
+        return new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Query cancelled", "");
+    }
+
+    private static void closeQuietly(AutoCloseable resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            log.warn("Error closing {} of cancelled query: {}", resource, e.getMessage());
+        }
+    }
+}
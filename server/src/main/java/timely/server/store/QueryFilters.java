@@ -0,0 +1,99 @@
+package timely.server.store;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+import timely.api.request.timeseries.QueryRequest.Filter;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+
+/**
+ * Translates the filters of a subquery into the tag value patterns used to select column families and by the {@link TagFilter}, so that filtering happens in
+ * the tablet servers, and finds the tags that the series of a subquery are grouped by.
+ *
+ * Supported filter types are literal_or and not_literal_or, which take a pipe separated list of values, wildcard, where * matches any characters, and regexp. A
+ * filter without a type, as created from the group by tags of a GET request, is a wildcard if its value contains a * and a literal_or otherwise.
+ */
+public class QueryFilters {
+
+    public static final String LITERAL_OR = "literal_or";
+    public static final String NOT_LITERAL_OR = "not_literal_or";
+    public static final String WILDCARD = "wildcard";
+    public static final String REGEXP = "regexp";
+    private static final Pattern WORD = Pattern.compile("^\\w+$");
+
+    private QueryFilters() {}
+
+    /**
+     * @return the requested tags of the subquery with the pattern of each filter added, a tag with both a requested value and filters must match all of them
+     * @throws IllegalArgumentException
+     *             if a filter is missing its tag or value or has an unsupported type
+     */
+    public static Map<String,String> getTagPatterns(SubQuery query) {
+        if (query.getFilters() == null || query.getFilters().isEmpty()) {
+            return query.getTags();
+        }
+        Map<String,String> patterns = new LinkedHashMap<>(query.getTags());
+        for (Filter filter : query.getFilters()) {
+            if (StringUtils.isBlank(filter.getTagk()) || filter.getFilter() == null) {
+                throw new IllegalArgumentException("Filter requires a tagk and filter: " + filter);
+            }
+            patterns.merge(filter.getTagk(), toPattern(filter), (current, added) -> "(?=(?:" + current + ")$)(?:" + added + ")");
+        }
+        return patterns;
+    }
+
+    /**
+     * @return the keys of the tags of the group by filters of the subquery
+     */
+    public static Set<String> getGroupByTags(SubQuery query) {
+        if (query.getFilters() == null) {
+            return new LinkedHashSet<>();
+        }
+        return query.getFilters().stream().filter(Filter::isGroupBy).map(Filter::getTagk).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * @return the keys of the tags in the results of the subquery, the requested tags and the group by tags
+     */
+    public static Set<String> getResultTags(SubQuery query) {
+        Set<String> keys = new LinkedHashSet<>(query.getTags().keySet());
+        keys.addAll(getGroupByTags(query));
+        return keys;
+    }
+
+    static String toPattern(Filter filter) {
+        String type = filter.getType();
+        String value = filter.getFilter();
+        if (StringUtils.isBlank(type)) {
+            type = value.contains("*") ? WILDCARD : LITERAL_OR;
+        }
+        switch (type) {
+            case LITERAL_OR:
+                return literals(value);
+            case NOT_LITERAL_OR:
+                return "(?!(?:" + literals(value) + ")$).*";
+            case WILDCARD:
+                return Arrays.stream(value.split("\\*", -1)).map(s -> s.isEmpty() ? "" : quote(s)).collect(Collectors.joining(".*"));
+            case REGEXP:
+                return value;
+            default:
+                throw new IllegalArgumentException("Unsupported filter type: " + type);
+        }
+    }
+
+    private static String literals(String value) {
+        return Arrays.stream(value.split("\\|")).map(String::trim).map(QueryFilters::quote).collect(Collectors.joining("|"));
+    }
+
+    // plain values are left unquoted so that a single literal is looked up as a value rather than matched as a pattern
+    private static String quote(String value) {
+        return WORD.matcher(value).matches() ? value : Pattern.quote(value);
+    }
+}
@@ -0,0 +1,139 @@
+package timely.server.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+
+import timely.accumulo.MetricAdapter;
+
+/**
+ * Plans the metrics table ranges of a query. A row holds one hour of a metric and the column families of a row are the tags, or series ids, of the points in
+ * that hour, with the timestamp at the start of the column qualifier.
+ *
+ * Only the first and last hours of a query can be partially covered, so each of them gets one range per column family bounded by the query times. The hours in
+ * between are coalesced into a single row range, which relies on the column families fetched by the scanner to skip the other tags. When the column families
+ * would need more ranges than allowed, the whole query becomes one row range and the scan must filter the points by timestamp instead, see
+ * {@link QueryRanges#isTimestampFiltered()}.
+ */
+public class QueryRangePlanner {
+
+    private static final long HOUR = 1000 * 60 * 60;
+
+    /**
+     * The ranges of a query
+     */
+    public static class QueryRanges {
+
+        private final List<Range> ranges;
+        private final boolean timestampFiltered;
+
+        private QueryRanges(List<Range> ranges, boolean timestampFiltered) {
+            this.ranges = ranges;
+            this.timestampFiltered = timestampFiltered;
+        }
+
+        public List<Range> getRanges() {
+            return ranges;
+        }
+
+        /**
+         * @return true if the ranges include points outside of the query times, which the scan must filter by timestamp
+         */
+        public boolean isTimestampFiltered() {
+            return timestampFiltered;
+        }
+    }
+
+    private QueryRangePlanner() {}
+
+    /**
+     * Plan the ranges of a query
+     *
+     * @param metric
+     *            metric name
+     * @param start
+     *            start of the query, inclusive
+     * @param end
+     *            end of the query, inclusive
+     * @param colFamValues
+     *            column families of the query
+     * @param maxRanges
+     *            maximum number of ranges, above which the query is planned as one row range that must be filtered by timestamp
+     * @return ranges in row order
+     */
+    public static QueryRanges plan(String metric, long start, long end, Collection<String> colFamValues, int maxRanges) {
+        List<Range> ranges = new ArrayList<>();
+        long firstHour = MetricAdapter.roundTimestampToLastHour(start);
+        long lastHour = MetricAdapter.roundTimestampToLastHour(end);
+        if (colFamValues.isEmpty()) {
+            byte[] row = MetricAdapter.encodeRowKey(metric, firstHour);
+            ranges.add(new Range(new Key(new Text(row)), true, new Key(new Text(row)), false));
+            return new QueryRanges(ranges, false);
+        }
+        if (end < start) {
+            return new QueryRanges(ranges, false);
+        }
+
+        if (firstHour == lastHour) {
+            if (start == firstHour && end + 1 >= lastHour + HOUR) {
+                ranges.add(rowRange(metric, firstHour, lastHour));
+            } else if (colFamValues.size() > maxRanges) {
+                ranges.add(rowRange(metric, firstHour, lastHour));
+                return new QueryRanges(ranges, true);
+            } else {
+                addColumnFamilyRanges(ranges, metric, firstHour, start, end + 1, colFamValues);
+            }
+            return new QueryRanges(ranges, false);
+        }
+
+        boolean firstHourPartial = start != firstHour;
+        boolean lastHourPartial = end + 1 < lastHour + HOUR;
+        long firstFullHour = firstHourPartial ? firstHour + HOUR : firstHour;
+        long lastFullHour = lastHourPartial ? lastHour - HOUR : lastHour;
+        long numRanges = ((firstHourPartial ? 1 : 0) + (lastHourPartial ? 1 : 0)) * (long) colFamValues.size() + (firstFullHour <= lastFullHour ? 1 : 0);
+        if (numRanges > maxRanges) {
+            ranges.add(rowRange(metric, firstHour, lastHour));
+            return new QueryRanges(ranges, firstHourPartial || lastHourPartial);
+        }
+        if (firstHourPartial) {
+            addColumnFamilyRanges(ranges, metric, firstHour, start, firstHour + HOUR, colFamValues);
+        }
+        if (firstFullHour <= lastFullHour) {
+            ranges.add(rowRange(metric, firstFullHour, lastFullHour));
+        }
+        if (lastHourPartial) {
+            addColumnFamilyRanges(ranges, metric, lastHour, lastHour, end + 1, colFamValues);
+        }
+        return new QueryRanges(ranges, false);
+    }
+
+    /**
+     * @return the rows of the hours from firstHour to lastHour, inclusive
+     */
+    private static Range rowRange(String metric, long firstHour, long lastHour) {
+        Key startKey = new Key(new Text(MetricAdapter.encodeRowKey(metric, firstHour)));
+        Key endKey = new Key(new Text(MetricAdapter.encodeRowKey(metric, lastHour + HOUR)));
+        return new Range(startKey, true, endKey, false);
+    }
+
+    /**
+     * Add a range for each column family of an hour from the start time, inclusive, to the end time, exclusive
+     */
+    private static void addColumnFamilyRanges(List<Range> ranges, String metric, long hour, long start, long end, Collection<String> colFamValues) {
+        Text row = new Text(MetricAdapter.encodeRowKey(metric, hour));
+        Text startColQual = new Text(MetricAdapter.encodeColQual(start, ""));
+        Text endColQual = new Text(MetricAdapter.encodeColQual(end, ""));
+        Text emptyVisibility = new Text(new byte[0]);
+        for (String cf : colFamValues) {
+            Text colf = new Text(cf.getBytes(StandardCharsets.UTF_8));
+            Key startKey = new Key(row, colf, startColQual, emptyVisibility, start);
+            Key endKey = new Key(row, colf, endColQual, emptyVisibility, end);
+            ranges.add(new Range(startKey, true, endKey, false));
+        }
+    }
+}
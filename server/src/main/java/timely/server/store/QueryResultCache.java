@@ -0,0 +1,388 @@
+package timely.server.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.common.configuration.QueryCacheProperties;
+import timely.model.ObjectSizeOf;
+import timely.model.Tag;
+import timely.server.sample.Aggregation;
+
+/**
+ * Caches the completed downsample buckets of subqueries. Buckets are aligned to the epoch, so a subquery that is repeated with a later time range, such as a
+ * dashboard refresh, shares its buckets with the previous run and only the buckets after the last completed one need to be computed.
+ *
+ * A bucket is complete once its end is in the past by more than the lateness window, newer buckets are always recomputed so that metrics which arrive within
+ * the window are included. A metric stored later than that invalidates the cached subqueries of its metric name that include its timestamp. Metrics stored
+ * through another Timely server are not seen by this cache and are only included once the subquery is evicted.
+ *
+ * Subqueries are evicted in least recently used order when the estimated size of the cached buckets exceeds the maximum size.
+ */
+public class QueryResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private final QueryCacheProperties queryCacheProperties;
+    private final InternalMetrics internalMetrics;
+    private final LinkedHashMap<Key,CachedSubQuery> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // the latest completed bucket end of the cached subqueries of each metric, checked for every metric that is stored
+    private final Map<String,Long> completeThrough = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong(0);
+    private long sizeInBytes = 0;
+
+    public QueryResultCache(QueryCacheProperties queryCacheProperties, InternalMetrics internalMetrics) {
+        this.queryCacheProperties = queryCacheProperties;
+        this.internalMetrics = internalMetrics;
+    }
+
+    public boolean isEnabled() {
+        return queryCacheProperties.isEnabled();
+    }
+
+    /**
+     * Find the cached buckets of a subquery
+     *
+     * @param query
+     *            subquery
+     * @param authorizations
+     *            authorizations of the user running the query
+     * @param start
+     *            start of the query
+     * @param period
+     *            downsample period of the subquery
+     * @return the cached buckets and the time from which the rest of the subquery must be computed
+     */
+    public Lookup lookup(SubQuery query, Collection<Authorizations> authorizations, long start, long period) {
+        Key key = new Key(query, authorizations);
+        long alignedStart = start - (start % period);
+        long generation = invalidations.get();
+        CachedSubQuery cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached != null && (cached.period != period || cached.start > alignedStart || cached.end <= alignedStart)) {
+            cached = null;
+        }
+        if (cached == null) {
+            internalMetrics.incrementQueryCacheMisses();
+        } else {
+            internalMetrics.incrementQueryCacheHits();
+        }
+        return new Lookup(key, cached, start, alignedStart, period, generation);
+    }
+
+    /**
+     * Combine the cached buckets of a subquery with the buckets that were computed for it and cache the buckets that are now complete.
+     *
+     * @param lookup
+     *            result of {@link #lookup(SubQuery, Collection, long, long)} for the subquery
+     * @param end
+     *            end of the query
+     * @param computed
+     *            series computed from {@link Lookup#getComputeStart()}
+     * @return series of the whole subquery
+     */
+    public Map<Set<Tag>,List<Aggregation>> complete(Lookup lookup, long end, Map<Set<Tag>,List<Aggregation>> computed) {
+        long period = lookup.period;
+        long cachedEnd = lookup.getCachedEnd();
+        // the end of the last bucket that is both inside the query and older than the lateness window
+        long latest = Math.min(end + 1, System.currentTimeMillis() - queryCacheProperties.getLatenessSeconds() * 1000);
+        long completeEnd = latest - Math.floorMod(latest, period);
+
+        Map<Set<Tag>,Aggregation> combined = new HashMap<>();
+        computed.forEach((tags, aggregations) -> {
+            if (!aggregations.isEmpty()) {
+                combined.put(tags, Aggregation.combineAggregation(aggregations, null));
+            }
+        });
+
+        Map<Set<Tag>,List<Aggregation>> result = new HashMap<>();
+        Map<Set<Tag>,Aggregation> toCache = new HashMap<>();
+        if (lookup.cached != null) {
+            long responseEnd = Math.min(cachedEnd, end + 1);
+            lookup.cached.series.forEach((tags, aggregation) -> {
+                Aggregation cachedBuckets = aggregation.range(lookup.alignedStart, responseEnd);
+                if (cachedBuckets.getNumBuckets() > 0) {
+                    result.computeIfAbsent(tags, k -> new ArrayList<>()).add(cachedBuckets);
+                }
+                toCache.put(tags, aggregation.range(lookup.alignedStart, cachedEnd));
+            });
+        }
+        combined.forEach((tags, aggregation) -> {
+            // buckets before the end of the cached buckets were only computed to seed the rate of the first new bucket
+            Aggregation computedBuckets = lookup.cached == null ? aggregation : aggregation.range(cachedEnd, Long.MAX_VALUE);
+            if (computedBuckets.getNumBuckets() > 0) {
+                result.computeIfAbsent(tags, k -> new ArrayList<>()).add(computedBuckets);
+            }
+            if (completeEnd > cachedEnd) {
+                Aggregation completed = aggregation.range(cachedEnd, completeEnd);
+                Aggregation previous = toCache.get(tags);
+                if (previous == null) {
+                    toCache.put(tags, completed);
+                } else {
+                    previous.merge(completed);
+                }
+            }
+        });
+        if (completeEnd > cachedEnd) {
+            store(lookup, new CachedSubQuery(lookup.alignedStart, completeEnd, period, toCache));
+        }
+        return result;
+    }
+
+    private void store(Lookup lookup, CachedSubQuery update) {
+        if (update.sizeInBytes > queryCacheProperties.getMaxSizeBytes()) {
+            return;
+        }
+        synchronized (entries) {
+            // a metric stored after the lookup may belong to one of the buckets that were just computed
+            if (invalidations.get() != lookup.generation) {
+                return;
+            }
+            CachedSubQuery previous = entries.get(lookup.key);
+            if (previous != null && previous != lookup.cached && previous.end >= update.end) {
+                return;
+            }
+            if (previous != null) {
+                sizeInBytes -= previous.sizeInBytes;
+            }
+            entries.put(lookup.key, update);
+            sizeInBytes += update.sizeInBytes;
+            completeThrough.merge(lookup.key.metric, update.end, Math::max);
+            int evicted = 0;
+            Iterator<CachedSubQuery> iter = entries.values().iterator();
+            while (sizeInBytes > queryCacheProperties.getMaxSizeBytes() && iter.hasNext()) {
+                CachedSubQuery eldest = iter.next();
+                sizeInBytes -= eldest.sizeInBytes;
+                iter.remove();
+                evicted++;
+            }
+            internalMetrics.incrementQueryCacheEvictions(evicted);
+            internalMetrics.setQueryCacheSize(sizeInBytes);
+        }
+    }
+
+    /**
+     * Remove the cached subqueries that include a metric which arrived after their buckets were completed
+     *
+     * @param metric
+     *            metric name
+     * @param timestamp
+     *            timestamp of the metric
+     */
+    public void invalidate(String metric, long timestamp) {
+        Long through = completeThrough.get(metric);
+        if (through == null || timestamp >= through) {
+            return;
+        }
+        synchronized (entries) {
+            invalidations.incrementAndGet();
+            long latest = Long.MIN_VALUE;
+            int removed = 0;
+            Iterator<Entry<Key,CachedSubQuery>> iter = entries.entrySet().iterator();
+            while (iter.hasNext()) {
+                Entry<Key,CachedSubQuery> e = iter.next();
+                if (!e.getKey().metric.equals(metric)) {
+                    continue;
+                }
+                CachedSubQuery cached = e.getValue();
+                if (timestamp >= cached.start - cached.period && timestamp < cached.end) {
+                    sizeInBytes -= cached.sizeInBytes;
+                    iter.remove();
+                    removed++;
+                } else {
+                    latest = Math.max(latest, cached.end);
+                }
+            }
+            if (latest == Long.MIN_VALUE) {
+                completeThrough.remove(metric);
+            } else {
+                completeThrough.put(metric, latest);
+            }
+            log.debug("Metric {} at {} arrived late, invalidated {} cached subqueries", metric, timestamp, removed);
+            internalMetrics.incrementQueryCacheInvalidations(removed);
+            internalMetrics.setQueryCacheSize(sizeInBytes);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            completeThrough.clear();
+            sizeInBytes = 0;
+            internalMetrics.setQueryCacheSize(0);
+        }
+    }
+
+    public long getSizeInBytes() {
+        synchronized (entries) {
+            return sizeInBytes;
+        }
+    }
+
+    /**
+     * The cached buckets of a subquery, if any, found when the query started
+     */
+    public static class Lookup {
+
+        private final Key key;
+        private final CachedSubQuery cached;
+        private final long start;
+        private final long alignedStart;
+        private final long period;
+        private final long generation;
+
+        private Lookup(Key key, CachedSubQuery cached, long start, long alignedStart, long period, long generation) {
+            this.key = key;
+            this.cached = cached;
+            this.start = start;
+            this.alignedStart = alignedStart;
+            this.period = period;
+            this.generation = generation;
+        }
+
+        public boolean isHit() {
+            return cached != null;
+        }
+
+        /**
+         * @return the time from which the subquery must be computed, which includes the last cached bucket so that a rate can be computed for the first new
+         *         bucket
+         */
+        public long getComputeStart() {
+            return cached == null ? start : cached.end - period;
+        }
+
+        private long getCachedEnd() {
+            return cached == null ? alignedStart : cached.end;
+        }
+    }
+
+    /**
+     * Completed buckets of a subquery from start, inclusive, to end, exclusive. Never modified once created.
+     */
+    private static class CachedSubQuery {
+
+        private final long start;
+        private final long end;
+        private final long period;
+        private final Map<Set<Tag>,Aggregation> series;
+        private final long sizeInBytes;
+
+        private CachedSubQuery(long start, long end, long period, Map<Set<Tag>,Aggregation> series) {
+            this.start = start;
+            this.end = end;
+            this.period = period;
+            this.series = series;
+            long size = 0;
+            for (Entry<Set<Tag>,Aggregation> e : series.entrySet()) {
+                size += ObjectSizeOf.Sizer.getObjectSize(e.getKey()) + e.getValue().sizeInBytes();
+            }
+            this.sizeInBytes = size;
+        }
+    }
+
+    /**
+     * The parts of a subquery and the user's authorizations that determine its result, independent of the time range
+     */
+    static class Key {
+
+        private final String metric;
+        private final Map<String,String> tags;
+        private final String downsample;
+        private final String aggregator;
+        private final boolean rate;
+        private final String rateOptions;
+        private final Set<SubQueryFilter> filters = new HashSet<>();
+        private final Set<String> tsuids;
+        private final Set<Set<String>> authorizations = new HashSet<>();
+
+        Key(SubQuery query, Collection<Authorizations> authorizations) {
+            this.metric = query.getMetric();
+            this.tags = new TreeMap<>(query.getTags());
+            this.downsample = query.getDownsample().orElse(null);
+            this.aggregator = query.getAggregator();
+            this.rate = query.isRate();
+            this.rateOptions = query.isRate() ? query.getRateOptions().toString() : null;
+            query.getFilters().forEach(f -> this.filters.add(new SubQueryFilter(f.getType(), f.getTagk(), f.getFilter(), f.isGroupBy())));
+            this.tsuids = new TreeSet<>(query.getTsuids());
+            if (authorizations != null) {
+                for (Authorizations auths : authorizations) {
+                    Set<String> labels = new TreeSet<>();
+                    auths.getAuthorizations().forEach(a -> labels.add(new String(a, StandardCharsets.UTF_8)));
+                    this.authorizations.add(labels);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rate == other.rate && metric.equals(other.metric) && tags.equals(other.tags) && Objects.equals(downsample, other.downsample)
+                            && Objects.equals(aggregator, other.aggregator) && Objects.equals(rateOptions, other.rateOptions) && filters.equals(other.filters)
+                            && tsuids.equals(other.tsuids) && authorizations.equals(other.authorizations);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric, tags, downsample, aggregator, rate, rateOptions, filters, tsuids, authorizations);
+        }
+    }
+
+    /**
+     * Snapshot of a subquery filter, which is mutable
+     */
+    private static class SubQueryFilter {
+
+        private final String type;
+        private final String tagk;
+        private final String filter;
+        private final boolean groupBy;
+
+        private SubQueryFilter(String type, String tagk, String filter, boolean groupBy) {
+            this.type = type;
+            this.tagk = tagk;
+            this.filter = filter;
+            this.groupBy = groupBy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SubQueryFilter)) {
+                return false;
+            }
+            SubQueryFilter other = (SubQueryFilter) o;
+            return groupBy == other.groupBy && Objects.equals(type, other.type) && Objects.equals(tagk, other.tagk) && Objects.equals(filter, other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, tagk, filter, groupBy);
+        }
+    }
+}
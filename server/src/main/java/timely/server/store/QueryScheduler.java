@@ -0,0 +1,238 @@
+package timely.server.store;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import timely.api.response.TimelyException;
+import timely.common.configuration.QueryProperties;
+
+/**
+ * Runs the DataStore calls of the query, suggest and lookup handlers on a bounded pool of query threads so that a slow query does not hold a Netty event loop
+ * and the other channels on it. A query that arrives when all threads are busy and the queue is full is rejected with a 503 and a Retry-After header. A query
+ * that has not completed within the timeout, measured from submission, fails with a 504. In both cases, and when the channel that submitted the query closes,
+ * the scanners of the query are closed and its thread is interrupted.
+ *
+ * The result of a query is delivered on the event loop of the channel that submitted it. If the scheduler is not enabled, queries run directly on the calling
+ * thread.
+ */
+public class QueryScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryScheduler.class);
+
+    /**
+     * The DataStore call of a query
+     */
+    @FunctionalInterface
+    public interface QueryTask<T> {
+
+        T call(QueryContext context) throws TimelyException;
+    }
+
+    /**
+     * Receives either the result of a query or the reason it failed, not called if the channel closed before the query completed
+     */
+    @FunctionalInterface
+    public interface QueryCallback<T> {
+
+        void completed(T result, TimelyException error) throws Exception;
+    }
+
+    private final QueryProperties queryProperties;
+    private final InternalMetrics internalMetrics;
+    private ThreadPoolExecutor workers;
+    private ScheduledExecutorService timer;
+
+    public QueryScheduler(QueryProperties queryProperties, InternalMetrics internalMetrics) {
+        this.queryProperties = queryProperties;
+        this.internalMetrics = internalMetrics;
+    }
+
+    public void start() {
+        if (!queryProperties.isEnabled()) {
+            log.info("Query scheduler disabled, queries will run on the Netty event loop");
+            return;
+        }
+        int numThreads = Math.max(1, queryProperties.getThreads());
+        int maxQueued = Math.max(1, queryProperties.getMaxQueued());
+        log.info("Starting query scheduler with threads:{} maxQueued:{} timeoutSeconds:{}", numThreads, maxQueued, queryProperties.getTimeoutSeconds());
+        workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+                        new ThreadFactoryBuilder().setNameFormat("query-scheduler-%d").setDaemon(true).build());
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("query-timeout-%d").setDaemon(true).build());
+    }
+
+    public void shutdown() {
+        if (workers == null) {
+            return;
+        }
+        workers.shutdownNow();
+        timer.shutdownNow();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedule a query
+     *
+     * @param channel
+     *            channel that received the query, the query is cancelled if it closes and the callback runs on its event loop
+     * @param task
+     *            DataStore call of the query
+     * @param callback
+     *            receives the result or error of the query
+     */
+    public <T> void submit(Channel channel, QueryTask<T> task, QueryCallback<T> callback) {
+        if (workers == null) {
+            T result = null;
+            TimelyException error = null;
+            try {
+                result = task.call(new QueryContext());
+            } catch (TimelyException e) {
+                error = e;
+            }
+            complete(callback, result, error);
+            return;
+        }
+        new ScheduledQuery<>(channel, task, callback).schedule();
+    }
+
+    public int getDepth() {
+        return workers == null ? 0 : workers.getQueue().size();
+    }
+
+    private static <T> void complete(QueryCallback<T> callback, T result, TimelyException error) {
+        try {
+            callback.completed(result, error);
+        } catch (Exception e) {
+            log.error("Error completing query: " + e.getMessage(), e);
+        }
+    }
+
+    private class ScheduledQuery<T> implements Runnable, ChannelFutureListener {
+
+        private final Channel channel;
+        private final QueryTask<T> task;
+        private final QueryCallback<T> callback;
+        private final QueryContext context = new QueryContext();
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final long submitted = System.currentTimeMillis();
+        private volatile Future<?> future = null;
+        private volatile ScheduledFuture<?> timeout = null;
+
+        private ScheduledQuery(Channel channel, QueryTask<T> task, QueryCallback<T> callback) {
+            this.channel = channel;
+            this.task = task;
+            this.callback = callback;
+        }
+
+        private void schedule() {
+            // registered before the query is queued so that a query that completes immediately can always remove them
+            channel.closeFuture().addListener(this);
+            if (queryProperties.getTimeoutSeconds() > 0) {
+                timeout = timer.schedule(this::timeout, queryProperties.getTimeoutSeconds(), TimeUnit.SECONDS);
+            }
+            try {
+                future = workers.submit(this);
+            } catch (RejectedExecutionException e) {
+                internalMetrics.incrementQueriesRejected();
+                TimelyException error = new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Query queue full",
+                                "Maximum of " + queryProperties.getMaxQueued() + " queued queries reached");
+                error.addResponseHeader(HttpHeaderNames.RETRY_AFTER.toString(), Integer.toString(queryProperties.getRetryAfterSeconds()));
+                finish(null, error);
+                return;
+            }
+            internalMetrics.setQueryQueueDepth(workers.getQueue().size());
+        }
+
+        @Override
+        public void run() {
+            long started = System.currentTimeMillis();
+            internalMetrics.addQueryQueueWaitTime(started - submitted);
+            internalMetrics.setQueryQueueDepth(workers.getQueue().size());
+            if (done.get()) {
+                // timed out or cancelled while queued
+                return;
+            }
+            T result = null;
+            TimelyException error = null;
+            try {
+                result = task.call(context);
+            } catch (TimelyException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: " + e.getMessage(), e.getMessage(), e);
+            } finally {
+                internalMetrics.addQueryRunTime(System.currentTimeMillis() - started);
+            }
+            finish(result, error);
+        }
+
+        private void timeout() {
+            TimelyException error = new TimelyException(HttpResponseStatus.GATEWAY_TIMEOUT.code(), "Query timed out",
+                            "Query did not complete within " + queryProperties.getTimeoutSeconds() + " seconds");
+            if (finish(null, error)) {
+                log.debug("Query on {} timed out after {} seconds", channel, queryProperties.getTimeoutSeconds());
+                internalMetrics.incrementQueriesTimedOut();
+                stop();
+            }
+        }
+
+        /**
+         * Called when the channel closes
+         */
+        @Override
+        public void operationComplete(ChannelFuture closeFuture) {
+            if (done.compareAndSet(false, true)) {
+                log.debug("Channel {} closed, cancelling query", channel);
+                internalMetrics.incrementQueriesCancelled();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                stop();
+            }
+        }
+
+        private void stop() {
+            context.cancel();
+            Future<?> f = future;
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+
+        private boolean finish(T result, TimelyException error) {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            channel.closeFuture().removeListener(this);
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            try {
+                channel.eventLoop().execute(() -> complete(callback, result, error));
+            } catch (RejectedExecutionException e) {
+                log.warn("Unable to complete query on {}, event loop is shut down", channel);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package timely.server.store.cache;
+
+import static org.apache.accumulo.core.conf.ConfigurationTypeHelper.getTimeInMillis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.io.Text;
+
+import fi.iki.yak.ts.compression.gorilla.Pair;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+import timely.model.Tag;
+import timely.server.sample.Aggregation;
+import timely.server.sample.Aggregator;
+import timely.server.sample.Downsample;
+import timely.server.sample.DownsampleFactory;
+import timely.server.sample.Sample;
+import timely.server.store.QueryFilters;
+
+/**
+ * Runs a subquery directly over the Gorilla compressed values of the cache. The values of each series are read into primitive arrays, the rate is computed on
+ * them if requested and they are added to the Downsample of the series a block at a time, after which the series are aggregated into their groups.
+ *
+ * The result is the same as that of the {@link DataStoreCacheIterator}, {@link timely.server.sample.iterators.RateIterator},
+ * {@link timely.server.sample.iterators.DownsampleIterator} and {@link timely.server.sample.iterators.AggregationIterator} stack without creating a Key for
+ * each value. A series is the set of tags of a metric without the visibility, so the values of the TaggedMetrics of a series that only differ in visibility are
+ * combined in the order of their keys, by timestamp and then by visibility. When a TaggedMetric has more than one value for a timestamp, the last one read is
+ * used. Values in the coverage gaps of a restored cache are skipped, the caller reads those periods from Accumulo.
+ */
+class CacheQuery {
+
+    private final QueryRequest.SubQuery query;
+    private final Collection<VisibilityFilter> visibilityFilters;
+    private final long startTs;
+    private final long endTs;
+    private final DownsampleFactory factory;
+    private final Class<? extends Aggregator> aggClass;
+    private final List<CacheSnapshots.Gap> gaps;
+
+    private boolean rate = false;
+    private boolean isCounter = false;
+    private long maxCounter = 0;
+    private long resetValue = 0;
+    private long interval = 1000;
+
+    /**
+     * @param startTs
+     *            start of the first downsample period, inclusive
+     * @param endTs
+     *            end of the last downsample period, inclusive
+     * @param gaps
+     *            periods whose values are not read from the cache
+     */
+    CacheQuery(QueryRequest.SubQuery query, Collection<VisibilityFilter> visibilityFilters, long startTs, long endTs, long downsamplePeriod,
+                    Class<? extends Aggregator> daggClass, Class<? extends Aggregator> aggClass, List<CacheSnapshots.Gap> gaps) {
+        this.query = query;
+        this.visibilityFilters = visibilityFilters;
+        this.startTs = startTs;
+        this.endTs = endTs;
+        this.factory = new DownsampleFactory(startTs, endTs, downsamplePeriod, daggClass);
+        this.aggClass = aggClass;
+        this.gaps = gaps;
+        if (query.isRate()) {
+            QueryRequest.RateOption rateOptions = query.getRateOptions();
+            rate = true;
+            if (rateOptions.isCounter()) {
+                isCounter = true;
+                maxCounter = rateOptions.getCounterMax();
+                resetValue = rateOptions.getResetValue();
+            }
+            interval = getTimeInMillis(rateOptions.getInterval());
+        }
+    }
+
+    /**
+     * @return the aggregation of each group, or the Downsample of each series if the query has no aggregator
+     */
+    Map<Set<Tag>,Aggregation> run(Map<TaggedMetric,GorillaStore> stores) throws TimelyException {
+        Map<Set<Tag>,Aggregation> downsamples = new HashMap<>();
+        for (Map.Entry<Set<Tag>,List<Map.Entry<TaggedMetric,GorillaStore>>> series : getMatchingSeries(stores).entrySet()) {
+            SeriesValues values = new SeriesValues();
+            for (Map.Entry<TaggedMetric,GorillaStore> entry : series.getValue()) {
+                values.read(entry.getValue().getDecompressors(startTs, endTs));
+            }
+            values.sort();
+            if (rate) {
+                values.rate();
+            }
+            if (values.size > 0) {
+                Downsample downsample = factory.create();
+                downsample.addAll(values.timestamps, values.values, values.size);
+                downsamples.put(series.getKey(), downsample);
+            }
+        }
+        if (aggClass == null || downsamples.isEmpty()) {
+            return downsamples;
+        }
+        return aggregate(downsamples);
+    }
+
+    /**
+     * @return the TaggedMetrics that match the query and are visible, grouped by series and ordered by visibility
+     */
+    private Map<Set<Tag>,List<Map.Entry<TaggedMetric,GorillaStore>>> getMatchingSeries(Map<TaggedMetric,GorillaStore> stores) {
+        Map<String,String> requestedTags = QueryFilters.getTagPatterns(query);
+        Map<Set<Tag>,List<Map.Entry<TaggedMetric,GorillaStore>>> series = new HashMap<>();
+        for (Map.Entry<TaggedMetric,GorillaStore> entry : stores.entrySet()) {
+            TaggedMetric taggedMetric = entry.getKey();
+            if (!taggedMetric.matches(requestedTags) || !isVisible(taggedMetric)) {
+                continue;
+            }
+            Set<Tag> tags = new HashSet<>();
+            for (Map.Entry<String,String> tag : taggedMetric.getTags().entrySet()) {
+                if (!tag.getKey().equals(TaggedMetric.VISIBILITY_TAG)) {
+                    tags.add(new Tag(tag.getKey(), tag.getValue()));
+                }
+            }
+            series.computeIfAbsent(tags, t -> new ArrayList<>(1)).add(entry);
+        }
+        Comparator<Map.Entry<TaggedMetric,GorillaStore>> visibilityOrder = Comparator
+                        .comparing(e -> new Text(e.getKey().getTags().getOrDefault(TaggedMetric.VISIBILITY_TAG, "")));
+        for (List<Map.Entry<TaggedMetric,GorillaStore>> taggedMetrics : series.values()) {
+            if (taggedMetrics.size() > 1) {
+                taggedMetrics.sort(visibilityOrder);
+            }
+        }
+        return series;
+    }
+
+    private boolean isVisible(TaggedMetric taggedMetric) {
+        boolean isVisible = false;
+        for (VisibilityFilter v : visibilityFilters) {
+            if (taggedMetric.isVisible(v)) {
+                isVisible = true;
+            } else {
+                return false;
+            }
+        }
+        return isVisible;
+    }
+
+    /**
+     * Aggregate the Downsamples of the series into the requested tags, with the value of each group by tag replaced by the value of the series
+     */
+    private Map<Set<Tag>,Aggregation> aggregate(Map<Set<Tag>,Aggregation> downsamples) {
+        Set<String> groupBy = new HashSet<>(QueryFilters.getGroupByTags(query));
+        Set<Tag> tags = new HashSet<>();
+        for (Map.Entry<String,String> tag : query.getTags().entrySet()) {
+            tags.add(new Tag(tag.getKey(), tag.getValue()));
+        }
+        Map<Set<Tag>,Aggregation> aggregations = new HashMap<>();
+        for (Map.Entry<Set<Tag>,Aggregation> entry : downsamples.entrySet()) {
+            Set<Tag> group = tags;
+            if (!groupBy.isEmpty()) {
+                group = new HashSet<>();
+                for (Tag tag : tags) {
+                    if (!groupBy.contains(tag.getKey())) {
+                        group.add(tag);
+                    }
+                }
+                for (Tag tag : entry.getKey()) {
+                    if (groupBy.contains(tag.getKey())) {
+                        group.add(tag);
+                    }
+                }
+            }
+            Aggregation aggregation = aggregations.computeIfAbsent(group, g -> newAggregation());
+            for (Sample sample : entry.getValue()) {
+                aggregation.add(sample.getTimestamp(), sample.getValue());
+            }
+        }
+        return aggregations;
+    }
+
+    private Aggregation newAggregation() {
+        try {
+            return new Aggregation(aggClass.getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Error creating aggregator class: " + aggClass, e);
+        }
+    }
+
+    /**
+     * Rate of change between two consecutive values of a series, as computed by the RateIterator
+     */
+    private double rate(long firstTs, double firstVal, long secondTs, double secondVal) {
+        if (isCounter && (secondVal < firstVal)) {
+            if (maxCounter > 0) {
+                secondVal += maxCounter;
+            } else {
+                secondVal += firstVal;
+            }
+        }
+        long timeDiff = secondTs - firstTs;
+        if (timeDiff == 0) {
+            return 0.0D;
+        }
+        double result = (secondVal - firstVal) / timeDiff * interval;
+        if (isCounter && resetValue > 0 && result > resetValue) {
+            result = 0.0D;
+        }
+        return result;
+    }
+
+    private boolean inGap(long ts) {
+        for (int i = 0; i < gaps.size(); i++) {
+            if (gaps.get(i).contains(ts)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The values of a series within the query range, in primitive arrays
+     */
+    private class SeriesValues {
+
+        private long[] timestamps = new long[64];
+        private double[] values = new double[64];
+        private int size = 0;
+        // values before this index have been sorted by timestamp
+        private int sorted = 0;
+
+        private void read(List<WrappedGorillaDecompressor> decompressors) {
+            try {
+                for (WrappedGorillaDecompressor decompressor : decompressors) {
+                    Pair pair;
+                    while ((pair = decompressor.readPair()) != null) {
+                        long ts = pair.getTimestamp();
+                        if (ts >= startTs && ts <= endTs && !inGap(ts)) {
+                            if (size == timestamps.length) {
+                                timestamps = Arrays.copyOf(timestamps, size * 2);
+                                values = Arrays.copyOf(values, size * 2);
+                            }
+                            timestamps[size] = ts;
+                            values[size] = pair.getDoubleValue();
+                            size++;
+                        }
+                    }
+                }
+            } finally {
+                // release the off heap blocks of decompressors that were not read to the end
+                for (WrappedGorillaDecompressor decompressor : decompressors) {
+                    decompressor.close();
+                }
+            }
+            // the values of a TaggedMetric have one value per timestamp
+            dedupe(sorted);
+            sorted = size;
+        }
+
+        /**
+         * Sort the values read since the given index by timestamp and keep the last value read for each timestamp
+         */
+        private void dedupe(int from) {
+            sortFrom(from, size);
+            int last = from - 1;
+            for (int i = from; i < size; i++) {
+                if (last >= from && timestamps[last] == timestamps[i]) {
+                    values[last] = values[i];
+                } else {
+                    last++;
+                    timestamps[last] = timestamps[i];
+                    values[last] = values[i];
+                }
+            }
+            size = last + 1;
+        }
+
+        /**
+         * Sort all of the values by timestamp, keeping the values of TaggedMetrics read earlier first for the same timestamp
+         */
+        private void sort() {
+            sortFrom(0, size);
+        }
+
+        /**
+         * Stable sort by timestamp of the values from the given index, inclusive, to the given index, exclusive
+         */
+        private void sortFrom(int from, int to) {
+            boolean inOrder = true;
+            for (int i = from + 1; i < to && inOrder; i++) {
+                inOrder = timestamps[i - 1] <= timestamps[i];
+            }
+            if (inOrder) {
+                return;
+            }
+            Integer[] order = new Integer[to - from];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = from + i;
+            }
+            long[] ts = timestamps;
+            Arrays.sort(order, Comparator.comparingLong(i -> ts[i]));
+            long[] sortedTimestamps = new long[order.length];
+            double[] sortedValues = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedTimestamps[i] = timestamps[order[i]];
+                sortedValues[i] = values[order[i]];
+            }
+            System.arraycopy(sortedTimestamps, 0, timestamps, from, order.length);
+            System.arraycopy(sortedValues, 0, values, from, order.length);
+        }
+
+        /**
+         * Replace the values with the rate of change from each value to the next, at the timestamp of the next
+         */
+        private void rate() {
+            for (int i = 1; i < size; i++) {
+                values[i - 1] = CacheQuery.this.rate(timestamps[i - 1], values[i - 1], timestamps[i], values[i]);
+                timestamps[i - 1] = timestamps[i];
+            }
+            size = Math.max(0, size - 1);
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package timely.server.store.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.model.Tag;
+
+/**
+ * Snapshots of the archived compressors of the cache in a local directory, so that a restarted server can answer queries from the cache without waiting for it
+ * to refill.
+ * <p>
+ * A snapshot is a log of records, one per archived compressor, spread over files of up to {@link #MAX_FILE_SIZE} bytes. A record is the length and CRC32C of
+ * its payload followed by the payload: the metric, the tags of the series and the compressed values. Each snapshot appends the compressors archived since the
+ * previous one. A file in which less than half of the records are still in the cache is compacted by the next snapshot, which appends its live records to the
+ * current file and deletes it. A record that was cut short by a crash is truncated when the files are opened, a complete record with a bad checksum is skipped.
+ * <p>
+ * When opened, the files are memory mapped and the records are checked and indexed by metric. The records of a metric are only decompressed when the metric is
+ * first used, and records that have aged off since they were written are dropped.
+ * <p>
+ * The values that were written to the cache while the server was down, and after a crash the values archived since the last snapshot, are not in the snapshot.
+ * A coverage file records the time through which the snapshot holds every value and the gaps in the time before it. Opening the snapshot adds a gap from that
+ * time to the restart, and queries must read the values of the gaps from Accumulo instead of the cache, see {@link #getGaps()}.
+ */
+public class CacheSnapshots implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshots.class);
+
+    static final long MAX_FILE_SIZE = 1L << 30;
+    // "TMLYSNAP"
+    private static final long MAGIC = 0x544d4c59534e4150L;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = Long.BYTES + Integer.BYTES;
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final String FILE_PREFIX = "cache-";
+    private static final String FILE_SUFFIX = ".snap";
+    private static final String COVERAGE_FILE = "coverage";
+
+    private final Path directory;
+    // records of the metrics that have not been used since the files were opened
+    private final Map<String,List<Record>> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // replaced, not modified, when the gaps change
+    private volatile List<Gap> gaps = Collections.emptyList();
+    // the remaining fields are guarded by snapshotLock
+    // length of each file by file number
+    private final TreeMap<Integer,Long> files = new TreeMap<>();
+    private Set<Integer> compactNext = new HashSet<>();
+    private int appendFile = -1;
+    private int nextFile = 0;
+    private FileChannel appendChannel = null;
+    // time through which the snapshot holds every archived value, apart from the gaps
+    private long completeThrough = Long.MIN_VALUE;
+    // gaps that ended longer ago than this have aged off
+    private long maxGapAge = Long.MAX_VALUE;
+
+    public CacheSnapshots(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Map the snapshot files and index their records by metric, and add a gap from the time through which the snapshot is complete to now
+     *
+     * @param now
+     *            time of the restart
+     * @param maxAge
+     *            longest age off of any metric in milliseconds, gaps that ended before it are forgotten
+     */
+    public void open(long now, long maxAge) throws IOException {
+        snapshotLock.lock();
+        try {
+            Files.createDirectories(directory);
+            maxGapAge = maxAge;
+            TreeMap<Integer,Path> found = new TreeMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    try {
+                        found.put(Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())), path);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring cache snapshot file {}", path);
+                    }
+                }
+            }
+            // new files are numbered after every file found, including the ones that are ignored
+            nextFile = found.isEmpty() ? 0 : found.lastKey() + 1;
+            long records = 0;
+            for (Map.Entry<Integer,Path> entry : found.entrySet()) {
+                records += scan(entry.getKey(), entry.getValue());
+            }
+            List<Gap> restored = new ArrayList<>();
+            // without a coverage file none of the restored values are known to be complete
+            readCoverage(restored);
+            if (records > 0 && completeThrough < now) {
+                restored.add(new Gap(completeThrough == Long.MIN_VALUE ? 0 : completeThrough + 1, now));
+            }
+            // nothing after the restart is in the snapshot yet, which the gap up to now accounts for
+            completeThrough = now;
+            writeCoverage(restored, now);
+            log.info("Opened {} cache snapshot files in {} with {} records of {} metrics, coverage gaps {}", files.size(), directory, records, pending.size(),
+                            gaps);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of records indexed
+     */
+    private long scan(int file, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < FILE_HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                log.warn("Ignoring cache snapshot file {} of {} bytes", path, size);
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(Long.BYTES) != VERSION) {
+                log.warn("Ignoring cache snapshot file {} with an unknown header", path);
+                return 0;
+            }
+            long records = 0;
+            int position = FILE_HEADER_LENGTH;
+            while (position < size) {
+                int length = size - position >= RECORD_HEADER_LENGTH ? buffer.getInt(position) : 0;
+                if (length <= 0 || length > size - position - RECORD_HEADER_LENGTH) {
+                    // the frame runs past the end of the file, the rest of the file was not written
+                    log.warn("Truncating cache snapshot file {} from {} to {} bytes after an incomplete record", path, size, position);
+                    channel.truncate(position);
+                    size = position;
+                    break;
+                }
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(position + RECORD_HEADER_LENGTH).limit(position + RECORD_HEADER_LENGTH + length);
+                payload = payload.slice();
+                int crc = buffer.getInt(position + Integer.BYTES);
+                Record record = checksum(payload) == crc ? Record.parse(file, payload, crc) : null;
+                if (record == null) {
+                    // the frame is intact, so the records after it can still be read
+                    log.warn("Skipping corrupt cache snapshot record of {} bytes at {} in file {}", length, position, path);
+                } else {
+                    pending.computeIfAbsent(record.metric, m -> new ArrayList<>()).add(record);
+                    records++;
+                }
+                position += RECORD_HEADER_LENGTH + length;
+            }
+            files.put(file, size);
+            return records;
+        }
+    }
+
+    /**
+     * Read the coverage file into completeThrough and the given list of gaps, leaving them unchanged if there is no valid coverage file
+     */
+    private void readCoverage(List<Gap> restored) throws IOException {
+        Path path = directory.resolve(COVERAGE_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < FILE_HEADER_LENGTH + Long.BYTES + Integer.BYTES || buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+            log.warn("Ignoring cache snapshot coverage file {} with an unknown header", path);
+            return;
+        }
+        long through = buffer.getLong();
+        int numGaps = buffer.getInt();
+        if (numGaps < 0 || buffer.remaining() != numGaps * 2 * Long.BYTES) {
+            log.warn("Ignoring cache snapshot coverage file {} of {} bytes", path, buffer.limit());
+            return;
+        }
+        for (int i = 0; i < numGaps; i++) {
+            restored.add(new Gap(buffer.getLong(), buffer.getLong()));
+        }
+        completeThrough = through;
+    }
+
+    /**
+     * Replace the coverage file with the current completeThrough and the gaps that have not aged off, and publish the gaps to queries
+     */
+    private void writeCoverage(List<Gap> current, long now) throws IOException {
+        List<Gap> kept = new ArrayList<>(current.size());
+        for (Gap gap : current) {
+            if (now - gap.end < maxGapAge) {
+                kept.add(gap);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_LENGTH + Long.BYTES + Integer.BYTES + kept.size() * 2 * Long.BYTES);
+        buffer.putLong(MAGIC).putInt(VERSION).putLong(completeThrough).putInt(kept.size());
+        for (Gap gap : kept) {
+            buffer.putLong(gap.start).putLong(gap.end);
+        }
+        buffer.flip();
+        // write a new file and move it into place so that a crash leaves either the old or the new coverage
+        Path tmp = directory.resolve(COVERAGE_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, buffer, 0);
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(COVERAGE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        gaps = Collections.unmodifiableList(kept);
+    }
+
+    /**
+     * @return the periods, oldest first, whose values may be missing from the cache because they were written while it was down or were lost in a crash.
+     *         Queries must not read these periods from the cache.
+     */
+    public List<Gap> getGaps() {
+        return gaps;
+    }
+
+    /**
+     * @return true if the metric has records that have not been loaded
+     */
+    public boolean isPending(String metric) {
+        return !pending.isEmpty() && pending.containsKey(metric);
+    }
+
+    /**
+     * Load the records of a metric that have not aged off. Threads that load the same metric at the same time wait for the first one, so that the records are
+     * only added to the cache once.
+     *
+     * @param maxAge
+     *            age off of the metric in milliseconds
+     * @param loader
+     *            adds the compressors of each series to the cache
+     */
+    public void load(String metric, long maxAge, long now, Consumer<Map<TaggedMetric,List<WrappedGorillaCompressor>>> loader) {
+        pending.computeIfPresent(metric, (m, records) -> {
+            Map<TaggedMetric,List<WrappedGorillaCompressor>> series = new HashMap<>();
+            long numLoaded = 0;
+            for (Record record : records) {
+                if (now - record.newestTimestamp >= maxAge) {
+                    continue;
+                }
+                ByteBuffer payload = record.payload.duplicate();
+                readString(payload);
+                int numTags = payload.getInt();
+                List<Tag> tags = new ArrayList<>(numTags);
+                for (int i = 0; i < numTags; i++) {
+                    tags.add(new Tag(readString(payload), readString(payload)));
+                }
+                long numEntries = payload.getLong();
+                long oldestTimestamp = payload.getLong();
+                long newestTimestamp = payload.getLong();
+                long[] compressed = new long[payload.getInt()];
+                payload.asLongBuffer().get(compressed);
+                WrappedGorillaCompressor c = new WrappedGorillaCompressor(numEntries, oldestTimestamp, newestTimestamp, compressed);
+                c.setSnapshot(record.file, record.length);
+                series.computeIfAbsent(new TaggedMetric(tags), t -> new ArrayList<>()).add(c);
+                numLoaded++;
+            }
+            log.debug("Loaded {} of {} cache snapshot records of {}", numLoaded, records.size(), metric);
+            if (!series.isEmpty()) {
+                loader.accept(series);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Start a snapshot. Only one snapshot is written at a time, the snapshot must be closed.
+     */
+    public Snapshot begin() {
+        snapshotLock.lock();
+        return new Snapshot();
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotLock.lock();
+        try {
+            if (appendChannel != null) {
+                appendChannel.close();
+                appendChannel = null;
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private Path getPath(int file) {
+        return directory.resolve(String.format("%s%08d%s", FILE_PREFIX, file, FILE_SUFFIX));
+    }
+
+    /**
+     * Append a record to the current file, starting a new file when the current one is full
+     *
+     * @return the file the record was written to
+     */
+    private int append(ByteBuffer record) throws IOException {
+        // a channel closed by an interrupted write is replaced by a new file
+        if (appendChannel == null || !appendChannel.isOpen() || files.get(appendFile) >= MAX_FILE_SIZE) {
+            if (appendChannel != null && appendChannel.isOpen()) {
+                appendChannel.force(false);
+                appendChannel.close();
+            }
+            appendFile = nextFile++;
+            appendChannel = FileChannel.open(getPath(appendFile), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            header.putLong(MAGIC).putInt(VERSION).flip();
+            writeFully(appendChannel, header, 0);
+            files.put(appendFile, (long) FILE_HEADER_LENGTH);
+        }
+        long position = files.get(appendFile);
+        writeFully(appendChannel, record, position);
+        files.put(appendFile, position + record.limit());
+        return appendFile;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer encode(String metric, TaggedMetric taggedMetric, WrappedGorillaCompressor c, long[] compressed) {
+        byte[] metricBytes = metric.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> tagBytes = new ArrayList<>();
+        int length = Integer.BYTES + metricBytes.length + Integer.BYTES;
+        for (Map.Entry<String,String> tag : taggedMetric.getTags().entrySet()) {
+            byte[] key = tag.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = tag.getValue().getBytes(StandardCharsets.UTF_8);
+            tagBytes.add(key);
+            tagBytes.add(value);
+            length += 2 * Integer.BYTES + key.length + value.length;
+        }
+        length += 3 * Long.BYTES + Integer.BYTES + compressed.length * Long.BYTES;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        record.position(RECORD_HEADER_LENGTH);
+        record.putInt(metricBytes.length).put(metricBytes);
+        record.putInt(tagBytes.size() / 2);
+        for (byte[] bytes : tagBytes) {
+            record.putInt(bytes.length).put(bytes);
+        }
+        record.putLong(c.getNumEntries()).putLong(c.getOldestTimestamp()).putLong(c.getNewestTimestamp());
+        record.putInt(compressed.length);
+        record.asLongBuffer().put(compressed);
+        record.putInt(0, length).putInt(Integer.BYTES, checksum(ByteBuffer.wrap(record.array(), RECORD_HEADER_LENGTH, length)));
+        record.position(0).limit(RECORD_HEADER_LENGTH + length);
+        return record;
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A snapshot in progress. Each archived compressor of the cache is passed to {@link #add(String, TaggedMetric, GorillaStore)}, after which
+     * {@link #commit(ToLongFunction, long, long)} writes the records of metrics that have not been loaded yet and compacts files.
+     */
+    public class Snapshot implements Closeable {
+
+        // files whose live records are rewritten by this snapshot
+        private final Set<Integer> compacting;
+        // bytes of live records in each file
+        private final Map<Integer,Long> live = new HashMap<>();
+        private long written = 0;
+
+        private Snapshot() {
+            compacting = compactNext;
+            compactNext = new HashSet<>();
+            compacting.remove(appendFile);
+        }
+
+        /**
+         * Write the archived compressors of a series that are not in a snapshot file yet
+         */
+        public void add(String metric, TaggedMetric taggedMetric, GorillaStore store) throws IOException {
+            for (WrappedGorillaCompressor c : store.getArchivedCompressors()) {
+                int file = c.getSnapshotFile();
+                if (file >= 0 && files.containsKey(file) && !compacting.contains(file)) {
+                    live.merge(file, (long) c.getSnapshotLength(), Long::sum);
+                    continue;
+                }
+                long[] compressed = c.getSnapshotOutput();
+                if (compressed == null) {
+                    // released since the list was copied
+                    continue;
+                }
+                ByteBuffer record = encode(metric, taggedMetric, c, compressed);
+                int length = record.limit();
+                file = append(record);
+                c.setSnapshot(file, length);
+                live.merge(file, (long) length, Long::sum);
+                written++;
+            }
+        }
+
+        /**
+         * Carry over the records of metrics that have not been loaded, delete the files that were compacted and make the written records durable
+         *
+         * @param ageOff
+         *            age off of a metric in milliseconds, the records of metrics that have not been loaded are dropped once they age off
+         * @param archivedThrough
+         *            time through which every value of the cache had been archived before the compressors were added, recorded once the records are durable
+         */
+        public void commit(ToLongFunction<String> ageOff, long now, long archivedThrough) throws IOException {
+            for (String metric : new ArrayList<>(pending.keySet())) {
+                long maxAge = ageOff.applyAsLong(metric);
+                IOException[] failure = new IOException[1];
+                pending.computeIfPresent(metric, (m, records) -> {
+                    Iterator<Record> itr = records.iterator();
+                    while (itr.hasNext()) {
+                        Record record = itr.next();
+                        if (now - record.newestTimestamp >= maxAge) {
+                            itr.remove();
+                            continue;
+                        }
+                        if (compacting.contains(record.file) && failure[0] == null) {
+                            ByteBuffer copy = ByteBuffer.allocate(record.length);
+                            copy.putInt(record.length - RECORD_HEADER_LENGTH).putInt(record.crc).put(record.payload.duplicate()).flip();
+                            try {
+                                record.file = append(copy);
+                                // the mapping of the compacted file is not read once the file is deleted
+                                record.payload = ByteBuffer.wrap(copy.array(), RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH).slice();
+                                written++;
+                            } catch (IOException e) {
+                                failure[0] = e;
+                            }
+                        }
+                        live.merge(record.file, (long) record.length, Long::sum);
+                    }
+                    return records.isEmpty() ? null : records;
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            if (appendChannel != null && appendChannel.isOpen()) {
+                appendChannel.force(false);
+            }
+            if (archivedThrough > completeThrough) {
+                completeThrough = archivedThrough;
+            }
+            writeCoverage(gaps, now);
+            for (int file : compacting) {
+                if (files.remove(file) != null) {
+                    Files.deleteIfExists(getPath(file));
+                }
+            }
+            for (Map.Entry<Integer,Long> file : files.entrySet()) {
+                if (file.getKey() != appendFile && live.getOrDefault(file.getKey(), 0L) < (file.getValue() - FILE_HEADER_LENGTH) / 2) {
+                    compactNext.add(file.getKey());
+                }
+            }
+            log.info("Cache snapshot wrote {} records, compacted {} files, {} files will be compacted by the next snapshot", written, compacting.size(),
+                            compactNext.size());
+        }
+
+        @Override
+        public void close() {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * A period that is missing from the cache
+     */
+    public static class Gap {
+
+        private final long start;
+        private final long end;
+
+        Gap(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return start of the gap, inclusive
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return end of the gap, inclusive
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public boolean contains(long timestamp) {
+            return timestamp >= start && timestamp <= end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + "," + end + "]";
+        }
+    }
+
+    /**
+     * A record of a metric that has not been loaded, in a mapped file or on the heap once it has been copied out of a file that is compacted
+     */
+    private static class Record {
+
+        private final String metric;
+        private final int crc;
+        // total length of the record including its header
+        private final int length;
+        private final long newestTimestamp;
+        // updated when the record is copied out of a file that is compacted, while the records of the metric are locked by pending
+        private volatile int file;
+        private volatile ByteBuffer payload;
+
+        private Record(int file, String metric, ByteBuffer payload, int crc, long newestTimestamp) {
+            this.file = file;
+            this.metric = metric;
+            this.payload = payload;
+            this.crc = crc;
+            this.length = RECORD_HEADER_LENGTH + payload.limit();
+            this.newestTimestamp = newestTimestamp;
+        }
+
+        /**
+         * Read the metric and the time range of a record whose checksum has been verified
+         *
+         * @return the record, or null if the fields of the payload do not match its length
+         */
+        private static Record parse(int file, ByteBuffer payload, int crc) {
+            try {
+                ByteBuffer buffer = payload.duplicate();
+                String metric = readString(buffer);
+                int numTags = buffer.getInt();
+                for (int i = 0; i < 2 * numTags; i++) {
+                    int length = buffer.getInt();
+                    buffer.position(buffer.position() + length);
+                }
+                buffer.getLong();
+                buffer.getLong();
+                long newestTimestamp = buffer.getLong();
+                int numLongs = buffer.getInt();
+                if (numLongs < 0 || buffer.remaining() != numLongs * Long.BYTES) {
+                    return null;
+                }
+                return new Record(file, metric, payload, crc, newestTimestamp);
+            } catch (RuntimeException e) {
+                // a length within the payload was cut off or overwritten
+                return null;
+            }
+        }
+    }
+}
@@ -5,13 +5,13 @@ import static timely.Constants.NON_CACHED_METRICS_LOCK_PATH;
 import static timely.common.configuration.CacheProperties.DEFAULT_AGEOFF_KEY;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,6 +20,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.StampedLock;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.data.Key;
@@ -62,15 +64,23 @@ import timely.server.sample.iterators.DownsampleIterator;
 import timely.server.sample.iterators.RateIterator;
 import timely.server.store.InternalMetrics;
 import timely.server.store.MetricAgeOffIterator;
+import timely.server.store.QueryFilters;
 
 public class DataStoreCache {
 
     private static final Logger log = LoggerFactory.getLogger(DataStoreCache.class);
 
-    private Map<String,Map<TaggedMetric,GorillaStore>> gorillaMap = new HashMap<>();
-    private StampedLock gorillaMapLock = new StampedLock();
+    private final Shard[] shards;
+    // null when archived compressors are kept on the heap
+    private final OffHeapBlocks offHeapBlocks;
+    // null when the cache is not snapshot
+    private final CacheSnapshots snapshots;
+    // time through which every value of the cache has been archived, so that it is in the next snapshot
+    private volatile long archivedThrough;
 
     private Set<String> nonCachedMetrics = Collections.synchronizedSet(new HashSet<>());
+    // compiled form of the entries in nonCachedMetrics, replaced whenever the set is updated so that a regex is only compiled once
+    private volatile Map<String,Pattern> nonCachedMetricPatterns = Collections.emptyMap();
     private DistributedAtomicValue nonCachedMetricsIP = null;
     private InterProcessReadWriteLock nonCachedMetricsIPRWLock;
     private long staleCacheExpiration;
@@ -95,6 +105,13 @@ public class DataStoreCache {
         this.cacheProperties = cacheProperties;
         this.maxUniqueTagSets = cacheProperties.getMaxUniqueTagSets();
         this.staleCacheExpiration = cacheProperties.getStaleCacheExpiration();
+        this.shards = new Shard[Math.max(1, cacheProperties.getShards())];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        this.offHeapBlocks = cacheProperties.getOffHeapBudget() > 0 ? new OffHeapBlocks(cacheProperties.getOffHeapBudget()) : null;
+        String snapshotDirectory = cacheProperties.getSnapshotDirectory();
+        this.snapshots = StringUtils.isBlank(snapshotDirectory) ? null : new CacheSnapshots(Paths.get(snapshotDirectory));
     }
 
     public void start() throws Exception {
@@ -106,6 +123,18 @@ public class DataStoreCache {
         log.info("Reading initial values from nonCachedMetricsIP");
         readNonCachedMetricsIP();
         configureAgeOff(timelyProperties, cacheProperties);
+        if (snapshots != null) {
+            long now = System.currentTimeMillis();
+            snapshots.open(now, minimumAgeOff.values().stream().mapToLong(Long::longValue).max().orElse(Long.MAX_VALUE));
+            archivedThrough = now;
+            executorService.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshotCache();
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                }
+            }, cacheProperties.getSnapshotInterval(), cacheProperties.getSnapshotInterval(), TimeUnit.MILLISECONDS);
+        }
 
         executorService.scheduleAtFixedRate(() -> {
             try {
@@ -138,7 +167,8 @@ public class DataStoreCache {
 
         executorService.scheduleAtFixedRate(() -> {
             try {
-                archiveGorillaStoreCurrentCompressors();
+                // a value waits for up to numBatches flush intervals before it is in the current compressor
+                archiveGorillaStoreCurrentCompressors(System.currentTimeMillis() - numBatches * cacheProperties.getFlushInterval());
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
             }
@@ -174,6 +204,78 @@ public class DataStoreCache {
                 this.executorService.shutdownNow();
             }
         }
+        if (snapshots != null) {
+            try {
+                // archive the values that are still in the current compressors so that they are in the snapshot
+                long now = System.currentTimeMillis();
+                flushCaches(-1);
+                archiveGorillaStoreCurrentCompressors(now);
+                snapshotCache();
+            } catch (Exception e) {
+                log.error("Unable to snapshot the cache on shutdown: " + e.getMessage(), e);
+            } finally {
+                try {
+                    snapshots.close();
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the archived compressors that are not in the snapshot yet
+     */
+    private void snapshotCache() throws IOException {
+        long start = System.currentTimeMillis();
+        // read before the compressors are added, the snapshot is only complete through the last archive that has finished
+        long through = archivedThrough;
+        try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+            for (Shard shard : shards) {
+                // write outside of the lock of the shard
+                Map<String,Map<TaggedMetric,GorillaStore>> metrics = new HashMap<>();
+                long stamp = shard.lock.readLock();
+                try {
+                    for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : shard.metrics.entrySet()) {
+                        metrics.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                    }
+                } finally {
+                    shard.lock.unlockRead(stamp);
+                }
+                for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> metric : metrics.entrySet()) {
+                    for (Map.Entry<TaggedMetric,GorillaStore> series : metric.getValue().entrySet()) {
+                        snapshot.add(metric.getKey(), series.getKey(), series.getValue());
+                    }
+                }
+            }
+            snapshot.commit(this::getAgeOffForMetric, System.currentTimeMillis(), through);
+        }
+        log.debug("Time to snapshot the cache - {}ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Add the series of a metric from the snapshot the first time that the metric is used after a restart. Must not be called while holding the lock of a
+     * shard.
+     */
+    private void loadSnapshot(String metric) {
+        if (snapshots == null || !snapshots.isPending(metric)) {
+            return;
+        }
+        long maxAge = getAgeOffForMetric(metric);
+        snapshots.load(metric, maxAge, System.currentTimeMillis(), series -> {
+            Shard shard = getShard(metric);
+            long stamp = shard.lock.writeLock();
+            long lockedAt = System.nanoTime();
+            try {
+                Map<TaggedMetric,GorillaStore> metricMap = shard.metrics.computeIfAbsent(metric, m -> new HashMap<>());
+                for (Map.Entry<TaggedMetric,List<WrappedGorillaCompressor>> entry : series.entrySet()) {
+                    metricMap.computeIfAbsent(entry.getKey(), t -> new GorillaStore(metric, maxAge, offHeapBlocks)).addArchivedCompressors(entry.getValue());
+                }
+            } finally {
+                unlock(shard, stamp, lockedAt);
+            }
+            log.info("Loaded {} series of metric:{} from the cache snapshot", series.size(), metric);
+        });
     }
 
     public void configureAgeOff(TimelyProperties timelyProperties, CacheProperties cacheProperties) {
@@ -194,6 +296,7 @@ public class DataStoreCache {
             try {
                 log.info("Adding {} to local nonCachedMetrics", nonCachedMetricsUpdate);
                 nonCachedMetrics.addAll(nonCachedMetricsUpdate);
+                updateNonCachedMetricPatterns();
                 if (nonCachedMetricsIP != null) {
                     try {
                         nonCachedMetricsIPRWLock.writeLock().acquire();
@@ -233,6 +336,30 @@ public class DataStoreCache {
         }
     }
 
+    /**
+     * Rebuild the compiled patterns from the current contents of nonCachedMetrics, keeping the patterns of entries that are still present
+     */
+    private void updateNonCachedMetricPatterns() {
+        synchronized (nonCachedMetrics) {
+            Map<String,Pattern> current = nonCachedMetricPatterns;
+            Map<String,Pattern> patterns = new HashMap<>();
+            for (String r : nonCachedMetrics) {
+                Pattern pattern = current.get(r);
+                if (pattern == null) {
+                    try {
+                        pattern = Pattern.compile(r);
+                    } catch (PatternSyntaxException e) {
+                        // still excludes the metric of that exact name
+                        log.warn("Invalid nonCachedMetrics pattern {}: {}", r, e.getMessage());
+                        continue;
+                    }
+                }
+                patterns.put(r, pattern);
+            }
+            nonCachedMetricPatterns = Collections.unmodifiableMap(patterns);
+        }
+    }
+
     protected void addNonCachedMetricsListener(CuratorFramework curatorFramework) {
         nonCachedMetricsIPRWLock = new InterProcessReadWriteLock(curatorFramework, NON_CACHED_METRICS_LOCK_PATH);
         testIPRWLock(curatorFramework, nonCachedMetricsIPRWLock, NON_CACHED_METRICS_LOCK_PATH);
@@ -275,6 +402,7 @@ public class DataStoreCache {
                     nonCachedMetricsUpdate.removeAll(nonCachedMetrics);
                     log.info("Adding {} to local nonCachedMetrics", nonCachedMetricsUpdate);
                     nonCachedMetrics.addAll(nonCachedMetricsUpdate);
+                    updateNonCachedMetricPatterns();
                 }
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
@@ -309,202 +437,287 @@ public class DataStoreCache {
 
     private void reportInternalMetrics() {
         if (internalMetrics != null) {
-            long stamp = gorillaMapLock.readLock();
-            try {
-                long now = System.currentTimeMillis();
-                long cachedEntries = 0;
-                long oldestCacheEntry = Long.MAX_VALUE;
-                String oldestMetric = "";
-                for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> e : gorillaMap.entrySet()) {
-                    String metric = e.getKey();
-                    Map<TaggedMetric,GorillaStore> e1 = e.getValue();
-                    for (Map.Entry<TaggedMetric,GorillaStore> e2 : e1.entrySet()) {
-                        cachedEntries += e2.getValue().getNumEntries();
-                        long oldestTimestamp = e2.getValue().getOldestTimestamp();
-                        if (oldestTimestamp < oldestCacheEntry) {
-                            if (log.isTraceEnabled()) {
-                                String oldestCacheEntryAge;
-                                if (oldestCacheEntry == Long.MAX_VALUE) {
-                                    oldestCacheEntryAge = "Long.MAX_VALUE";
-                                } else {
-                                    oldestCacheEntryAge = Long.toString((now - oldestCacheEntry) / (60 * 1000));
+            long now = System.currentTimeMillis();
+            long cachedEntries = 0;
+            long oldestCacheEntry = Long.MAX_VALUE;
+            String oldestMetric = "";
+            for (Shard shard : shards) {
+                long stamp = shard.lock.readLock();
+                long lockedAt = System.nanoTime();
+                try {
+                    for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> e : shard.metrics.entrySet()) {
+                        String metric = e.getKey();
+                        Map<TaggedMetric,GorillaStore> e1 = e.getValue();
+                        for (Map.Entry<TaggedMetric,GorillaStore> e2 : e1.entrySet()) {
+                            cachedEntries += e2.getValue().getNumEntries();
+                            long oldestTimestamp = e2.getValue().getOldestTimestamp();
+                            if (oldestTimestamp < oldestCacheEntry) {
+                                if (log.isTraceEnabled()) {
+                                    String oldestCacheEntryAge;
+                                    if (oldestCacheEntry == Long.MAX_VALUE) {
+                                        oldestCacheEntryAge = "Long.MAX_VALUE";
+                                    } else {
+                                        oldestCacheEntryAge = Long.toString((now - oldestCacheEntry) / (60 * 1000));
+                                    }
+                                    log.trace("setInternalMetrics changing {} oldestCacheEntry from ageMin:{} to ageMin:{}", metric, oldestCacheEntryAge,
+                                                    (now - oldestTimestamp) / (60 * 1000));
                                 }
-                                log.trace("setInternalMetrics changing {} oldestCacheEntry from ageMin:{} to ageMin:{}", metric, oldestCacheEntryAge,
-                                                (now - oldestTimestamp) / (60 * 1000));
+                                oldestCacheEntry = oldestTimestamp;
+                                oldestMetric = metric;
                             }
-                            oldestCacheEntry = oldestTimestamp;
-                            oldestMetric = metric;
                         }
                     }
+                } finally {
+                    unlock(shard, stamp, lockedAt);
                 }
-                internalMetrics.setNumCachedMetricsTotal(cachedEntries);
-                long oldestCachedMetricAge;
-                if (oldestCacheEntry == Long.MAX_VALUE) {
-                    oldestCachedMetricAge = 0;
-                } else {
-                    oldestCachedMetricAge = System.currentTimeMillis() - oldestCacheEntry;
-                }
-                internalMetrics.setAgeOfOldestCachedMetric(oldestCachedMetricAge);
-                log.trace("reporting oldest cached metric as metric:{} ageMin:{}", oldestMetric, oldestCachedMetricAge / (60 * 1000));
-            } finally {
-                gorillaMapLock.unlockRead(stamp);
             }
+            internalMetrics.setNumCachedMetricsTotal(cachedEntries);
+            long oldestCachedMetricAge;
+            if (oldestCacheEntry == Long.MAX_VALUE) {
+                oldestCachedMetricAge = 0;
+            } else {
+                oldestCachedMetricAge = System.currentTimeMillis() - oldestCacheEntry;
+            }
+            internalMetrics.setAgeOfOldestCachedMetric(oldestCachedMetricAge);
+            if (offHeapBlocks != null) {
+                internalMetrics.setCacheOffHeapUsage(offHeapBlocks.getUsed(), offHeapBlocks.getBlocks());
+            }
+            log.trace("reporting oldest cached metric as metric:{} ageMin:{}", oldestMetric, oldestCachedMetricAge / (60 * 1000));
         }
     }
 
     private void pruneStats() {
-        long stamp = gorillaMapLock.writeLock();
-        try {
-            Iterator<Map.Entry<String,Map<TaggedMetric,GorillaStore>>> metricItr = gorillaMap.entrySet().iterator();
-
-            while (metricItr.hasNext()) {
-                Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry1 = metricItr.next();
-                int numberTagVariations = entry1.getValue().size();
-                if (numberTagVariations > maxUniqueTagSets) {
-                    log.info("Cache of metric {} has {} tag variations.  Discontinuing cache.", entry1.getKey(), numberTagVariations);
-                    metricItr.remove();
-                    addNonCachedMetrics(Collections.singleton(entry1.getKey()));
+        for (Shard shard : shards) {
+            List<String> discontinued = new ArrayList<>();
+            long stamp = shard.lock.writeLock();
+            long lockedAt = System.nanoTime();
+            try {
+                Iterator<Map.Entry<String,Map<TaggedMetric,GorillaStore>>> metricItr = shard.metrics.entrySet().iterator();
+
+                while (metricItr.hasNext()) {
+                    Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry1 = metricItr.next();
+                    int numberTagVariations = entry1.getValue().size();
+                    if (numberTagVariations > maxUniqueTagSets) {
+                        log.info("Cache of metric {} has {} tag variations.  Discontinuing cache.", entry1.getKey(), numberTagVariations);
+                        metricItr.remove();
+                        release(entry1.getValue().values());
+                        discontinued.add(entry1.getKey());
+                    }
                 }
+            } finally {
+                unlock(shard, stamp, lockedAt);
+            }
+            if (!discontinued.isEmpty()) {
+                addNonCachedMetrics(discontinued);
             }
-        } finally {
-            gorillaMapLock.unlockWrite(stamp);
         }
     }
 
     private void ageOffGorillaStores() {
-        long stamp = gorillaMapLock.writeLock();
-        try {
-            long numRemovedTotal = 0;
-            long now = System.currentTimeMillis();
-            Iterator<Map.Entry<String,Map<TaggedMetric,GorillaStore>>> metricIterator = gorillaMap.entrySet().iterator();
-            while (metricIterator.hasNext()) {
-                Map.Entry<String,Map<TaggedMetric,GorillaStore>> metricEntry = metricIterator.next();
-                String metric = metricEntry.getKey();
-                long maxAge = getAgeOffForMetric(metric);
-                long oldestTs = Long.MAX_VALUE;
-                long numRemovedMetric = 0;
-                Iterator<Map.Entry<TaggedMetric,GorillaStore>> taggedMetricItr = metricEntry.getValue().entrySet().iterator();
-                while (taggedMetricItr.hasNext()) {
-                    Map.Entry<TaggedMetric,GorillaStore> taggedMetricEntry = taggedMetricItr.next();
-                    GorillaStore store = taggedMetricEntry.getValue();
-                    numRemovedMetric += store.ageOffArchivedCompressors();
-                    long oldestTimestampInStore = store.getOldestTimestamp();
-                    if (oldestTimestampInStore < oldestTs) {
-                        oldestTs = oldestTimestampInStore;
+        long numRemovedTotal = 0;
+        long now = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            // the compressors are aged off under the read lock of the shard, only removing the stores that are now empty needs the write lock
+            Map<String,List<TaggedMetric>> emptyStores = new HashMap<>();
+            long stamp = shard.lock.readLock();
+            long lockedAt = System.nanoTime();
+            try {
+                for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> metricEntry : shard.metrics.entrySet()) {
+                    String metric = metricEntry.getKey();
+                    long maxAge = getAgeOffForMetric(metric);
+                    long oldestTs = Long.MAX_VALUE;
+                    long numRemovedMetric = 0;
+                    for (Map.Entry<TaggedMetric,GorillaStore> taggedMetricEntry : metricEntry.getValue().entrySet()) {
+                        GorillaStore store = taggedMetricEntry.getValue();
+                        numRemovedMetric += store.ageOffArchivedCompressors();
+                        long oldestTimestampInStore = store.getOldestTimestamp();
+                        if (oldestTimestampInStore < oldestTs) {
+                            oldestTs = oldestTimestampInStore;
+                        }
+                        if (oldestTimestampInStore == Long.MAX_VALUE && store.isEmpty()) {
+                            emptyStores.computeIfAbsent(metric, m -> new ArrayList<>()).add(taggedMetricEntry.getKey());
+                        }
                     }
-                    if (oldestTimestampInStore == Long.MAX_VALUE && store.isEmpty()) {
-                        log.trace("Gorilla store for {}:{} empty, removing", metric, taggedMetricEntry.getKey().getTags());
-                        taggedMetricItr.remove();
+                    numRemovedTotal += numRemovedMetric;
+                    if (log.isTraceEnabled()) {
+                        String oldestAgeMin;
+                        if (oldestTs == Long.MAX_VALUE) {
+                            oldestAgeMin = "Long.MAX_VALUE";
+                        } else {
+                            oldestAgeMin = Long.toString((now - oldestTs) / (60 * 1000));
+                        }
+                        log.trace("ageOffGorillaStores metric:{} with maxAgeMin:{}, oldestAgeMin:{} after aging off {} archived Gorilla compressors", metric,
+                                        (maxAge / (60 * 1000)), oldestAgeMin, numRemovedTotal);
                     }
                 }
-                numRemovedTotal += numRemovedMetric;
-                if (log.isTraceEnabled()) {
-                    String oldestAgeMin;
-                    if (oldestTs == Long.MAX_VALUE) {
-                        oldestAgeMin = "Long.MAX_VALUE";
-                    } else {
-                        oldestAgeMin = Long.toString((now - oldestTs) / (60 * 1000));
+            } finally {
+                unlock(shard, stamp, lockedAt);
+            }
+
+            if (!emptyStores.isEmpty()) {
+                stamp = shard.lock.writeLock();
+                lockedAt = System.nanoTime();
+                try {
+                    for (Map.Entry<String,List<TaggedMetric>> entry : emptyStores.entrySet()) {
+                        Map<TaggedMetric,GorillaStore> metricMap = shard.metrics.get(entry.getKey());
+                        if (metricMap == null) {
+                            continue;
+                        }
+                        for (TaggedMetric taggedMetric : entry.getValue()) {
+                            GorillaStore store = metricMap.get(taggedMetric);
+                            // a value may have been added since the store was found to be empty
+                            if (store != null && store.getOldestTimestamp() == Long.MAX_VALUE && store.isEmpty()) {
+                                log.trace("Gorilla store for {}:{} empty, removing", entry.getKey(), taggedMetric.getTags());
+                                metricMap.remove(taggedMetric);
+                                store.release();
+                            }
+                        }
                     }
-                    log.trace("ageOffGorillaStores metric:{} with maxAgeMin:{}, oldestAgeMin:{} after aging off {} archived Gorilla compressors", metric,
-                                    (maxAge / (60 * 1000)), oldestAgeMin, numRemovedTotal);
+                } finally {
+                    unlock(shard, stamp, lockedAt);
                 }
             }
-            log.trace("ageOffGorillaStores aged off {} archived Gorilla compressors", numRemovedTotal);
-        } finally {
-            gorillaMapLock.unlockWrite(stamp);
         }
+        log.trace("ageOffGorillaStores aged off {} archived Gorilla compressors", numRemovedTotal);
     }
 
     public void flushCaches(int flushBatch) {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            int x = 0;
-            for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : gorillaMap.entrySet()) {
-                if (flushBatch == -1 || x % numBatches == flushBatch) {
-                    for (GorillaStore store : entry.getValue().values()) {
-                        try {
-                            store.flush();
-                        } catch (Exception e) {
-                            log.error(e.getMessage(), e);
-                        }
+        int x = 0;
+        for (Shard shard : shards) {
+            // flush outside of the lock so that new series can be added to the shard while its stores compress their values
+            List<GorillaStore> stores = new ArrayList<>();
+            long stamp = shard.lock.readLock();
+            try {
+                for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : shard.metrics.entrySet()) {
+                    if (flushBatch == -1 || x % numBatches == flushBatch) {
+                        stores.addAll(entry.getValue().values());
                     }
+                    x++;
+                }
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
+            for (GorillaStore store : stores) {
+                try {
+                    store.flush();
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
                 }
-                x++;
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
     }
 
-    private void archiveGorillaStoreCurrentCompressors() {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : gorillaMap.entrySet()) {
-                for (GorillaStore store : entry.getValue().values()) {
-                    store.archiveCurrentCompressor();
-                }
+    /**
+     * @param through
+     *            time through which every value has been flushed to the current compressors
+     */
+    private void archiveGorillaStoreCurrentCompressors(long through) {
+        for (Shard shard : shards) {
+            for (GorillaStore store : getStores(shard)) {
+                store.archiveCurrentCompressor();
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        }
+        if (through > archivedThrough) {
+            archivedThrough = through;
         }
     }
 
-    private void removeStaleMetrics() {
+    /**
+     * @return the periods, oldest first, that the cache may be missing values of after a restart from a snapshot and that must be read from Accumulo instead
+     */
+    public List<CacheSnapshots.Gap> getCoverageGaps() {
+        return snapshots == null ? Collections.emptyList() : snapshots.getGaps();
+    }
 
-        Set<String> metricsToRemove = new HashSet<>();
-        long stamp = gorillaMapLock.readLock();
+    /**
+     * @return the stores of all of the metrics of a shard
+     */
+    private List<GorillaStore> getStores(Shard shard) {
+        List<GorillaStore> stores = new ArrayList<>();
+        long stamp = shard.lock.readLock();
         try {
-            long now = System.currentTimeMillis();
-            for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : gorillaMap.entrySet()) {
-                String metricName = entry.getKey();
-                long totalMsecToMetric = 0;
-                long numStoresWithMultipleEntries = 0;
-                int tagVariations = entry.getValue().values().size();
-                for (GorillaStore store : entry.getValue().values()) {
-                    long numEntries = store.getNumEntries();
-                    long oldestTimestamp = store.getOldestTimestamp();
-                    long newestTimestamp = store.getNewestTimestamp();
-                    if (numEntries > 1) {
-                        long msecToMetric = (newestTimestamp - oldestTimestamp) / (numEntries - 1);
-                        totalMsecToMetric += msecToMetric;
-                        numStoresWithMultipleEntries++;
-                    }
-                }
-                if (numStoresWithMultipleEntries > 0) {
-                    long avgMsecToMetric = totalMsecToMetric / numStoresWithMultipleEntries;
-                    long ageOfNewest = now - getNewestTimestamp(metricName, stamp);
-                    // do not delete slow-arriving metrics based on this criteria
-                    // only consider metrics that should have arrived in staleCacheExpiration * 0.5
-                    log.trace("metric:{} tagVariations:{} avgMsecToMetric:{}", metricName, tagVariations, avgMsecToMetric);
-                    if (avgMsecToMetric < (staleCacheExpiration * 0.5)) {
-                        if (ageOfNewest > staleCacheExpiration) {
-                            log.info("Removing metric:{} tagVariations:{} avgMsecToMetric:{} ageOfNewestEntry:{} > staleCacheExpiration:{}", metricName,
-                                            tagVariations, avgMsecToMetric, ageOfNewest, staleCacheExpiration);
-                            metricsToRemove.add(metricName);
-                        }
-                    } else {
-                        log.trace("Skipping staleness evaluation of metric:{} tagVariations:{} avgMsecToMetric:{} < (0.5 * staleCacheExpiration):{}",
-                                        metricName, tagVariations, avgMsecToMetric, (staleCacheExpiration / 2));
-                    }
-                }
+            for (Map<TaggedMetric,GorillaStore> metricMap : shard.metrics.values()) {
+                stores.addAll(metricMap.values());
             }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
         } finally {
-            gorillaMapLock.unlockRead(stamp);
+            shard.lock.unlockRead(stamp);
         }
+        return stores;
+    }
 
-        if (metricsToRemove.size() > 0) {
-            stamp = gorillaMapLock.writeLock();
+    private void removeStaleMetrics() {
+        for (Shard shard : shards) {
+            Set<String> metricsToRemove = new HashSet<>();
+            long stamp = shard.lock.readLock();
+            long lockedAt = System.nanoTime();
             try {
-                for (String metricName : metricsToRemove) {
-                    gorillaMap.remove(metricName);
+                long now = System.currentTimeMillis();
+                for (Map.Entry<String,Map<TaggedMetric,GorillaStore>> entry : shard.metrics.entrySet()) {
+                    String metricName = entry.getKey();
+                    long totalMsecToMetric = 0;
+                    long numStoresWithMultipleEntries = 0;
+                    long newestTimestamp = 0;
+                    int tagVariations = entry.getValue().values().size();
+                    for (GorillaStore store : entry.getValue().values()) {
+                        long numEntries = store.getNumEntries();
+                        long oldestTimestamp = store.getOldestTimestamp();
+                        long newestTimestampInStore = store.getNewestTimestamp();
+                        if (numEntries > 1) {
+                            long msecToMetric = (newestTimestampInStore - oldestTimestamp) / (numEntries - 1);
+                            totalMsecToMetric += msecToMetric;
+                            numStoresWithMultipleEntries++;
+                        }
+                        newestTimestamp = Math.max(newestTimestamp, newestTimestampInStore);
+                    }
+                    if (numStoresWithMultipleEntries > 0) {
+                        long avgMsecToMetric = totalMsecToMetric / numStoresWithMultipleEntries;
+                        long ageOfNewest = now - newestTimestamp;
+                        // do not delete slow-arriving metrics based on this criteria
+                        // only consider metrics that should have arrived in staleCacheExpiration * 0.5
+                        log.trace("metric:{} tagVariations:{} avgMsecToMetric:{}", metricName, tagVariations, avgMsecToMetric);
+                        if (avgMsecToMetric < (staleCacheExpiration * 0.5)) {
+                            if (ageOfNewest > staleCacheExpiration) {
+                                log.info("Removing metric:{} tagVariations:{} avgMsecToMetric:{} ageOfNewestEntry:{} > staleCacheExpiration:{}", metricName,
+                                                tagVariations, avgMsecToMetric, ageOfNewest, staleCacheExpiration);
+                                metricsToRemove.add(metricName);
+                            }
+                        } else {
+                            log.trace("Skipping staleness evaluation of metric:{} tagVariations:{} avgMsecToMetric:{} < (0.5 * staleCacheExpiration):{}",
+                                            metricName, tagVariations, avgMsecToMetric, (staleCacheExpiration / 2));
+                        }
+                    }
                 }
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
             } finally {
-                gorillaMapLock.unlockWrite(stamp);
+                unlock(shard, stamp, lockedAt);
             }
+
+            if (metricsToRemove.size() > 0) {
+                stamp = shard.lock.writeLock();
+                lockedAt = System.nanoTime();
+                try {
+                    for (String metricName : metricsToRemove) {
+                        Map<TaggedMetric,GorillaStore> removed = shard.metrics.remove(metricName);
+                        if (removed != null) {
+                            release(removed.values());
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                } finally {
+                    unlock(shard, stamp, lockedAt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the archived compressors of stores that have been removed from the cache
+     */
+    private static void release(Collection<GorillaStore> stores) {
+        for (GorillaStore store : stores) {
+            store.release();
         }
     }
 
@@ -546,85 +759,100 @@ public class DataStoreCache {
     }
 
     public Map<TaggedMetric,GorillaStore> getGorillaStores(String metric) {
+        loadSnapshot(metric);
         Map<TaggedMetric,GorillaStore> returnedMap = new HashMap<>();
-        Map<TaggedMetric,GorillaStore> metricMap;
-        long stamp = gorillaMapLock.readLock();
+        Shard shard = getShard(metric);
+        long stamp = shard.lock.readLock();
+        long lockedAt = 0;
         try {
-            metricMap = gorillaMap.get(metric);
+            Map<TaggedMetric,GorillaStore> metricMap = shard.metrics.get(metric);
             if (metricMap == null) {
-                metricMap = new HashMap<>();
-                long writeStamp = gorillaMapLock.tryConvertToWriteLock(stamp);
-                if (writeStamp == 0) {
-                    gorillaMapLock.unlockRead(stamp);
-                    stamp = gorillaMapLock.writeLock();
-                } else {
-                    stamp = writeStamp;
-                }
-                gorillaMap.put(metric, metricMap);
+                stamp = toWriteLock(shard, stamp);
+                lockedAt = System.nanoTime();
+                metricMap = shard.metrics.computeIfAbsent(metric, m -> new HashMap<>());
             }
             returnedMap.putAll(metricMap);
         } finally {
-            gorillaMapLock.unlock(stamp);
+            unlock(shard, stamp, lockedAt);
         }
         return returnedMap;
     }
 
     public GorillaStore getGorillaStore(String metric, TaggedMetric taggedMetric) {
 
-        Map<TaggedMetric,GorillaStore> metricMap;
-        GorillaStore gStore;
-        boolean needWrite = false;
-        long stamp = gorillaMapLock.readLock();
+        loadSnapshot(metric);
+        Shard shard = getShard(metric);
+        GorillaStore gStore = null;
+        long stamp = shard.lock.readLock();
+        long lockedAt = 0;
         try {
-            metricMap = gorillaMap.get(metric);
-            if (metricMap == null) {
-                log.info("Creating new cache for metric:{}", metric);
-                metricMap = new HashMap<>();
-                needWrite = true;
+            Map<TaggedMetric,GorillaStore> metricMap = shard.metrics.get(metric);
+            if (metricMap != null) {
+                gStore = metricMap.get(taggedMetric);
             }
-            gStore = metricMap.get(taggedMetric);
             if (gStore == null) {
-                gStore = new GorillaStore(metric, getAgeOffForMetric(metric));
-                needWrite = true;
-            }
-            if (needWrite) {
-                long writeStamp = gorillaMapLock.tryConvertToWriteLock(stamp);
-                if (writeStamp == 0) {
-                    gorillaMapLock.unlockRead(stamp);
-                    stamp = gorillaMapLock.writeLock();
-                } else {
-                    stamp = writeStamp;
-                }
-                metricMap.put(taggedMetric, gStore);
-                gorillaMap.put(metric, metricMap);
+                stamp = toWriteLock(shard, stamp);
+                lockedAt = System.nanoTime();
+                // another thread may have added the metric or series while the read lock was released
+                metricMap = shard.metrics.computeIfAbsent(metric, m -> {
+                    log.info("Creating new cache for metric:{}", metric);
+                    return new HashMap<>();
+                });
+                gStore = metricMap.computeIfAbsent(taggedMetric, t -> new GorillaStore(metric, getAgeOffForMetric(metric), offHeapBlocks));
             }
         } finally {
-            gorillaMapLock.unlock(stamp);
+            unlock(shard, stamp, lockedAt);
         }
         return gStore;
     }
 
+    private Shard getShard(String metric) {
+        return shards[Math.floorMod(metric.hashCode(), shards.length)];
+    }
+
+    /**
+     * Convert a read lock of a shard to a write lock, releasing the read lock first if it can not be converted directly
+     */
+    private static long toWriteLock(Shard shard, long stamp) {
+        long writeStamp = shard.lock.tryConvertToWriteLock(stamp);
+        if (writeStamp == 0) {
+            shard.lock.unlockRead(stamp);
+            writeStamp = shard.lock.writeLock();
+        }
+        return writeStamp;
+    }
+
+    /**
+     * Release a lock of a shard and record how long it was held
+     *
+     * @param lockedAt
+     *            {@link System#nanoTime()} when the lock was acquired, or 0 for a read lock on the ingest or query path that is not recorded
+     */
+    private void unlock(Shard shard, long stamp, long lockedAt) {
+        shard.lock.unlock(stamp);
+        if (lockedAt != 0 && internalMetrics != null) {
+            internalMetrics.addCacheLockHoldTime(System.nanoTime() - lockedAt);
+        }
+    }
+
     private boolean shouldCache(Metric metric) {
         String metricName = metric.getName();
         if (nonCachedMetrics.contains(metricName)) {
             return false;
         }
 
-        long stamp = gorillaMapLock.readLock();
+        Shard shard = getShard(metricName);
+        long stamp = shard.lock.readLock();
         try {
-            if (gorillaMap.containsKey(metricName)) {
+            if (shard.metrics.containsKey(metricName)) {
                 return true;
             }
         } finally {
-            gorillaMapLock.unlockRead(stamp);
+            shard.lock.unlockRead(stamp);
         }
 
-        Set<String> tempNonCachedMetrics = new LinkedHashSet<>();
-        synchronized (nonCachedMetrics) {
-            tempNonCachedMetrics.addAll(nonCachedMetrics);
-        }
-        for (String r : tempNonCachedMetrics) {
-            if (metricName.matches(r)) {
+        for (Pattern pattern : nonCachedMetricPatterns.values()) {
+            if (pattern.matcher(metricName).matches()) {
                 addNonCachedMetrics(Collections.singleton(metricName));
                 return false;
             }
@@ -667,28 +895,24 @@ public class DataStoreCache {
         Map<Set<Tag>,List<Aggregation>> aggregationList = new HashMap<>();
         long start = System.currentTimeMillis();
         try {
-            SortedKeyValueIterator<org.apache.accumulo.core.data.Key,org.apache.accumulo.core.data.Value> itr = null;
             Collection<Authorizations> authorizations = getSessionAuthorizations(msg);
-            itr = setupIterator(msg, query, authorizations, getAgeOffForMetric(query.getMetric()));
+            Map<Set<Tag>,Aggregation> samples = runQuery(msg, query, authorizations, getAgeOffForMetric(query.getMetric()));
+            Set<String> resultTags = QueryFilters.getResultTags(query);
             Map<Set<Tag>,Set<Tag>> matchingTagCache = new HashMap<>();
-            while (itr.hasTop()) {
-                Map<Set<Tag>,Aggregation> samples = AggregationIterator.decodeValue(itr.getTopValue());
-                for (Map.Entry<Set<Tag>,Aggregation> entry : samples.entrySet()) {
-                    Set<Tag> allMatchingTags = (Set<Tag>) matchingTagCache.get(entry.getKey());
-                    if (allMatchingTags == null) {
-                        allMatchingTags = new HashSet<>();
-                        for (Tag tag : entry.getKey()) {
-                            if (query.getTags().keySet().contains(tag.getKey())) {
-                                allMatchingTags.add(tag);
-                            }
+            for (Map.Entry<Set<Tag>,Aggregation> entry : samples.entrySet()) {
+                Set<Tag> allMatchingTags = (Set<Tag>) matchingTagCache.get(entry.getKey());
+                if (allMatchingTags == null) {
+                    allMatchingTags = new HashSet<>();
+                    for (Tag tag : entry.getKey()) {
+                        if (resultTags.contains(tag.getKey())) {
+                            allMatchingTags.add(tag);
                         }
-                        matchingTagCache.put(entry.getKey(), allMatchingTags);
                     }
-                    List<Aggregation> aggregations = aggregationList.getOrDefault(allMatchingTags, new ArrayList<>());
-                    aggregations.add(entry.getValue());
-                    aggregationList.put(allMatchingTags, aggregations);
+                    matchingTagCache.put(entry.getKey(), allMatchingTags);
                 }
-                itr.next();
+                List<Aggregation> aggregations = aggregationList.getOrDefault(allMatchingTags, new ArrayList<>());
+                aggregations.add(entry.getValue());
+                aggregationList.put(allMatchingTags, aggregations);
             }
             return aggregationList;
         } catch (Exception e) {
@@ -710,13 +934,7 @@ public class DataStoreCache {
             }
         }
         Collection<Authorizations> authorizations = getSessionAuthorizations(request);
-        Collection<Authorizations> minimizedAuths = AuthorizationsUtil.minimize(authorizations);
-        Collection<VisibilityFilter> visibilityFilters = new ArrayList<>();
-        for (Authorizations a : minimizedAuths) {
-            visibilityFilters.add(new VisibilityFilter(a));
-        }
-        DataStoreCacheIterator itr = new DataStoreCacheIterator(this, visibilityFilters, subQuery, begin, end);
-        try {
+        try (DataStoreCacheIterator itr = new DataStoreCacheIterator(this, getVisibilityFilters(authorizations), subQuery, begin, end)) {
             itr.seek(new Range(subQuery.getMetric()), null, true);
             while (itr.hasTop()) {
                 Key k = itr.getTopKey();
@@ -730,48 +948,95 @@ public class DataStoreCache {
                 metricResponses.add(mr);
                 itr.next();
             }
-        } catch (IOException e) {
+        } catch (IOException | TimelyException e) {
             log.error(e.getMessage(), e);
         }
         return metricResponses;
     }
 
-    public SortedKeyValueIterator<Key,Value> setupIterator(QueryRequest query, QueryRequest.SubQuery subQuery, Collection<Authorizations> authorizations,
+    /**
+     * Run a subquery directly over the Gorilla compressed values of the cache, with the same result as the iterator stack of
+     * {@link #setupIterator(QueryRequest, QueryRequest.SubQuery, Collection, long)}
+     *
+     * @return the aggregation of each group, or the Downsample of each series if the subquery has no aggregator
+     */
+    public Map<Set<Tag>,Aggregation> runQuery(QueryRequest query, QueryRequest.SubQuery subQuery, Collection<Authorizations> authorizations,
                     long ageOffForMetric) throws TimelyException {
 
-        SortedKeyValueIterator<org.apache.accumulo.core.data.Key,org.apache.accumulo.core.data.Value> itr = null;
-
         long downsamplePeriod = DownsampleIterator.getDownsamplePeriod(subQuery);
+        long startOfFirstPeriod = getStartOfFirstPeriod(query, downsamplePeriod, ageOffForMetric);
+        long endOfLastPeriod = getEndOfLastPeriod(query, downsamplePeriod);
+        if (subQuery.isRate()) {
+            setDefaultRateInterval(subQuery, downsamplePeriod);
+        }
+        Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(subQuery);
+        if (daggClass == null) {
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: programming error", "daggClass == null");
+        }
+        Class<? extends Aggregator> aggClass = Aggregator.getAggregator(subQuery.getAggregator());
+        CacheQuery cacheQuery = new CacheQuery(subQuery, getVisibilityFilters(authorizations), startOfFirstPeriod, endOfLastPeriod, downsamplePeriod, daggClass,
+                        aggClass, getCoverageGaps());
+        long start = System.currentTimeMillis();
+        Map<TaggedMetric,GorillaStore> stores = getGorillaStores(subQuery.getMetric());
+        Map<Set<Tag>,Aggregation> result = cacheQuery.run(stores);
+        log.debug("Time to run cache query for {} with {} TaggedMetric/GorillaStore pairs - {}ms", subQuery, stores.size(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private static long getStartOfFirstPeriod(QueryRequest query, long downsamplePeriod, long ageOffForMetric) {
         long startTs = query.getStart();
-        long endTs = query.getEnd();
         long ageOffTs = System.currentTimeMillis() - ageOffForMetric;
         if (startTs <= ageOffTs) {
             startTs = ageOffTs + 1;
         }
+        return startTs - (startTs % downsamplePeriod);
+    }
 
-        long startOfFirstPeriod = startTs - (startTs % downsamplePeriod);
+    private static long getEndOfLastPeriod(QueryRequest query, long downsamplePeriod) {
+        long endTs = query.getEnd();
         long endDistanceFromDownSample = endTs % downsamplePeriod;
-        long endOfLastPeriod = (endDistanceFromDownSample > 0 ? endTs + downsamplePeriod - endDistanceFromDownSample : endTs);
+        return (endDistanceFromDownSample > 0 ? endTs + downsamplePeriod - endDistanceFromDownSample : endTs);
+    }
+
+    private static void setDefaultRateInterval(QueryRequest.SubQuery subQuery, long downsamplePeriod) {
+        // if there is no rate interval set, then use the downsample value
+        // so that the result is the change per downsample period
+        QueryRequest.RateOption rateOptions = subQuery.getRateOptions();
+        if (StringUtils.isBlank(rateOptions.getInterval())) {
+            rateOptions.setInterval(downsamplePeriod + "ms");
+        }
+    }
+
+    private static Collection<VisibilityFilter> getVisibilityFilters(Collection<Authorizations> authorizations) {
+        Collection<Authorizations> minimizedAuths = AuthorizationsUtil.minimize(authorizations);
+        Collection<VisibilityFilter> visibilityFilters = new ArrayList<>();
+        for (Authorizations a : minimizedAuths) {
+            visibilityFilters.add(new VisibilityFilter(a));
+        }
+        return visibilityFilters;
+    }
+
+    public SortedKeyValueIterator<Key,Value> setupIterator(QueryRequest query, QueryRequest.SubQuery subQuery, Collection<Authorizations> authorizations,
+                    long ageOffForMetric) throws TimelyException {
+
+        SortedKeyValueIterator<org.apache.accumulo.core.data.Key,org.apache.accumulo.core.data.Value> itr = null;
+        DataStoreCacheIterator cacheIterator = null;
+
+        long downsamplePeriod = DownsampleIterator.getDownsamplePeriod(subQuery);
+        long startOfFirstPeriod = getStartOfFirstPeriod(query, downsamplePeriod, ageOffForMetric);
+        long endOfLastPeriod = getEndOfLastPeriod(query, downsamplePeriod);
 
         try {
             // create DataStoreCacheIterator which is the base iterator of the stack
-            Collection<Authorizations> minimizedAuths = AuthorizationsUtil.minimize(authorizations);
-            Collection<VisibilityFilter> visibilityFilters = new ArrayList<>();
-            for (Authorizations a : minimizedAuths) {
-                visibilityFilters.add(new VisibilityFilter(a));
-            }
-            itr = new DataStoreCacheIterator(this, visibilityFilters, subQuery, startOfFirstPeriod, endOfLastPeriod);
+            cacheIterator = new DataStoreCacheIterator(this, getVisibilityFilters(authorizations), subQuery, startOfFirstPeriod, endOfLastPeriod);
+            itr = cacheIterator;
 
             // create RateIterator if necessary
             if (subQuery.isRate()) {
                 log.trace("Adding rate iterator");
                 IteratorSetting rate = new IteratorSetting(499, RateIterator.class);
-                // if there is no rate interval set, then use the downsample value
-                // so that the result is the change per downsample period
+                setDefaultRateInterval(subQuery, downsamplePeriod);
                 QueryRequest.RateOption rateOptions = subQuery.getRateOptions();
-                if (StringUtils.isBlank(rateOptions.getInterval())) {
-                    rateOptions.setInterval(downsamplePeriod + "ms");
-                }
                 RateIterator.setRateOptions(rate, rateOptions);
                 RateIterator rateIterator = new RateIterator();
                 rateIterator.init(itr, rate.getOptions(), null);
@@ -800,7 +1065,7 @@ public class DataStoreCache {
             if (aggClass != null) {
                 log.trace("Aggregator type {}", aggClass.getSimpleName());
                 IteratorSetting aggregation = new IteratorSetting(501, AggregationIterator.class);
-                AggregationIterator.setAggregationOptions(aggregation, subQuery.getTags(), aggClass.getName());
+                AggregationIterator.setAggregationOptions(aggregation, subQuery.getTags(), QueryFilters.getGroupByTags(subQuery), aggClass.getName());
                 AggregationIterator aggregationIterator = new AggregationIterator();
                 aggregationIterator.init(itr, aggregation.getOptions(), null);
                 itr = aggregationIterator;
@@ -810,6 +1075,11 @@ public class DataStoreCache {
 
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            // the values of the cache were read when the iterator was created
+            if (cacheIterator != null) {
+                cacheIterator.close();
+            }
         }
         return itr;
     }
@@ -835,33 +1105,33 @@ public class DataStoreCache {
     }
 
     public long getNewestTimestamp(String metric) {
-        return getNewestTimestamp(metric, 0);
-    }
-
-    public long getNewestTimestamp(String metric, long lockStamp) {
 
+        loadSnapshot(metric);
         long newest = 0;
-        long stamp = lockStamp == 0 ? gorillaMapLock.readLock() : lockStamp;
+        Shard shard = getShard(metric);
+        long stamp = shard.lock.readLock();
         try {
-            Map<TaggedMetric,GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
-            for (Map.Entry<TaggedMetric,GorillaStore> entry : gorillaStoreMap.entrySet()) {
-                if (entry.getValue().getNewestTimestamp() > newest) {
-                    newest = entry.getValue().getNewestTimestamp();
+            Map<TaggedMetric,GorillaStore> gorillaStoreMap = shard.metrics.get(metric);
+            if (gorillaStoreMap != null) {
+                for (Map.Entry<TaggedMetric,GorillaStore> entry : gorillaStoreMap.entrySet()) {
+                    if (entry.getValue().getNewestTimestamp() > newest) {
+                        newest = entry.getValue().getNewestTimestamp();
+                    }
                 }
             }
         } finally {
-            if (lockStamp == 0) {
-                gorillaMapLock.unlockRead(stamp);
-            }
+            shard.lock.unlockRead(stamp);
         }
         return newest;
     }
 
     public long getOldestTimestamp(String metric) {
+        loadSnapshot(metric);
         long oldest = Long.MAX_VALUE;
-        long stamp = gorillaMapLock.readLock();
+        Shard shard = getShard(metric);
+        long stamp = shard.lock.readLock();
         try {
-            Map<TaggedMetric,GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
+            Map<TaggedMetric,GorillaStore> gorillaStoreMap = shard.metrics.get(metric);
             if (gorillaStoreMap != null) {
                 for (Map.Entry<TaggedMetric,GorillaStore> entry : gorillaStoreMap.entrySet()) {
                     if (entry.getValue().getOldestTimestamp() < oldest) {
@@ -870,7 +1140,7 @@ public class DataStoreCache {
                 }
             }
         } finally {
-            gorillaMapLock.unlockRead(stamp);
+            shard.lock.unlockRead(stamp);
         }
         return oldest;
     }
@@ -878,32 +1148,24 @@ public class DataStoreCache {
     public long getNewestTimestamp() {
 
         long newest = 0;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (String metric : gorillaMap.keySet()) {
-                Long newestForMetric = getNewestTimestamp(metric);
-                if (newestForMetric > newest) {
-                    newest = newestForMetric;
+        for (Shard shard : shards) {
+            for (GorillaStore store : getStores(shard)) {
+                if (store.getNewestTimestamp() > newest) {
+                    newest = store.getNewestTimestamp();
                 }
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
         return newest;
     }
 
     public long getOldestTimestamp() {
         long oldest = Long.MAX_VALUE;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (String metric : gorillaMap.keySet()) {
-                Long oldestForMetric = getOldestTimestamp(metric);
-                if (oldestForMetric < oldest) {
-                    oldest = oldestForMetric;
+        for (Shard shard : shards) {
+            for (GorillaStore store : getStores(shard)) {
+                if (store.getOldestTimestamp() < oldest) {
+                    oldest = store.getOldestTimestamp();
                 }
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
         return oldest;
     }
@@ -912,21 +1174,39 @@ public class DataStoreCache {
         CacheResponse response = new CacheResponse();
         response.setOldestTimestamp(getOldestTimestamp());
         response.setNewestTimestamp(getNewestTimestamp());
-        long stamp = gorillaMapLock.readLock();
-        try {
-            response.setMetrics(new ArrayList<>(gorillaMap.keySet()));
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        List<String> metrics = new ArrayList<>();
+        for (Shard shard : shards) {
+            long stamp = shard.lock.readLock();
+            try {
+                metrics.addAll(shard.metrics.keySet());
+            } finally {
+                shard.lock.unlockRead(stamp);
+            }
         }
+        response.setMetrics(metrics);
         return response;
     }
 
     public void clear() {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            gorillaMap.clear();
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        for (Shard shard : shards) {
+            long stamp = shard.lock.writeLock();
+            try {
+                for (Map<TaggedMetric,GorillaStore> metricMap : shard.metrics.values()) {
+                    release(metricMap.values());
+                }
+                shard.metrics.clear();
+            } finally {
+                shard.lock.unlockWrite(stamp);
+            }
         }
     }
+
+    /**
+     * A partition of the cached metrics with its own lock. All of the series of a metric are in the same shard.
+     */
+    private static final class Shard {
+
+        private final Map<String,Map<TaggedMetric,GorillaStore>> metrics = new HashMap<>();
+        private final StampedLock lock = new StampedLock();
+    }
 }
@@ -1,5 +1,6 @@
 package timely.server.store.cache;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
@@ -21,15 +22,24 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.handler.codec.http.HttpResponseStatus;
 import timely.accumulo.MetricAdapter;
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+import timely.server.store.QueryFilters;
 
-public class DataStoreCacheIterator implements SortedKeyValueIterator<Key,Value> {
+/**
+ * Base iterator of the cache query stack, the values of the matching series are read and sorted when the iterator is created. The off heap blocks read by the
+ * iterator are released once they have been read, or by {@link #close()} if the read is interrupted.
+ */
+public class DataStoreCacheIterator implements SortedKeyValueIterator<Key,Value>, Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(DataStoreCacheIterator.class);
     private DataStoreCache store;
     private Collection<VisibilityFilter> visibilityFilters;
     private QueryRequest.SubQuery query;
+    // requested tags and filters of the subquery as tag value patterns
+    private Map<String,String> requestedTags;
     private long startTs;
     private long endTs;
 
@@ -39,19 +49,34 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key,Value>
     private Queue<KeyValue> kvQueue = new LinkedList<>();
     private Set<TaggedMetric> matchingTaggedMetrics = new HashSet<>();
 
-    public DataStoreCacheIterator(DataStoreCache store, Collection<VisibilityFilter> visibilityFilters, QueryRequest.SubQuery query, long startTs, long endTs) {
+    /**
+     * @throws TimelyException
+     *             with a 400 status if a filter of the query is invalid
+     */
+    public DataStoreCacheIterator(DataStoreCache store, Collection<VisibilityFilter> visibilityFilters, QueryRequest.SubQuery query, long startTs, long endTs)
+                    throws TimelyException {
 
         this.store = store;
         this.visibilityFilters = visibilityFilters;
         this.query = query;
         this.startTs = startTs;
         this.endTs = endTs;
+        try {
+            this.requestedTags = QueryFilters.getTagPatterns(query);
+        } catch (IllegalArgumentException e) {
+            throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "Invalid query filter: " + e.getMessage(), e.getMessage(), e);
+        }
         Map<TaggedMetric,GorillaStore> storeMap = this.store.getGorillaStores(query.getMetric());
         this.storeItr = storeMap.entrySet().iterator();
         this.decompressors = getNextDecompressorIterable();
 
         long start = System.currentTimeMillis();
-        Map<Key,Value> entries = getEntries();
+        Map<Key,Value> entries;
+        try {
+            entries = getEntries();
+        } finally {
+            close();
+        }
         for (Map.Entry<Key,Value> entry : entries.entrySet()) {
             kvQueue.add(new KeyValue(entry.getKey(), entry.getValue()));
         }
@@ -60,7 +85,6 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key,Value>
     }
 
     private WrappedGorillaDecompressorIterator getNextDecompressorIterable() {
-        Map<String,String> requestedTags = query.getTags();
         WrappedGorillaDecompressorIterator nextPair = null;
         while (nextPair == null && storeItr.hasNext()) {
             Map.Entry<TaggedMetric,GorillaStore> entry = storeItr.next();
@@ -175,4 +199,15 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key,Value>
         return null;
     }
 
+    /**
+     * Release the off heap blocks of the series that have not been read to the end
+     */
+    @Override
+    public void close() {
+        if (decompressors != null) {
+            decompressors.close();
+            decompressors = null;
+        }
+    }
+
 }
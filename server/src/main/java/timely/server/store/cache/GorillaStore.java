@@ -1,29 +1,18 @@
 package timely.server.store.cache;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.StampedLock;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fi.iki.yak.ts.compression.gorilla.BitInput;
 import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
 import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
 import timely.model.Metric;
@@ -36,30 +25,23 @@ public final class GorillaStore {
     private StampedLock currentCompressorLock = new StampedLock();
 
     transient private WrappedGorillaCompressor current = null;
-    transient private List<Metric> metricCache = new ArrayList<>();
+    transient private final StagingBuffer staged = new StagingBuffer();
 
     private long oldestTimestamp = Long.MAX_VALUE;
     private long newestTimestamp = -1;
     private long maxAge;
     private String metric;
+    // archived compressors are moved off heap when set
+    private OffHeapBlocks offHeapBlocks = null;
 
     public GorillaStore(String metric, long maxAge) {
         this.metric = metric;
         this.maxAge = maxAge;
     }
 
-    public GorillaStore(FileSystem fs, String metric, long maxAge) throws IOException {
-        this.metric = metric;
-        this.maxAge = maxAge;
-        String baseDir = "/timely/cache";
-        Path directory = new Path(baseDir + "/" + metric);
-        List<WrappedGorillaCompressor> compressors = readCompressors(fs, directory);
-        long stamp = archivedCompressorLock.writeLock();
-        try {
-            archivedCompressors.addAll(compressors);
-        } finally {
-            archivedCompressorLock.unlockWrite(stamp);
-        }
+    public GorillaStore(String metric, long maxAge, OffHeapBlocks offHeapBlocks) {
+        this(metric, maxAge);
+        this.offHeapBlocks = offHeapBlocks;
     }
 
     private WrappedGorillaCompressor getCompressor(long timestamp, long lockStamp) {
@@ -117,6 +99,7 @@ public final class GorillaStore {
                         log.trace("removing archive for {} maxAgeMin:{} oldestInMin:{} youngestInMin:{}", metric, maxAge / (1000 * 60),
                                         (now - c.getOldestTimestamp()) / (1000 * 60), (now - c.getNewestTimestamp()) / (1000 * 60));
                         itr.remove();
+                        c.release();
                         numRemoved++;
                     } else {
                         log.trace("keeping archive for {} maxAgeMin:{} oldestInMin:{} youngestInMin:{}", metric, maxAge / (1000 * 60),
@@ -162,69 +145,70 @@ public final class GorillaStore {
         return numRemoved;
     }
 
-    protected void writeCompressor(String metric, WrappedGorillaCompressor wrappedGorillaCompressor) throws IOException {
+    public void archiveCurrentCompressor() {
 
+        long archiveStamp = archivedCompressorLock.writeLock();
+        long currentStamp = currentCompressorLock.writeLock();
         try {
-            Configuration configuration = new Configuration();
-            FileSystem fs = FileSystem.get(new URI("hdfs://localhost:8020"), configuration);
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-            sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-            String baseDir = "/timely/cache";
-            Path directory = new Path(baseDir + "/" + metric);
-            String fileName = metric + "-" + sdf.format(new Date(wrappedGorillaCompressor.getOldestTimestamp()));
-            Path outputPath = new Path(directory, fileName);
-            if (!fs.exists(directory)) {
-                fs.mkdirs(directory);
-            }
-            if (fs.exists(outputPath)) {
-                throw new IOException("output path exists");
+            if (current != null) {
+                current.close();
+                if (offHeapBlocks != null) {
+                    current.moveOffHeap(offHeapBlocks);
+                }
+                archivedCompressors.add(current);
+                current = null;
             }
-            OutputStream os = fs.create(outputPath);
-            // write object to hdfs file
-            ObjectOutputStream oos = new ObjectOutputStream(os);
-            oos.writeObject(wrappedGorillaCompressor);
-            oos.close();
-        } catch (URISyntaxException e) {
-            throw new IOException(e);
+        } finally {
+            archivedCompressorLock.unlockWrite(archiveStamp);
+            currentCompressorLock.unlockWrite(currentStamp);
         }
     }
 
-    protected List<WrappedGorillaCompressor> readCompressors(FileSystem fs, Path directory) throws IOException {
-
-        List<WrappedGorillaCompressor> compressors = new ArrayList<>();
-
-        ObjectInputStream ois = null;
+    /**
+     * Add compressors that were archived before a restart
+     */
+    public void addArchivedCompressors(List<WrappedGorillaCompressor> compressors) {
+        long stamp = archivedCompressorLock.writeLock();
         try {
-            FileStatus fileStatus[] = fs.listStatus(directory);
-            for (FileStatus status : fileStatus) {
-                FSDataInputStream inputStream = fs.open(status.getPath());
-                ois = new ObjectInputStream(inputStream);
-                WrappedGorillaCompressor copyCompressor = (WrappedGorillaCompressor) ois.readObject();
-                compressors.add(copyCompressor);
+            for (WrappedGorillaCompressor c : compressors) {
+                if (offHeapBlocks != null) {
+                    c.moveOffHeap(offHeapBlocks);
+                }
+                archivedCompressors.add(c);
+                oldestTimestamp = Math.min(oldestTimestamp, c.getOldestTimestamp());
+                newestTimestamp = Math.max(newestTimestamp, c.getNewestTimestamp());
             }
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
         } finally {
-            if (ois != null) {
-                ois.close();
-            }
+            archivedCompressorLock.unlockWrite(stamp);
         }
-        return compressors;
     }
 
-    public void archiveCurrentCompressor() {
+    /**
+     * @return a copy of the list of archived compressors
+     */
+    public List<WrappedGorillaCompressor> getArchivedCompressors() {
+        long stamp = archivedCompressorLock.readLock();
+        try {
+            return new ArrayList<>(archivedCompressors);
+        } finally {
+            archivedCompressorLock.unlockRead(stamp);
+        }
+    }
 
-        long archiveStamp = archivedCompressorLock.writeLock();
-        long currentStamp = currentCompressorLock.writeLock();
+    /**
+     * Release the archived compressors of a store that has been removed from the cache
+     */
+    public void release() {
+        long stamp = archivedCompressorLock.writeLock();
         try {
-            if (current != null) {
-                current.close();
-                archivedCompressors.add(current);
-                current = null;
+            for (WrappedGorillaCompressor c : archivedCompressors) {
+                c.release();
             }
+            archivedCompressors.clear();
+            // a compressor archived by a flush that raced with the removal stays on the heap and is collected with the store
+            offHeapBlocks = null;
         } finally {
-            archivedCompressorLock.unlockWrite(archiveStamp);
-            currentCompressorLock.unlockWrite(currentStamp);
+            archivedCompressorLock.unlockWrite(stamp);
         }
     }
 
@@ -236,9 +220,12 @@ public final class GorillaStore {
         try {
             for (WrappedGorillaCompressor r : archivedCompressors) {
                 if (r.inRange(begin, end)) {
-                    GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(r.getCompressorOutput()));
-                    // use -1 length since this compressor is closed
-                    decompressors.add(new WrappedGorillaDecompressor(d, -1));
+                    // the input holds a reference to an off heap block until the decompressor has been read or closed
+                    BitInput input = r.getInput();
+                    if (input != null) {
+                        // use -1 length since this compressor is closed
+                        decompressors.add(new WrappedGorillaDecompressor(input, -1));
+                    }
                 }
             }
         } finally {
@@ -264,19 +251,31 @@ public final class GorillaStore {
 
     public void flush() {
 
-        List<Metric> tempCache = new ArrayList<>();
-        synchronized (metricCache) {
-            tempCache.addAll(metricCache);
-            metricCache.clear();
-        }
-
         long stamp = currentCompressorLock.writeLock();
         try {
+            // flushes are serialized by the write lock, ingest continues while the staged values are compressed
+            long last = staged.tail;
+            // the ring is read after the tail so that it holds every value before the tail
+            Ring ring = staged.ring;
+            long next = staged.head;
+            int size = staged.drain();
+            long[] timestamps = staged.drainedTimestamps;
+            double[] values = staged.drainedValues;
             WrappedGorillaCompressor c = null;
             long now = System.currentTimeMillis();
-            for (Metric m : tempCache) {
-                long ts = m.getValue().getTimestamp();
-                double v = m.getValue().getMeasure();
+            int i = 0;
+            // the values of the owner and of the other writers are each in arrival order, they are merged by timestamp
+            while (next < last || i < size) {
+                long ts;
+                double v;
+                if (i == size || (next < last && ring.timestamps[ring.slot(next)] <= timestamps[i])) {
+                    int slot = ring.slot(next++);
+                    ts = ring.timestamps[slot];
+                    v = ring.values[slot];
+                } else {
+                    ts = timestamps[i];
+                    v = values[i++];
+                }
                 if (ts > newestTimestamp && (now - ts) < maxAge) {
                     newestTimestamp = ts;
                     if (c == null) {
@@ -285,6 +284,7 @@ public final class GorillaStore {
                     c.addValue(ts, v);
                 }
             }
+            staged.recycle(last);
         } finally {
             currentCompressorLock.unlockWrite(stamp);
         }
@@ -294,9 +294,7 @@ public final class GorillaStore {
         long now = System.currentTimeMillis();
         long timestamp = metric.getValue().getTimestamp();
         if (timestamp >= newestTimestamp && (now - timestamp) < maxAge) {
-            synchronized (metricCache) {
-                metricCache.add(metric);
-            }
+            staged.add(timestamp, metric.getValue().getMeasure());
         }
     }
 
@@ -348,4 +346,155 @@ public final class GorillaStore {
         }
         return numEntries;
     }
+
+    /**
+     * The values of a series added since the last flush. The first thread to add a value owns the series and appends to a ring of primitive arrays without
+     * locking, publishing each value with an ordered write of the tail. Other threads, and the owner when the ring is full, append to shared arrays under the
+     * buffer's monitor. A flush consumes the ring up to the tail and swaps the shared arrays with a spare pair, so that a series that is written steadily
+     * reuses the same arrays.
+     */
+    private static final class StagingBuffer {
+
+        private static final AtomicLongFieldUpdater<StagingBuffer> TAIL = AtomicLongFieldUpdater.newUpdater(StagingBuffer.class, "tail");
+        private static final int INITIAL_CAPACITY = 8;
+        // the ring doubles up to this capacity while values arrive faster than they are flushed, further values go to the shared arrays
+        private static final int MAX_RING_CAPACITY = 256;
+        // drained shared arrays larger than this are not kept as the spare pair, so that a burst does not hold memory for an idle series
+        private static final int MAX_SPARE_CAPACITY = 1024;
+
+        private volatile Thread owner = null;
+        // written by the owner only
+        private volatile Ring ring = null;
+        private volatile long tail = 0;
+        // written by the flush only
+        private volatile long head = 0;
+
+        private long[] timestamps = null;
+        private double[] values = null;
+        private int size = 0;
+        private long[] spareTimestamps = null;
+        private double[] spareValues = null;
+        // only accessed by the flush that drained them
+        private long[] drainedTimestamps = null;
+        private double[] drainedValues = null;
+
+        private void add(long timestamp, double value) {
+            Thread thread = Thread.currentThread();
+            Thread writer = owner;
+            if (writer == null) {
+                synchronized (this) {
+                    if (owner == null) {
+                        owner = thread;
+                    }
+                    writer = owner;
+                }
+            }
+            if (writer == thread) {
+                long position = tail;
+                Ring r = ring;
+                if (r == null || position - head == r.capacity()) {
+                    r = grow(r, position);
+                }
+                if (r != null) {
+                    int slot = r.slot(position);
+                    r.timestamps[slot] = timestamp;
+                    r.values[slot] = value;
+                    TAIL.lazySet(this, position + 1);
+                    return;
+                }
+            }
+            addShared(timestamp, value);
+        }
+
+        /**
+         * Replace a full ring with one of twice the capacity, called by the owner
+         *
+         * @return the new ring, or null when the ring is at its maximum capacity
+         */
+        private Ring grow(Ring r, long position) {
+            if (r == null) {
+                r = new Ring(INITIAL_CAPACITY);
+            } else if (r.capacity() < MAX_RING_CAPACITY) {
+                Ring larger = new Ring(r.capacity() * 2);
+                // a flush only reads the old ring, the values that it has not consumed are copied to the same positions
+                for (long p = head; p < position; p++) {
+                    larger.timestamps[larger.slot(p)] = r.timestamps[r.slot(p)];
+                    larger.values[larger.slot(p)] = r.values[r.slot(p)];
+                }
+                r = larger;
+            } else {
+                return null;
+            }
+            ring = r;
+            return r;
+        }
+
+        private synchronized void addShared(long timestamp, double value) {
+            if (timestamps == null) {
+                timestamps = new long[INITIAL_CAPACITY];
+                values = new double[INITIAL_CAPACITY];
+            } else if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Move the values of the shared arrays to the drained arrays
+         *
+         * @return number of drained values
+         */
+        private synchronized int drain() {
+            int drained = size;
+            drainedTimestamps = timestamps;
+            drainedValues = values;
+            timestamps = spareTimestamps;
+            values = spareValues;
+            spareTimestamps = null;
+            spareValues = null;
+            size = 0;
+            return drained;
+        }
+
+        /**
+         * Release the slots of the ring before the given position to the owner and keep the drained arrays as the spare pair once their values have been
+         * compressed
+         */
+        private void recycle(long position) {
+            head = position;
+            if (drainedTimestamps == null) {
+                return;
+            }
+            synchronized (this) {
+                if (drainedTimestamps.length <= MAX_SPARE_CAPACITY) {
+                    spareTimestamps = drainedTimestamps;
+                    spareValues = drainedValues;
+                }
+                drainedTimestamps = null;
+                drainedValues = null;
+            }
+        }
+    }
+
+    private static final class Ring {
+
+        private final long[] timestamps;
+        private final double[] values;
+
+        private Ring(int capacity) {
+            timestamps = new long[capacity];
+            values = new double[capacity];
+        }
+
+        private int capacity() {
+            return timestamps.length;
+        }
+
+        private int slot(long position) {
+            return (int) (position & (timestamps.length - 1));
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package timely.server.store.cache;
+
+import fi.iki.yak.ts.compression.gorilla.BitInput;
+
+/**
+ * Reads the bits of an off heap block in the same order as {@link fi.iki.yak.ts.compression.gorilla.LongArrayInput} reads a long[], without copying the block
+ * back onto the heap.
+ */
+public class OffHeapBlockInput implements BitInput {
+
+    private final OffHeapBlocks.Block block;
+    private long current;
+    private int position = 0;
+    private int bitsLeft = 0;
+    private boolean released = false;
+
+    public OffHeapBlockInput(OffHeapBlocks.Block block) {
+        this.block = block;
+        nextLong();
+    }
+
+    @Override
+    public boolean readBit() {
+        boolean bit = ((current >>> (bitsLeft - 1)) & 1) != 0;
+        bitsLeft--;
+        if (bitsLeft == 0) {
+            nextLong();
+        }
+        return bit;
+    }
+
+    @Override
+    public long getLong(int bits) {
+        long value;
+        if (bits <= bitsLeft) {
+            value = (current >>> (bitsLeft - bits)) & mask(bits);
+            bitsLeft -= bits;
+            if (bitsLeft == 0) {
+                nextLong();
+            }
+        } else {
+            // the rest of this long and the start of the next one
+            value = current & mask(bitsLeft);
+            bits -= bitsLeft;
+            nextLong();
+            value <<= bits;
+            value |= (current >>> (bitsLeft - bits));
+            bitsLeft -= bits;
+        }
+        return value;
+    }
+
+    @Override
+    public int nextClearBit(int maxBits) {
+        int value = 0;
+        for (int i = 0; i < maxBits; i++) {
+            value <<= 1;
+            if (readBit()) {
+                value |= 1;
+            } else {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Release the reference to the block that was taken for this reader
+     */
+    public void release() {
+        if (!released) {
+            released = true;
+            block.release();
+        }
+    }
+
+    private void nextLong() {
+        // reading past the end yields zero bits, the end of stream marker is always within the block
+        current = position < block.length() ? block.getLong(position) : 0;
+        position++;
+        bitsLeft = Long.SIZE;
+    }
+
+    private static long mask(int bits) {
+        return bits == Long.SIZE ? -1L : (1L << bits) - 1;
+    }
+}
@@ -0,0 +1,131 @@
+package timely.server.store.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Off heap memory for the compressed values of archived Gorilla compressors. Blocks are carved out of large direct memory chunks by a pooled allocator that is
+ * not shared with the network, so that the long lived cache does not fragment the arenas of the channels. The memory of a block is returned to its arena when
+ * the last reference to it is released. A block that would take the blocks over the budget is not allocated and its values stay on the heap.
+ */
+public class OffHeapBlocks {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapBlocks.class);
+
+    private final ByteBufAllocator allocator;
+    private final long budget;
+    private final AtomicLong used = new AtomicLong(0);
+    private final AtomicLong blocks = new AtomicLong(0);
+
+    /**
+     * @param budget
+     *            maximum number of bytes of the allocated blocks
+     */
+    public OffHeapBlocks(long budget) {
+        this(new PooledByteBufAllocator(true), budget);
+    }
+
+    public OffHeapBlocks(ByteBufAllocator allocator, long budget) {
+        this.allocator = allocator;
+        this.budget = budget;
+    }
+
+    /**
+     * Copy compressed values into an off heap block
+     *
+     * @return the block with one reference held by the caller, or null if the block does not fit in the budget
+     */
+    public Block allocate(long[] values) {
+        int size = values.length * Long.BYTES;
+        if (used.addAndGet(size) > budget) {
+            used.addAndGet(-size);
+            return null;
+        }
+        ByteBuf buffer;
+        try {
+            buffer = allocator.directBuffer(size, size);
+        } catch (OutOfMemoryError e) {
+            used.addAndGet(-size);
+            log.warn("Unable to allocate off heap block of {} bytes with {} bytes in use: {}", size, used.get(), e.getMessage());
+            return null;
+        }
+        for (long value : values) {
+            buffer.writeLong(value);
+        }
+        blocks.incrementAndGet();
+        return new Block(buffer, values.length);
+    }
+
+    /**
+     * @return number of bytes of the blocks that have not been released
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return number of blocks that have not been released
+     */
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * The compressed values of one archived compressor. The compressor holds a reference for as long as the block is in the cache and each reader holds one
+     * while it decompresses the block, so that aging off the compressor does not free memory that a query is still reading.
+     */
+    public class Block {
+
+        private final ByteBuf buffer;
+        private final int length;
+
+        private Block(ByteBuf buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        /**
+         * @return number of longs in the block
+         */
+        public int length() {
+            return length;
+        }
+
+        public long getLong(int index) {
+            return buffer.getLong(index * Long.BYTES);
+        }
+
+        public Block retain() {
+            buffer.retain();
+            return this;
+        }
+
+        public void release() {
+            if (buffer.release()) {
+                used.addAndGet(-(long) length * Long.BYTES);
+                blocks.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return a copy of the compressed values on the heap
+         */
+        public long[] toLongArray() {
+            long[] values = new long[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = getLong(i);
+            }
+            return values;
+        }
+    }
+}
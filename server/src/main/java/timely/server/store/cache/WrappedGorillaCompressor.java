@@ -7,7 +7,9 @@ import java.io.Serializable;
 
 import org.apache.commons.lang3.Range;
 
+import fi.iki.yak.ts.compression.gorilla.BitInput;
 import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
 import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
 
 public class WrappedGorillaCompressor implements Serializable {
@@ -19,6 +21,12 @@ public class WrappedGorillaCompressor implements Serializable {
     private long newestTimestamp;
     private LongArrayOutput compressorOutput = null;
     private long[] backingArray = null;
+    // the compressed values once they have been moved off heap, in which case backingArray is null
+    transient private OffHeapBlocks.Block offHeapBlock = null;
+    private boolean released = false;
+    // the snapshot file that holds this compressor and the length of its record, -1 if it is not in a snapshot
+    transient private int snapshotFile = -1;
+    transient private int snapshotLength = 0;
     private GorillaCompressor compressor;
 
     public WrappedGorillaCompressor(long timestamp) {
@@ -28,14 +36,109 @@ public class WrappedGorillaCompressor implements Serializable {
         this.newestTimestamp = timestamp;
     }
 
+    /**
+     * Create a closed compressor from compressed values that were written by another compressor
+     */
+    public WrappedGorillaCompressor(long numEntries, long oldestTimestamp, long newestTimestamp, long[] compressed) {
+        this.closed = true;
+        this.numEntries = numEntries;
+        this.oldestTimestamp = oldestTimestamp;
+        this.newestTimestamp = newestTimestamp;
+        this.backingArray = compressed;
+    }
+
     public long[] getCompressorOutput() {
-        if (closed) {
+        if (offHeapBlock != null) {
+            return offHeapBlock.toLongArray();
+        } else if (closed) {
             return backingArray;
         } else {
             return compressorOutput.getLongArray();
         }
     }
 
+    /**
+     * Get a reader of the compressed values. A reader of an off heap block holds a reference to the block that must be released with
+     * {@link #releaseInput(BitInput)} once the reader is done.
+     *
+     * @return the reader, or null if the compressor has been released
+     */
+    public BitInput getInput() {
+        if (released) {
+            return null;
+        } else if (offHeapBlock != null) {
+            return new OffHeapBlockInput(offHeapBlock.retain());
+        } else {
+            return new LongArrayInput(getCompressorOutput());
+        }
+    }
+
+    /**
+     * Release the reference that a reader from {@link #getInput()} holds to its off heap block
+     */
+    public static void releaseInput(BitInput input) {
+        if (input instanceof OffHeapBlockInput) {
+            ((OffHeapBlockInput) input).release();
+        }
+    }
+
+    /**
+     * Move the compressed values of a closed compressor into an off heap block
+     *
+     * @return false if the values stay on the heap
+     */
+    public boolean moveOffHeap(OffHeapBlocks offHeapBlocks) {
+        if (!closed || released || offHeapBlock != null) {
+            return false;
+        }
+        OffHeapBlocks.Block block = offHeapBlocks.allocate(backingArray);
+        if (block == null) {
+            return false;
+        }
+        offHeapBlock = block;
+        backingArray = null;
+        return true;
+    }
+
+    public boolean isOffHeap() {
+        return offHeapBlock != null;
+    }
+
+    /**
+     * Drop the compressed values of a compressor that has been removed from the cache. An off heap block is freed once the readers that still hold it are done.
+     */
+    public synchronized void release() {
+        released = true;
+        backingArray = null;
+        if (offHeapBlock != null) {
+            offHeapBlock.release();
+            offHeapBlock = null;
+        }
+    }
+
+    /**
+     * @return a copy of the compressed values of a closed compressor, or null if the compressor has been released
+     */
+    public synchronized long[] getSnapshotOutput() {
+        if (!closed || released) {
+            return null;
+        }
+        return offHeapBlock != null ? offHeapBlock.toLongArray() : backingArray;
+    }
+
+    public int getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public int getSnapshotLength() {
+        return snapshotLength;
+    }
+
+    public void setSnapshot(int snapshotFile, int snapshotLength) {
+        this.snapshotFile = snapshotFile;
+        this.snapshotLength = snapshotLength;
+    }
+
     public long getOldestTimestamp() {
         return oldestTimestamp;
     }
@@ -77,10 +180,11 @@ public class WrappedGorillaCompressor implements Serializable {
         out.writeLong(numEntries);
         out.writeLong(oldestTimestamp);
         out.writeLong(newestTimestamp);
-        int length = backingArray.length;
+        long[] output = getCompressorOutput();
+        int length = output.length;
         out.writeInt(length);
         for (int x = 0; x < length; x++) {
-            out.writeLong(backingArray[x]);
+            out.writeLong(output[x]);
         }
     }
 
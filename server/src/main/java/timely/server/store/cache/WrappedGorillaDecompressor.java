@@ -1,13 +1,15 @@
 package timely.server.store.cache;
 
+import fi.iki.yak.ts.compression.gorilla.BitInput;
 import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
 import fi.iki.yak.ts.compression.gorilla.Pair;
 
-public class WrappedGorillaDecompressor {
+public class WrappedGorillaDecompressor implements AutoCloseable {
 
     private GorillaDecompressor decompressor;
     private long length;
     private long numRead = 0;
+    private BitInput input = null;
 
     public WrappedGorillaDecompressor(GorillaDecompressor decompressor, long length) {
 
@@ -15,12 +17,35 @@ public class WrappedGorillaDecompressor {
         this.length = length;
     }
 
+    /**
+     * @param input
+     *            reader of the compressed values, released from its off heap block once all of the values have been read or the decompressor is closed
+     */
+    public WrappedGorillaDecompressor(BitInput input, long length) {
+        this(new GorillaDecompressor(input), length);
+        this.input = input;
+    }
+
     public Pair readPair() {
         if (length == -1 || numRead < length) {
-            numRead++;
-            return decompressor.readPair();
+            Pair pair = decompressor.readPair();
+            if (pair == null) {
+                close();
+            } else {
+                numRead++;
+            }
+            return pair;
         } else {
+            close();
             return null;
         }
     }
+
+    @Override
+    public void close() {
+        if (input != null) {
+            WrappedGorillaCompressor.releaseInput(input);
+            input = null;
+        }
+    }
 }
@@ -3,7 +3,7 @@ package timely.server.store.cache;
 import java.util.Iterator;
 import java.util.List;
 
-public class WrappedGorillaDecompressorIterator implements Iterator<WrappedGorillaDecompressor> {
+public class WrappedGorillaDecompressorIterator implements Iterator<WrappedGorillaDecompressor>, AutoCloseable {
 
     private TaggedMetric taggedMetric;
     private List<WrappedGorillaDecompressor> decompressors;
@@ -39,4 +39,14 @@ public class WrappedGorillaDecompressorIterator implements Iterator<WrappedGoril
     public TaggedMetric getTaggedMetric() {
         return taggedMetric;
     }
+
+    /**
+     * Release the off heap blocks of the decompressors that have not been read to the end
+     */
+    @Override
+    public void close() {
+        for (WrappedGorillaDecompressor decompressor : decompressors) {
+            decompressor.close();
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package timely.server.store.migrate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.AccumuloClient;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.accumulo.MetaAdapter;
+import timely.accumulo.MetricAdapter;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.configuration.SeriesMigrationProperties;
+import timely.server.store.GorillaBlock;
+import timely.server.util.MetaKeySet;
+
+/**
+ * Rewrites the tag layout entries of the metrics table in the series layout and writes the series postings to the meta table. Each sample is stored once per
+ * tag in the tag layout, only the copy whose column family is the lowest sorted tag is rewritten. Entries already in the series layout are skipped, so the
+ * migration can be run again after an interruption. The blocks written by the block compaction are read as the samples they hold. The scan is processed in
+ * batches of bounded size, see {@link SeriesMigrationProperties#getBatchSize()}.
+ */
+public class SeriesLayoutMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(SeriesLayoutMigration.class);
+
+    private final AccumuloClient accumuloClient;
+    private final TimelyProperties timelyProperties;
+    private final SeriesMigrationProperties migrationProperties;
+
+    public SeriesLayoutMigration(AccumuloClient accumuloClient, TimelyProperties timelyProperties, SeriesMigrationProperties migrationProperties) {
+        this.accumuloClient = accumuloClient;
+        this.timelyProperties = timelyProperties;
+        this.migrationProperties = migrationProperties;
+    }
+
+    /**
+     * @return the number of samples rewritten
+     */
+    public long run() throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+        String metricsTable = timelyProperties.getMetricsTable();
+        String metaTable = timelyProperties.getMetaTable();
+        Batch batch = new Batch();
+        try (Scanner scanner = accumuloClient.createScanner(metricsTable, accumuloClient.securityOperations().getUserAuthorizations(accumuloClient.whoami()));
+                        BatchWriter metricsWriter = accumuloClient.createBatchWriter(metricsTable, new BatchWriterConfig());
+                        BatchWriter metaWriter = accumuloClient.createBatchWriter(metaTable, new BatchWriterConfig())) {
+            for (Map.Entry<Key,Value> e : scanner) {
+                Key k = e.getKey();
+                Text cf = k.getColumnFamily();
+                if (cf.find("=") < 0) {
+                    // already in the series layout
+                    continue;
+                }
+                String columnFamily = cf.toString();
+                for (Metric metric : getMetrics(k, e.getValue())) {
+                    if (isFirstTag(metric, columnFamily)) {
+                        String seriesId = MetricAdapter.getSeriesId(metric);
+                        metricsWriter.addMutation(MetricAdapter.toSeriesMutation(metric, seriesId));
+                        batch.newestBySeries.merge(metric.getName() + '\0' + seriesId, metric,
+                                        (m1, m2) -> m1.getValue().getTimestamp() >= m2.getValue().getTimestamp() ? m1 : m2);
+                        batch.migrated++;
+                    }
+                }
+                if (migrationProperties.isDeleteTagEntries()) {
+                    Mutation delete = new Mutation(k.getRow());
+                    delete.putDelete(cf, k.getColumnQualifier(), k.getColumnVisibilityParsed(), k.getTimestamp());
+                    batch.deletes.add(delete);
+                }
+                if (batch.newestBySeries.size() + batch.deletes.size() >= migrationProperties.getBatchSize()) {
+                    batch.write(metricsWriter, metaWriter);
+                }
+            }
+            batch.write(metricsWriter, metaWriter);
+        }
+        log.info("Migrated {} samples from {} to the series layout, deleted {} tag layout entries", batch.totalMigrated, metricsTable, batch.totalDeleted);
+        return batch.totalMigrated;
+    }
+
+    /**
+     * The postings and deletes of the samples rewritten since the last batch was written. The series entries and postings of a batch are flushed before its tag
+     * layout entries are deleted, so that a migration that fails leaves every sample in at least one layout and can be run again.
+     */
+    private static class Batch {
+
+        // newest sample of each series, used to timestamp the postings so that they age off with the series
+        private final Map<String,Metric> newestBySeries = new HashMap<>();
+        private final List<Mutation> deletes = new ArrayList<>();
+        private long migrated = 0;
+        private long totalMigrated = 0;
+        private long totalDeleted = 0;
+
+        private void write(BatchWriter metricsWriter, BatchWriter metaWriter) throws MutationsRejectedException {
+            for (Map.Entry<String,Metric> e : newestBySeries.entrySet()) {
+                Metric metric = e.getValue();
+                String seriesId = e.getKey().substring(e.getKey().indexOf('\0') + 1);
+                long timestamp = metric.getValue().getTimestamp();
+                MetaKeySet mks = new MetaKeySet();
+                for (Tag tag : metric.getTags()) {
+                    if (!tag.getKey().equals(MetricAdapter.VISIBILITY_TAG)) {
+                        mks.add(MetaAdapter.createSeriesKey(metric.getName(), tag.getKey(), tag.getValue(), seriesId, timestamp));
+                    }
+                }
+                metaWriter.addMutations(mks.toMutations(timestamp));
+            }
+            metaWriter.flush();
+            metricsWriter.flush();
+            if (!deletes.isEmpty()) {
+                metricsWriter.addMutations(deletes);
+                metricsWriter.flush();
+            }
+            totalMigrated += migrated;
+            totalDeleted += deletes.size();
+            log.debug("Migrated {} samples of {} series, {} samples in total", migrated, newestBySeries.size(), totalMigrated);
+            newestBySeries.clear();
+            deletes.clear();
+            migrated = 0;
+        }
+    }
+
+    /**
+     * The samples of a tag layout entry, which is either a single sample or a {@link GorillaBlock} of the samples of a series within a closed hour. The samples
+     * of a block are rewritten and the block is deleted as one entry. A sample written after its hour was packed follows the block in the scan, so its series
+     * entry is written after the one of the block sample it replaces.
+     */
+    static List<Metric> getMetrics(Key k, Value v) {
+        if (!GorillaBlock.isBlock(v)) {
+            return Collections.singletonList(MetricAdapter.parse(k, v, true));
+        }
+        GorillaBlock block = new GorillaBlock(v.get());
+        byte[] row = k.getRowData().toArray();
+        byte[] columnFamily = k.getColumnFamilyData().toArray();
+        byte[] columnVisibility = k.getColumnVisibilityData().toArray();
+        String tags = MetricAdapter.decodeColQual(k.getColumnQualifierData().toArray()).getSecond();
+        List<Metric> metrics = new ArrayList<>(block.size());
+        while (block.next()) {
+            long timestamp = block.getTimestamp();
+            Key point = new Key(row, columnFamily, MetricAdapter.encodeColQual(timestamp, tags), columnVisibility, timestamp);
+            metrics.add(MetricAdapter.parse(point, new Value(MetricAdapter.encodeValue(block.getValue())), true));
+        }
+        return metrics;
+    }
+
+    private static boolean isFirstTag(Metric metric, String columnFamily) {
+        List<Tag> tags = new ArrayList<>(metric.getTags().size());
+        for (Tag tag : metric.getTags()) {
+            if (!tag.getKey().equals(MetricAdapter.VISIBILITY_TAG)) {
+                tags.add(tag);
+            }
+        }
+        return !tags.isEmpty() && Collections.min(tags).join().equals(columnFamily);
+    }
+}
@@ -36,7 +36,6 @@ import timely.api.response.MetricResponse;
 import timely.api.response.MetricResponses;
 import timely.api.response.TimelyException;
 import timely.model.Metric;
-import timely.model.Tag;
 import timely.server.store.DataStore;
 import timely.server.store.cache.DataStoreCache;
 import timely.subscription.Subscription;
@@ -67,7 +66,7 @@ public final class MetricScanner extends Thread implements UncaughtExceptionHand
     private Iterator<Range> rangeItr = null;
     private DataStore store;
     private DataStoreCache cache;
-    private Set<Tag> colFamValues;
+    private Set<String> colFamValues;
     private boolean completedResponseSent = false;
     private boolean done = false;
 
@@ -110,7 +109,7 @@ public final class MetricScanner extends Thread implements UncaughtExceptionHand
         long endTimeStamp = (endTime == 0) ? (System.currentTimeMillis() - (lag * 1000)) : endTime;
 
         try {
-            this.colFamValues = this.store.getColumnFamilies(metric, tags);
+            this.colFamValues = this.store.getQueryColumnFamilies(metric, tags);
             this.ranges = new ArrayList<>();
             if (this.cache == null) {
                 log.debug("[{}] Cache not enabled, adding complete range", subscriptionId);
@@ -16,6 +16,8 @@ import timely.common.configuration.AccumuloProperties;
 import timely.common.configuration.CacheProperties;
 import timely.common.configuration.CorsProperties;
 import timely.common.configuration.HttpProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
 import timely.common.configuration.SecurityProperties;
 import timely.common.configuration.ServerProperties;
 import timely.common.configuration.SslServerProperties;
@@ -23,8 +25,10 @@ import timely.common.configuration.TimelyProperties;
 import timely.common.configuration.WebsocketProperties;
 import timely.common.configuration.ZookeeperProperties;
 import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
 import timely.server.store.InternalMetrics;
 import timely.server.store.MetaCache;
+import timely.server.store.QueryScheduler;
 import timely.server.store.cache.DataStoreCache;
 import timely.server.test.TestCaptureRequestHandler;
 import timely.server.test.TestDataStore;
@@ -57,15 +61,16 @@ public class TestTimelyConfiguration {
     }
 
     @Bean(destroyMethod = "shutdown")
-    public TestServer testTimelyServer(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, DataStoreCache dataStoreCache,
-                    @Qualifier("nettySslContext") SslContext sslContext, AuthenticationService authenticationService, CuratorFramework curatorFramework,
-                    MetaCache metaCache, TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties,
-                    HttpProperties httpProperties, CorsProperties corsProperties, WebsocketProperties websocketProperties,
-                    SslServerProperties sslServerProperties, @Qualifier("http") TestCaptureRequestHandler httpRequests,
-                    @Qualifier("tcp") TestCaptureRequestHandler tcpRequests, @Qualifier("udp") TestCaptureRequestHandler udpRequests) {
-        TestServer timelyServer = new TestServer(applicationContext, accumuloClient, dataStore, dataStoreCache, sslContext, authenticationService,
-                        curatorFramework, metaCache, timelyProperties, securityProperties, serverProperties, httpProperties, corsProperties,
-                        websocketProperties, sslServerProperties, httpRequests, tcpRequests, udpRequests);
+    public TestServer testTimelyServer(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, IngestQueue ingestQueue,
+                    QueryScheduler queryScheduler, DataStoreCache dataStoreCache, @Qualifier("nettySslContext") SslContext sslContext,
+                    AuthenticationService authenticationService, CuratorFramework curatorFramework, MetaCache metaCache, InternalMetrics internalMetrics,
+                    TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties, HttpProperties httpProperties,
+                    CorsProperties corsProperties, WebsocketProperties websocketProperties, SslServerProperties sslServerProperties,
+                    @Qualifier("http") TestCaptureRequestHandler httpRequests, @Qualifier("tcp") TestCaptureRequestHandler tcpRequests,
+                    @Qualifier("udp") TestCaptureRequestHandler udpRequests) {
+        TestServer timelyServer = new TestServer(applicationContext, accumuloClient, dataStore, ingestQueue, queryScheduler, dataStoreCache, sslContext,
+                        authenticationService, curatorFramework, metaCache, internalMetrics, timelyProperties, securityProperties, serverProperties,
+                        httpProperties, corsProperties, websocketProperties, sslServerProperties, httpRequests, tcpRequests, udpRequests);
         timelyServer.start();
         return timelyServer;
     }
@@ -76,9 +81,11 @@ public class TestTimelyConfiguration {
     public TestDataStore dataStore(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStoreCache dataStoreCache,
                     AuthenticationService authenticationService, InternalMetrics internalMetrics, MetaCache metaCache, TimelyProperties timelyProperties,
                     ZookeeperProperties zookeeperProperties, AccumuloProperties accumuloProperties, SecurityProperties securityProperties,
-                    CacheProperties cacheProperties, Exclusions exclusions) throws Exception {
+                    CacheProperties cacheProperties, QueryCacheProperties queryCacheProperties, IngestProperties ingestProperties, Exclusions exclusions)
+                    throws Exception {
         TestDataStore dataStore = new TestDataStore(applicationContext, accumuloClient, dataStoreCache, authenticationService, internalMetrics, metaCache,
-                        timelyProperties, zookeeperProperties, accumuloProperties, securityProperties, cacheProperties, exclusions);
+                        timelyProperties, zookeeperProperties, accumuloProperties, securityProperties, cacheProperties, queryCacheProperties, ingestProperties,
+                        exclusions);
         dataStore.start();
         return dataStore;
     }
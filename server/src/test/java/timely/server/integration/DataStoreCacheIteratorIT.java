@@ -9,6 +9,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.apache.accumulo.core.security.Authorizations;
@@ -25,6 +26,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.Filter;
 import timely.common.component.AuthenticationService;
 import timely.common.configuration.CacheProperties;
 import timely.model.Metric;
@@ -221,6 +223,118 @@ public class DataStoreCacheIteratorIT extends ITBase {
         }
     }
 
+    @Test
+    public void testCacheQueryMatchesIterators() throws Exception {
+
+        long BASETIME = System.currentTimeMillis();
+        BASETIME = BASETIME - (BASETIME % 1000);
+        DataStoreCache mmStore1 = getMetricMemoryStore1(BASETIME);
+        DataStoreCache mmStore2 = getMetricMemoryStore2(BASETIME);
+
+        QueryRequest query = new QueryRequest();
+        query.setStart(BASETIME + 30000);
+        query.setEnd(BASETIME + 1440000);
+        query.setMsResolution(true);
+
+        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+        subQuery.setDownsample(Optional.of("1m-avg"));
+        subQuery.setMetric("metric.number.1");
+        subQuery.addTag("host", ".*");
+        assertCacheQueryMatchesIterators(mmStore1, query, subQuery, Authorizations.EMPTY);
+
+        // no aggregator returns the downsample of each series
+        subQuery.setAggregator("none");
+        assertCacheQueryMatchesIterators(mmStore1, query, subQuery, Authorizations.EMPTY);
+
+        subQuery = new QueryRequest.SubQuery();
+        subQuery.setDownsample(Optional.of("5m-max"));
+        subQuery.setMetric("metric.number.2");
+        subQuery.addTag("rack", "r01|r02");
+        subQuery.setAggregator("sum");
+        Filter filter = new Filter();
+        filter.setType("literal_or");
+        filter.setTagk("host");
+        filter.setFilter("r01n01|r02n01");
+        filter.setGroupBy(true);
+        subQuery.addFilter(filter);
+        assertCacheQueryMatchesIterators(mmStore1, query, subQuery, Authorizations.EMPTY);
+
+        subQuery = new QueryRequest.SubQuery();
+        subQuery.setDownsample(Optional.of("1m-avg"));
+        subQuery.setMetric("metric.number.1");
+        subQuery.addTag("host", ".*");
+        subQuery.setRate(true);
+        assertCacheQueryMatchesIterators(mmStore2, query, subQuery, Authorizations.EMPTY);
+
+        subQuery = new QueryRequest.SubQuery();
+        subQuery.setDownsample(Optional.of("1m-sum"));
+        subQuery.setMetric("metric.number.1");
+        subQuery.setRate(true);
+        subQuery.getRateOptions().setCounter(true);
+        subQuery.getRateOptions().setCounterMax(100);
+        subQuery.getRateOptions().setResetValue(5);
+        subQuery.getRateOptions().setInterval("1s");
+        assertCacheQueryMatchesIterators(mmStore1, query, subQuery, Authorizations.EMPTY);
+    }
+
+    @Test
+    public void testCacheQueryMatchesIteratorsWithVisibility() throws Exception {
+
+        long BASETIME = System.currentTimeMillis();
+        BASETIME = BASETIME - (BASETIME % 1000);
+        DataStoreCache mmStore = new TestDataStoreCache(curatorFramework, authenticationService, internalMetrics, timelyProperties, cacheProperties);
+        mmStore.start();
+
+        // series that differ only in visibility are the same series to the iterators
+        Map<String,String> tags = new HashMap<>();
+        tags.put("host", "r01n01");
+        for (int x = 0; x <= 600; x++) {
+            tags.put("viz", (x % 3 == 0) ? "A" : "B");
+            mmStore.store(createMetric("metric.number.1", tags, x * 10, BASETIME + (x * 1000)));
+            tags.put("viz", "C");
+            mmStore.store(createMetric("metric.number.1", tags, x, BASETIME + (x * 1000)));
+        }
+        mmStore.flushCaches(-1);
+
+        QueryRequest query = new QueryRequest();
+        query.setStart(BASETIME);
+        query.setEnd(BASETIME + 600000);
+        query.setMsResolution(true);
+        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+        subQuery.setDownsample(Optional.of("1m-avg"));
+        subQuery.setMetric("metric.number.1");
+        subQuery.setRate(true);
+        assertCacheQueryMatchesIterators(mmStore, query, subQuery, new Authorizations("A", "B"));
+        assertCacheQueryMatchesIterators(mmStore, query, subQuery, new Authorizations("A", "B", "C"));
+    }
+
+    private void assertCacheQueryMatchesIterators(DataStoreCache mmStore, QueryRequest query, QueryRequest.SubQuery subQuery, Authorizations auths)
+                    throws Exception {
+        List<Authorizations> authorizations = Collections.singletonList(auths);
+        Map<Set<Tag>,Aggregation> expected = new HashMap<>();
+        SortedKeyValueIterator<org.apache.accumulo.core.data.Key,org.apache.accumulo.core.data.Value> itr = mmStore.setupIterator(query, subQuery,
+                        authorizations, Long.MAX_VALUE);
+        while (itr.hasTop()) {
+            expected.putAll(AggregationIterator.decodeValue(itr.getTopValue()));
+            itr.next();
+        }
+        Map<Set<Tag>,Aggregation> actual = mmStore.runQuery(query, subQuery, authorizations, Long.MAX_VALUE);
+
+        Assert.assertFalse("No results for " + subQuery, expected.isEmpty());
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Set<Tag>,Aggregation> entry : expected.entrySet()) {
+            Assert.assertEquals("Samples differ for " + entry.getKey(), samples(entry.getValue()), samples(actual.get(entry.getKey())));
+        }
+    }
+
+    private static Map<Long,Double> samples(Aggregation aggregation) {
+        Map<Long,Double> samples = new TreeMap<>();
+        for (Sample s : aggregation) {
+            samples.put(s.getTimestamp(), s.getValue());
+        }
+        return samples;
+    }
+
     private Metric createMetric(String metric, Map<String,String> tags, double value, long timestamp) {
         Metric m = new Metric();
         m.setName(metric);
@@ -0,0 +1,256 @@
+package timely.server.integration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.google.common.collect.Sets;
+
+import timely.accumulo.MetricAdapter;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.timeseries.QueryResponse;
+import timely.common.component.AuthenticationService;
+import timely.common.configuration.AccumuloProperties;
+import timely.common.configuration.CacheProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
+import timely.common.configuration.SecurityProperties;
+import timely.common.configuration.StoreProperties;
+import timely.common.configuration.ZookeeperProperties;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.configuration.SeriesMigrationProperties;
+import timely.server.store.GorillaBlock;
+import timely.server.store.InternalMetrics;
+import timely.server.store.MetaCache;
+import timely.server.store.migrate.SeriesLayoutMigration;
+import timely.server.test.TestDataStore;
+import timely.test.IntegrationTest;
+import timely.test.TimelyTestRule;
+import timely.util.Exclusions;
+
+@Category(IntegrationTest.class)
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class SeriesLayoutIT extends ITBase {
+
+    @Autowired
+    @Rule
+    public TimelyTestRule testRule;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private InternalMetrics internalMetrics;
+
+    @Autowired
+    private MetaCache metaCache;
+
+    @Autowired
+    private ZookeeperProperties zookeeperProperties;
+
+    @Autowired
+    private AccumuloProperties accumuloProperties;
+
+    @Autowired
+    private SecurityProperties securityProperties;
+
+    @Autowired
+    private CacheProperties cacheProperties;
+
+    @Autowired
+    private QueryCacheProperties queryCacheProperties;
+
+    @Autowired
+    private IngestProperties ingestProperties;
+
+    @Autowired
+    private Exclusions exclusions;
+
+    private final long now = (System.currentTimeMillis() / 1000) * 1000;
+
+    @Before
+    public void setup() {
+        super.setup();
+    }
+
+    @After
+    public void cleanup() {
+        super.cleanup();
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        try (BatchWriter writer = accumuloClient.createBatchWriter(timelyProperties.getMetricsTable(), new BatchWriterConfig())) {
+            for (int x = 0; x < 10; x++) {
+                writer.addMutation(MetricAdapter.toMutation(createMetric("h1", now - x * 1000)));
+                writer.addMutation(MetricAdapter.toMutation(createMetric("h2", now - x * 1000)));
+            }
+        }
+
+        SeriesMigrationProperties migrationProperties = new SeriesMigrationProperties();
+        migrationProperties.setDeleteTagEntries(true);
+        // several batches for the 40 tag layout entries
+        migrationProperties.setBatchSize(7);
+        long migrated = new SeriesLayoutMigration(accumuloClient, timelyProperties, migrationProperties).run();
+        Assert.assertEquals(20, migrated);
+
+        int entries = 0;
+        try (Scanner scanner = accumuloClient.createScanner(timelyProperties.getMetricsTable(), Authorizations.EMPTY)) {
+            for (Map.Entry<Key,Value> e : scanner) {
+                Assert.assertTrue(e.getKey().toString(), e.getKey().getColumnFamily().find("=") < 0);
+                entries++;
+            }
+        }
+        Assert.assertEquals(20, entries);
+
+        String h1 = MetricAdapter.getSeriesId(createMetric("h1", now));
+        String h2 = MetricAdapter.getSeriesId(createMetric("h2", now));
+        Assert.assertEquals(Collections.singleton(h1), dataStore.getSeriesIds("sys.cpu.user", Collections.singletonMap("host", "h1")));
+        Assert.assertEquals(Sets.newHashSet(h1, h2), dataStore.getSeriesIds("sys.cpu.user", Collections.singletonMap("host", "h.*")));
+        Assert.assertEquals(Sets.newHashSet(h1, h2), dataStore.getSeriesIds("sys.cpu.user", null));
+        Assert.assertEquals(Collections.emptySet(), dataStore.getSeriesIds("sys.cpu.user", Collections.singletonMap("host", "h3")));
+
+        // the migrated entries are read by a store in the series layout
+        TestDataStore seriesStore = createSeriesLayoutStore();
+        try {
+            assertQuery(seriesStore, "h1", 10);
+        } finally {
+            seriesStore.shutdown();
+        }
+
+        // a second run finds nothing left to migrate
+        Assert.assertEquals(0, new SeriesLayoutMigration(accumuloClient, timelyProperties, migrationProperties).run());
+    }
+
+    @Test
+    public void testMigrationOfPackedHour() throws Exception {
+        long hour = MetricAdapter.roundTimestampToLastHour(now) - 3 * 3600000;
+        int numPoints = 60;
+        long[] timestamps = new long[numPoints];
+        double[] values = new double[numPoints];
+        for (int x = 0; x < numPoints; x++) {
+            timestamps[x] = hour + x * 60000;
+            values[x] = x;
+        }
+        // the tag layout entries of the hour packed into one block per column family, as written by the block compaction
+        byte[] block = GorillaBlock.encode(hour - 1, timestamps, values, numPoints);
+        Mutation points = MetricAdapter.toMutation(createMetric("h1", hour));
+        Mutation blocks = new Mutation(points.getRow());
+        for (ColumnUpdate cu : points.getUpdates()) {
+            String tags = MetricAdapter.decodeColQual(cu.getColumnQualifier()).getSecond();
+            blocks.put(new Text(cu.getColumnFamily()), new Text(MetricAdapter.encodeColQual(hour - 1, tags)), timestamps[numPoints - 1], new Value(block));
+        }
+        try (BatchWriter writer = accumuloClient.createBatchWriter(timelyProperties.getMetricsTable(), new BatchWriterConfig())) {
+            writer.addMutation(blocks);
+        }
+
+        SeriesMigrationProperties migrationProperties = new SeriesMigrationProperties();
+        migrationProperties.setDeleteTagEntries(true);
+        Assert.assertEquals(numPoints, new SeriesLayoutMigration(accumuloClient, timelyProperties, migrationProperties).run());
+
+        List<Long> migrated = new ArrayList<>();
+        try (Scanner scanner = accumuloClient.createScanner(timelyProperties.getMetricsTable(), Authorizations.EMPTY)) {
+            for (Map.Entry<Key,Value> e : scanner) {
+                // the blocks are deleted once their points are rewritten
+                Assert.assertTrue(e.getKey().toString(), e.getKey().getColumnFamily().find("=") < 0);
+                Metric m = MetricAdapter.parse(e.getKey(), e.getValue());
+                Assert.assertEquals((double) migrated.size(), m.getValue().getMeasure(), 0.0D);
+                migrated.add(m.getValue().getTimestamp());
+            }
+        }
+        Assert.assertEquals(Arrays.stream(timestamps).boxed().collect(Collectors.toList()), migrated);
+    }
+
+    @Test
+    public void testSeriesLayoutQuery() throws Exception {
+        TestDataStore seriesStore = createSeriesLayoutStore();
+        try {
+            for (int x = 0; x < 5; x++) {
+                seriesStore.store(createMetric("h1", now - x * 1000), false);
+                seriesStore.store(createMetric("h2", now - x * 1000), false);
+            }
+            seriesStore.flush();
+            Map<String,String> tags = new LinkedHashMap<>();
+            tags.put("host", "h2");
+            tags.put("rack", "r1");
+            Assert.assertEquals(Collections.singleton(MetricAdapter.getSeriesId(createMetric("h2", now))), seriesStore.getSeriesIds("sys.cpu.user", tags));
+            assertQuery(seriesStore, "h2", 5);
+        } finally {
+            seriesStore.shutdown();
+        }
+    }
+
+    private void assertQuery(TestDataStore store, String host, int expected) throws Exception {
+        QueryRequest query = new QueryRequest();
+        query.setStart(now - 60000);
+        query.setEnd(now + 1000);
+        query.setMsResolution(true);
+        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        subQuery.setDownsample(Optional.of("1s-count"));
+        subQuery.addTag("host", host);
+        query.setQueries(Collections.singleton(subQuery));
+
+        List<QueryResponse> responses = store.query(query);
+        Assert.assertEquals(1, responses.size());
+        QueryResponse response = responses.get(0);
+        Assert.assertEquals(host, response.getTags().get("host"));
+        Assert.assertEquals(expected, response.getDps().size());
+    }
+
+    private TestDataStore createSeriesLayoutStore() throws Exception {
+        StoreProperties.Layout layout = timelyProperties.getStore().getLayout();
+        timelyProperties.getStore().setLayout(StoreProperties.Layout.SERIES);
+        try {
+            TestDataStore store = new TestDataStore(applicationContext, accumuloClient, dataStoreCache, authenticationService, internalMetrics, metaCache,
+                            timelyProperties, zookeeperProperties, accumuloProperties, securityProperties, cacheProperties, queryCacheProperties,
+                            ingestProperties, exclusions);
+            store.start();
+            return store;
+        } finally {
+            timelyProperties.getStore().setLayout(layout);
+        }
+    }
+
+    private static Metric createMetric(String host, long timestamp) {
+        Metric m = new Metric();
+        m.setName("sys.cpu.user");
+        m.setTags(Arrays.asList(new Tag("host", host), new Tag("rack", "r1")));
+        timely.model.Value value = new timely.model.Value();
+        value.setMeasure(1.0);
+        value.setTimestamp(timestamp);
+        m.setValue(value);
+        return m;
+    }
+}
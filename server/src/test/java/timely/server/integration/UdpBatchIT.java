@@ -0,0 +1,149 @@
+package timely.server.integration;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import timely.api.request.MetricBatchRequest;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.test.TestCaptureRequestHandler;
+import timely.server.test.TestConfiguration;
+import timely.test.IntegrationTest;
+import timely.test.TimelyTestRule;
+
+/**
+ * Integration tests for the batching of the metrics received by the UDP listener, see {@link timely.netty.udp.UdpBatchDecoder}
+ */
+@Category(IntegrationTest.class)
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class UdpBatchIT extends ITBase {
+
+    private static final Long TEST_TIME = ITBase.roundTimestampToLastHour(System.currentTimeMillis());
+
+    @Autowired
+    @Rule
+    public TimelyTestRule testRule;
+
+    @Autowired
+    @Qualifier("udp")
+    public TestCaptureRequestHandler udpRequests;
+
+    @Before
+    public void setup() {
+        super.setup();
+    }
+
+    @After
+    public void cleanup() {
+        super.cleanup();
+        udpRequests.clear();
+    }
+
+    @Test
+    public void testDatagramsBatched() throws Exception {
+        List<Metric> expected = new ArrayList<>();
+        try (DatagramSocket sock = new DatagramSocket()) {
+            for (int d = 0; d < 10; d++) {
+                StringBuilder lines = new StringBuilder();
+                for (int l = 0; l < 5; l++) {
+                    long timestamp = TEST_TIME + d * 5 + l;
+                    lines.append("put sys.cpu.user ").append(timestamp).append(" 1.0 host=r01n0").append(l).append("\n");
+                    expected.add(metric("sys.cpu.user", timestamp, "host", "r01n0" + l));
+                }
+                send(sock, lines.toString().getBytes(UTF_8));
+            }
+            waitForMetrics(50);
+        }
+        // every put arrived in a batch, several datagrams may share one
+        List<Metric> received = new ArrayList<>();
+        for (MetricBatchRequest batch : udpRequests.getBatches()) {
+            Assert.assertEquals(0, batch.getRejected());
+            received.addAll(batch.getMetrics());
+        }
+        Assert.assertTrue(udpRequests.getBatches().size() <= 10);
+        Assert.assertEquals(expected, received);
+    }
+
+    @Test
+    public void testSizePrefixedBinaryBatched() throws Exception {
+        byte[] first = sizePrefixedBuffer("sys.cpu.user", TEST_TIME);
+        byte[] second = sizePrefixedBuffer("sys.cpu.idle", TEST_TIME + 1);
+        byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        try (DatagramSocket sock = new DatagramSocket()) {
+            send(sock, data);
+            waitForMetrics(2);
+        }
+        Assert.assertEquals(1, udpRequests.getBatches().size());
+        Assert.assertEquals(Arrays.asList(metric("sys.cpu.user", TEST_TIME, "tag1", "value1"), metric("sys.cpu.idle", TEST_TIME + 1, "tag1", "value1")),
+                        udpRequests.getBatches().get(0).getMetrics());
+    }
+
+    @Test
+    public void testInvalidBinaryRejected() throws Exception {
+        byte[] frame = sizePrefixedBuffer("sys.cpu.user", TEST_TIME);
+        // the frame followed by bytes that are not a frame
+        byte[] data = Arrays.copyOf(frame, frame.length + 12);
+        try (DatagramSocket sock = new DatagramSocket()) {
+            send(sock, data);
+            waitForMetrics(1);
+        }
+        Assert.assertEquals(1, udpRequests.getBatches().size());
+        MetricBatchRequest batch = udpRequests.getBatches().get(0);
+        Assert.assertEquals(Collections.singletonList(metric("sys.cpu.user", TEST_TIME, "tag1", "value1")), batch.getMetrics());
+        Assert.assertEquals(1, batch.getRejected());
+    }
+
+    private void send(DatagramSocket sock, byte[] data) throws Exception {
+        sock.send(new DatagramPacket(data, data.length, InetAddress.getByName(serverProperties.getIp()), serverProperties.getUdpPort()));
+    }
+
+    private void waitForMetrics(int expected) throws Exception {
+        long start = System.currentTimeMillis();
+        while (expected != udpRequests.getCount()) {
+            Thread.sleep(5);
+            if ((System.currentTimeMillis() - start) > (TestConfiguration.WAIT_SECONDS * 1000)) {
+                Assert.fail("Failed to receive UDP updates in " + TestConfiguration.WAIT_SECONDS + " seconds");
+            }
+        }
+    }
+
+    private static Metric metric(String name, long timestamp, String tagk, String tagv) {
+        return Metric.newBuilder().name(name).value(timestamp, 1.0D).tag(new Tag(tagk, tagv)).build();
+    }
+
+    private static byte[] sizePrefixedBuffer(String name, long timestamp) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1);
+        int[] tags = {timely.api.flatbuffer.Tag.createTag(builder, builder.createString("tag1"), builder.createString("value1"))};
+        int[] metric = {timely.api.flatbuffer.Metric.createMetric(builder, builder.createString(name), timestamp, 1.0D,
+                        timely.api.flatbuffer.Metric.createTagsVector(builder, tags))};
+        int metricVector = timely.api.flatbuffer.Metrics.createMetricsVector(builder, metric);
+        timely.api.flatbuffer.Metrics.startMetrics(builder);
+        timely.api.flatbuffer.Metrics.addMetrics(builder, metricVector);
+        int metrics = timely.api.flatbuffer.Metrics.endMetrics(builder);
+        timely.api.flatbuffer.Metrics.finishSizePrefixedMetricsBuffer(builder, metrics);
+        return builder.sizedByteArray();
+    }
+}
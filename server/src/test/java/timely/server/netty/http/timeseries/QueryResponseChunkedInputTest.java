@@ -0,0 +1,91 @@
+package timely.server.netty.http.timeseries;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import timely.api.response.timeseries.QueryResponse;
+import timely.server.netty.websocket.timeseries.QueryResponseFrameInput;
+import timely.util.JsonUtil;
+
+public class QueryResponseChunkedInputTest {
+
+    private List<QueryResponse> createResponses(int numSeries) {
+        List<QueryResponse> responses = new ArrayList<>();
+        for (int i = 0; i < numSeries; i++) {
+            QueryResponse response = new QueryResponse();
+            response.setMetric("sys.cpu.user");
+            response.putTag("host", "host" + i);
+            for (long ts = 1000; ts <= 10000; ts += 1000) {
+                response.putDps(Long.toString(ts), i + ts / 1000.0D);
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private String readAll(QueryResponseChunkedInput input, List<Integer> chunkSizes) throws Exception {
+        StringBuilder json = new StringBuilder();
+        while (!input.isEndOfInput()) {
+            ByteBuf chunk = input.readChunk(UnpooledByteBufAllocator.DEFAULT);
+            chunkSizes.add(chunk.readableBytes());
+            json.append(chunk.toString(UTF_8));
+            chunk.release();
+        }
+        Assert.assertNull(input.readChunk(UnpooledByteBufAllocator.DEFAULT));
+        return json.toString();
+    }
+
+    @Test
+    public void testSameAsFullResponse() throws Exception {
+        List<QueryResponse> responses = createResponses(20);
+        List<Integer> chunkSizes = new ArrayList<>();
+        QueryResponseChunkedInput input = new QueryResponseChunkedInput(responses.iterator(), 512);
+        Assert.assertEquals(JsonUtil.getObjectMapper().writeValueAsString(responses), readAll(input, chunkSizes));
+        Assert.assertEquals(20, input.progress());
+        Assert.assertTrue(chunkSizes.size() > 1);
+        for (int i = 0; i < chunkSizes.size() - 1; i++) {
+            Assert.assertTrue(chunkSizes.get(i) >= 512);
+        }
+    }
+
+    @Test
+    public void testNoSeries() throws Exception {
+        List<Integer> chunkSizes = new ArrayList<>();
+        Assert.assertEquals("[]", readAll(new QueryResponseChunkedInput(Collections.emptyIterator()), chunkSizes));
+        Assert.assertEquals(1, chunkSizes.size());
+    }
+
+    @Test
+    public void testWebSocketFragments() throws Exception {
+        List<QueryResponse> responses = createResponses(10);
+        QueryResponseFrameInput input = new QueryResponseFrameInput(new QueryResponseChunkedInput(responses.iterator(), 256));
+        StringBuilder json = new StringBuilder();
+        List<WebSocketFrame> frames = new ArrayList<>();
+        while (!input.isEndOfInput()) {
+            WebSocketFrame frame = input.readChunk(UnpooledByteBufAllocator.DEFAULT);
+            json.append(frame.content().toString(UTF_8));
+            frames.add(frame);
+        }
+        Assert.assertTrue(frames.size() > 1);
+        Assert.assertTrue(frames.get(0) instanceof TextWebSocketFrame);
+        for (int i = 1; i < frames.size(); i++) {
+            Assert.assertTrue(frames.get(i) instanceof ContinuationWebSocketFrame);
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            Assert.assertEquals(i == frames.size() - 1, frames.get(i).isFinalFragment());
+            frames.get(i).release();
+        }
+        Assert.assertEquals(JsonUtil.getObjectMapper().writeValueAsString(responses), json.toString());
+    }
+}
@@ -0,0 +1,95 @@
+package timely.server.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import timely.model.Tag;
+import timely.server.sample.aggregators.Avg;
+import timely.server.test.BenchmarkRunner;
+
+/**
+ * Compares {@link AggregationCodec} with Java serialization for a DownsampleIterator value of 1 to 100 series with one hour of 1 minute buckets each.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregationCodecBenchmark {
+
+    private static final long START = 1535000000000L;
+
+    @Param({"1", "10", "100"})
+    private int numSeries;
+
+    private Map<Set<Tag>,Downsample> value;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        value = new HashMap<>();
+        for (int i = 0; i < numSeries; i++) {
+            Downsample ds = new Downsample(START, START + 3600000, 60000, new Avg());
+            for (long ts = START; ts < START + 3600000; ts += 10000) {
+                ds.add(ts, (ts / 10000 % 100) * 0.5D);
+            }
+            value.put(Collections.singleton(new Tag("host", "host" + i)), ds);
+        }
+        encoded = AggregationCodec.encode(value);
+        serialized = serialize();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return AggregationCodec.encode(value);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(value);
+        }
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public Map<Set<Tag>,Aggregation> decode() throws IOException, ClassNotFoundException {
+        return AggregationCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner.run(AggregationCodecBenchmark.class);
+    }
+}
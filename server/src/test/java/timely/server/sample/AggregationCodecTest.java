@@ -0,0 +1,135 @@
+package timely.server.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.model.Tag;
+import timely.server.sample.aggregators.Avg;
+import timely.server.sample.aggregators.Max;
+import timely.server.sample.aggregators.P50;
+import timely.server.sample.aggregators.P99;
+import timely.server.sample.aggregators.Sum;
+
+public class AggregationCodecTest {
+
+    private static final long START = 1535000000000L;
+
+    private Set<Tag> tags(String... tags) {
+        Set<Tag> result = new HashSet<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            result.add(new Tag(tags[i], tags[i + 1]));
+        }
+        return result;
+    }
+
+    private void assertSamplesEqual(Aggregation expected, Aggregation actual) {
+        Assert.assertEquals(expected.getClass(), actual.getClass());
+        Assert.assertEquals(expected.aggregatorClassname, actual.aggregatorClassname);
+        Assert.assertEquals(expected.getNumBuckets(), actual.getNumBuckets());
+        Iterator<Sample> actualSamples = actual.iterator();
+        for (Sample sample : expected) {
+            Sample other = actualSamples.next();
+            Assert.assertEquals(sample.getTimestamp(), other.getTimestamp());
+            Assert.assertEquals(sample.getValue(), other.getValue(), 0.0D);
+        }
+        Assert.assertFalse(actualSamples.hasNext());
+    }
+
+    private void assertRoundTrip(Map<Set<Tag>,? extends Aggregation> expected, Map<Set<Tag>,Aggregation> actual) {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Set<Tag>,? extends Aggregation> e : expected.entrySet()) {
+            assertSamplesEqual(e.getValue(), actual.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testDownsampleRoundTrip() throws Exception {
+        Map<Set<Tag>,Downsample> value = new HashMap<>();
+        for (String host : Arrays.asList("host1", "host2", "host3")) {
+            Downsample ds = new Downsample(START, START + 3600000, 60000, new Avg());
+            for (long ts = START; ts < START + 3600000; ts += 15000) {
+                ds.add(ts, (ts % 13) * 0.25D - 1.0D);
+            }
+            value.put(tags("host", host, "rack", "r1"), ds);
+        }
+        Map<Set<Tag>,Aggregation> decoded = AggregationCodec.decode(AggregationCodec.encode(value));
+        assertRoundTrip(value, decoded);
+        Downsample ds = (Downsample) decoded.get(tags("host", "host1", "rack", "r1"));
+        Assert.assertEquals(START, ds.start);
+        Assert.assertEquals(60000, ds.period);
+        // decoded values can still be added to and merged
+        ds.add(START + 3600000, 4.0D);
+        ds.merge(decoded.get(tags("host", "host2", "rack", "r1")));
+        Assert.assertEquals(61, ds.getNumBuckets());
+    }
+
+    @Test
+    public void testAggregationRoundTrip() throws Exception {
+        Map<Set<Tag>,Aggregation> value = new HashMap<>();
+        Aggregation max = new Aggregation(new Max());
+        max.add(START, Double.NaN);
+        max.add(START + 1000, Double.NEGATIVE_INFINITY);
+        max.add(START + 5000, 7.5D);
+        value.put(tags("host", "host1"), max);
+        Aggregation sum = new Aggregation(new Sum());
+        sum.add(START - 1000, 3.0D);
+        sum.add(START - 1000, 4.0D);
+        value.put(tags(), sum);
+        value.put(tags("host", "host2", "instance", "0"), new Aggregation(new Sum()));
+        assertRoundTrip(value, AggregationCodec.decode(AggregationCodec.encode(value)));
+        Assert.assertTrue(AggregationCodec.decode(AggregationCodec.encode(new HashMap<>())).isEmpty());
+    }
+
+    @Test
+    public void testQuantileRoundTrip() throws Exception {
+        Map<Set<Tag>,Downsample> value = new HashMap<>();
+        Downsample ds = new Downsample(START, START + 3600000, 60000, new P99());
+        for (long ts = START; ts < START + 3600000; ts += 1000) {
+            ds.add(ts, ts % 60000);
+        }
+        value.put(tags("host", "host1"), ds);
+        Map<Set<Tag>,Aggregation> decoded = AggregationCodec.decode(AggregationCodec.encode(value));
+        assertRoundTrip(value, decoded);
+        for (Sample sample : decoded.get(tags("host", "host1"))) {
+            // 60 values a bucket, the 99th percentile is the 59th
+            Assert.assertEquals(58000, sample.getValue(), 58000 * QuantileSketch.RELATIVE_ACCURACY);
+        }
+
+        // decoded buckets merge their sketches rather than their values
+        Map<Set<Tag>,Aggregation> first = new HashMap<>();
+        Map<Set<Tag>,Aggregation> second = new HashMap<>();
+        first.put(tags("host", "host1"), new Aggregation(new P50()));
+        second.put(tags("host", "host1"), new Aggregation(new P50()));
+        for (int i = 1; i <= 100; i++) {
+            first.get(tags("host", "host1")).add(START, i);
+            second.get(tags("host", "host1")).add(START, 100 + i);
+        }
+        Aggregation merged = AggregationCodec.decode(AggregationCodec.encode(first)).get(tags("host", "host1"));
+        merged.merge(AggregationCodec.decode(AggregationCodec.encode(second)).get(tags("host", "host1")));
+        Assert.assertEquals(100, merged.iterator().next().getValue(), 100 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testJavaSerializationDecoded() throws Exception {
+        Map<Set<Tag>,Downsample> value = new HashMap<>();
+        Downsample ds = new Downsample(START, START + 10000, 1000, new Sum());
+        ds.add(START + 1500, 2.0D);
+        ds.add(START + 1700, 3.0D);
+        value.put(tags("host", "host1"), ds);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(value);
+        }
+        assertRoundTrip(value, AggregationCodec.decode(bos.toByteArray()));
+        Assert.assertTrue(AggregationCodec.encode(value).length < bos.size());
+    }
+}
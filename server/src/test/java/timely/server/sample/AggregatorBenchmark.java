@@ -0,0 +1,107 @@
+package timely.server.sample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import timely.server.test.BenchmarkRunner;
+
+/**
+ * Compares adding one value at a time to a Downsample with adding blocks of values, as the DownsampleIterator does, for each aggregator. The values are one day
+ * of 10 second points into 1 minute buckets. All of the aggregators are used in the same fork so that the per value calls are megamorphic, as they are in a
+ * tablet server.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregatorBenchmark {
+
+    private static final long START = 1535000000000L;
+    private static final int NUM_VALUES = 8640;
+    private static final int BATCH_SIZE = 64;
+    private static final String[] AGGREGATORS = {"avg", "sum", "max", "min", "count", "dev", "p99"};
+
+    @Param({"avg", "sum", "max", "min", "count", "dev", "p99"})
+    private String aggregator;
+
+    private Class<? extends Aggregator> aggregatorClass;
+    private long[] timestamps;
+    private double[] values;
+    private final long[] batchTimestamps = new long[BATCH_SIZE];
+    private final double[] batchValues = new double[BATCH_SIZE];
+
+    @Setup
+    public void setup() throws Exception {
+        aggregatorClass = Aggregator.getAggregator(aggregator);
+        timestamps = new long[NUM_VALUES];
+        values = new double[NUM_VALUES];
+        for (int i = 0; i < NUM_VALUES; i++) {
+            timestamps[i] = START + i * 10000L;
+            values[i] = (i % 100) * 0.5D;
+        }
+        // profile every aggregator through the shared call sites
+        for (String name : AGGREGATORS) {
+            Aggregator other = Aggregator.getAggregator(name).getDeclaredConstructor().newInstance();
+            for (int i = 0; i < 20; i++) {
+                add(other);
+                addAll(other);
+            }
+        }
+    }
+
+    private Downsample newDownsample(Aggregator agg) {
+        return new Downsample(START, START + NUM_VALUES * 10000L, 60000, agg);
+    }
+
+    private Downsample add(Aggregator agg) {
+        Downsample ds = newDownsample(agg);
+        for (int i = 0; i < NUM_VALUES; i++) {
+            ds.add(timestamps[i], values[i]);
+        }
+        return ds;
+    }
+
+    private Downsample addAll(Aggregator agg) {
+        Downsample ds = newDownsample(agg);
+        for (int offset = 0; offset < NUM_VALUES; offset += BATCH_SIZE) {
+            int length = Math.min(BATCH_SIZE, NUM_VALUES - offset);
+            // the values are added in batches, as the DownsampleIterator adds them
+            System.arraycopy(timestamps, offset, batchTimestamps, 0, length);
+            System.arraycopy(values, offset, batchValues, 0, length);
+            ds.addAll(batchTimestamps, batchValues, length);
+        }
+        return ds;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_VALUES)
+    public Downsample perValue() throws Exception {
+        return add(aggregatorClass.getDeclaredConstructor().newInstance());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_VALUES)
+    public Downsample batched() throws Exception {
+        return addAll(aggregatorClass.getDeclaredConstructor().newInstance());
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner.run(AggregatorBenchmark.class);
+    }
+}
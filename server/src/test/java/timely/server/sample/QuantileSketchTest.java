@@ -0,0 +1,100 @@
+package timely.server.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    private static void assertQuantile(double[] sorted, QuantileSketch sketch, double quantile) {
+        double expected = sorted[(int) (quantile * (sorted.length - 1))];
+        Assert.assertEquals("quantile " + quantile, expected, sketch.getQuantile(quantile), Math.abs(expected) * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testRelativeAccuracy() {
+        Random random = new Random(42);
+        double[] values = new double[100000];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            // log normal, as latencies often are
+            values[i] = Math.exp(random.nextGaussian() * 2);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+        Assert.assertEquals(values.length, sketch.getCount());
+        for (double q : new double[] {0.0, 0.1, 0.5, 0.9, 0.99, 0.999, 1.0}) {
+            assertQuantile(values, sketch, q);
+        }
+    }
+
+    @Test
+    public void testNegativeAndZeroValues() {
+        double[] values = new double[201];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i - 100;
+            sketch.add(values[i]);
+        }
+        for (double q : new double[] {0.0, 0.25, 0.5, 0.75, 1.0}) {
+            assertQuantile(values, sketch, q);
+        }
+        Assert.assertEquals(0.0D, sketch.getQuantile(0.5), 0.0D);
+        Assert.assertTrue(Double.isNaN(new QuantileSketch().getQuantile(0.5)));
+    }
+
+    @Test
+    public void testMergeEqualsCombined() {
+        Random random = new Random(7);
+        QuantileSketch combined = new QuantileSketch();
+        QuantileSketch merged = new QuantileSketch();
+        for (int s = 0; s < 10; s++) {
+            QuantileSketch part = new QuantileSketch();
+            for (int i = 0; i < 1000; i++) {
+                double value = random.nextDouble() * Math.pow(10, s);
+                part.add(value);
+                combined.add(value);
+            }
+            merged.merge(part);
+        }
+        Assert.assertEquals(combined.getCount(), merged.getCount());
+        for (double q : new double[] {0.0, 0.5, 0.9, 0.99, 1.0}) {
+            Assert.assertEquals(combined.getQuantile(q), merged.getQuantile(q), 0.0D);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = -500; i < 5000; i++) {
+            sketch.add(i * 1.5D);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bos));
+        QuantileSketch read = QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        Assert.assertEquals(sketch.getCount(), read.getCount());
+        for (double q : new double[] {0.0, 0.1, 0.5, 0.99, 1.0}) {
+            Assert.assertEquals(sketch.getQuantile(q), read.getQuantile(q), 0.0D);
+        }
+        // far smaller than the raw values
+        Assert.assertTrue(bos.size() < 5500 * 8 / 4);
+    }
+
+    @Test
+    public void testWideRangeCollapsesLowestBins() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int e = -300; e <= 300; e++) {
+            sketch.add(Math.pow(10, e));
+        }
+        Assert.assertTrue(sketch.sizeInBytes() < 8 * 2 * QuantileSketch.MAX_BINS + 1024);
+        // the highest quantiles are still accurate
+        Assert.assertEquals(1e300, sketch.getQuantile(1.0), 1e300 * QuantileSketch.RELATIVE_ACCURACY);
+        Assert.assertEquals(1e299, sketch.getQuantile(0.999), 1e299 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+}
@@ -128,9 +128,54 @@ public class AggregationIteratorTest {
         }
     }
 
+    @Test
+    public void groupedAggregatedSample() throws Exception {
+        AggregationIterator iter = new AggregationIterator();
+        Map<Set<Tag>,Aggregation> samples = runQuery(iter, testData2, 100, Collections.singleton("host"));
+        assertEquals(2, samples.size());
+        Aggregation host1 = samples.get(Collections.singleton(new Tag("host", "host1")));
+        Aggregation host2 = samples.get(Collections.singleton(new Tag("host", "host2")));
+        assertNotNull(host1);
+        assertNotNull(host2);
+        assertEquals(10, host1.getNumBuckets());
+        assertEquals(10, host2.getNumBuckets());
+        for (Sample sample : host1) {
+            assertEquals(0.2, sample.getValue(), 0.0001);
+        }
+        for (Sample sample : host2) {
+            assertEquals(0.5, sample.getValue(), 0.0001);
+        }
+    }
+
+    @Test
+    public void reseekStartsNewAggregation() throws Exception {
+        AggregationIterator iter = new AggregationIterator();
+        IteratorSetting is = new IteratorSetting(100, AggregationIterator.class);
+        AggregationIterator.setAggregationOptions(is, Collections.singletonMap("host", ".*"), Collections.singleton("host"), Sum.class.getName());
+        iter.init(new SortedMapIterator(testData2), is.getOptions(), null);
+        iter.seek(new Range(), Collections.emptyList(), true);
+        assertTrue(iter.hasTop());
+        // the aggregations of the first seek are not returned with those of the second
+        iter.seek(new Range(), Collections.emptyList(), true);
+        assertTrue(iter.hasTop());
+        Map<Set<Tag>,Aggregation> samples = AggregationIterator.decodeValue(iter.getTopValue());
+        assertEquals(2, samples.size());
+        for (Sample sample : samples.get(Collections.singleton(new Tag("host", "host1")))) {
+            assertEquals(0.2, sample.getValue(), 0.0001);
+        }
+        for (Sample sample : samples.get(Collections.singleton(new Tag("host", "host2")))) {
+            assertEquals(0.5, sample.getValue(), 0.0001);
+        }
+    }
+
     private Map<Set<Tag>,Aggregation> runQuery(SortedKeyValueIterator<Key,Value> iter, SortedMap<Key,Value> testData, long period) throws Exception {
+        return runQuery(iter, testData, period, Collections.emptySet());
+    }
+
+    private Map<Set<Tag>,Aggregation> runQuery(SortedKeyValueIterator<Key,Value> iter, SortedMap<Key,Value> testData, long period, Set<String> groupBy)
+                    throws Exception {
         IteratorSetting is = new IteratorSetting(100, AggregationIterator.class);
-        AggregationIterator.setAggregationOptions(is, Collections.singletonMap("host", ".*"), Avg.class.getName());
+        AggregationIterator.setAggregationOptions(is, Collections.singletonMap("host", ".*"), groupBy, Avg.class.getName());
         SortedKeyValueIterator<Key,Value> source = new SortedMapIterator(testData);
         iter.init(source, is.getOptions(), null);
         iter.seek(new Range(), Collections.emptyList(), true);
@@ -20,7 +20,6 @@ import org.junit.Test;
 
 import timely.accumulo.MetricAdapter;
 import timely.model.Metric;
-import timely.model.ObjectSizeOf;
 import timely.model.Tag;
 import timely.server.sample.Downsample;
 import timely.server.sample.Sample;
@@ -136,42 +135,28 @@ public class DownsampleIteratorTest {
         }
     }
 
-    static public class SampleObject implements ObjectSizeOf {
-
-        private long sizeInBytes = 0;
-
-        public void setSizeInBytes(long sizeInBytes) {
-            this.sizeInBytes = sizeInBytes;
-        }
-
-        @Override
-        public long sizeInBytes() {
-            return sizeInBytes;
-        }
-    }
-
     @Test
     public void memoryEstimatorTestSmallObjects() {
         long maxMemory = 1000;
         long start = System.currentTimeMillis();
         long period = 500l;
         long sizeOfObjects = 20;
-        SampleObject o = new SampleObject();
+        long memoryUsed = 0;
         DownsampleMemoryEstimator memoryEstimator = new DownsampleMemoryEstimator(maxMemory, start, period);
         boolean shouldReturn = false;
         for (long x = 100; x <= 5000; x += 100) {
             long timestamp = start + x;
-            o.setSizeInBytes(o.sizeInBytes() + sizeOfObjects);
-            shouldReturn = memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, o);
+            memoryUsed += sizeOfObjects;
+            shouldReturn = memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, memoryUsed);
             if (memoryEstimator.isNewBucket()) {
-                long memoryPercentageUsedCalculated = Math.round((double) o.sizeInBytes() / maxMemory * 100);
+                long memoryPercentageUsedCalculated = Math.round((double) memoryUsed / maxMemory * 100);
                 long memoryPercentageUsedEstimate = Math.round(memoryEstimator.getMemoryUsedPercentage());
                 long percentError = Math.round(Math.abs(memoryPercentageUsedCalculated - memoryPercentageUsedEstimate) / memoryPercentageUsedCalculated * 100);
                 assertTrue(percentError == 0);
             }
 
             if (shouldReturn) {
-                o.setSizeInBytes(0);
+                memoryUsed = 0;
                 memoryEstimator.reset();
             }
         }
@@ -184,15 +169,15 @@ public class DownsampleIteratorTest {
         long start = System.currentTimeMillis();
         long period = 500l;
         long sizeOfObjects = 200;
-        SampleObject o = new SampleObject();
+        long memoryUsed = 0;
         DownsampleMemoryEstimator memoryEstimator = new DownsampleMemoryEstimator(maxMemory, start, period);
         boolean shouldReturn = false;
         for (long x = 100; x <= 5000; x += 100) {
             long timestamp = start + x;
-            o.setSizeInBytes(o.sizeInBytes() + sizeOfObjects);
-            shouldReturn = memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, o);
+            memoryUsed += sizeOfObjects;
+            shouldReturn = memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, memoryUsed);
             if (memoryEstimator.isNewBucket()) {
-                long memoryPercentageUsedCalculated = Math.round((double) o.sizeInBytes() / maxMemory * 100);
+                long memoryPercentageUsedCalculated = Math.round((double) memoryUsed / maxMemory * 100);
                 long memoryPercentageUsedEstimate = Math.round(memoryEstimator.getMemoryUsedPercentage());
                 long percentError = Math.round(Math.abs(memoryPercentageUsedCalculated - memoryPercentageUsedEstimate) / memoryPercentageUsedCalculated * 100);
                 assertTrue(percentError == 0);
@@ -200,7 +185,7 @@ public class DownsampleIteratorTest {
             }
 
             if (shouldReturn) {
-                o.setSizeInBytes(0);
+                memoryUsed = 0;
                 memoryEstimator.reset();
             }
         }
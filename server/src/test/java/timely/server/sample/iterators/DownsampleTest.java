@@ -1,21 +1,90 @@
 package timely.server.sample.iterators;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
 
+import timely.server.sample.Aggregator;
 import timely.server.sample.Downsample;
 import timely.server.sample.Sample;
 import timely.server.sample.aggregators.Avg;
+import timely.server.sample.aggregators.Count;
+import timely.server.sample.aggregators.Dev;
+import timely.server.sample.aggregators.Max;
+import timely.server.sample.aggregators.Min;
+import timely.server.sample.aggregators.P90;
 import timely.server.sample.aggregators.Sum;
 
 public class DownsampleTest {
 
+    @Test
+    public void addAllMatchesAdd() {
+        List<Aggregator> aggregators = Arrays.asList(new Avg(), new Sum(), new Max(), new Min(), new Count(), new Dev(), new P90());
+        Random random = new Random(11);
+        long[] timestamps = new long[1000];
+        double[] values = new double[1000];
+        for (int i = 0; i < timestamps.length; i++) {
+            // mostly ascending with some values out of order
+            timestamps[i] = 1000 + i * 10 + (i % 50 == 0 ? -random.nextInt(500) : 0);
+            values[i] = random.nextGaussian() * 100;
+        }
+        for (Aggregator aggregator : aggregators) {
+            Downsample single = new Downsample(0, 20000, 60, aggregator);
+            Downsample batched = new Downsample(0, 20000, 60, aggregator);
+            for (int i = 0; i < timestamps.length; i++) {
+                single.add(timestamps[i], values[i]);
+            }
+            for (int offset = 0; offset < timestamps.length; offset += 64) {
+                int length = Math.min(64, timestamps.length - offset);
+                batched.addAll(Arrays.copyOfRange(timestamps, offset, offset + length), Arrays.copyOfRange(values, offset, offset + length), length);
+            }
+            assertEquals(single.getNumBuckets(), batched.getNumBuckets());
+            Iterator<Sample> expected = single.iterator();
+            for (Sample sample : batched) {
+                Sample e = expected.next();
+                assertEquals(e.getTimestamp(), sample.getTimestamp());
+                assertEquals(aggregator.getClass().getSimpleName(), e.getValue(), sample.getValue(), 1e-9 * Math.abs(e.getValue()));
+            }
+        }
+    }
+
+    @Test
+    public void addAllLeavesArraysUnchanged() {
+        long[] timestamps = {103, 107, 112, 125};
+        double[] values = {1, 2, 3, 4};
+        Downsample dsample = new Downsample(100, 200, 10, new Sum());
+        dsample.addAll(timestamps, values, timestamps.length);
+        assertArrayEquals(new long[] {103, 107, 112, 125}, timestamps);
+        assertArrayEquals(new double[] {1, 2, 3, 4}, values, 0.0D);
+        Iterator<Sample> samples = dsample.iterator();
+        Sample sample = samples.next();
+        assertEquals(100, sample.getTimestamp());
+        assertEquals(3, sample.getValue(), 0.0D);
+        sample = samples.next();
+        assertEquals(110, sample.getTimestamp());
+        assertEquals(3, sample.getValue(), 0.0D);
+        sample = samples.next();
+        assertEquals(120, sample.getTimestamp());
+        assertEquals(4, sample.getValue(), 0.0D);
+        assertFalse(samples.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addAllBeforeStart() {
+        new Downsample(100, 200, 10, new Avg()).addAll(new long[] {150, 99}, new double[] {1, 2}, 2);
+    }
+
     @Test
     public void simple() {
         Downsample dsample = new Downsample(10, 30, 1, new Avg());
@@ -114,4 +183,48 @@ public class DownsampleTest {
 
     }
 
+    @Test
+    public void testSparseRange() throws Exception {
+        // one sample every 10 seconds into 1 ms buckets
+        Downsample ds = new Downsample(0, 10000000, 1, new Sum());
+        for (long ts = 9990000; ts >= 0; ts -= 10000) {
+            ds.add(ts, 1.0D);
+            ds.add(ts, 2.0D);
+        }
+        assertEquals(1000, ds.getNumBuckets());
+        int count = 0;
+        for (Sample s : ds) {
+            assertEquals(count * 10000L, s.getTimestamp());
+            assertEquals(3.0D, s.getValue(), 0.0D);
+            count++;
+        }
+        assertEquals(1000, count);
+        // sizes of the timestamp, value and count arrays, not the whole range
+        assertTrue(ds.sizeInBytes() < 1024 * 20 * 2);
+    }
+
+    @Test
+    public void testMergeSparseAndDense() throws Exception {
+        Downsample dense = new Downsample(0, 1000, 100, new Sum());
+        Downsample sparse = new Downsample(0, 1000000, 100, new Sum());
+        for (int i = 0; i < 1000; i += 100) {
+            dense.add(i, 1.0D);
+        }
+        sparse.add(500, 2.0D);
+        sparse.add(900000, 3.0D);
+        dense.merge(sparse);
+        assertEquals(11, dense.getNumBuckets());
+        long ts = 0;
+        for (Sample s : dense) {
+            if (ts == 1000) {
+                ts = 900000;
+            }
+            assertEquals(ts, s.getTimestamp());
+            assertEquals(ts == 500 ? 3.0D : ts == 900000 ? 3.0D : 1.0D, s.getValue(), 0.0D);
+            ts += 100;
+        }
+        dense.clear();
+        assertEquals(0, dense.getNumBuckets());
+        assertFalse(dense.iterator().hasNext());
+    }
 }
@@ -0,0 +1,273 @@
+package timely.server.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryResponse;
+import timely.common.configuration.AccumuloProperties;
+import timely.common.configuration.CacheProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Tag;
+import timely.server.sample.Aggregation;
+import timely.server.sample.aggregators.Sum;
+import timely.server.store.cache.DataStoreCache;
+import timely.util.Exclusions;
+
+/**
+ * Tests the concurrent execution of the cache and Accumulo portions of the subqueries of a query, the subquery lookups are replaced by {@link QueryDataStore}
+ */
+public class DataStoreQueryTest {
+
+    private static final long PERIOD = 60000;
+
+    private long now;
+    private QueryDataStore dataStore;
+
+    @Before
+    public void setup() {
+        now = System.currentTimeMillis();
+        now = now - (now % PERIOD);
+    }
+
+    @After
+    public void cleanup() {
+        if (dataStore != null) {
+            dataStore.shutdown();
+        }
+    }
+
+    /**
+     * Returns a single series with one value for the cache and for the scan of each subquery. The lookups wait for the latch of the store before returning.
+     */
+    private static class QueryDataStore extends DataStore {
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private final List<String> cacheLookups = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> scans = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+        private volatile String failingMetric = null;
+        private volatile Exception failure = null;
+
+        public QueryDataStore(int queryThreads, int queryParallelism, DataStoreCache dataStoreCache, CacheProperties cacheProperties) {
+            super(null, null, dataStoreCache, null, new InternalMetrics(new TimelyProperties()), null, new TimelyProperties(), null,
+                            accumuloProperties(queryThreads, queryParallelism), null, cacheProperties, new QueryCacheProperties(), new IngestProperties(),
+                            new Exclusions());
+        }
+
+        private static AccumuloProperties accumuloProperties(int queryThreads, int queryParallelism) {
+            AccumuloProperties accumuloProperties = new AccumuloProperties();
+            accumuloProperties.getScan().setQueryThreads(queryThreads);
+            accumuloProperties.getScan().setQueryParallelism(queryParallelism);
+            return accumuloProperties;
+        }
+
+        @Override
+        Map<Set<Tag>,List<Aggregation>> cacheSubQuery(QueryRequest msg, SubQueryPlan plan) throws TimelyException {
+            cacheLookups.add(plan.query.getMetric());
+            return lookup(plan.query, msg.getEnd());
+        }
+
+        @Override
+        Map<Set<Tag>,List<Aggregation>> scanSubQuery(QueryRequest msg, SubQueryPlan plan, long startScanTs, long endScanTs, QueryContext context)
+                        throws TimelyException, ClassNotFoundException, IOException {
+            scans.add(plan.query.getMetric());
+            if (plan.query.getMetric().equals(failingMetric)) {
+                if (failure instanceof TimelyException) {
+                    throw (TimelyException) failure;
+                } else if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            return lookup(plan.query, startScanTs);
+        }
+
+        private Map<Set<Tag>,List<Aggregation>> lookup(SubQuery query, long ts) {
+            int current = running.incrementAndGet();
+            maxRunning.accumulateAndGet(current, Math::max);
+            try {
+                latch.countDown();
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Lookups of " + query.getMetric() + " did not run concurrently");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            Aggregation aggregation = new Aggregation(new Sum());
+            aggregation.add(ts - (ts % PERIOD), 1.0D);
+            Map<Set<Tag>,List<Aggregation>> series = new HashMap<>();
+            series.put(Collections.singleton(new Tag("host", "r01n01")), new ArrayList<>(Collections.singletonList(aggregation)));
+            return series;
+        }
+    }
+
+    /**
+     * A cache that holds every metric from oldestTimestamp
+     */
+    private static class FixedDataStoreCache extends DataStoreCache {
+
+        private final long oldestTimestamp;
+
+        public FixedDataStoreCache(CacheProperties cacheProperties, long oldestTimestamp) {
+            super(null, null, new InternalMetrics(new TimelyProperties()), new TimelyProperties(), cacheProperties);
+            this.oldestTimestamp = oldestTimestamp;
+        }
+
+        @Override
+        public long getOldestTimestamp(String metric) {
+            return oldestTimestamp;
+        }
+
+        @Override
+        public long getAgeOffForMetric(String metricName) {
+            return Long.MAX_VALUE / 2;
+        }
+    }
+
+    private QueryRequest query(long start, String... metrics) {
+        QueryRequest request = new QueryRequest();
+        request.setStart(start);
+        request.setEnd(now);
+        request.setMsResolution(true);
+        List<SubQuery> queries = new ArrayList<>();
+        for (String metric : metrics) {
+            SubQuery query = new SubQuery();
+            query.setMetric(metric);
+            query.setDownsample(Optional.of("1m-sum"));
+            query.setAggregator("sum");
+            queries.add(query);
+        }
+        request.setQueries(queries);
+        return request;
+    }
+
+    @Test
+    public void testSubQueriesRunConcurrently() throws Exception {
+        dataStore = new QueryDataStore(3, 3, null, new CacheProperties());
+        // each scan waits until all three are running
+        dataStore.latch = new CountDownLatch(3);
+        List<QueryResponse> responses = dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user", "sys.cpu.idle", "sys.cpu.system"));
+        Assert.assertEquals(3, responses.size());
+        // the responses are in subquery order
+        Assert.assertEquals(Arrays.asList("sys.cpu.user", "sys.cpu.idle", "sys.cpu.system"),
+                        Arrays.asList(responses.get(0).getMetric(), responses.get(1).getMetric(), responses.get(2).getMetric()));
+        Assert.assertEquals(3, dataStore.maxRunning.get());
+        Assert.assertTrue(dataStore.cacheLookups.isEmpty());
+    }
+
+    @Test
+    public void testSubQueriesLimitedByParallelism() throws Exception {
+        dataStore = new QueryDataStore(4, 2, null, new CacheProperties());
+        dataStore.latch = new CountDownLatch(2);
+        List<QueryResponse> responses = dataStore.query(query(now - 10 * PERIOD, "m1", "m2", "m3", "m4", "m5", "m6"));
+        Assert.assertEquals(6, responses.size());
+        Assert.assertEquals(6, dataStore.scans.size());
+        Assert.assertEquals(2, dataStore.maxRunning.get());
+    }
+
+    @Test
+    public void testSubQueriesRunInlineWithoutParallelism() throws Exception {
+        dataStore = new QueryDataStore(4, 1, null, new CacheProperties());
+        List<QueryResponse> responses = dataStore.query(query(now - 10 * PERIOD, "m1", "m2", "m3"));
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals(Arrays.asList("m1", "m2", "m3"), dataStore.scans);
+        Assert.assertEquals(1, dataStore.maxRunning.get());
+    }
+
+    @Test
+    public void testCacheAndScanOverlap() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        long oldestCached = now - 5 * PERIOD;
+        dataStore = new QueryDataStore(2, 2, new FixedDataStoreCache(cacheProperties, oldestCached), cacheProperties);
+        // the cache lookup and the scan of the period before the cache each wait for the other
+        dataStore.latch = new CountDownLatch(2);
+        List<QueryResponse> responses = dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user"));
+        Assert.assertEquals(Collections.singletonList("sys.cpu.user"), dataStore.cacheLookups);
+        Assert.assertEquals(Collections.singletonList("sys.cpu.user"), dataStore.scans);
+        Assert.assertEquals(2, dataStore.maxRunning.get());
+        // the scanned and cached periods are combined into one series
+        Assert.assertEquals(1, responses.size());
+        Map<String,Object> dps = responses.get(0).getDps();
+        Assert.assertEquals(2, dps.size());
+        Assert.assertTrue(dps.containsKey(Long.toString(now - 10 * PERIOD)));
+        Assert.assertTrue(dps.containsKey(Long.toString(now)));
+    }
+
+    @Test
+    public void testCacheCoversQuery() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        dataStore = new QueryDataStore(2, 2, new FixedDataStoreCache(cacheProperties, now - 20 * PERIOD), cacheProperties);
+        List<QueryResponse> responses = dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user", "sys.cpu.idle"));
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals(2, dataStore.cacheLookups.size());
+        Assert.assertTrue(dataStore.scans.isEmpty());
+    }
+
+    @Test
+    public void testTimelyExceptionPropagated() throws Exception {
+        dataStore = new QueryDataStore(3, 3, null, new CacheProperties());
+        dataStore.failingMetric = "sys.cpu.idle";
+        TimelyException failure = new TimelyException(503, "Scan failed", "Scan failed");
+        dataStore.failure = failure;
+        try {
+            dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user", "sys.cpu.idle", "sys.cpu.system"));
+            Assert.fail("Expected the failure of the scan");
+        } catch (TimelyException e) {
+            Assert.assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testRuntimeExceptionPropagated() throws Exception {
+        dataStore = new QueryDataStore(3, 3, null, new CacheProperties());
+        dataStore.failingMetric = "sys.cpu.user";
+        IllegalStateException failure = new IllegalStateException("Scan failed");
+        dataStore.failure = failure;
+        try {
+            dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user", "sys.cpu.idle"));
+            Assert.fail("Expected the failure of the scan");
+        } catch (IllegalStateException e) {
+            Assert.assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testIOExceptionReturnedAsServerError() throws Exception {
+        dataStore = new QueryDataStore(3, 3, null, new CacheProperties());
+        dataStore.failingMetric = "sys.cpu.idle";
+        dataStore.failure = new IOException("Scan failed");
+        try {
+            dataStore.query(query(now - 10 * PERIOD, "sys.cpu.user", "sys.cpu.idle"));
+            Assert.fail("Expected the failure of the scan");
+        } catch (TimelyException e) {
+            Assert.assertEquals(500, e.getCode());
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
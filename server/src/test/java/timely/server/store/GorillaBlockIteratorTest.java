@@ -0,0 +1,210 @@
+package timely.server.store;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iteratorsImpl.system.SortedMapIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.accumulo.MetricAdapter;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.sample.iterators.IteratorTestBase;
+
+public class GorillaBlockIteratorTest extends IteratorTestBase {
+
+    private static final long HOUR = 3600000;
+    private static final long CLOSED_HOUR = MetricAdapter.roundTimestampToLastHour(System.currentTimeMillis()) - 3 * HOUR;
+    private static final long OPEN_HOUR = MetricAdapter.roundTimestampToLastHour(System.currentTimeMillis());
+
+    private final IteratorEnvironment fullMajc = new DefaultIteratorEnvironment() {
+
+        @Override
+        public IteratorScope getIteratorScope() {
+            return IteratorScope.majc;
+        }
+
+        @Override
+        public boolean isFullMajorCompaction() {
+            return true;
+        }
+    };
+
+    private void put(SortedMap<Key,Value> data, Metric m) {
+        Mutation mutation = MetricAdapter.toMutation(m);
+        for (ColumnUpdate cu : mutation.getUpdates()) {
+            Key key = new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(), cu.getColumnVisibility(), cu.getTimestamp());
+            data.put(key, new Value(cu.getValue()));
+        }
+    }
+
+    private SortedMap<Key,Value> createTestData(long hour) {
+        SortedMap<Key,Value> data = new TreeMap<>();
+        List<Tag> host1 = Arrays.asList(new Tag("host", "host1"), new Tag("rack", "r1"));
+        List<Tag> host2 = Arrays.asList(new Tag("host", "host2"), new Tag("rack", "r1"));
+        for (long ts = hour; ts < hour + HOUR; ts += 60000) {
+            put(data, new Metric("sys.cpu.user", ts, ts % 7, host1));
+            put(data, new Metric("sys.cpu.user", ts + 10, 0.5, host2));
+        }
+        return data;
+    }
+
+    /**
+     * @return the entries of the iterator in the order they were returned
+     */
+    private List<Map.Entry<Key,Value>> drain(SortedKeyValueIterator<Key,Value> iter, Range range) throws Exception {
+        List<Map.Entry<Key,Value>> results = new ArrayList<>();
+        iter.seek(range, Collections.emptyList(), false);
+        while (iter.hasTop()) {
+            results.add(new AbstractMap.SimpleImmutableEntry<>(new Key(iter.getTopKey()), new Value(iter.getTopValue())));
+            iter.next();
+        }
+        return results;
+    }
+
+    private static List<Map.Entry<Key,Value>> entries(SortedMap<Key,Value> data) {
+        return new ArrayList<>(data.entrySet());
+    }
+
+    private SortedMap<Key,Value> compact(SortedMap<Key,Value> data) throws Exception {
+        GorillaBlockCompactionIterator iter = new GorillaBlockCompactionIterator();
+        iter.init(new SortedMapIterator(data), Collections.emptyMap(), fullMajc);
+        List<Map.Entry<Key,Value>> compacted = drain(iter, new Range());
+        SortedMap<Key,Value> results = new TreeMap<>();
+        compacted.forEach(e -> results.put(e.getKey(), e.getValue()));
+        Assert.assertEquals(entries(results), compacted);
+        return results;
+    }
+
+    private List<Map.Entry<Key,Value>> expand(SortedMap<Key,Value> data, Range range) throws Exception {
+        GorillaBlockIterator iter = new GorillaBlockIterator();
+        iter.init(new SortedMapIterator(data), Collections.emptyMap(), SCAN_IE);
+        return drain(iter, range);
+    }
+
+    @Test
+    public void testPacksClosedHour() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        SortedMap<Key,Value> compacted = compact(data);
+        // one block per series in each of the host=host1, host=host2 and rack=r1 column families
+        Assert.assertEquals(4, compacted.size());
+        for (Value v : compacted.values()) {
+            Assert.assertTrue(GorillaBlock.isBlock(v));
+        }
+        Assert.assertEquals(entries(data), expand(compacted, new Range()));
+    }
+
+    @Test
+    public void testOpenHourNotPacked() throws Exception {
+        SortedMap<Key,Value> data = createTestData(OPEN_HOUR);
+        Assert.assertEquals(data, compact(data));
+    }
+
+    @Test
+    public void testPartialCompactionNotPacked() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        GorillaBlockCompactionIterator iter = new GorillaBlockCompactionIterator();
+        iter.init(new SortedMapIterator(data), Collections.emptyMap(), SCAN_IE);
+        Assert.assertEquals(entries(data), drain(iter, new Range()));
+    }
+
+    @Test
+    public void testMaxPointsNotPacked() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        GorillaBlockCompactionIterator iter = new GorillaBlockCompactionIterator();
+        iter.init(new SortedMapIterator(data), Collections.singletonMap(GorillaBlockCompactionIterator.MAX_POINTS, "10"), fullMajc);
+        Assert.assertEquals(entries(data), drain(iter, new Range()));
+    }
+
+    @Test
+    public void testLatePointsMerged() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        SortedMap<Key,Value> compacted = compact(data);
+        SortedMap<Key,Value> late = new TreeMap<>();
+        List<Tag> host1 = Arrays.asList(new Tag("host", "host1"), new Tag("rack", "r1"));
+        // a new point and a replacement for a point in the block
+        put(late, new Metric("sys.cpu.user", CLOSED_HOUR + 30, 1.0, host1));
+        put(late, new Metric("sys.cpu.user", CLOSED_HOUR + 60000, 2.0, host1));
+        compacted.putAll(late);
+        data.putAll(late);
+
+        SortedMap<Key,Value> recompacted = compact(compacted);
+        Assert.assertEquals(4, recompacted.size());
+        Assert.assertEquals(entries(data), expand(recompacted, new Range()));
+    }
+
+    @Test
+    public void testBlocksMergedWithRawPoints() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        SortedMap<Key,Value> compacted = compact(data);
+        // points written after the compaction, in the rack=r1 column family with the overlapping blocks of host1 and host2
+        SortedMap<Key,Value> late = new TreeMap<>();
+        put(late, new Metric("sys.cpu.user", CLOSED_HOUR + 5, 1.0, Arrays.asList(new Tag("host", "host1"), new Tag("rack", "r1"))));
+        put(late, new Metric("sys.cpu.user", CLOSED_HOUR + 30 * 60000 + 5, 2.0, Arrays.asList(new Tag("host", "host2"), new Tag("rack", "r1"))));
+        put(late, new Metric("sys.cpu.user", CLOSED_HOUR + 30 * 60000 + 5, 3.0, Arrays.asList(new Tag("host", "host3"), new Tag("rack", "r1"))));
+        compacted.putAll(late);
+        data.putAll(late);
+
+        List<Map.Entry<Key,Value>> expanded = expand(compacted, new Range());
+        Assert.assertEquals(entries(data), expanded);
+        for (int i = 1; i < expanded.size(); i++) {
+            Assert.assertTrue(expanded.get(i - 1).getKey().compareTo(expanded.get(i).getKey()) < 0);
+        }
+    }
+
+    @Test
+    public void testRewrittenPointReplacesBlockPoint() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        SortedMap<Key,Value> compacted = compact(data);
+        // points with the same key as points in the blocks, written after the hour was packed
+        SortedMap<Key,Value> rewritten = new TreeMap<>();
+        put(rewritten, new Metric("sys.cpu.user", CLOSED_HOUR + 60000, 2.0, Arrays.asList(new Tag("host", "host1"), new Tag("rack", "r1"))));
+        put(rewritten, new Metric("sys.cpu.user", CLOSED_HOUR + 10 * 60000 + 10, 3.0, Arrays.asList(new Tag("host", "host2"), new Tag("rack", "r1"))));
+        compacted.putAll(rewritten);
+        data.putAll(rewritten);
+
+        List<Map.Entry<Key,Value>> expanded = expand(compacted, new Range());
+        Assert.assertEquals(entries(data), expanded);
+        for (Map.Entry<Key,Value> e : rewritten.entrySet()) {
+            Assert.assertEquals(1, expanded.stream().filter(x -> x.getKey().equals(e.getKey())).count());
+        }
+    }
+
+    @Test
+    public void testSeekWithinBlock() throws Exception {
+        SortedMap<Key,Value> data = createTestData(CLOSED_HOUR);
+        SortedMap<Key,Value> compacted = compact(data);
+        long begin = CLOSED_HOUR + 20 * 60000;
+        long end = CLOSED_HOUR + 40 * 60000;
+        byte[] row = MetricAdapter.encodeRowKey("sys.cpu.user", CLOSED_HOUR);
+        byte[] cf = "host=host1".getBytes();
+        Range range = new Range(new Key(row, cf, MetricAdapter.encodeColQual(begin, ""), new byte[0], begin), true,
+                        new Key(row, cf, MetricAdapter.encodeColQual(end, ""), new byte[0], end), false);
+
+        List<Long> expected = new ArrayList<>();
+        for (long ts = begin; ts < end; ts += 60000) {
+            expected.add(ts);
+        }
+        List<Long> timestamps = new ArrayList<>();
+        for (Map.Entry<Key,Value> e : expand(compacted, range)) {
+            timestamps.add(e.getKey().getTimestamp());
+        }
+        Assert.assertEquals(expected, timestamps);
+        Assert.assertEquals(entries(data.subMap(range.getStartKey(), range.getEndKey())), expand(compacted, range));
+    }
+}
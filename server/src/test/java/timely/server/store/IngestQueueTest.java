@@ -0,0 +1,183 @@
+package timely.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import timely.common.configuration.AccumuloProperties;
+import timely.common.configuration.CacheProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Metric;
+import timely.util.Exclusions;
+
+public class IngestQueueTest {
+
+    private static class CapturingDataStore extends DataStore {
+
+        private final List<Metric> stored = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch blocker = new CountDownLatch(0);
+
+        public CapturingDataStore() {
+            super(null, null, null, null, new InternalMetrics(new TimelyProperties()), null, new TimelyProperties(), null, new AccumuloProperties(), null,
+                            new CacheProperties(), new QueryCacheProperties(), new IngestProperties(), new Exclusions());
+        }
+
+        @Override
+        public void store(Metric metric) {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stored.add(metric);
+        }
+    }
+
+    private static Metric metric(long ts) {
+        return Metric.newBuilder().name("sys.cpu.user").value(ts, 1.0D).tag("host", "r01n01").build();
+    }
+
+    @Test
+    public void testDisabledStoresInline() {
+        CapturingDataStore dataStore = new CapturingDataStore();
+        IngestQueue queue = new IngestQueue(dataStore, new IngestProperties(), new InternalMetrics(new TimelyProperties()));
+        queue.start();
+        Assert.assertTrue(queue.offer(metric(1), null));
+        Assert.assertEquals(1, dataStore.stored.size());
+        queue.shutdown();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        CapturingDataStore dataStore = new CapturingDataStore();
+        dataStore.blocker = new CountDownLatch(1);
+        IngestProperties properties = new IngestProperties();
+        properties.setEnabled(true);
+        properties.setQueueSize(10);
+        properties.setHighWatermark(5);
+        properties.setLowWatermark(2);
+        properties.setWriterThreads(1);
+        properties.setDrainBatchSize(1);
+        IngestQueue queue = new IngestQueue(dataStore, properties, new InternalMetrics(new TimelyProperties()));
+        queue.start();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        try {
+            // the writer thread takes the first metric and blocks in store
+            queue.offer(metric(0), channel);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            for (int i = 1; i <= 5; i++) {
+                Assert.assertTrue(channel.config().isAutoRead());
+                Assert.assertTrue(queue.offer(metric(i), channel));
+            }
+            Assert.assertFalse(channel.config().isAutoRead());
+            for (int i = 6; i <= 10; i++) {
+                Assert.assertTrue(queue.offer(metric(i), channel));
+            }
+            Assert.assertFalse(queue.offer(metric(11), channel));
+
+            dataStore.blocker.countDown();
+            deadline = System.currentTimeMillis() + 5000;
+            while ((dataStore.stored.size() < 11 || !channel.config().isAutoRead()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(11, dataStore.stored.size());
+            Assert.assertTrue(channel.config().isAutoRead());
+        } finally {
+            queue.shutdown();
+            channel.finishAndReleaseAll();
+        }
+        Assert.assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void testBatchAcceptedOrRejectedAsWhole() throws Exception {
+        CapturingDataStore dataStore = new CapturingDataStore();
+        dataStore.blocker = new CountDownLatch(1);
+        IngestProperties properties = new IngestProperties();
+        properties.setEnabled(true);
+        properties.setQueueSize(10);
+        properties.setHighWatermark(10);
+        properties.setLowWatermark(0);
+        properties.setWriterThreads(1);
+        properties.setDrainBatchSize(1);
+        IngestQueue queue = new IngestQueue(dataStore, properties, new InternalMetrics(new TimelyProperties()));
+        queue.start();
+        try {
+            // the writer thread takes the first metric and blocks in store
+            queue.offer(metric(0), null);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(queue.offer(batch(1, 8), null));
+            Assert.assertEquals(8, queue.getDepth());
+            // no room for all three, none of them are added
+            Assert.assertFalse(queue.offer(batch(9, 3), null));
+            Assert.assertEquals(8, queue.getDepth());
+            Assert.assertTrue(queue.offer(batch(9, 2), null));
+            Assert.assertEquals(10, queue.getDepth());
+
+            dataStore.blocker.countDown();
+            deadline = System.currentTimeMillis() + 5000;
+            while (dataStore.stored.size() < 11 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(11, dataStore.stored.size());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchLargerThanQueueRejected() throws Exception {
+        CapturingDataStore dataStore = new CapturingDataStore();
+        IngestProperties properties = new IngestProperties();
+        properties.setEnabled(true);
+        properties.setQueueSize(10);
+        properties.setHighWatermark(10);
+        properties.setLowWatermark(0);
+        properties.setWriterThreads(1);
+        IngestQueue queue = new IngestQueue(dataStore, properties, new InternalMetrics(new TimelyProperties()));
+        queue.start();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        try {
+            // rejected even though the queue is empty, and the channel keeps reading since waiting would not help
+            try {
+                queue.offer(batch(0, 11), channel);
+                Assert.fail("Expected a batch larger than the queue to be rejected");
+            } catch (IllegalArgumentException e) {
+                Assert.assertEquals("Batch of 11 metrics is larger than the ingest queue size of 10", e.getMessage());
+            }
+            Assert.assertTrue(channel.config().isAutoRead());
+            Assert.assertEquals(0, queue.getDepth());
+            // a batch the size of the queue is accepted
+            Assert.assertTrue(queue.offer(batch(0, 10), channel));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dataStore.stored.size() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(10, dataStore.stored.size());
+        } finally {
+            queue.shutdown();
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static List<Metric> batch(long start, int size) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            metrics.add(metric(start + i));
+        }
+        return metrics;
+    }
+}
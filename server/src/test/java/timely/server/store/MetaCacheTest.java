@@ -0,0 +1,63 @@
+package timely.server.store;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.common.configuration.MetaCacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Meta;
+
+public class MetaCacheTest {
+
+    @Test
+    public void testShouldWriteWithinRefreshWindow() {
+        MetaCacheProperties metaCacheProperties = new MetaCacheProperties();
+        metaCacheProperties.setDedupEnabled(true);
+        metaCacheProperties.setDedupRefreshMinutes(60);
+        MetaCache metaCache = new MetaCache(null, new TimelyProperties(), metaCacheProperties);
+        try {
+            Meta meta = new Meta("sys.cpu.user", "host", "r01n01");
+            long ts = System.currentTimeMillis();
+            Assert.assertTrue(metaCache.shouldWrite(meta, ts));
+            // not recorded until the keys have been written
+            Assert.assertFalse(metaCache.contains(meta));
+            Assert.assertTrue(metaCache.shouldWrite(meta, ts));
+            metaCache.written(Collections.singletonList(meta), ts);
+            Assert.assertTrue(metaCache.contains(meta));
+            Assert.assertFalse(metaCache.shouldWrite(meta, ts + 1000));
+            Assert.assertFalse(metaCache.shouldWrite(meta, ts - 1000));
+            Assert.assertFalse(metaCache.shouldWrite(meta, ts + TimeUnit.MINUTES.toMillis(59)));
+            // refreshed once the window has passed, then skipped again relative to the new timestamp
+            Assert.assertTrue(metaCache.shouldWrite(meta, ts + TimeUnit.MINUTES.toMillis(60)));
+            metaCache.written(Collections.singletonList(meta), ts + TimeUnit.MINUTES.toMillis(60));
+            Assert.assertFalse(metaCache.shouldWrite(meta, ts + TimeUnit.MINUTES.toMillis(61)));
+            // an older write recorded later does not move the entry back
+            metaCache.written(Collections.singletonList(meta), ts);
+            Assert.assertFalse(metaCache.shouldWrite(meta, ts + TimeUnit.MINUTES.toMillis(61)));
+            Assert.assertTrue(metaCache.shouldWrite(new Meta("sys.cpu.user", "host", "r01n02"), ts));
+        } finally {
+            metaCache.close();
+        }
+    }
+
+    @Test
+    public void testShouldWriteSeriesUntilWritten() {
+        MetaCacheProperties metaCacheProperties = new MetaCacheProperties();
+        metaCacheProperties.setDedupRefreshMinutes(60);
+        MetaCache metaCache = new MetaCache(null, new TimelyProperties(), metaCacheProperties);
+        try {
+            long ts = System.currentTimeMillis();
+            Assert.assertTrue(metaCache.shouldWriteSeries("sys.cpu.user", "a1", ts));
+            // the postings were not written, they are still written with the next sample
+            Assert.assertTrue(metaCache.shouldWriteSeries("sys.cpu.user", "a1", ts + 1000));
+            metaCache.seriesWritten("sys.cpu.user", "a1", ts + 1000);
+            Assert.assertFalse(metaCache.shouldWriteSeries("sys.cpu.user", "a1", ts + 2000));
+            Assert.assertTrue(metaCache.shouldWriteSeries("sys.cpu.user", "a2", ts + 2000));
+        } finally {
+            metaCache.close();
+        }
+    }
+}
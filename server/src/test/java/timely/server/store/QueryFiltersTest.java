@@ -0,0 +1,73 @@
+package timely.server.store;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.api.request.timeseries.QueryRequest.Filter;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+
+public class QueryFiltersTest {
+
+    private static Filter filter(String type, String tagk, String value, boolean groupBy) {
+        Filter f = new Filter();
+        f.setType(type);
+        f.setTagk(tagk);
+        f.setFilter(value);
+        f.setGroupBy(groupBy);
+        return f;
+    }
+
+    private static boolean matches(String pattern, String value) {
+        return Pattern.compile(pattern).matcher(value).matches();
+    }
+
+    @Test
+    public void testFilterTypes() {
+        String literal = QueryFilters.toPattern(filter("literal_or", "host", "r01n01|r01n02", false));
+        Assert.assertTrue(matches(literal, "r01n01"));
+        Assert.assertTrue(matches(literal, "r01n02"));
+        Assert.assertFalse(matches(literal, "r01n03"));
+
+        String notLiteral = QueryFilters.toPattern(filter("not_literal_or", "host", "r01n01|r01n02", false));
+        Assert.assertFalse(matches(notLiteral, "r01n01"));
+        Assert.assertTrue(matches(notLiteral, "r01n010"));
+        Assert.assertTrue(matches(notLiteral, "r01n03"));
+
+        String wildcard = QueryFilters.toPattern(filter("wildcard", "host", "r01.n*", false));
+        Assert.assertTrue(matches(wildcard, "r01.n01"));
+        Assert.assertFalse(matches(wildcard, "r01xn01"));
+
+        String regexp = QueryFilters.toPattern(filter("regexp", "host", "r0[12]n.*", false));
+        Assert.assertTrue(matches(regexp, "r02n01"));
+        Assert.assertFalse(matches(regexp, "r03n01"));
+
+        // without a type, as parsed from the group by tags of a GET request
+        Assert.assertEquals(".*", QueryFilters.toPattern(filter(null, "host", "*", true)));
+        Assert.assertEquals("r01n01", QueryFilters.toPattern(filter(null, "host", "r01n01", true)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        QueryFilters.toPattern(filter("histogram", "host", "r01n01", false));
+    }
+
+    @Test
+    public void testFiltersCombinedWithTags() {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.addTag("host", "r01n.*");
+        query.addFilter(filter("not_literal_or", "host", "r01n01", false));
+        query.addFilter(filter("wildcard", "rack", "*", true));
+        Map<String,String> patterns = QueryFilters.getTagPatterns(query);
+        Assert.assertEquals(2, patterns.size());
+        Assert.assertTrue(matches(patterns.get("host"), "r01n02"));
+        Assert.assertFalse(matches(patterns.get("host"), "r01n01"));
+        Assert.assertFalse(matches(patterns.get("host"), "r02n02"));
+        Assert.assertEquals(".*", patterns.get("rack"));
+        Assert.assertEquals("[rack]", QueryFilters.getGroupByTags(query).toString());
+        Assert.assertEquals("[host, rack]", QueryFilters.getResultTags(query).toString());
+    }
+}
@@ -0,0 +1,103 @@
+package timely.server.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import timely.accumulo.MetricAdapter;
+import timely.server.test.BenchmarkRunner;
+
+/**
+ * Compares {@link QueryRangePlanner} with the previous one range per hour per column family planning for a sys.cpu.user query over 1 to 30 days on 1 to 500
+ * host tags, the same layout as the data in DataStoreIT. Each benchmark includes {@link Range#mergeOverlapping(java.util.Collection)}, which the BatchScanner
+ * runs on the ranges before binning them to tablets.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryRangePlannerBenchmark {
+
+    private static final long HOUR = 3600000;
+    private static final String METRIC = "sys.cpu.user";
+
+    @Param({"1", "30"})
+    private int days;
+
+    @Param({"1", "50", "500"})
+    private int hosts;
+
+    private long start;
+    private long end;
+    private Set<String> colFamValues;
+
+    @Setup
+    public void setup() {
+        long now = 1535000000000L;
+        end = now;
+        start = now - days * 24 * HOUR + 1234;
+        colFamValues = new TreeSet<>();
+        for (int i = 0; i < hosts; i++) {
+            colFamValues.add(String.format("host=r%02dn%03d", i / 100, i % 100));
+        }
+    }
+
+    @Benchmark
+    public List<Range> planner() {
+        return Range.mergeOverlapping(QueryRangePlanner.plan(METRIC, start, end, colFamValues, 1000).getRanges());
+    }
+
+    @Benchmark
+    public List<Range> perHour() {
+        return Range.mergeOverlapping(perHourRanges(METRIC, start, end, colFamValues));
+    }
+
+    /**
+     * The planning used before {@link QueryRangePlanner}
+     */
+    private static List<Range> perHourRanges(String metric, long start, long end, Set<String> colFamValues) {
+        List<Range> ranges = new ArrayList<>();
+        long beginRangeRounded = MetricAdapter.roundTimestampToLastHour(start);
+        long lastBeginRangeRounded = MetricAdapter.roundTimestampToLastHour(end);
+        while (beginRangeRounded <= lastBeginRangeRounded) {
+            long endRangeTimestamp = (beginRangeRounded == lastBeginRangeRounded) ? end + 1 : beginRangeRounded + HOUR + 1;
+            long beginRangeTimestamp = (beginRangeRounded == MetricAdapter.roundTimestampToLastHour(start)) ? start : beginRangeRounded;
+            for (String cf : colFamValues) {
+                byte[] row = MetricAdapter.encodeRowKey(metric, beginRangeRounded);
+                Key startKey = new Key(new Text(row), new Text(cf.getBytes(StandardCharsets.UTF_8)),
+                                new Text(MetricAdapter.encodeColQual(beginRangeTimestamp, "")), new Text(new byte[0]), beginRangeTimestamp);
+                Key endKey = new Key(new Text(row), new Text(cf.getBytes(StandardCharsets.UTF_8)), new Text(MetricAdapter.encodeColQual(endRangeTimestamp, "")),
+                                new Text(new byte[0]), endRangeTimestamp);
+                ranges.add(new Range(startKey, true, endKey, false));
+            }
+            beginRangeRounded += HOUR;
+        }
+        return ranges;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner.run(QueryRangePlannerBenchmark.class);
+    }
+}
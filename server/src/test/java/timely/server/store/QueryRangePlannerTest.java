@@ -0,0 +1,90 @@
+package timely.server.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.accumulo.MetricAdapter;
+import timely.server.store.QueryRangePlanner.QueryRanges;
+
+public class QueryRangePlannerTest {
+
+    private static final long HOUR = 3600000;
+    private static final long START = 1535000000000L - (1535000000000L % HOUR);
+    private static final List<String> CFS = Arrays.asList("host=r01n01", "host=r01n02", "host=r01n03");
+
+    private static Key point(long ts, String cf) {
+        return new Key(new Text(MetricAdapter.encodeRowKey("sys.cpu.user", MetricAdapter.roundTimestampToLastHour(ts))), new Text(cf),
+                        new Text(MetricAdapter.encodeColQual(ts, "rack=r01")), new Text(), ts);
+    }
+
+    private static boolean contains(List<Range> ranges, Key key) {
+        return ranges.stream().anyMatch(r -> r.contains(key));
+    }
+
+    @Test
+    public void testInteriorHoursCoalesced() {
+        long start = START + 1000;
+        long end = START + 30 * 24 * HOUR + 5000;
+        QueryRanges ranges = QueryRangePlanner.plan("sys.cpu.user", start, end, CFS, 1000);
+        Assert.assertFalse(ranges.isTimestampFiltered());
+        // one range per column family for each partial hour and one for the hours between them
+        Assert.assertEquals(2 * CFS.size() + 1, ranges.getRanges().size());
+        for (String cf : CFS) {
+            Assert.assertFalse(contains(ranges.getRanges(), point(start - 1, cf)));
+            Assert.assertTrue(contains(ranges.getRanges(), point(start, cf)));
+            Assert.assertTrue(contains(ranges.getRanges(), point(START + HOUR - 1, cf)));
+            Assert.assertTrue(contains(ranges.getRanges(), point(START + 15 * 24 * HOUR, cf)));
+            Assert.assertTrue(contains(ranges.getRanges(), point(end, cf)));
+            Assert.assertFalse(contains(ranges.getRanges(), point(end + 1, cf)));
+        }
+        // ranges are in row order
+        List<Range> sorted = new ArrayList<>(ranges.getRanges());
+        sorted.sort(Range::compareTo);
+        Assert.assertEquals(sorted, ranges.getRanges());
+    }
+
+    @Test
+    public void testAlignedQueryIsOneRowRange() {
+        QueryRanges ranges = QueryRangePlanner.plan("sys.cpu.user", START, START + 24 * HOUR - 1, CFS, 1000);
+        Assert.assertEquals(1, ranges.getRanges().size());
+        Assert.assertFalse(ranges.isTimestampFiltered());
+        Assert.assertTrue(contains(ranges.getRanges(), point(START, "host=r01n01")));
+        Assert.assertFalse(contains(ranges.getRanges(), point(START + 24 * HOUR, "host=r01n01")));
+    }
+
+    @Test
+    public void testSingleHour() {
+        QueryRanges ranges = QueryRangePlanner.plan("sys.cpu.user", START + 1000, START + 2000, CFS, 1000);
+        Assert.assertEquals(CFS.size(), ranges.getRanges().size());
+        Assert.assertTrue(contains(ranges.getRanges(), point(START + 2000, "host=r01n02")));
+        Assert.assertFalse(contains(ranges.getRanges(), point(START + 2001, "host=r01n02")));
+    }
+
+    @Test
+    public void testFanOutFallsBackToFilteredRowRange() {
+        TreeSet<String> cfs = new TreeSet<>();
+        for (int i = 0; i < 600; i++) {
+            cfs.add(String.format("host=r%03d", i));
+        }
+        long end = START + 30 * 24 * HOUR + 5000;
+        QueryRanges ranges = QueryRangePlanner.plan("sys.cpu.user", START + 1000, end, cfs, 1000);
+        Assert.assertTrue(ranges.isTimestampFiltered());
+        Assert.assertEquals(1, ranges.getRanges().size());
+        Assert.assertTrue(contains(ranges.getRanges(), point(START, "host=r000")));
+        Assert.assertTrue(contains(ranges.getRanges(), point(end, "host=r599")));
+        Assert.assertFalse(contains(ranges.getRanges(), point(START + 31 * 24 * HOUR, "host=r000")));
+    }
+
+    @Test
+    public void testEndBeforeStart() {
+        Assert.assertTrue(QueryRangePlanner.plan("sys.cpu.user", START + 2000, START + 1000, CFS, 1000).getRanges().isEmpty());
+    }
+}
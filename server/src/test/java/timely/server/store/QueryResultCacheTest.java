@@ -0,0 +1,140 @@
+package timely.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.common.configuration.QueryCacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Tag;
+import timely.server.sample.Aggregation;
+import timely.server.sample.Sample;
+import timely.server.sample.aggregators.Avg;
+
+public class QueryResultCacheTest {
+
+    private static final long PERIOD = 3600000;
+    private static final Set<Tag> SERIES = Collections.singleton(new Tag("host", "r01n01"));
+
+    private QueryCacheProperties properties;
+    private QueryResultCache cache;
+    private long now;
+    private long currentBucket;
+
+    @Before
+    public void setup() {
+        properties = new QueryCacheProperties();
+        properties.setEnabled(true);
+        properties.setLatenessSeconds(0);
+        cache = new QueryResultCache(properties, new InternalMetrics(new TimelyProperties()));
+        now = System.currentTimeMillis();
+        currentBucket = now - (now % PERIOD);
+    }
+
+    private static SubQuery query() {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.addTag("host", "r01n01");
+        query.setDownsample(Optional.of("1h-avg"));
+        query.setAggregator("avg");
+        return query;
+    }
+
+    private static Map<Set<Tag>,List<Aggregation>> computed(long from, long to, double value) {
+        Aggregation aggregation = new Aggregation(new Avg());
+        for (long ts = from; ts <= to; ts += PERIOD) {
+            aggregation.add(ts, value);
+        }
+        Map<Set<Tag>,List<Aggregation>> series = new HashMap<>();
+        series.put(SERIES, new ArrayList<>(Collections.singletonList(aggregation)));
+        return series;
+    }
+
+    private static Map<Long,Double> samples(Map<Set<Tag>,List<Aggregation>> series) {
+        Map<Long,Double> samples = new TreeMap<>();
+        for (Sample s : Aggregation.combineAggregation(series.get(SERIES), null)) {
+            Assert.assertNull("Duplicate bucket " + s.getTimestamp(), samples.put(s.getTimestamp(), s.getValue()));
+        }
+        return samples;
+    }
+
+    @Test
+    public void testRefreshComputesOnlyNewBuckets() {
+        long start = currentBucket - 24 * PERIOD;
+        QueryResultCache.Lookup lookup = cache.lookup(query(), null, start + 1000, PERIOD);
+        Assert.assertFalse(lookup.isHit());
+        Assert.assertEquals(start + 1000, lookup.getComputeStart());
+        Map<Long,Double> first = samples(cache.complete(lookup, now, computed(start, currentBucket, 1.0D)));
+        Assert.assertEquals(25, first.size());
+        Assert.assertTrue(cache.getSizeInBytes() > 0);
+
+        // a refresh an hour later shares all but the open bucket with the first run
+        long refreshStart = start + PERIOD;
+        lookup = cache.lookup(query(), null, refreshStart, PERIOD);
+        Assert.assertTrue(lookup.isHit());
+        Assert.assertEquals(currentBucket - PERIOD, lookup.getComputeStart());
+        Map<Long,Double> second = samples(cache.complete(lookup, now, computed(lookup.getComputeStart(), currentBucket, 2.0D)));
+        Assert.assertEquals(24, second.size());
+        Assert.assertEquals(refreshStart, second.keySet().iterator().next().longValue());
+        second.forEach((ts, value) -> Assert.assertEquals(ts == currentBucket ? 2.0D : 1.0D, value, 0.0D));
+    }
+
+    @Test
+    public void testBucketsWithinLatenessAreNotCached() {
+        properties.setLatenessSeconds(3 * PERIOD / 1000);
+        long start = currentBucket - 24 * PERIOD;
+        QueryResultCache.Lookup lookup = cache.lookup(query(), null, start, PERIOD);
+        cache.complete(lookup, now, computed(start, currentBucket, 1.0D));
+        lookup = cache.lookup(query(), null, start, PERIOD);
+        Assert.assertTrue(lookup.isHit());
+        // the open bucket and the buckets within the lateness window are recomputed
+        Assert.assertEquals(currentBucket - 4 * PERIOD, lookup.getComputeStart());
+    }
+
+    @Test
+    public void testLateMetricInvalidates() {
+        long start = currentBucket - 24 * PERIOD;
+        cache.complete(cache.lookup(query(), null, start, PERIOD), now, computed(start, currentBucket, 1.0D));
+        // metrics after the cached buckets do not invalidate
+        cache.invalidate("sys.cpu.user", currentBucket + 1);
+        cache.invalidate("sys.cpu.idle", start + PERIOD);
+        Assert.assertTrue(cache.lookup(query(), null, start, PERIOD).isHit());
+        cache.invalidate("sys.cpu.user", start + PERIOD);
+        Assert.assertFalse(cache.lookup(query(), null, start, PERIOD).isHit());
+        Assert.assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void testKeyIncludesAuthorizations() {
+        long start = currentBucket - 24 * PERIOD;
+        List<Authorizations> auths = Collections.singletonList(new Authorizations("A", "B"));
+        cache.complete(cache.lookup(query(), auths, start, PERIOD), now, computed(start, currentBucket, 1.0D));
+        Assert.assertTrue(cache.lookup(query(), Collections.singletonList(new Authorizations("B", "A")), start, PERIOD).isHit());
+        Assert.assertFalse(cache.lookup(query(), Collections.singletonList(new Authorizations("A")), start, PERIOD).isHit());
+        Assert.assertFalse(cache.lookup(query(), null, start, PERIOD).isHit());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        long start = currentBucket - 24 * PERIOD;
+        SubQuery first = query();
+        cache.complete(cache.lookup(first, null, start, PERIOD), now, computed(start, currentBucket, 1.0D));
+        properties.setMaxSizeBytes(cache.getSizeInBytes() * 3 / 2);
+        SubQuery second = query();
+        second.setMetric("sys.cpu.idle");
+        cache.complete(cache.lookup(second, null, start, PERIOD), now, computed(start, currentBucket, 1.0D));
+        Assert.assertFalse(cache.lookup(first, null, start, PERIOD).isHit());
+        Assert.assertTrue(cache.lookup(second, null, start, PERIOD).isHit());
+    }
+}
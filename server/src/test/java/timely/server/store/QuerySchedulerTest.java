@@ -0,0 +1,161 @@
+package timely.server.store;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalChannel;
+import timely.api.response.TimelyException;
+import timely.common.configuration.QueryProperties;
+import timely.common.configuration.TimelyProperties;
+
+public class QuerySchedulerTest {
+
+    private EventLoopGroup group;
+    private Channel channel;
+    private QueryScheduler scheduler;
+
+    @Before
+    public void setup() throws Exception {
+        group = new DefaultEventLoopGroup(1);
+        channel = new LocalChannel();
+        group.register(channel).sync();
+    }
+
+    @After
+    public void teardown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        channel.close();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private QueryScheduler start(int threads, int maxQueued, long timeoutSeconds) {
+        QueryProperties properties = new QueryProperties();
+        properties.setEnabled(true);
+        properties.setThreads(threads);
+        properties.setMaxQueued(maxQueued);
+        properties.setTimeoutSeconds(timeoutSeconds);
+        scheduler = new QueryScheduler(properties, new InternalMetrics(new TimelyProperties()));
+        scheduler.start();
+        return scheduler;
+    }
+
+    private static <T> CompletableFuture<T> submit(QueryScheduler scheduler, Channel channel, QueryScheduler.QueryTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        scheduler.submit(channel, task, (result, e) -> {
+            Assert.assertTrue(channel.eventLoop().inEventLoop());
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    private static TimelyException failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return (TimelyException) e.getCause();
+        }
+        Assert.fail("Expected query to fail");
+        return null;
+    }
+
+    @Test
+    public void testDisabledRunsInline() throws Exception {
+        scheduler = new QueryScheduler(new QueryProperties(), new InternalMetrics(new TimelyProperties()));
+        scheduler.start();
+        Thread caller = Thread.currentThread();
+        String[] result = new String[1];
+        scheduler.submit(channel, context -> Thread.currentThread() == caller ? "inline" : "scheduled", (r, e) -> result[0] = r);
+        Assert.assertEquals("inline", result[0]);
+    }
+
+    @Test
+    public void testResultDelivered() throws Exception {
+        start(2, 10, 0);
+        Assert.assertEquals("result", submit(scheduler, channel, context -> "result").get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedWhenQueueFull() throws Exception {
+        start(1, 1, 0);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = submit(scheduler, channel, context -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "first";
+        });
+        running.await();
+        CompletableFuture<String> second = submit(scheduler, channel, context -> "second");
+        CompletableFuture<String> third = submit(scheduler, channel, context -> "third");
+
+        TimelyException e = failure(third);
+        Assert.assertEquals(503, e.getCode());
+        Assert.assertEquals("1", e.getResponseHeaders().get("retry-after"));
+
+        release.countDown();
+        Assert.assertEquals("first", first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("second", second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeoutClosesScanners() throws Exception {
+        start(1, 1, 1);
+        CountDownLatch closed = new CountDownLatch(1);
+        CompletableFuture<String> future = submit(scheduler, channel, context -> {
+            context.register(closed::countDown);
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            context.checkCancelled();
+            return "late";
+        });
+        TimelyException e = failure(future);
+        Assert.assertEquals(504, e.getCode());
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testChannelCloseCancelsQuery() throws Exception {
+        start(1, 1, 0);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        CompletableFuture<String> future = submit(scheduler, channel, context -> {
+            context.register(closed::countDown);
+            running.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "late";
+        });
+        running.await();
+        channel.close().sync();
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        // the result of a query for a closed channel is dropped
+        Thread.sleep(100);
+        Assert.assertFalse(future.isDone());
+    }
+}
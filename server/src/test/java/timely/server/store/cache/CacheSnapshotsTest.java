@@ -0,0 +1,300 @@
+package timely.server.store.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fi.iki.yak.ts.compression.gorilla.Pair;
+import timely.model.Tag;
+
+public class CacheSnapshotsTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // offset of the first record after the file header
+    private static final long FIRST_RECORD = 12;
+
+    private Path directory;
+    private long now;
+
+    @Before
+    public void setup() throws IOException {
+        directory = temp.newFolder("snapshots").toPath();
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testSnapshotAndLoad() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1"), new Tag("viz", "A")));
+        GorillaStore store = createStore(20);
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            snapshot(snapshots, "sys.cpu", taggedMetric, store);
+            // compressors that are already in the snapshot are not written again
+            long size = Files.size(directory.resolve("cache-00000000.snap"));
+            snapshot(snapshots, "sys.cpu", taggedMetric, store);
+            Assert.assertEquals(size, Files.size(directory.resolve("cache-00000000.snap")));
+        }
+
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            Assert.assertTrue(snapshots.isPending("sys.cpu"));
+            Map<TaggedMetric,List<WrappedGorillaCompressor>> loaded = load(snapshots, "sys.cpu", Long.MAX_VALUE);
+            Assert.assertFalse(snapshots.isPending("sys.cpu"));
+            Assert.assertEquals(1, loaded.size());
+            Assert.assertEquals(2, loaded.get(taggedMetric).size());
+            Assert.assertEquals(getValues(store), getValues(loaded.get(taggedMetric)));
+        }
+    }
+
+    @Test
+    public void testAgeOffOnLoad() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            snapshot(snapshots, "sys.cpu", taggedMetric, createStore(10));
+        }
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            Assert.assertTrue(load(snapshots, "sys.cpu", 1000).isEmpty());
+            Assert.assertFalse(snapshots.isPending("sys.cpu"));
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordTruncated() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        GorillaStore store = createStore(10);
+        Path file = directory.resolve("cache-00000000.snap");
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            snapshot(snapshots, "sys.cpu", taggedMetric, store);
+        }
+        long size = Files.size(file);
+        // the start of a record whose payload was not written
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(1000).putInt(0).putInt(4).flip());
+        }
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            Assert.assertEquals(size, Files.size(file));
+            Assert.assertEquals(getValues(store), getValues(load(snapshots, "sys.cpu", Long.MAX_VALUE).get(taggedMetric)));
+        }
+    }
+
+    @Test
+    public void testCorruptRecordSkipped() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        GorillaStore store = createStore(10);
+        Path file = directory.resolve("cache-00000000.snap");
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            snapshot(snapshots, "sys.cpu", taggedMetric, store);
+        }
+        long size = Files.size(file);
+        // flip a bit in the compressed values of the first record
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, FIRST_RECORD);
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = FIRST_RECORD + 8 + header.getInt(0) - 1;
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 1)).flip();
+            channel.write(b, position);
+        }
+        assertOnlySecondRecordLoaded(store, taggedMetric, file, size);
+    }
+
+    @Test
+    public void testUnparsableRecordSkipped() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        GorillaStore store = createStore(10);
+        Path file = directory.resolve("cache-00000000.snap");
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            snapshot(snapshots, "sys.cpu", taggedMetric, store);
+        }
+        long size = Files.size(file);
+        // a number of tags that runs past the end of the payload of the first record, with a checksum that matches
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            channel.read(header, FIRST_RECORD);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            channel.read(payload, FIRST_RECORD + 8);
+            payload.putInt(Integer.BYTES + "sys.cpu".length(), 1000);
+            CRC32C crc = new CRC32C();
+            crc.update(payload.array());
+            header.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+            payload.flip();
+            channel.write(header, FIRST_RECORD);
+            channel.write(payload, FIRST_RECORD + 8);
+        }
+        assertOnlySecondRecordLoaded(store, taggedMetric, file, size);
+    }
+
+    private void assertOnlySecondRecordLoaded(GorillaStore store, TaggedMetric taggedMetric, Path file, long size) throws IOException {
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            // the record after the corrupt one is kept
+            Assert.assertEquals(size, Files.size(file));
+            Map<TaggedMetric,List<WrappedGorillaCompressor>> loaded = load(snapshots, "sys.cpu", Long.MAX_VALUE);
+            Assert.assertEquals(1, loaded.get(taggedMetric).size());
+            Assert.assertEquals(getValues(store.getArchivedCompressors().subList(1, 2)), getValues(loaded.get(taggedMetric)));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        GorillaStore small = createStore(10);
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+                snapshot.add("sys.cpu", taggedMetric, small);
+                snapshot.add("sys.mem", taggedMetric, createStore(1000));
+                snapshot.commit(m -> Long.MAX_VALUE, now, now);
+            }
+        }
+
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            Map<TaggedMetric,List<WrappedGorillaCompressor>> loaded = load(snapshots, "sys.cpu", Long.MAX_VALUE);
+            GorillaStore store = new GorillaStore("sys.cpu", Long.MAX_VALUE);
+            store.addArchivedCompressors(loaded.get(taggedMetric));
+            // sys.mem ages off before it is loaded, leaving file 0 mostly dead
+            snapshot(snapshots, "sys.cpu", taggedMetric, store, 0);
+            Assert.assertTrue(Files.exists(directory.resolve("cache-00000000.snap")));
+            // the next snapshot moves the live records of file 0 to file 1
+            snapshot(snapshots, "sys.cpu", taggedMetric, store, 0);
+            Assert.assertFalse(Files.exists(directory.resolve("cache-00000000.snap")));
+            Assert.assertTrue(Files.exists(directory.resolve("cache-00000001.snap")));
+        }
+
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            Assert.assertFalse(snapshots.isPending("sys.mem"));
+            Assert.assertEquals(getValues(small), getValues(load(snapshots, "sys.cpu", Long.MAX_VALUE).get(taggedMetric)));
+        }
+    }
+
+    @Test
+    public void testPendingRecordLoadedAfterCompaction() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        GorillaStore disk = createStore(10);
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+                snapshot.add("sys.disk", taggedMetric, disk);
+                snapshot.add("sys.mem", taggedMetric, createStore(1000));
+                snapshot.commit(m -> Long.MAX_VALUE, now, now);
+            }
+        }
+
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            // sys.mem ages off, then sys.disk is carried over to file 1 without being loaded and file 0 is deleted
+            for (int i = 0; i < 2; i++) {
+                try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+                    snapshot.commit(m -> m.equals("sys.mem") ? 0 : Long.MAX_VALUE, now, now);
+                }
+            }
+            Assert.assertFalse(Files.exists(directory.resolve("cache-00000000.snap")));
+            Assert.assertEquals(getValues(disk), getValues(load(snapshots, "sys.disk", Long.MAX_VALUE).get(taggedMetric)));
+        }
+    }
+
+    @Test
+    public void testCoverageGaps() throws IOException {
+        TaggedMetric taggedMetric = new TaggedMetric(Arrays.asList(new Tag("host", "h1")));
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now, Long.MAX_VALUE);
+            // nothing was restored
+            Assert.assertTrue(snapshots.getGaps().isEmpty());
+            try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+                snapshot.add("sys.cpu", taggedMetric, createStore(10));
+                snapshot.commit(m -> Long.MAX_VALUE, now + 1000, now + 500);
+            }
+        }
+
+        // values archived after now + 500 and written while the server was down are missing from the restored cache
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now + 2000, Long.MAX_VALUE);
+            Assert.assertEquals(1, snapshots.getGaps().size());
+            Assert.assertEquals(now + 501, snapshots.getGaps().get(0).getStart());
+            Assert.assertEquals(now + 2000, snapshots.getGaps().get(0).getEnd());
+        }
+
+        // a crash before the next snapshot leaves a second gap after the restart, the first gap ages off
+        try (CacheSnapshots snapshots = new CacheSnapshots(directory)) {
+            snapshots.open(now + 5000, 2000);
+            Assert.assertEquals(1, snapshots.getGaps().size());
+            Assert.assertEquals(now + 2001, snapshots.getGaps().get(0).getStart());
+            Assert.assertEquals(now + 5000, snapshots.getGaps().get(0).getEnd());
+        }
+    }
+
+    /**
+     * @return a store with two archived compressors of the given number of values each
+     */
+    private GorillaStore createStore(int valuesPerCompressor) {
+        GorillaStore store = new GorillaStore("", Long.MAX_VALUE);
+        long timestamp = now - 100000000;
+        for (int c = 0; c < 2; c++) {
+            for (int x = 0; x < valuesPerCompressor; x++) {
+                store.addValue(timestamp += 1000, c * 1000 + x + 0.25);
+            }
+            store.archiveCurrentCompressor();
+        }
+        return store;
+    }
+
+    private void snapshot(CacheSnapshots snapshots, String metric, TaggedMetric taggedMetric, GorillaStore store) throws IOException {
+        snapshot(snapshots, metric, taggedMetric, store, Long.MAX_VALUE);
+    }
+
+    private void snapshot(CacheSnapshots snapshots, String metric, TaggedMetric taggedMetric, GorillaStore store, long pendingAgeOff) throws IOException {
+        try (CacheSnapshots.Snapshot snapshot = snapshots.begin()) {
+            snapshot.add(metric, taggedMetric, store);
+            snapshot.commit(m -> pendingAgeOff, now, now);
+        }
+    }
+
+    private Map<TaggedMetric,List<WrappedGorillaCompressor>> load(CacheSnapshots snapshots, String metric, long maxAge) {
+        Map<TaggedMetric,List<WrappedGorillaCompressor>> loaded = new HashMap<>();
+        snapshots.load(metric, maxAge, now, loaded::putAll);
+        return loaded;
+    }
+
+    private static List<Double> getValues(GorillaStore store) {
+        return getValues(store.getArchivedCompressors());
+    }
+
+    private static List<Double> getValues(List<WrappedGorillaCompressor> compressors) {
+        GorillaStore store = new GorillaStore("", Long.MAX_VALUE);
+        store.addArchivedCompressors(compressors);
+        List<Double> values = new ArrayList<>();
+        for (WrappedGorillaDecompressor w : store.getDecompressors(0, Long.MAX_VALUE)) {
+            Pair pair;
+            while ((pair = w.readPair()) != null) {
+                values.add(pair.getDoubleValue());
+            }
+        }
+        return values;
+    }
+}
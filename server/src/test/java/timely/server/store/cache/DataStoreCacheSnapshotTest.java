@@ -0,0 +1,106 @@
+package timely.server.store.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import timely.api.request.timeseries.QueryRequest;
+import timely.common.configuration.CacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.model.Value;
+import timely.server.sample.Aggregation;
+import timely.server.sample.Sample;
+import timely.server.store.InternalMetrics;
+
+public class DataStoreCacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private TimelyProperties timelyProperties;
+    private CacheProperties cacheProperties;
+
+    @Before
+    public void setup() throws Exception {
+        timelyProperties = new TimelyProperties();
+        cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        cacheProperties.setDefaultAgeOffHours(24);
+        cacheProperties.setSnapshotDirectory(temp.newFolder("snapshots").getAbsolutePath());
+    }
+
+    @Test
+    public void testQueryAcrossRestart() throws Exception {
+        long base = System.currentTimeMillis() - 60000;
+        DataStoreCache before = createCache();
+        for (int x = 0; x < 10; x++) {
+            before.store(createMetric(base + x * 1000));
+        }
+        // flushes, archives and snapshots the values
+        before.shutdown();
+        Thread.sleep(10);
+
+        DataStoreCache after = createCache();
+        try {
+            List<CacheSnapshots.Gap> gaps = after.getCoverageGaps();
+            Assert.assertEquals(1, gaps.size());
+            CacheSnapshots.Gap gap = gaps.get(0);
+            Assert.assertTrue(gap.getStart() > base + 9000);
+            Assert.assertTrue(gap.getEnd() > gap.getStart());
+
+            // a value written while the server was down arrives late, it is in Accumulo and must not also be read from the cache
+            after.store(createMetric(gap.getStart()));
+            after.store(createMetric(gap.getEnd() + 1000));
+            after.flushCaches(-1);
+            Assert.assertEquals(base, after.getOldestTimestamp("sys.cpu.user"));
+
+            QueryRequest query = new QueryRequest();
+            query.setStart(base);
+            query.setEnd(gap.getEnd() + 2000);
+            query.setMsResolution(true);
+            QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.setDownsample(Optional.of("1s-count"));
+            Map<Set<Tag>,Aggregation> result = after.runQuery(query, subQuery, Collections.singletonList(Authorizations.EMPTY), Long.MAX_VALUE);
+            Assert.assertEquals(1, result.size());
+            int count = 0;
+            for (Sample sample : result.values().iterator().next()) {
+                Assert.assertFalse(gap.contains(sample.getTimestamp()));
+                count += (int) sample.getValue();
+            }
+            // the values from before the restart and the value after it
+            Assert.assertEquals(11, count);
+        } finally {
+            after.shutdown();
+        }
+    }
+
+    private DataStoreCache createCache() throws Exception {
+        DataStoreCache cache = new DataStoreCache(null, null, new InternalMetrics(timelyProperties), timelyProperties, cacheProperties);
+        cache.start();
+        return cache;
+    }
+
+    private static Metric createMetric(long timestamp) {
+        Metric m = new Metric();
+        m.setName("sys.cpu.user");
+        m.setTags(Arrays.asList(new Tag("host", "h1")));
+        Value value = new Value();
+        value.setMeasure(1.0);
+        value.setTimestamp(timestamp);
+        m.setValue(value);
+        return m;
+    }
+}
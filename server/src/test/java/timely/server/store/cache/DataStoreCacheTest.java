@@ -0,0 +1,111 @@
+package timely.server.store.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+import timely.common.configuration.CacheProperties;
+import timely.common.configuration.TimelyProperties;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.store.InternalMetrics;
+
+public class DataStoreCacheTest {
+
+    @Test
+    public void testNonCachedMetricPatterns() throws Exception {
+        TimelyProperties timelyProperties = new TimelyProperties();
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        cacheProperties.setDefaultAgeOffHours(24);
+        // an invalid pattern only excludes the metric of that name
+        cacheProperties.setNonCachedMetrics(Arrays.asList("sys\\.cpu\\..*", "sys.disk[", "sys.net.bytes"));
+        DataStoreCache cache = new DataStoreCache(null, null, new InternalMetrics(timelyProperties), timelyProperties, cacheProperties);
+        cache.start();
+        try {
+            long now = System.currentTimeMillis();
+            for (String name : Arrays.asList("sys.cpu.user", "sys.cpu.idle", "sys.disk[", "sys.net.bytes", "sys.mem.free", "sys.disk.used")) {
+                cache.store(new Metric(name, now, 1.0D, Collections.singletonList(new Tag("host", "h1"))));
+            }
+            cache.flushCaches(-1);
+            Assert.assertEquals(Collections.emptyMap(), cache.getGorillaStores("sys.cpu.user"));
+            Assert.assertEquals(Collections.emptyMap(), cache.getGorillaStores("sys.cpu.idle"));
+            Assert.assertEquals(Collections.emptyMap(), cache.getGorillaStores("sys.disk["));
+            Assert.assertEquals(Collections.emptyMap(), cache.getGorillaStores("sys.net.bytes"));
+            Assert.assertEquals(1, cache.getGorillaStores("sys.mem.free").size());
+            Assert.assertEquals(1, cache.getGorillaStores("sys.disk.used").size());
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidFilterIsBadRequest() throws Exception {
+        TimelyProperties timelyProperties = new TimelyProperties();
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        DataStoreCache cache = new DataStoreCache(null, null, new InternalMetrics(timelyProperties), timelyProperties, cacheProperties);
+        QueryRequest.SubQuery query = new QueryRequest.SubQuery();
+        query.setMetric("sys.cpu.user");
+        QueryRequest.Filter filter = new QueryRequest.Filter();
+        filter.setType("iliteral_or");
+        filter.setTagk("host");
+        filter.setFilter("r01n01");
+        query.addFilter(filter);
+        try {
+            new DataStoreCacheIterator(cache, Collections.emptyList(), query, 0, System.currentTimeMillis());
+            Assert.fail("Expected an invalid filter to be rejected");
+        } catch (TimelyException e) {
+            Assert.assertEquals(400, e.getCode());
+        }
+    }
+
+    @Test
+    public void testBlocksReleasedWhenReadFails() throws Exception {
+        TimelyProperties timelyProperties = new TimelyProperties();
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setEnabled(true);
+        OffHeapBlocks offHeapBlocks = new OffHeapBlocks(1024 * 1024);
+        GorillaStore store = new GorillaStore("sys.cpu.user", Long.MAX_VALUE, offHeapBlocks);
+        long timestamp = System.currentTimeMillis() - 100000;
+        for (int x = 0; x < 50; x++) {
+            store.addValue(timestamp += 1000, x);
+        }
+        store.archiveCurrentCompressor();
+        Assert.assertEquals(1, offHeapBlocks.getBlocks());
+
+        // the read fails after the first value of the block
+        TaggedMetric taggedMetric = new TaggedMetric(Collections.singletonList(new Tag("host", "h1"))) {
+
+            @Override
+            public Map<String,String> getTags() {
+                throw new IllegalStateException("Read failed");
+            }
+        };
+        DataStoreCache cache = new DataStoreCache(null, null, new InternalMetrics(timelyProperties), timelyProperties, cacheProperties) {
+
+            @Override
+            public Map<TaggedMetric,GorillaStore> getGorillaStores(String metric) {
+                return Collections.singletonMap(taggedMetric, store);
+            }
+        };
+        QueryRequest.SubQuery query = new QueryRequest.SubQuery();
+        query.setMetric("sys.cpu.user");
+        try {
+            new DataStoreCacheIterator(cache, Collections.singletonList(new VisibilityFilter(new Authorizations())), query, 0, System.currentTimeMillis());
+            Assert.fail("Expected the read to fail");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Read failed", e.getMessage());
+        }
+        // the block is freed when it is aged off since the iterator no longer holds it
+        store.ageOffArchivedCompressors(0, timestamp + 1);
+        Assert.assertEquals(0, offHeapBlocks.getBlocks());
+        Assert.assertEquals(0, offHeapBlocks.getUsed());
+    }
+}
@@ -0,0 +1,139 @@
+package timely.server.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.test.BenchmarkRunner;
+
+/**
+ * Compares the ingest of a series into {@link GorillaStore} with the previous staging of the Metric objects in a synchronized list. The values are added as
+ * DataStoreCache.store adds them and compressed with a flush every 1 to 512 values, as flushCaches does for a series written at different rates. Staged values
+ * are held in 16 bytes each until the flush where the list held the Metric, its name, tags and value; run with -prof gc for the bytes allocated per value.
+ *
+ * Run the main method with the test classpath of this module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GorillaStoreBenchmark {
+
+    private static final long START = 1535000000000L;
+    private static final int NUM_VALUES = 4096;
+    private static final String METRIC = "sys.cpu.user";
+
+    @Param({"1", "16", "512"})
+    private int valuesPerFlush;
+
+    private Metric[] metrics;
+
+    @Setup
+    public void setup() {
+        metrics = new Metric[NUM_VALUES];
+        List<Tag> tags = Arrays.asList(new Tag("host", "r01n01"), new Tag("rack", "r01"), new Tag("instance", "0"));
+        for (int i = 0; i < NUM_VALUES; i++) {
+            metrics[i] = new Metric(METRIC, START + i * 1000L, (i % 100) * 0.5D, new ArrayList<>(tags));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_VALUES)
+    public GorillaStore stagingBuffer() {
+        GorillaStore store = new GorillaStore(METRIC, Long.MAX_VALUE);
+        for (int offset = 0; offset < NUM_VALUES; offset += valuesPerFlush) {
+            for (int i = offset; i < offset + valuesPerFlush; i++) {
+                store.addValue(metrics[i]);
+            }
+            store.flush();
+        }
+        return store;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_VALUES)
+    public MetricListStore metricList() {
+        MetricListStore store = new MetricListStore(Long.MAX_VALUE);
+        for (int offset = 0; offset < NUM_VALUES; offset += valuesPerFlush) {
+            for (int i = offset; i < offset + valuesPerFlush; i++) {
+                store.addValue(metrics[i]);
+            }
+            store.flush();
+        }
+        return store;
+    }
+
+    /**
+     * The staging and flush of GorillaStore before the staging buffer
+     */
+    public static class MetricListStore {
+
+        private final StampedLock currentCompressorLock = new StampedLock();
+        private final List<Metric> metricCache = new ArrayList<>();
+        private final long maxAge;
+        private WrappedGorillaCompressor current = null;
+        private long newestTimestamp = -1;
+
+        public MetricListStore(long maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public void flush() {
+            List<Metric> tempCache = new ArrayList<>();
+            synchronized (metricCache) {
+                tempCache.addAll(metricCache);
+                metricCache.clear();
+            }
+            long stamp = currentCompressorLock.writeLock();
+            try {
+                long now = System.currentTimeMillis();
+                for (Metric m : tempCache) {
+                    long ts = m.getValue().getTimestamp();
+                    double v = m.getValue().getMeasure();
+                    if (ts > newestTimestamp && (now - ts) < maxAge) {
+                        newestTimestamp = ts;
+                        if (current == null) {
+                            current = new WrappedGorillaCompressor(ts);
+                        }
+                        current.addValue(ts, v);
+                    }
+                }
+            } finally {
+                currentCompressorLock.unlockWrite(stamp);
+            }
+        }
+
+        public void addValue(Metric metric) {
+            long now = System.currentTimeMillis();
+            long timestamp = metric.getValue().getTimestamp();
+            if (timestamp >= newestTimestamp && (now - timestamp) < maxAge) {
+                synchronized (metricCache) {
+                    metricCache.add(metric);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner.run(GorillaStoreBenchmark.class);
+    }
+}
@@ -0,0 +1,93 @@
+package timely.server.store.migrate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.accumulo.MetricAdapter;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.server.store.GorillaBlock;
+
+public class SeriesLayoutMigrationTest {
+
+    private static final long HOUR = 3600000;
+    private static final long CLOSED_HOUR = MetricAdapter.roundTimestampToLastHour(System.currentTimeMillis()) - 3 * HOUR;
+
+    private static List<Metric> createHour() {
+        List<Metric> metrics = new ArrayList<>();
+        List<Tag> tags = Arrays.asList(new Tag("host", "h1"), new Tag("rack", "r1"));
+        for (long ts = CLOSED_HOUR; ts < CLOSED_HOUR + HOUR; ts += 60000) {
+            metrics.add(new Metric("sys.cpu.user", ts, ts % 7, tags));
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the tag layout entries of the samples of one series within an hour, with each column family packed into a block in the form written by the block
+     *         compaction
+     */
+    private static Map<Key,Value> pack(List<Metric> metrics) {
+        long[] timestamps = new long[metrics.size()];
+        double[] values = new double[metrics.size()];
+        for (int i = 0; i < metrics.size(); i++) {
+            timestamps[i] = metrics.get(i).getValue().getTimestamp();
+            values[i] = metrics.get(i).getValue().getMeasure();
+        }
+        long blockTimestamp = CLOSED_HOUR - 1;
+        byte[] block = GorillaBlock.encode(blockTimestamp, timestamps, values, metrics.size());
+        Map<Key,Value> blocks = new TreeMap<>();
+        Mutation m = MetricAdapter.toMutation(metrics.get(0));
+        for (ColumnUpdate cu : m.getUpdates()) {
+            String tags = MetricAdapter.decodeColQual(cu.getColumnQualifier()).getSecond();
+            Key k = new Key(m.getRow(), cu.getColumnFamily(), MetricAdapter.encodeColQual(blockTimestamp, tags), cu.getColumnVisibility(),
+                            timestamps[timestamps.length - 1]);
+            blocks.put(k, new Value(block));
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testGetMetricsOfSample() {
+        Metric metric = new Metric("sys.cpu.user", CLOSED_HOUR, 2.0, Arrays.asList(new Tag("host", "h1"), new Tag("rack", "r1")));
+        Mutation m = MetricAdapter.toMutation(metric);
+        for (ColumnUpdate cu : m.getUpdates()) {
+            Key k = new Key(m.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(), cu.getColumnVisibility(), cu.getTimestamp());
+            Assert.assertEquals(Arrays.asList(metric), SeriesLayoutMigration.getMetrics(k, new Value(cu.getValue())));
+        }
+    }
+
+    @Test
+    public void testGetMetricsOfPackedHour() {
+        List<Metric> metrics = createHour();
+        Map<Key,Value> blocks = pack(metrics);
+        // one block for each tag
+        Assert.assertEquals(2, blocks.size());
+        for (Map.Entry<Key,Value> e : blocks.entrySet()) {
+            Assert.assertEquals(metrics, SeriesLayoutMigration.getMetrics(e.getKey(), e.getValue()));
+        }
+    }
+
+    @Test
+    public void testGetMetricsOfPackedHourWithVisibility() {
+        List<Metric> metrics = new ArrayList<>();
+        for (Metric metric : createHour()) {
+            List<Tag> tags = new ArrayList<>(metric.getTags());
+            tags.add(new Tag(MetricAdapter.VISIBILITY_TAG, "A"));
+            metrics.add(new Metric(metric.getName(), metric.getValue().getTimestamp(), metric.getValue().getMeasure(), tags));
+        }
+        for (Map.Entry<Key,Value> e : pack(metrics).entrySet()) {
+            Assert.assertEquals("A", e.getKey().getColumnVisibility().toString());
+            Assert.assertEquals(metrics, SeriesLayoutMigration.getMetrics(e.getKey(), e.getValue()));
+        }
+    }
+}
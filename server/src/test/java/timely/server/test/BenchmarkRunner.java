@@ -0,0 +1,71 @@
+package timely.server.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.openjdk.jmh.runner.BenchmarkList;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this module. The compression-gorilla jar ships its own META-INF/BenchmarkList in a format that the JMH runner fails to parse, and
+ * the runner reads every BenchmarkList on the classpath. The runner is loaded in a class loader over the same classpath that only returns the BenchmarkList of
+ * the module that holds the benchmark.
+ */
+public class BenchmarkRunner {
+
+    private static class BenchmarkClassLoader extends URLClassLoader {
+
+        private final String benchmarkList;
+
+        private BenchmarkClassLoader(URL[] urls, URL benchmarkList) {
+            super(urls, ClassLoader.getPlatformClassLoader());
+            this.benchmarkList = benchmarkList.toString();
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name) throws IOException {
+            if (!BenchmarkList.BENCHMARK_LIST.substring(1).equals(name)) {
+                return super.getResources(name);
+            }
+            List<URL> resources = new ArrayList<>();
+            for (URL url : Collections.list(super.getResources(name))) {
+                if (url.toString().equals(benchmarkList)) {
+                    resources.add(url);
+                }
+            }
+            return Collections.enumeration(resources);
+        }
+    }
+
+    /**
+     * Runs the benchmarks of a class with the test classpath of this module, e.g. from the main method of the benchmark
+     */
+    public static void run(Class<?> benchmark) throws Exception {
+        // the BenchmarkList in the classpath entry of the benchmark
+        String classFile = benchmark.getName().replace('.', '/') + ".class";
+        String root = benchmark.getClassLoader().getResource(classFile).toString();
+        URL benchmarkList = new URL(root.substring(0, root.length() - classFile.length()) + BenchmarkList.BENCHMARK_LIST.substring(1));
+        List<URL> urls = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(new File(entry).toURI().toURL());
+        }
+        try (BenchmarkClassLoader loader = new BenchmarkClassLoader(urls.toArray(new URL[0]), benchmarkList)) {
+            Class<?> runner = loader.loadClass(BenchmarkRunner.class.getName());
+            runner.getDeclaredMethod("runBenchmark", String.class).invoke(null, benchmark.getName());
+        }
+    }
+
+    /**
+     * Called within the {@link BenchmarkClassLoader}, where this class and the JMH classes are loaded again, so the runner reads the BenchmarkList through it
+     */
+    public static void runBenchmark(String benchmark) throws Exception {
+        new Runner(new OptionsBuilder().include(benchmark).build()).run();
+    }
+}
@@ -10,7 +10,10 @@ import org.slf4j.LoggerFactory;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import timely.api.request.MetricBatchRequest;
+import timely.api.request.MetricRequest;
 import timely.api.request.Request;
+import timely.model.Metric;
 
 @ChannelHandler.Sharable
 public class TestCaptureRequestHandler extends MessageToMessageDecoder<Request> {
@@ -19,6 +22,7 @@ public class TestCaptureRequestHandler extends MessageToMessageDecoder<Request>
 
     private AtomicLong counter = new AtomicLong(0);
     private List<Request> responses = new ArrayList<>();
+    private List<MetricBatchRequest> batches = new ArrayList<>();
     private boolean lastHandler;
 
     public TestCaptureRequestHandler(boolean lastHandler) {
@@ -32,13 +36,29 @@ public class TestCaptureRequestHandler extends MessageToMessageDecoder<Request>
     @Override
     protected void decode(ChannelHandlerContext ctx, Request msg, List<Object> out) throws Exception {
         log.trace("Received: {}", msg);
-        responses.add(msg);
-        counter.getAndIncrement();
+        if (msg instanceof MetricBatchRequest) {
+            // captured as one request per metric, as they were before the listeners batched them
+            batches.add((MetricBatchRequest) msg);
+            for (Metric metric : ((MetricBatchRequest) msg).getMetrics()) {
+                responses.add(new MetricRequest(metric));
+                counter.getAndIncrement();
+            }
+        } else {
+            responses.add(msg);
+            counter.getAndIncrement();
+        }
         if (!lastHandler) {
             out.add(msg);
         }
     }
 
+    /**
+     * @return the batches received, their metrics are also in the responses
+     */
+    public List<MetricBatchRequest> getBatches() {
+        return batches;
+    }
+
     public long getCount() {
         return counter.get();
     }
@@ -46,5 +66,6 @@ public class TestCaptureRequestHandler extends MessageToMessageDecoder<Request>
     public void clear() {
         counter.set(0);
         responses.clear();
+        batches.clear();
     }
 }
@@ -13,6 +13,8 @@ import org.springframework.context.ApplicationContext;
 import timely.common.component.AuthenticationService;
 import timely.common.configuration.AccumuloProperties;
 import timely.common.configuration.CacheProperties;
+import timely.common.configuration.IngestProperties;
+import timely.common.configuration.QueryCacheProperties;
 import timely.common.configuration.SecurityProperties;
 import timely.common.configuration.TimelyProperties;
 import timely.common.configuration.ZookeeperProperties;
@@ -32,9 +34,9 @@ public class TestDataStore extends DataStore {
     public TestDataStore(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStoreCache dataStoreCache,
                     AuthenticationService authenticationService, InternalMetrics internalMetrics, MetaCache metaCache, TimelyProperties timelyProperties,
                     ZookeeperProperties zookeeperProperties, AccumuloProperties accumuloProperties, SecurityProperties securityProperties,
-                    CacheProperties cacheProperties, Exclusions exclusions) {
+                    CacheProperties cacheProperties, QueryCacheProperties queryCacheProperties, IngestProperties ingestProperties, Exclusions exclusions) {
         super(applicationContext, accumuloClient, dataStoreCache, authenticationService, internalMetrics, metaCache, timelyProperties, zookeeperProperties,
-                        accumuloProperties, securityProperties, cacheProperties, exclusions);
+                        accumuloProperties, securityProperties, cacheProperties, queryCacheProperties, ingestProperties, exclusions);
         this.metaCache = metaCache;
     }
 
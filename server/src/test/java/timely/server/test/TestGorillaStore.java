@@ -2,6 +2,7 @@ package timely.server.test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -9,7 +10,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import fi.iki.yak.ts.compression.gorilla.Pair;
+import timely.model.Metric;
 import timely.server.store.cache.GorillaStore;
+import timely.server.store.cache.OffHeapBlocks;
 import timely.server.store.cache.WrappedGorillaDecompressor;
 
 public class TestGorillaStore {
@@ -87,4 +90,140 @@ public class TestGorillaStore {
         gStore.ageOffArchivedCompressors(2, 5);
         Assert.assertEquals(3, gStore.getOldestTimestamp());
     }
+
+    @Test
+    public void testStagedValuesFlushed() {
+
+        GorillaStore gStore = new GorillaStore("", Long.MAX_VALUE);
+
+        long now = System.currentTimeMillis();
+        List<Double> values = new ArrayList<>();
+        for (int flush = 0; flush < 3; flush++) {
+            // more values than the initial capacity of the staging buffer
+            for (int x = 0; x < 20; x++) {
+                double value = flush * 100 + x + 0.5;
+                gStore.addValue(new Metric("", now += 100, value, Collections.emptyList()));
+                values.add(value);
+            }
+            // a value older than the newest staged value is dropped when flushed
+            gStore.addValue(new Metric("", now - 50, -1.0, Collections.emptyList()));
+            Assert.assertEquals(flush * 20, gStore.getNumEntries());
+            gStore.flush();
+            Assert.assertEquals((flush + 1) * 20, gStore.getNumEntries());
+            Assert.assertEquals(now, gStore.getNewestTimestamp());
+        }
+
+        List<Double> read = new ArrayList<>();
+        for (WrappedGorillaDecompressor w : gStore.getDecompressors(0, Long.MAX_VALUE)) {
+            Pair pair;
+            while ((pair = w.readPair()) != null) {
+                read.add(pair.getDoubleValue());
+            }
+        }
+        Assert.assertEquals(values, read);
+    }
+
+    @Test
+    public void testStagedValuesFromOtherThreadsMerged() throws Exception {
+
+        GorillaStore gStore = new GorillaStore("", Long.MAX_VALUE);
+
+        long now = System.currentTimeMillis();
+        // the first writer owns the series, more values than the ring holds go to the shared arrays
+        for (int x = 0; x < 600; x++) {
+            gStore.addValue(new Metric("", now + x, x, Collections.emptyList()));
+        }
+        gStore.flush();
+        Assert.assertEquals(600, gStore.getNumEntries());
+
+        // values of another thread are merged with the values of the owner by timestamp
+        for (int x = 600; x < 800; x += 2) {
+            gStore.addValue(new Metric("", now + x, x, Collections.emptyList()));
+        }
+        Thread other = new Thread(() -> {
+            for (int x = 601; x < 800; x += 2) {
+                gStore.addValue(new Metric("", now + x, x, Collections.emptyList()));
+            }
+        });
+        other.start();
+        other.join();
+        gStore.flush();
+        Assert.assertEquals(800, gStore.getNumEntries());
+
+        int read = 0;
+        for (WrappedGorillaDecompressor w : gStore.getDecompressors(0, Long.MAX_VALUE)) {
+            Pair pair;
+            while ((pair = w.readPair()) != null) {
+                Assert.assertEquals(now + read, pair.getTimestamp());
+                Assert.assertEquals(read, pair.getDoubleValue(), 0);
+                read++;
+            }
+        }
+        Assert.assertEquals(800, read);
+    }
+
+    @Test
+    public void testOffHeapArchive() {
+
+        OffHeapBlocks offHeapBlocks = new OffHeapBlocks(1024 * 1024);
+        GorillaStore gStore = new GorillaStore("", Long.MAX_VALUE, offHeapBlocks);
+
+        long start = System.currentTimeMillis() - 100000;
+        long timestamp = start;
+        List<Double> values = new ArrayList<>();
+        for (int x = 0; x < 100; x++) {
+            double value = x * 1.5;
+            gStore.addValue(timestamp += 1000, value);
+            values.add(value);
+            if (x % 50 == 49) {
+                gStore.archiveCurrentCompressor();
+            }
+        }
+        Assert.assertEquals(2, offHeapBlocks.getBlocks());
+        Assert.assertTrue(offHeapBlocks.getUsed() > 0);
+
+        List<Double> read = new ArrayList<>();
+        for (WrappedGorillaDecompressor w : gStore.getDecompressors(0, Long.MAX_VALUE)) {
+            Pair pair;
+            while ((pair = w.readPair()) != null) {
+                read.add(pair.getDoubleValue());
+            }
+        }
+        Assert.assertEquals(values, read);
+
+        // a block that is still being read is freed once the reader is closed
+        List<WrappedGorillaDecompressor> open = gStore.getDecompressors(0, Long.MAX_VALUE);
+        Assert.assertEquals(2, gStore.ageOffArchivedCompressors(0, timestamp + 1));
+        Assert.assertEquals(2, offHeapBlocks.getBlocks());
+        Assert.assertNotNull(open.get(0).readPair());
+        for (WrappedGorillaDecompressor w : open) {
+            w.close();
+        }
+        Assert.assertEquals(0, offHeapBlocks.getBlocks());
+        Assert.assertEquals(0, offHeapBlocks.getUsed());
+    }
+
+    @Test
+    public void testOffHeapBudget() {
+
+        OffHeapBlocks offHeapBlocks = new OffHeapBlocks(Long.BYTES);
+        GorillaStore gStore = new GorillaStore("", Long.MAX_VALUE, offHeapBlocks);
+
+        long timestamp = System.currentTimeMillis() - 100000;
+        for (int x = 0; x < 50; x++) {
+            gStore.addValue(timestamp += 1000, x);
+        }
+        gStore.archiveCurrentCompressor();
+        // the block is larger than the budget and stays on the heap
+        Assert.assertEquals(0, offHeapBlocks.getBlocks());
+        Assert.assertEquals(0, offHeapBlocks.getUsed());
+
+        int numRead = 0;
+        for (WrappedGorillaDecompressor w : gStore.getDecompressors(0, Long.MAX_VALUE)) {
+            while (w.readPair() != null) {
+                numRead++;
+            }
+        }
+        Assert.assertEquals(50, numRead);
+    }
 }
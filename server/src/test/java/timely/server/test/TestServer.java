@@ -24,7 +24,10 @@ import timely.common.configuration.TimelyProperties;
 import timely.common.configuration.WebsocketProperties;
 import timely.server.Server;
 import timely.server.store.DataStore;
+import timely.server.store.IngestQueue;
+import timely.server.store.InternalMetrics;
 import timely.server.store.MetaCache;
+import timely.server.store.QueryScheduler;
 import timely.server.store.cache.DataStoreCache;
 
 public class TestServer extends Server {
@@ -34,14 +37,16 @@ public class TestServer extends Server {
     public TestCaptureRequestHandler tcpRequests;
     public TestCaptureRequestHandler udpRequests;
 
-    public TestServer(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, DataStoreCache dataStoreCache,
-                    @Qualifier("nettySslContext") SslContext sslContext, AuthenticationService authenticationService, CuratorFramework curatorFramework,
-                    MetaCache metaCache, TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties,
-                    HttpProperties httpProperties, CorsProperties corsProperties, WebsocketProperties websocketProperties,
-                    SslServerProperties sslServerProperties, @Qualifier("http") TestCaptureRequestHandler httpRequests,
-                    @Qualifier("tcp") TestCaptureRequestHandler tcpRequests, @Qualifier("udp") TestCaptureRequestHandler udpRequests) {
-        super(applicationContext, accumuloClient, dataStore, dataStoreCache, sslContext, authenticationService, curatorFramework, metaCache, timelyProperties,
-                        securityProperties, serverProperties, httpProperties, corsProperties, websocketProperties, sslServerProperties);
+    public TestServer(ApplicationContext applicationContext, AccumuloClient accumuloClient, DataStore dataStore, IngestQueue ingestQueue,
+                    QueryScheduler queryScheduler, DataStoreCache dataStoreCache, @Qualifier("nettySslContext") SslContext sslContext,
+                    AuthenticationService authenticationService, CuratorFramework curatorFramework, MetaCache metaCache, InternalMetrics internalMetrics,
+                    TimelyProperties timelyProperties, SecurityProperties securityProperties, ServerProperties serverProperties, HttpProperties httpProperties,
+                    CorsProperties corsProperties, WebsocketProperties websocketProperties, SslServerProperties sslServerProperties,
+                    @Qualifier("http") TestCaptureRequestHandler httpRequests, @Qualifier("tcp") TestCaptureRequestHandler tcpRequests,
+                    @Qualifier("udp") TestCaptureRequestHandler udpRequests) {
+        super(applicationContext, accumuloClient, dataStore, ingestQueue, queryScheduler, dataStoreCache, sslContext, authenticationService, curatorFramework,
+                        metaCache, internalMetrics, timelyProperties, securityProperties, serverProperties, httpProperties, corsProperties, websocketProperties,
+                        sslServerProperties);
         DEFAULT_EVENT_LOOP_THREADS = 1;
         this.httpRequests = httpRequests;
         this.tcpRequests = tcpRequests;